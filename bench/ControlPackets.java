@@ -0,0 +1,144 @@
+/* #### Control Packets ####
+ * This class plays the eNodeB switch for simulated UEs: it wraps a
+ * control message of a UE into the PACKET_IN the switch would send,
+ * hands it to MME the way Floodlight does (payload parsed into the
+ * context) and decodes replies MME sends back as packet outs.
+ */
+package net.floodlightcontroller.splus;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IListener.Command;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
+import org.projectfloodlight.openflow.protocol.OFPacketInReason;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFBufferId;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TableId;
+import org.projectfloodlight.openflow.types.TransportPort;
+import org.projectfloodlight.openflow.types.U64;
+
+public class ControlPackets {
+	/* PACKET_IN as handed to MME by Floodlight, i.e. along with its already parsed payload */
+	public static class Packet {
+		final OFPacketIn packet_in;
+		final Ethernet eth;
+
+		Packet(OFPacketIn packet_in, Ethernet eth) {
+			this.packet_in = packet_in;
+			this.eth = eth;
+		};
+	}
+
+	public static Packet packetIn(OFFactory factory, TransportPort ue_port, ControlMessage message) {
+		return packetIn(factory, ue_port, ControlCodec.encode(message));
+	};
+
+	/* Builds the PACKET_IN eNodeB switch sends for a control message of the UE using given UDP source port */
+	public static Packet packetIn(OFFactory factory, TransportPort ue_port, byte[] payload) {
+		UDP udp = new UDP();
+		udp.setSourcePort(ue_port);
+		udp.setDestinationPort(TransportPort.of(Constants.DEFAULT_CONTROL_TRAFFIC_UDP_PORT));
+
+		IPv4 ip = new IPv4();
+		ip.setSourceAddress(IPv4Address.of(Constants.RAN_IP));
+		ip.setDestinationAddress(IPv4Address.of(Constants.ENODEB_SW_IP_UPLINK));
+		ip.setProtocol(IpProtocol.UDP);
+		ip.setTtl((byte) 64);
+
+		Ethernet eth = new Ethernet();
+		eth.setSourceMACAddress(MacAddress.of(Constants.UE_MAC));
+		eth.setDestinationMACAddress(MacAddress.of(Constants.ENODEB_SW_MAC));
+		eth.setEtherType(EthType.IPv4);
+		eth.setPayload(ip.setPayload(udp.setPayload(new Data(payload))));
+
+		byte[] frame = eth.serialize();
+
+		OFPacketIn packet_in = factory.buildPacketIn()
+			.setBufferId(OFBufferId.NO_BUFFER)
+			.setTotalLen(frame.length)
+			.setReason(OFPacketInReason.NO_MATCH)
+			.setTableId(TableId.ZERO)
+			.setCookie(U64.ZERO)
+			.setMatch(factory.buildMatch().setExact(MatchField.IN_PORT, OFPort.of(Constants.UE_PORT)).build())
+			.setData(frame)
+			.build();
+
+		// same as Floodlight, MME gets the payload parsed from the frame
+		Ethernet parsed = parse(frame);
+		if(parsed == null) {
+			throw new IllegalStateException("Can't parse PACKET_IN built for UE port '" + ue_port + "'");
+		};
+
+		return new Packet(packet_in, parsed);
+	};
+
+	/* Hands the PACKET_IN to MME as received from the (eNodeB) switch */
+	public static Command send(MME mme, IOFSwitch switch_id, Packet packet) {
+		FloodlightContext context = new FloodlightContext();
+		IFloodlightProviderService.bcStore.put(context, IFloodlightProviderService.CONTEXT_PI_PAYLOAD, packet.eth);
+		return mme.receive(switch_id, packet.packet_in, context);
+	};
+
+	/* NAS_STEP_TWO carries no encoder friendly IEs: [IMSI][NAS cipher text][NAS-MAC] */
+	public static byte[] nasStepTwo(long imsi) {
+		byte[] head = ControlCodec.encode(new ControlMessage(ControlCodec.NAS_STEP_TWO, true).set(ControlCodec.IE_IMSI, imsi));
+		int cipher_length = CryptoEngine.encryptedSize(32);
+
+		byte[] out = new byte[head.length + ControlCodec.IE_HEADER_LENGTH + cipher_length + ControlCodec.IE_HEADER_LENGTH + ControlCodec.MAC_LENGTH];
+		System.arraycopy(head, 0, out, 0, head.length);
+
+		int pos = head.length;
+		pos = writeIE(out, pos, ControlCodec.IE_NAS_CIPHER_TEXT, cipher_length);
+		pos = writeIE(out, pos, ControlCodec.IE_NAS_MAC, ControlCodec.MAC_LENGTH);
+		return out;
+	};
+
+	// writes IE header, value is left zeroed, returns position after the IE
+	private static int writeIE(byte[] out, int pos, int type, int length) {
+		out[pos] = (byte) type;
+		out[pos + 1] = (byte) (length >>> 8);
+		out[pos + 2] = (byte) length;
+		return pos + ControlCodec.IE_HEADER_LENGTH + length;
+	};
+
+	/* Decodes the control message of a packet out frame into reply.
+	 * Returns UDP destination port (i.e. port of the UE) or -1 if frame carries no control message.
+	 */
+	public static int decodeReply(byte[] frame, ControlMessage reply) {
+		Ethernet eth = parse(frame);
+		if(eth == null || !(eth.getPayload() instanceof IPv4)) { return -1; };
+
+		IPv4 ip = (IPv4) eth.getPayload();
+		if(!(ip.getPayload() instanceof UDP)) { return -1; };
+
+		UDP udp = (UDP) ip.getPayload();
+		if(!(udp.getPayload() instanceof Data)) { return -1; };
+
+		if(!ControlCodec.decode(((Data) udp.getPayload()).getData(), reply)) { return -1; };
+		return udp.getDestinationPort().getPort();
+	};
+
+	private static Ethernet parse(byte[] frame) {
+		if(frame == null) { return null; };
+
+		try {
+			Ethernet eth = new Ethernet();
+			eth.deserialize(frame, 0, frame.length);
+			return eth;
+		} catch (Exception e) {
+			return null;
+		}
+	};
+}
@@ -0,0 +1,70 @@
+/* #### Fake Services ####
+ * This class builds the Floodlight services (other than the switch
+ * service, see FakeSwitchService) which MME asks for in init() and
+ * startUp(), so that MME can run outside of Floodlight in benchmarks
+ * and the load generator. Services are dynamic proxies which answer
+ * only the calls MME makes.
+ */
+package net.floodlightcontroller.splus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.internal.IOFSwitchService;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+public class FakeServices {
+	/* Module context with given switch service, a thread pool service handing out timer and a provider ignoring listeners */
+	public static FloodlightModuleContext moduleContext(IOFSwitchService switch_service, ScheduledExecutorService timer) {
+		FloodlightModuleContext context = new FloodlightModuleContext();
+		context.addService(IOFSwitchService.class, switch_service);
+		context.addService(IThreadPoolService.class, threadPoolService(timer));
+		context.addService(IFloodlightProviderService.class, floodlightProvider());
+		return context;
+	};
+
+	/* Thread pool service handing out the given timer (flow transaction timeouts, MME's periodic tasks) */
+	public static IThreadPoolService threadPoolService(final ScheduledExecutorService timer) {
+		return (IThreadPoolService) Proxy.newProxyInstance(IThreadPoolService.class.getClassLoader(), new Class<?>[]{IThreadPoolService.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("getScheduledExecutor")) { return timer; };
+				return defaultValue(proxy, method, args);
+			};
+		});
+	};
+
+	/* Provider which accepts (and ignores) message listeners, PACKET_INs are handed to MME directly */
+	public static IFloodlightProviderService floodlightProvider() {
+		return (IFloodlightProviderService) Proxy.newProxyInstance(IFloodlightProviderService.class.getClassLoader(), new Class<?>[]{IFloodlightProviderService.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return defaultValue(proxy, method, args);
+			};
+		});
+	};
+
+	/* Object methods by identity, anything else returns null / false / 0 */
+	static Object defaultValue(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+
+		if(name.equals("equals") && args != null && args.length == 1) { return proxy == args[0]; };
+		if(name.equals("hashCode") && args == null) { return System.identityHashCode(proxy); };
+		if(name.equals("toString") && args == null) { return "Fake" + method.getDeclaringClass().getSimpleName(); };
+
+		Class<?> type = method.getReturnType();
+		if(!type.isPrimitive() || type == void.class) { return null; };
+		if(type == boolean.class) { return false; };
+		if(type == long.class) { return 0L; };
+		if(type == int.class) { return 0; };
+		if(type == short.class) { return (short) 0; };
+		if(type == byte.class) { return (byte) 0; };
+		if(type == char.class) { return (char) 0; };
+		if(type == float.class) { return 0f; };
+		return 0d;
+	};
+}
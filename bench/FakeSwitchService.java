@@ -0,0 +1,216 @@
+/* #### Fake Switch Service ####
+ * This class stands in for Floodlight's switch service in benchmarks
+ * and the load generator. Its switches do no I/O: flow mods are counted,
+ * packet outs are handed to a listener (the last one is kept, so that
+ * replies of MME can be decoded) and barriers are acknowledged right
+ * away or after a set delay, which plays the time a real switch takes
+ * to install flows. Switches and the service are dynamic proxies, so
+ * methods MME doesn't use need not be written out. Switches may be
+ * written by any thread, switches are added before MME is started.
+ */
+package net.floodlightcontroller.splus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.IOFSwitchService;
+
+import org.projectfloodlight.openflow.protocol.OFBarrierReply;
+import org.projectfloodlight.openflow.protocol.OFBarrierRequest;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFPacketOut;
+import org.projectfloodlight.openflow.protocol.OFType;
+import org.projectfloodlight.openflow.types.DatapathId;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class FakeSwitchService implements InvocationHandler {
+	private final OFFactory factory;
+	private final IOFSwitchService service;
+
+	/* [Key => dispatch id, Value => fake switch] */
+	private final Map<DatapathId, FakeSwitch> switches;
+
+	/* Notified of every packet out, on the thread writing it */
+	public interface PacketOutListener {
+		void packetOut(FakeSwitch fake, byte[] frame);
+	}
+
+	public FakeSwitchService(OFFactory factory) {
+		this.factory = factory;
+		this.switches = new HashMap<DatapathId, FakeSwitch>();
+		this.service = (IOFSwitchService) Proxy.newProxyInstance(IOFSwitchService.class.getClassLoader(), new Class<?>[]{IOFSwitchService.class}, this);
+	};
+
+	public FakeSwitch addSwitch(long dispatch_id) {
+		FakeSwitch fake = new FakeSwitch(DatapathId.of(dispatch_id), factory);
+		switches.put(fake.id, fake);
+		return fake;
+	};
+
+	/* Barriers of all switches are acknowledged delay_us after they were written, using timer */
+	public void setBarrierDelay(ScheduledExecutorService timer, long delay_us) {
+		for (FakeSwitch fake : switches.values()) {
+			fake.timer = timer;
+			fake.barrier_delay_us = delay_us;
+		};
+	};
+
+	public FakeSwitch getFakeSwitch(long dispatch_id) {
+		return switches.get(DatapathId.of(dispatch_id));
+	};
+
+	/* The service to be handed to modules (see FloodlightModuleContext) */
+	public IOFSwitchService getService() {
+		return service;
+	};
+
+	public Iterable<FakeSwitch> getFakeSwitches() {
+		return switches.values();
+	};
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+
+		if(name.equals("getSwitch") || name.equals("getActiveSwitch")) {
+			FakeSwitch fake = switches.get(args[0]);
+			return fake == null ? null : fake.proxy;
+		};
+
+		if(name.equals("getAllSwitchDpids")) {
+			return new HashSet<DatapathId>(switches.keySet());
+		};
+
+		if(name.equals("getAllSwitchMap")) {
+			Map<DatapathId, IOFSwitch> map = new HashMap<DatapathId, IOFSwitch>();
+			for (FakeSwitch fake : switches.values()) { map.put(fake.id, fake.proxy); };
+			return map;
+		};
+
+		// listeners etc. are not needed, MME is driven directly
+		return FakeServices.defaultValue(proxy, method, args);
+	};
+
+	/* A connected switch which accepts everything written to it */
+	public static class FakeSwitch implements InvocationHandler {
+		final DatapathId id;
+		final OFFactory factory;
+		final IOFSwitch proxy;
+
+		final AtomicLong flow_mods = new AtomicLong();
+		final AtomicLong packet_outs = new AtomicLong();
+		final AtomicLong barriers = new AtomicLong();
+		volatile byte[] last_packet_out;
+		volatile PacketOutListener listener;
+
+		ScheduledExecutorService timer;
+		long barrier_delay_us;
+
+		FakeSwitch(DatapathId id, OFFactory factory) {
+			this.id = id;
+			this.factory = factory;
+			this.proxy = (IOFSwitch) Proxy.newProxyInstance(IOFSwitch.class.getClassLoader(), new Class<?>[]{IOFSwitch.class}, this);
+		};
+
+		public IOFSwitch getSwitch() {
+			return proxy;
+		};
+
+		/* Frame (Ethernet / IPv4 / UDP) of the last packet out, null if there was none */
+		public byte[] getLastPacketOut() {
+			return last_packet_out;
+		};
+
+		public void setPacketOutListener(PacketOutListener listener) {
+			this.listener = listener;
+		};
+
+		public long getFlowMods() {
+			return flow_mods.get();
+		};
+
+		public long getPacketOuts() {
+			return packet_outs.get();
+		};
+
+		private void record(OFMessage message) {
+			if(message.getType() == OFType.FLOW_MOD) {
+				flow_mods.incrementAndGet();
+			} else if(message.getType() == OFType.PACKET_OUT) {
+				byte[] frame = ((OFPacketOut) message).getData();
+				last_packet_out = frame;
+				packet_outs.incrementAndGet();
+
+				PacketOutListener listener = this.listener;
+				if(listener != null) { listener.packetOut(this, frame); };
+			};
+		};
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+
+			if(name.equals("getId")) { return id; };
+			if(name.equals("getOFFactory")) { return factory; };
+			if(name.equals("isActive") || name.equals("isConnected")) { return true; };
+			if(name.equals("getPorts")) { return Collections.emptyList(); };
+
+			if(name.equals("write") && args != null && args.length == 1) {
+				// write(OFMessage) returns true on success, write(Iterable) returns messages which were not written
+				if(args[0] instanceof OFMessage) {
+					record((OFMessage) args[0]);
+					return true;
+				};
+
+				for (OFMessage message : (Iterable<OFMessage>) args[0]) { record(message); };
+				return Collections.emptyList();
+			};
+
+			if(name.equals("writeRequest") && args[0] instanceof OFBarrierRequest) {
+				barriers.incrementAndGet();
+				final OFBarrierReply reply = factory.buildBarrierReply().setXid(((OFMessage) args[0]).getXid()).build();
+
+				if(timer == null || barrier_delay_us <= 0) {
+					return Futures.immediateFuture(reply);
+				};
+
+				final SettableFuture<OFBarrierReply> future = SettableFuture.create();
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						future.set(reply);
+					};
+				}, barrier_delay_us, TimeUnit.MICROSECONDS);
+				return future;
+			};
+
+			if(name.equals("writeRequest")) {
+				return Futures.immediateFuture(null);
+			};
+
+			if(name.equals("writeStatsRequest")) {
+				return Futures.immediateFuture(Collections.emptyList());
+			};
+
+			return FakeServices.defaultValue(proxy, method, args);
+		};
+
+		@Override
+		public String toString() {
+			return "switch " + id + ": flow_mods=" + flow_mods.get() + ", packet_outs=" + packet_outs.get() + ", barriers=" + barriers.get();
+		};
+	}
+}
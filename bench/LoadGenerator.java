@@ -0,0 +1,592 @@
+/* #### Load Generator ####
+ * This class simulates a population of UEs behind one eNodeB running
+ * the full control plane state machine against MME:
+ *
+ *   ATTACH          => AUTHENTICATION_STEP_ONE / THREE, NAS_STEP_TWO, SEND_APN, SEND_UE_TE_ID
+ *   IDLE_RELEASE    => UE_CONTEXT_RELEASE_REQUEST, UE_CONTEXT_RELEASE_COMPLETE
+ *   SERVICE_REQUEST => UE_SERVICE_REQUEST, INITIAL_CONTEXT_SETUP_RESPONSE
+ *   DETACH          => DETACH_REQUEST
+ *
+ * MME runs in the same JVM with its worker threads, but against in-memory
+ * switches (see FakeSwitchService), which may delay barriers to play flow
+ * installation time, and the stubbed HSS (see StubHSSPlus), so an attach
+ * storm can be reproduced on a single box. Procedures arrive either as a
+ * Poisson process or in bursts; each arrival picks a procedure by the mix
+ * and a UE in the state the procedure starts from (DETACHED, CONNECTED or
+ * IDLE). Per procedure throughput and latency percentiles are printed
+ * every report interval and for the whole run.
+ *
+ * Usage: LoadGenerator [option=value]... (see usage())
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+public class LoadGenerator {
+	/* #### Procedures #### */
+	static final int ATTACH = 1;
+	static final int IDLE_RELEASE = 2;
+	static final int SERVICE_REQUEST = 3;
+	static final int DETACH = 4;
+	static final String PROCEDURE_NAMES[] = {null, "ATTACH", "IDLE_RELEASE", "SERVICE_REQUEST", "DETACH"};
+
+	/* #### UE States #### */
+	static final int DETACHED = 0;
+	static final int CONNECTED = 1;
+	static final int IDLE = 2;
+	static final String STATE_NAMES[] = {"DETACHED", "CONNECTED", "IDLE"};
+
+	// [Index => procedure, Value => state UE has to be in / is in after the procedure]
+	static final int STARTS_FROM[] = {-1, DETACHED, CONNECTED, IDLE, CONNECTED};
+	static final int ENDS_IN[] = {-1, CONNECTED, IDLE, CONNECTED, DETACHED};
+
+	// UE ports start here, one port per UE tells the UE a reply of MME is meant for
+	static final int BASE_UDP_PORT = 10000;
+	static final int MAX_UES = 65535 - BASE_UDP_PORT;
+	static final long BASE_IMSI = 208920100001000L;
+	static final long SQN = 1;
+	static final long TAI = 100;
+	static final long APN = 1;
+
+	/* #### Options (see usage()) #### */
+	int ue_count = 10000;
+	String arrival = "poisson";
+	double rate = 1000;
+	int burst_size = 1000;
+	long burst_interval = 1000;
+	long duration = 60;
+	long report_interval = 5;
+	long timeout = 5000;
+	long switch_delay_us = 0;
+	int threads = 4;
+	int workers = Constants.PROCEDURE_WORKERS;
+	int mix[] = {0, 40, 20, 20, 20};
+
+	MME mme;
+	OFFactory factory;
+	FakeSwitchService switches;
+	FakeSwitchService.FakeSwitch enodeb;
+	ScheduledExecutorService timer;
+	ExecutorService ue_threads;
+
+	Ue ues[];
+	final Queue<Ue> free[] = newQueues(STATE_NAMES.length);
+
+	final LatencyHistogram latency[] = new LatencyHistogram[PROCEDURE_NAMES.length];
+	final LatencyHistogram.Snapshot last_interval[] = new LatencyHistogram.Snapshot[PROCEDURE_NAMES.length];
+	final AtomicLong started[] = newCounters(PROCEDURE_NAMES.length);
+	final AtomicLong failed[] = newCounters(PROCEDURE_NAMES.length);
+	final AtomicLong skipped[] = newCounters(PROCEDURE_NAMES.length);
+	final AtomicLong unexpected = new AtomicLong();
+	final AtomicInteger in_flight = new AtomicInteger();
+
+	/* A simulated UE, fields are guarded by the UE's lock */
+	static class Ue {
+		final int index;
+		final long imsi;
+		final int ue_key;
+		final int ue_te_id;
+		final TransportPort udp_port;
+
+		int state = DETACHED;
+		int ue_ip, sgw_te_id;
+
+		// procedure in progress (0 => none), its step, reply the step waits for (0 => none) and when it gives up
+		int procedure, step, expected;
+		long procedure_started, deadline;
+
+		Ue(int index) {
+			this.index = index;
+			imsi = BASE_IMSI + index;
+			ue_key = index + 1;
+			ue_te_id = index % Constants.MAX_TE_ID + 1;
+			udp_port = TransportPort.of(BASE_UDP_PORT + index);
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Queue<Ue>[] newQueues(int count) {
+		Queue<Ue> queues[] = new Queue[count];
+		for (int i = 0; i < count; i++) { queues[i] = new ConcurrentLinkedQueue<Ue>(); };
+		return queues;
+	};
+
+	private static AtomicLong[] newCounters(int count) {
+		AtomicLong counters[] = new AtomicLong[count];
+		for (int i = 0; i < count; i++) { counters[i] = new AtomicLong(); };
+		return counters;
+	};
+
+	private static ThreadFactory daemons(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			};
+		};
+	};
+
+	/* Starts MME against in-memory eNodeB, SGW-D and PGW-D switches and creates the UE population */
+	void setUp() {
+		Constants.DEBUG = false;
+		Constants.PROCEDURE_WORKERS = workers;
+		Constants.LATENCY_REPORT_INTERVAL = 0;
+
+		timer = Executors.newScheduledThreadPool(2, daemons("loadgen-timer"));
+		ue_threads = Executors.newFixedThreadPool(threads, daemons("loadgen-ue"));
+
+		factory = OFFactories.getFactory(OFVersion.OF_13);
+		switches = new FakeSwitchService(factory);
+		enodeb = switches.addSwitch(Constants.ENODEB_SW_ID);
+		switches.addSwitch(Constants.SGW_DISPATCH_ID);
+		switches.addSwitch(Constants.PGW_ID);
+
+		if(switch_delay_us > 0) {
+			switches.setBarrierDelay(timer, switch_delay_us);
+		};
+
+		// replies of MME come back as packet outs on eNodeB switch, UDP port tells the UE
+		enodeb.setPacketOutListener(new FakeSwitchService.PacketOutListener() {
+			@Override
+			public void packetOut(FakeSwitchService.FakeSwitch fake, byte[] frame) {
+				final ControlMessage reply = new ControlMessage();
+				int port = ControlPackets.decodeReply(frame, reply);
+				int index = port - BASE_UDP_PORT;
+
+				if(index < 0 || index >= ues.length) {
+					unexpected.incrementAndGet();
+					return;
+				};
+
+				final Ue ue = ues[index];
+				ue_threads.execute(new Runnable() {
+					@Override
+					public void run() {
+						onReply(ue, reply);
+					};
+				});
+			};
+		});
+
+		mme = new MME();
+		mme.hss = new StubHSSPlus();
+
+		try {
+			mme.init(FakeServices.moduleContext(switches.getService(), timer));
+		} catch (Exception e) {
+			throw new IllegalStateException("Can't initialize MME: " + e, e);
+		};
+
+		mme.startUp(FakeServices.moduleContext(switches.getService(), timer));
+		for (FakeSwitchService.FakeSwitch fake : switches.getFakeSwitches()) { mme.switchAdded(fake.id); };
+
+		ues = new Ue[ue_count];
+		for (int i = 0; i < ue_count; i++) {
+			ues[i] = new Ue(i);
+			free[DETACHED].add(ues[i]);
+		};
+
+		for (int p = 1; p < PROCEDURE_NAMES.length; p++) {
+			latency[p] = new LatencyHistogram();
+			last_interval[p] = latency[p].snapshot();
+		};
+	};
+
+	/* Generates arrivals for the configured duration, then waits for procedures in flight */
+	void run() {
+		System.out.println("--- Load generator: " + ue_count + " UEs, " + describeArrival() + ", mix " + describeMix() + ", " + duration + " s, MME workers " + workers +
+			", switch delay " + switch_delay_us + " us ---");
+
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				expire();
+			};
+		}, 100, 100, TimeUnit.MILLISECONDS);
+
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.print(getIntervalReport());
+			};
+		}, report_interval, report_interval, TimeUnit.SECONDS);
+
+		long now = System.nanoTime();
+		long end = now + TimeUnit.SECONDS.toNanos(duration);
+		long next = now;
+
+		while ((now = System.nanoTime()) < end) {
+			if(now < next) {
+				LockSupport.parkNanos(next - now);
+				continue;
+			};
+
+			if(arrival.equals("burst")) {
+				for (int i = 0; i < burst_size; i++) { arrive(); };
+				next += TimeUnit.MILLISECONDS.toNanos(burst_interval);
+			} else {
+				arrive();
+				// exponential inter-arrival time => Poisson arrivals
+				next += (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) / rate * 1e9);
+			};
+		};
+
+		// give procedures in flight a chance to finish or time out
+		long drain = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout + 500);
+		while (in_flight.get() > 0 && System.nanoTime() < drain) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		};
+
+		System.out.print("--- Whole run ---\n" + getReport(duration));
+		System.out.print("--- MME ---\n" + mme.getLatencyReport());
+		System.out.println(FlowTransaction.getStats());
+		System.out.println(mme.sgw.getTunnelStats());
+		System.out.print(mme.sgw.getIPPoolStats());
+		for (FakeSwitchService.FakeSwitch fake : switches.getFakeSwitches()) { System.out.println(fake); };
+
+		timer.shutdownNow();
+		ue_threads.shutdownNow();
+	};
+
+	/* Picks a procedure by the mix and a UE in the state it starts from */
+	void arrive() {
+		int total = 0;
+		for (int p = 1; p < mix.length; p++) { total += mix[p]; };
+
+		int pick = ThreadLocalRandom.current().nextInt(total);
+		int procedure = 1;
+		while (pick >= mix[procedure]) { pick -= mix[procedure++]; };
+
+		final Ue ue = free[STARTS_FROM[procedure]].poll();
+		if(ue == null) {
+			skipped[procedure].incrementAndGet();
+			return;
+		};
+
+		final int p = procedure;
+		ue_threads.execute(new Runnable() {
+			@Override
+			public void run() {
+				start(ue, p);
+			};
+		});
+	};
+
+	void start(Ue ue, int procedure) {
+		synchronized (ue) {
+			started[procedure].incrementAndGet();
+			in_flight.incrementAndGet();
+
+			ue.procedure = procedure;
+			ue.step = 0;
+			ue.procedure_started = System.nanoTime();
+			next(ue);
+		}
+	};
+
+	/* Sends requests of the current step (and of following steps which MME doesn't answer) of UE's procedure */
+	private void next(Ue ue) {
+		while (ue.procedure != 0) {
+			ControlMessage request = null;
+			byte[] payload = null;
+			int expected = 0;
+
+			switch(ue.procedure) {
+				case ATTACH:
+					switch(ue.step) {
+						case 0:
+							request = new ControlMessage(ControlCodec.AUTHENTICATION_STEP_ONE, true).set(ControlCodec.IE_IMSI, ue.imsi)
+								.set(ControlCodec.IE_NW_CAPABILITY, 1).set(ControlCodec.IE_KSI_ASME, 1).set(ControlCodec.IE_SQN, SQN).set(ControlCodec.IE_TAI, TAI);
+							expected = ControlCodec.AUTHENTICATION_STEP_TWO;
+							break;
+						case 1:
+							request = new ControlMessage(ControlCodec.AUTHENTICATION_STEP_THREE, true).set(ControlCodec.IE_IMSI, ue.imsi)
+								.set(ControlCodec.IE_RES, StubHSSPlus.expectedRes(ue.imsi, SQN));
+							expected = ControlCodec.NAS_STEP_ONE;
+							break;
+						case 2:
+							payload = ControlPackets.nasStepTwo(ue.imsi);
+							break;
+						case 3:
+							request = new ControlMessage(ControlCodec.SEND_APN, true).set(ControlCodec.IE_APN, APN).set(ControlCodec.IE_UE_KEY, ue.ue_key)
+								.set(ControlCodec.IE_IMSI, ue.imsi);
+							expected = ControlCodec.SEND_IP_SGW_TE_ID;
+							break;
+						case 4:
+							request = new ControlMessage(ControlCodec.SEND_UE_TE_ID, true).set(ControlCodec.IE_UE_TE_ID, ue.ue_te_id).set(ControlCodec.IE_UE_KEY, ue.ue_key);
+							expected = ControlCodec.ATTACH_ACCEPT;
+							break;
+					};
+					break;
+
+				case IDLE_RELEASE:
+					switch(ue.step) {
+						case 0:
+							request = new ControlMessage(ControlCodec.UE_CONTEXT_RELEASE_REQUEST, true).set(ControlCodec.IE_UE_IP, ue.ue_ip)
+								.set(ControlCodec.IE_UE_TE_ID, ue.ue_te_id).set(ControlCodec.IE_SGW_TE_ID, ue.sgw_te_id).set(ControlCodec.IE_UE_KEY, ue.ue_key);
+							expected = ControlCodec.UE_CONTEXT_RELEASE_COMMAND;
+							break;
+						case 1:
+							request = new ControlMessage(ControlCodec.UE_CONTEXT_RELEASE_COMPLETE, true).set(ControlCodec.IE_UE_KEY, ue.ue_key)
+								.set(ControlCodec.IE_UE_IP, ue.ue_ip).set(ControlCodec.IE_NETWORK_SERVICE_REQUEST, 0).set(ControlCodec.IE_PDN_PORT, 0);
+							break;
+					};
+					break;
+
+				case SERVICE_REQUEST:
+					switch(ue.step) {
+						case 0:
+							request = new ControlMessage(ControlCodec.UE_SERVICE_REQUEST, true).set(ControlCodec.IE_UE_KEY, ue.ue_key)
+								.set(ControlCodec.IE_KSI_ASME, 1).set(ControlCodec.IE_UE_IP, ue.ue_ip);
+							expected = ControlCodec.INITIAL_CONTEXT_SETUP_REQUEST;
+							break;
+						case 1:
+							request = new ControlMessage(ControlCodec.INITIAL_CONTEXT_SETUP_RESPONSE, true).set(ControlCodec.IE_UE_TE_ID, ue.ue_te_id)
+								.set(ControlCodec.IE_UE_KEY, ue.ue_key).set(ControlCodec.IE_UE_IP, ue.ue_ip);
+							expected = ControlCodec.ATTACH_ACCEPT;
+							break;
+					};
+					break;
+
+				case DETACH:
+					if(ue.step == 0) {
+						request = new ControlMessage(ControlCodec.DETACH_REQUEST, true).set(ControlCodec.IE_UE_IP, ue.ue_ip)
+							.set(ControlCodec.IE_UE_TE_ID, ue.ue_te_id).set(ControlCodec.IE_SGW_TE_ID, ue.sgw_te_id).set(ControlCodec.IE_UE_KEY, ue.ue_key);
+						expected = ControlCodec.DETACH_ACCEPT;
+					};
+					break;
+			};
+
+			// past the last step
+			if(request == null && payload == null) {
+				finish(ue, true);
+				return;
+			};
+
+			ue.expected = expected;
+			ue.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+			try {
+				ControlPackets.send(mme, enodeb.proxy, request != null ? ControlPackets.packetIn(factory, ue.udp_port, request) : ControlPackets.packetIn(factory, ue.udp_port, payload));
+			} catch (RuntimeException e) {
+				System.out.println("ERROR: " + PROCEDURE_NAMES[ue.procedure] + " of UE '" + ue.index + "' failed at step " + ue.step + ": " + e);
+				finish(ue, false);
+				return;
+			};
+
+			// wait for reply unless MME doesn't answer this step; reply may also have come already on this thread
+			if(expected != 0 || ue.procedure == 0) { return; };
+			ue.step++;
+		};
+	};
+
+	/* Reply of MME to the UE, runs on generator threads */
+	void onReply(Ue ue, ControlMessage reply) {
+		synchronized (ue) {
+			if(ue.procedure == 0 || ue.expected == 0 || reply.code != ue.expected) {
+				unexpected.incrementAndGet();
+
+				if(ue.procedure != 0 && (reply.code == ControlCodec.AUTHENTICATION_FAILURE || reply.code == ControlCodec.DETACH_FAILURE)) {
+					finish(ue, false);
+				};
+				return;
+			};
+
+			if(reply.code == ControlCodec.SEND_IP_SGW_TE_ID) {
+				ue.ue_ip = reply.getInt(ControlCodec.IE_UE_IP);
+				ue.sgw_te_id = reply.getInt(ControlCodec.IE_SGW_TE_ID);
+			};
+
+			ue.expected = 0;
+			ue.step++;
+			next(ue);
+		}
+	};
+
+	/* Ends UE's procedure, UE moves to the state the procedure ends in, or stays where it was on failure */
+	private void finish(Ue ue, boolean success) {
+		int procedure = ue.procedure;
+
+		if(success) {
+			latency[procedure].record(System.nanoTime() - ue.procedure_started);
+			ue.state = ENDS_IN[procedure];
+		} else {
+			failed[procedure].incrementAndGet();
+		};
+
+		ue.procedure = 0;
+		ue.expected = 0;
+		in_flight.decrementAndGet();
+		free[ue.state].add(ue);
+	};
+
+	/* Fails procedures whose step has not been answered in time */
+	void expire() {
+		long now = System.nanoTime();
+
+		for (Ue ue : ues) {
+			synchronized (ue) {
+				if(ue.procedure != 0 && ue.expected != 0 && now - ue.deadline > 0) {
+					finish(ue, false);
+				};
+			}
+		};
+	};
+
+	/* Throughput and latency of procedures completed since previous call, one caller (the reporter) is expected */
+	synchronized String getIntervalReport() {
+		StringBuilder sb = new StringBuilder("--- Last " + report_interval + " s (in flight " + in_flight.get() + ", " + describeStates() + ", unexpected replies " + unexpected.get() + ") ---\n");
+
+		for (int p = 1; p < PROCEDURE_NAMES.length; p++) {
+			long interval_max = latency[p].takeIntervalMax();
+			LatencyHistogram.Snapshot now = latency[p].snapshot();
+			LatencyHistogram.Snapshot interval = now.since(last_interval[p], interval_max);
+			last_interval[p] = now;
+
+			sb.append(PROCEDURE_NAMES[p]).append(": rate=").append(String.format("%.1f", interval.getCount() / (double) report_interval)).append("/s, ").append(interval).append('\n');
+		};
+
+		return sb.toString();
+	};
+
+	/* Throughput and latency of the whole run along with started / failed / skipped counts */
+	String getReport(long seconds) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int p = 1; p < PROCEDURE_NAMES.length; p++) {
+			LatencyHistogram.Snapshot all = latency[p].snapshot();
+			sb.append(PROCEDURE_NAMES[p]).append(": rate=").append(String.format("%.1f", all.getCount() / (double) seconds)).append("/s, started=").append(started[p].get())
+				.append(", failed=").append(failed[p].get()).append(", skipped=").append(skipped[p].get()).append(", ").append(all).append('\n');
+		};
+
+		sb.append("unexpected replies=").append(unexpected.get()).append(", ").append(describeStates()).append('\n');
+		return sb.toString();
+	};
+
+	private String describeStates() {
+		StringBuilder sb = new StringBuilder();
+		for (int s = 0; s < STATE_NAMES.length; s++) {
+			sb.append(s == 0 ? "" : ", ").append(STATE_NAMES[s]).append('=').append(free[s].size());
+		};
+		return sb.toString();
+	};
+
+	private String describeArrival() {
+		return arrival.equals("burst") ? "bursts of " + burst_size + " every " + burst_interval + " ms" : "Poisson arrivals at " + rate + "/s";
+	};
+
+	private String describeMix() {
+		StringBuilder sb = new StringBuilder();
+		for (int p = 1; p < PROCEDURE_NAMES.length; p++) {
+			sb.append(p == 1 ? "" : ",").append(PROCEDURE_NAMES[p].toLowerCase()).append('=').append(mix[p]);
+		};
+		return sb.toString();
+	};
+
+	/* Applies option=value arguments, returns false on a bad one */
+	boolean configure(String args[]) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if(eq <= 0) { return false; };
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		};
+
+		try {
+			for (Map.Entry<String, String> option : options.entrySet()) {
+				String value = option.getValue();
+
+				switch(option.getKey()) {
+					case "ues": ue_count = Integer.parseInt(value); break;
+					case "arrival": arrival = value; break;
+					case "rate": rate = Double.parseDouble(value); break;
+					case "burst": burst_size = Integer.parseInt(value); break;
+					case "burst-interval": burst_interval = Long.parseLong(value); break;
+					case "duration": duration = Long.parseLong(value); break;
+					case "report-interval": report_interval = Long.parseLong(value); break;
+					case "timeout": timeout = Long.parseLong(value); break;
+					case "switch-delay-us": switch_delay_us = Long.parseLong(value); break;
+					case "threads": threads = Integer.parseInt(value); break;
+					case "workers": workers = Integer.parseInt(value); break;
+					case "mix":
+						int parsed[] = new int[PROCEDURE_NAMES.length];
+						for (String entry : value.split(",")) {
+							String pair[] = entry.split(":");
+							int p = procedureOf(pair[0]);
+							if(p < 0 || pair.length != 2) { return false; };
+							parsed[p] = Integer.parseInt(pair[1]);
+						};
+						mix = parsed;
+						break;
+					default: return false;
+				};
+			};
+
+		} catch (NumberFormatException e) {
+			return false;
+		};
+
+		int total = 0;
+		for (int p = 1; p < mix.length; p++) { total += Math.max(mix[p], 0); };
+
+		return total > 0 && ue_count > 0 && ue_count <= MAX_UES && rate > 0 && burst_size > 0 && burst_interval > 0 && duration > 0 && report_interval > 0 &&
+			threads > 0 && workers >= 0 && (arrival.equals("poisson") || arrival.equals("burst"));
+	};
+
+	private static int procedureOf(String name) {
+		for (int p = 1; p < PROCEDURE_NAMES.length; p++) {
+			if(PROCEDURE_NAMES[p].equalsIgnoreCase(name.replace('-', '_'))) { return p; };
+		};
+		return -1;
+	};
+
+	static void usage() {
+		System.out.println("Usage: LoadGenerator [option=value]...");
+		System.out.println("  ues=10000                 UE population, at most " + MAX_UES);
+		System.out.println("  arrival=poisson|burst     arrival process of procedures");
+		System.out.println("  rate=1000                 procedures per second (poisson)");
+		System.out.println("  burst=1000                procedures per burst (burst)");
+		System.out.println("  burst-interval=1000       milliseconds between bursts (burst)");
+		System.out.println("  mix=attach:40,idle-release:20,service-request:20,detach:20");
+		System.out.println("                            relative weights of procedures");
+		System.out.println("  duration=60               seconds of load");
+		System.out.println("  report-interval=5         seconds between interval reports");
+		System.out.println("  timeout=5000              milliseconds a step waits for its reply");
+		System.out.println("  switch-delay-us=0         microseconds switches take to acknowledge flow mods");
+		System.out.println("  threads=4                 generator threads (UE side)");
+		System.out.println("  workers=<cpus>            MME procedure workers, 0 => none");
+	};
+
+	public static void main(String args[]) {
+		LoadGenerator generator = new LoadGenerator();
+
+		if(!generator.configure(args)) {
+			usage();
+			System.exit(1);
+		};
+
+		generator.setUp();
+		generator.run();
+	};
+}
@@ -0,0 +1,260 @@
+/* #### MME Benchmark ####
+ * JMH benchmarks of the attach / detach procedure of MME against
+ * in-memory switches (see FakeSwitchService) and a stubbed HSS (see
+ * StubHSSPlus), so no Mininet / OVS or mysql is involved. PACKET_INs
+ * of every simulated UE are built once (see ControlPackets); only DETACH_REQUEST is built
+ * after SEND_APN, since it carries the UE IP and SGW TEID MME assigned.
+ *
+ * attachDetach => ops/s of the whole procedure, one UE per op
+ * step         => ns/op of a single step, the steps before it are run
+ *                 before the op and the steps after it after the op
+ *
+ * Compile sources of src/ (without PDNServer.java) and bench/ together with
+ * floodlight.jar, jmh-core and jmh-generator-annprocess on class path, then
+ * run from repository root (for bench/logback-bench.xml):
+ *
+ *   java -cp <classes>:<jars> net.floodlightcontroller.splus.MMEBenchmark
+ *
+ * which adds the gc profiler (allocation rate, bytes/op). Per step
+ * histograms recorded by MME itself are printed when a trial ends.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IListener.Command;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+@Fork(value = 1, jvmArgsAppend = {"-Dlogback.configurationFile=bench/logback-bench.xml"})
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MMEBenchmark {
+	/* Steps of the procedure in the order UE sends them, indexes into Ue.packets */
+	static final int AUTHENTICATION_STEP_ONE = 0;
+	static final int AUTHENTICATION_STEP_THREE = 1;
+	static final int NAS_STEP_TWO = 2;
+	static final int SEND_APN = 3;
+	static final int SEND_UE_TE_ID = 4;
+	static final int DETACH_REQUEST = 5;
+
+	static final String STEP_NAMES[] = {"AUTHENTICATION_STEP_ONE", "AUTHENTICATION_STEP_THREE", "NAS_STEP_TWO", "SEND_APN", "SEND_UE_TE_ID", "DETACH_REQUEST"};
+
+	// steps MME answers with a packet out to the UE
+	static final boolean STEP_REPLIES[] = {true, true, false, true, true, true};
+
+	// UEs are attached one after the other, so these only bound memory of pre-built packets
+	static final int UE_COUNT = 1024;
+	static final long BASE_IMSI = 208920100001000L;
+	static final int BASE_UDP_PORT = 20000;
+
+	static final long SQN = 1;
+	static final long TAI = 100;
+	static final long APN = 1;
+
+	/* A simulated UE along with its pre-built PACKET_INs */
+	static class Ue {
+		final long imsi;
+		final int ue_key;
+		final int ue_te_id;
+		final TransportPort udp_port;
+		final ControlPackets.Packet packets[] = new ControlPackets.Packet[STEP_NAMES.length];
+
+		Ue(int index) {
+			imsi = BASE_IMSI + index;
+			ue_key = index + 1;
+			ue_te_id = index + 1;
+			udp_port = TransportPort.of(BASE_UDP_PORT + index);
+		};
+	}
+
+	/* MME wired to fake eNodeB, SGW-D and PGW-D switches */
+	@State(Scope.Thread)
+	public static class Network {
+		MME mme;
+		OFFactory factory;
+		FakeSwitchService switches;
+		FakeSwitchService.FakeSwitch enodeb;
+		ScheduledExecutorService timer;
+		Ue ues[];
+		int next_ue;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			Constants.DEBUG = false;
+
+			factory = OFFactories.getFactory(OFVersion.OF_13);
+			switches = new FakeSwitchService(factory);
+			enodeb = switches.addSwitch(Constants.ENODEB_SW_ID);
+			switches.addSwitch(Constants.SGW_DISPATCH_ID);
+			switches.addSwitch(Constants.PGW_ID);
+
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bench-timer");
+					t.setDaemon(true);
+					return t;
+				};
+			});
+
+			mme = new MME();
+			mme.hss = new StubHSSPlus();
+			mme.init(FakeServices.moduleContext(switches.getService(), timer));
+
+			for (FakeSwitchService.FakeSwitch fake : switches.getFakeSwitches()) { mme.switchAdded(fake.id); };
+
+			ues = new Ue[UE_COUNT];
+			for (int i = 0; i < UE_COUNT; i++) {
+				Ue ue = new Ue(i);
+				ue.packets[AUTHENTICATION_STEP_ONE] = packetIn(ue, new ControlMessage(ControlCodec.AUTHENTICATION_STEP_ONE, true)
+					.set(ControlCodec.IE_IMSI, ue.imsi).set(ControlCodec.IE_NW_CAPABILITY, 1).set(ControlCodec.IE_KSI_ASME, 1)
+					.set(ControlCodec.IE_SQN, SQN).set(ControlCodec.IE_TAI, TAI));
+				ue.packets[AUTHENTICATION_STEP_THREE] = packetIn(ue, new ControlMessage(ControlCodec.AUTHENTICATION_STEP_THREE, true)
+					.set(ControlCodec.IE_IMSI, ue.imsi).set(ControlCodec.IE_RES, StubHSSPlus.expectedRes(ue.imsi, SQN)));
+				ue.packets[NAS_STEP_TWO] = ControlPackets.packetIn(factory, ue.udp_port, ControlPackets.nasStepTwo(ue.imsi));
+				ue.packets[SEND_APN] = packetIn(ue, new ControlMessage(ControlCodec.SEND_APN, true)
+					.set(ControlCodec.IE_APN, APN).set(ControlCodec.IE_UE_KEY, ue.ue_key).set(ControlCodec.IE_IMSI, ue.imsi));
+				ue.packets[SEND_UE_TE_ID] = packetIn(ue, new ControlMessage(ControlCodec.SEND_UE_TE_ID, true)
+					.set(ControlCodec.IE_UE_TE_ID, ue.ue_te_id).set(ControlCodec.IE_UE_KEY, ue.ue_key));
+				ues[i] = ue;
+			};
+		};
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			timer.shutdownNow();
+
+			System.out.println();
+			System.out.print(mme.getLatencyReport());
+			System.out.println(FlowTransaction.getStats());
+			for (FakeSwitchService.FakeSwitch fake : switches.getFakeSwitches()) { System.out.println(fake); };
+		};
+
+		Ue nextUe() {
+			Ue ue = ues[next_ue];
+			next_ue = (next_ue + 1) % ues.length;
+			return ue;
+		};
+
+		/* Hands the PACKET_IN of the step to MME the way Floodlight does and checks MME has answered */
+		Command send(Ue ue, int step) {
+			long replies = enodeb.getPacketOuts();
+			Command command = ControlPackets.send(mme, enodeb.proxy, ue.packets[step]);
+
+			if(STEP_REPLIES[step] && enodeb.getPacketOuts() == replies) {
+				throw new IllegalStateException("MME has not answered " + STEP_NAMES[step] + " of IMSI '" + ue.imsi + "'");
+			};
+
+			// detach needs UE IP and SGW TEID from SEND_IP_SGW_TE_ID
+			if(step == SEND_APN) {
+				ControlMessage reply = new ControlMessage();
+
+				if(ControlPackets.decodeReply(enodeb.getLastPacketOut(), reply) < 0 || reply.code != ControlCodec.SEND_IP_SGW_TE_ID) {
+					throw new IllegalStateException("Unexpected reply to SEND_APN of IMSI '" + ue.imsi + "': " + reply);
+				};
+
+				ue.packets[DETACH_REQUEST] = packetIn(ue, new ControlMessage(ControlCodec.DETACH_REQUEST, true)
+					.set(ControlCodec.IE_UE_IP, reply.getInt(ControlCodec.IE_UE_IP)).set(ControlCodec.IE_UE_TE_ID, ue.ue_te_id)
+					.set(ControlCodec.IE_SGW_TE_ID, reply.getInt(ControlCodec.IE_SGW_TE_ID)).set(ControlCodec.IE_UE_KEY, ue.ue_key));
+			};
+
+			return command;
+		};
+
+		ControlPackets.Packet packetIn(Ue ue, ControlMessage message) {
+			return ControlPackets.packetIn(factory, ue.udp_port, message);
+		};
+	}
+
+	/* A single step of the procedure, [step => name of the step, see STEP_NAMES] */
+	@State(Scope.Thread)
+	public static class Procedure {
+		@Param({"AUTHENTICATION_STEP_ONE", "AUTHENTICATION_STEP_THREE", "NAS_STEP_TWO", "SEND_APN", "SEND_UE_TE_ID", "DETACH_REQUEST"})
+		public String step;
+
+		final Network network = new Network();
+		int index;
+		Ue ue;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			index = -1;
+			for (int i = 0; i < STEP_NAMES.length; i++) {
+				if(STEP_NAMES[i].equals(step)) { index = i; };
+			};
+
+			if(index < 0) { throw new IllegalArgumentException("Unknown step '" + step + "'"); };
+			network.setUp();
+		};
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			network.tearDown();
+		};
+
+		// steps take tens of microseconds, so per invocation fixtures don't distort the figures much
+		@Setup(Level.Invocation)
+		public void before() {
+			ue = network.nextUe();
+			for (int i = 0; i < index; i++) { network.send(ue, i); };
+		};
+
+		@TearDown(Level.Invocation)
+		public void after() {
+			for (int i = index + 1; i < STEP_NAMES.length; i++) { network.send(ue, i); };
+		};
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void attachDetach(Network network, Blackhole blackhole) {
+		Ue ue = network.nextUe();
+
+		for (int step = 0; step < STEP_NAMES.length; step++) {
+			blackhole.consume(network.send(ue, step));
+		};
+	};
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Command step(Procedure procedure) {
+		return procedure.network.send(procedure.ue, procedure.index);
+	};
+
+	public static void main(String args[]) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(MMEBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build();
+
+		new Runner(options).run();
+	};
+}
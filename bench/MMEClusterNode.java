@@ -0,0 +1,191 @@
+/* #### MME Cluster Node ####
+ * This class runs one node of an MME cluster (see MmeCluster) in its
+ * own JVM against in-memory switches (see FakeSwitchService) and the
+ * stubbed HSS (see StubHSSPlus), so partitioning, forwarding and
+ * rebalancing can be tried with several JVMs on one machine, e.g. in
+ * three terminals:
+ *
+ *   java -cp <classes>:<jars> -Dsplus.cluster.nodes=1=127.0.0.1:7101,2=127.0.0.1:7102,3=127.0.0.1:7103 \
+ *        -Dsplus.cluster.node=2 net.floodlightcontroller.splus.MMEClusterNode
+ *   ... -Dsplus.cluster.node=3 net.floodlightcontroller.splus.MMEClusterNode
+ *   ... -Dsplus.cluster.node=1 net.floodlightcontroller.splus.MMEClusterNode ues=10000
+ *
+ * A node given ues=N attaches N UEs once the ring has formed, handing
+ * every packet-in to itself as if its eNodeB switch had sent it, so the
+ * ones of UEs owned by other nodes are forwarded. Every node prints the
+ * sessions it holds, attaches it has accepted and cluster stats each
+ * report interval; stop a node or start it again to watch sessions move.
+ *
+ * Usage: MMEClusterNode [option=value]... (see usage())
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+public class MMEClusterNode {
+	// UE ports start here, same UE population on every node (see LoadGenerator)
+	static final int BASE_UDP_PORT = 10000;
+	static final int MAX_UES = 65535 - BASE_UDP_PORT;
+	static final long BASE_IMSI = 208920100001000L;
+	static final long SQN = 1;
+	static final long TAI = 100;
+	static final long APN = 1;
+
+	/* #### Options (see usage()) #### */
+	int ue_count = 0;
+	double rate = 1000;
+	long report_interval = 1;
+
+	MME mme;
+	OFFactory factory;
+	FakeSwitchService switches;
+	FakeSwitchService.FakeSwitch enodeb;
+	ScheduledExecutorService timer;
+
+	// ATTACH_ACCEPTs sent by this node, whichever node the UE's packets came in at
+	final AtomicLong accepted = new AtomicLong();
+
+	/* Starts MME as cluster node against in-memory eNodeB, SGW-D and PGW-D switches */
+	void setUp() {
+		Constants.DEBUG = false;
+		Constants.LATENCY_REPORT_INTERVAL = 0;
+		Constants.SGW_STATS_INTERVAL = 0;
+
+		timer = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cluster-node-timer");
+				t.setDaemon(true);
+				return t;
+			};
+		});
+
+		factory = OFFactories.getFactory(OFVersion.OF_13);
+		switches = new FakeSwitchService(factory);
+		enodeb = switches.addSwitch(Constants.ENODEB_SW_ID);
+		switches.addSwitch(Constants.SGW_DISPATCH_ID);
+		switches.addSwitch(Constants.PGW_ID);
+
+		enodeb.setPacketOutListener(new FakeSwitchService.PacketOutListener() {
+			@Override
+			public void packetOut(FakeSwitchService.FakeSwitch fake, byte[] frame) {
+				ControlMessage reply = new ControlMessage();
+				if(ControlPackets.decodeReply(frame, reply) >= 0 && reply.code == ControlCodec.ATTACH_ACCEPT) {
+					accepted.incrementAndGet();
+				};
+			};
+		});
+
+		mme = new MME();
+		mme.hss = new StubHSSPlus();
+
+		try {
+			mme.init(FakeServices.moduleContext(switches.getService(), timer));
+		} catch (Exception e) {
+			throw new IllegalStateException("Can't initialize MME: " + e, e);
+		};
+
+		mme.startUp(FakeServices.moduleContext(switches.getService(), timer));
+		for (FakeSwitchService.FakeSwitch fake : switches.getFakeSwitches()) { mme.switchAdded(fake.id); };
+	};
+
+	void run() {
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println("accepted=" + accepted.get() + ", " + mme.getClusterStats());
+			};
+		}, report_interval, report_interval, TimeUnit.SECONDS);
+
+		if(ue_count > 0) {
+			// other nodes are on the ring once they have been heard from
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(2 * Constants.CLUSTER_FAILURE_TIMEOUT));
+			System.out.println("--- Attaching " + ue_count + " UEs at " + rate + " per second ---");
+
+			long next = System.nanoTime();
+			for (int i = 0; i < ue_count; i++) {
+				long now = System.nanoTime();
+				if(now < next) { LockSupport.parkNanos(next - now); };
+				next += (long) (1e9 / rate);
+
+				attach(i);
+			};
+		};
+
+		// runs till killed, e.g. to see its sessions move to other nodes
+		while (true) {
+			LockSupport.park();
+		}
+	};
+
+	/* Sends all attach steps of the UE, steps of a UE are kept in order by the node owning it */
+	void attach(int index) {
+		long imsi = BASE_IMSI + index;
+		int ue_key = index + 1;
+		int ue_te_id = index % Constants.MAX_TE_ID + 1;
+		TransportPort udp_port = TransportPort.of(BASE_UDP_PORT + index);
+
+		ControlPackets.send(mme, enodeb.proxy, ControlPackets.packetIn(factory, udp_port, new ControlMessage(ControlCodec.AUTHENTICATION_STEP_ONE, true)
+			.set(ControlCodec.IE_IMSI, imsi).set(ControlCodec.IE_NW_CAPABILITY, 1).set(ControlCodec.IE_KSI_ASME, 1)
+			.set(ControlCodec.IE_SQN, SQN).set(ControlCodec.IE_TAI, TAI)));
+		ControlPackets.send(mme, enodeb.proxy, ControlPackets.packetIn(factory, udp_port, new ControlMessage(ControlCodec.AUTHENTICATION_STEP_THREE, true)
+			.set(ControlCodec.IE_IMSI, imsi).set(ControlCodec.IE_RES, StubHSSPlus.expectedRes(imsi, SQN))));
+		ControlPackets.send(mme, enodeb.proxy, ControlPackets.packetIn(factory, udp_port, ControlPackets.nasStepTwo(imsi)));
+		ControlPackets.send(mme, enodeb.proxy, ControlPackets.packetIn(factory, udp_port, new ControlMessage(ControlCodec.SEND_APN, true)
+			.set(ControlCodec.IE_APN, APN).set(ControlCodec.IE_UE_KEY, ue_key).set(ControlCodec.IE_IMSI, imsi)));
+		ControlPackets.send(mme, enodeb.proxy, ControlPackets.packetIn(factory, udp_port, new ControlMessage(ControlCodec.SEND_UE_TE_ID, true)
+			.set(ControlCodec.IE_UE_TE_ID, ue_te_id).set(ControlCodec.IE_UE_KEY, ue_key)));
+	};
+
+	/* Reads options, returns false if any is unknown or out of range */
+	boolean configure(String args[]) {
+		try {
+			for (String arg : args) {
+				int eq = arg.indexOf('=');
+				if(eq < 0) { return false; };
+				String value = arg.substring(eq + 1);
+
+				switch(arg.substring(0, eq)) {
+					case "ues": ue_count = Integer.parseInt(value); break;
+					case "rate": rate = Double.parseDouble(value); break;
+					case "report-interval": report_interval = Long.parseLong(value); break;
+					default: return false;
+				};
+			};
+
+		} catch (NumberFormatException e) {
+			return false;
+		};
+
+		return !Constants.CLUSTER_NODES.isEmpty() && ue_count >= 0 && ue_count <= MAX_UES && rate > 0 && report_interval > 0;
+	};
+
+	static void usage() {
+		System.out.println("Usage: java -Dsplus.cluster.nodes=1=host:port,2=host:port,... -Dsplus.cluster.node=<id> MMEClusterNode [option=value]...");
+		System.out.println("  ues=0                     UEs this node attaches once the ring has formed, at most " + MAX_UES);
+		System.out.println("  rate=1000                 attaches per second");
+		System.out.println("  report-interval=1         seconds between reports");
+	};
+
+	public static void main(String args[]) {
+		MMEClusterNode node = new MMEClusterNode();
+
+		if(!node.configure(args)) {
+			usage();
+			System.exit(1);
+		};
+
+		node.setUp();
+		node.run();
+	};
+}
@@ -0,0 +1,34 @@
+/* #### Stub Home Subscriber Service ####
+ * HSS used by benchmarks: every IMSI is a valid subscriber whose key
+ * is derived from the IMSI and every APN is served by the one PGW-D,
+ * so no mysql database is needed. The challenge is fixed, so that the
+ * simulated UE can work out RES by itself (see expectedRes).
+ */
+package net.floodlightcontroller.splus;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+
+public class StubHSSPlus extends HSSPlus {
+	static final long RAND = 100;
+	static final DatapathId PGW = DatapathId.of(Constants.PGW_ID);
+
+	// small keys, K_ASME of the vector has to fit in an int (see MME.KDF_NAS)
+	static long keyOf(long imsi) {
+		return imsi % 1000 + 1;
+	};
+
+	/* RES the UE would answer AUTHENTICATION_STEP_TWO with */
+	static long expectedRes(long imsi, long SQN) {
+		return new AuthVector(keyOf(imsi), RAND).getXres(SQN);
+	};
+
+	@Override
+	public AuthVector getAuthVector(long IMSI, String NT, long TAI) {
+		return new AuthVector(keyOf(IMSI), RAND);
+	};
+
+	@Override
+	public DatapathId getPGW(long apn) {
+		return PGW;
+	};
+}
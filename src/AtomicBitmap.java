@@ -0,0 +1,149 @@
+/* #### Atomic Bitmap ####
+ * This class keeps a set of in-use indexes (0 .. size - 1) in a bitmap
+ * of atomic words. Indexes are allocated / released with compare-and-set,
+ * without locks, from any number of threads. The search for a free index
+ * resumes after the index last allocated, so allocation is constant time
+ * as long as the bitmap isn't nearly full, and a released index is reused
+ * only after the rest of the bitmap has been gone through. Used by
+ * TeidAllocator and IpPool.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AtomicBitmap {
+	private final int size;
+
+	/* [Bit => index, Set => in use], bits past size are always set */
+	private final AtomicLongArray words;
+
+	// index next allocation starts searching from
+	private final AtomicInteger next_index = new AtomicInteger();
+
+	// indexes in use, incremented before searching so that a search always finds a free index
+	private final AtomicInteger in_use = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+
+	public AtomicBitmap(int size) {
+		if(size <= 0) {
+			throw new IllegalArgumentException("Bad bitmap size: '" + size + "'");
+		};
+
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+
+		// mark bits past the end as taken, so allocate() never has to check for them
+		int tail = size & 63;
+		if(tail != 0) {
+			words.set(words.length() - 1, -1L << tail);
+		};
+	};
+
+	/* Allocates a free index, or returns -1 if all indexes are in use */
+	public int allocate() {
+		if(!reserve()) { return -1; };
+
+		// an index is reserved for us, so the search ends even if other threads take indexes it has passed
+		int next = next_index.get();
+		int word = next >>> 6;
+
+		// bits of the first word below next are only looked at after going round
+		long skip = (1L << (next & 63)) - 1;
+
+		while (true) {
+			long bits = words.get(word);
+			long free = ~(bits | skip);
+
+			if(free != 0) {
+				long bit = Long.lowestOneBit(free);
+
+				if(words.compareAndSet(word, bits, bits | bit)) {
+					int index = (word << 6) + Long.numberOfTrailingZeros(bit);
+					next_index.set(index + 1 == size ? 0 : index + 1);
+					return index;
+				};
+
+				// lost the word to another thread, look at it again
+				continue;
+			};
+
+			skip = 0;
+			word = word + 1 == words.length() ? 0 : word + 1;
+		}
+	};
+
+	/* Allocates the given index, returns false if it is out of range or already in use */
+	public boolean allocate(int index) {
+		if(index < 0 || index >= size || !reserve()) { return false; };
+
+		int word = index >>> 6;
+		long bit = 1L << (index & 63);
+
+		while (true) {
+			long bits = words.get(word);
+
+			if((bits & bit) != 0) {
+				in_use.decrementAndGet();
+				return false;
+			};
+
+			if(words.compareAndSet(word, bits, bits | bit)) { return true; };
+		}
+	};
+
+	/* Releases an index, returns false (and changes nothing) if it is out of range or not in use */
+	public boolean release(int index) {
+		if(index < 0 || index >= size) { return false; };
+
+		int word = index >>> 6;
+		long bit = 1L << (index & 63);
+
+		while (true) {
+			long bits = words.get(word);
+
+			if((bits & bit) == 0) { return false; };
+
+			if(words.compareAndSet(word, bits, bits & ~bit)) {
+				in_use.decrementAndGet();
+				return true;
+			};
+		}
+	};
+
+	public boolean isAllocated(int index) {
+		return index >= 0 && index < size && (words.get(index >>> 6) & (1L << (index & 63))) != 0;
+	};
+
+	/* Makes the next search start at given index, e.g. to hand out indexes in order from there */
+	public void startFrom(int index) {
+		if(index >= 0 && index < size) { next_index.set(index); };
+	};
+
+	public int size() {
+		return size;
+	};
+
+	public int getInUse() {
+		return in_use.get();
+	};
+
+	/* Highest number of indexes in use at once */
+	public int getPeak() {
+		return peak.get();
+	};
+
+	// counts an index as taken if there is one left
+	private boolean reserve() {
+		int count = in_use.incrementAndGet();
+
+		if(count > size) {
+			in_use.decrementAndGet();
+			return false;
+		};
+
+		int previous;
+		while ((previous = peak.get()) < count && !peak.compareAndSet(previous, count)) { };
+		return true;
+	};
+}
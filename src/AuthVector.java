@@ -0,0 +1,50 @@
+/* #### Authentication Vector ####
+ * This class holds one pre-generated authentication vector
+ * of a subscriber: the random challenge and the products of
+ * it with subscriber key. XRES, AUTN and K_ASME also depend
+ * on sequence number sent by UE, so they are finished in O(1)
+ * when the vector is used. A vector must be used only once.
+ */
+package net.floodlightcontroller.splus;
+
+public class AuthVector {
+	final long key;			// subscriber key the vector was generated for
+	final long rand;		// random challenge (RAND)
+
+	// SQN independent parts of Authentication & Key Agreement Algorithm
+	private final long rand_key;		// rand * key
+	private final long autn_base;		// (rand - 1) * (key + 1)
+	private final long ck_base;			// (rand + 1) * (key - 1)
+	private final long ik_base;			// (rand + 1) * (key + 1)
+
+	AuthVector(long key, long rand) {
+		this.key = key;
+		this.rand = rand;
+
+		rand_key = rand * key;
+		autn_base = (rand - 1) * (key + 1);
+		ck_base = (rand + 1) * (key - 1);
+		ik_base = (rand + 1) * (key + 1);
+	};
+
+	public long getRand() {
+		return rand;
+	};
+
+	/* Expected Response */
+	public long getXres(long SQN) {
+		return rand_key + SQN;
+	};
+
+	/* Authentication token */
+	public long getAutn(long SQN) {
+		return autn_base - SQN;
+	};
+
+	/* Access Security Management key */
+	public long getKasme(long SQN, int SNID) {
+		long CK = ck_base - (SQN + 1);		// Cipher key
+		long IK = ik_base - (SQN - 1);		// Integrity key
+		return SQN * CK + SNID * IK;
+	};
+}
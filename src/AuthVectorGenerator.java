@@ -0,0 +1,183 @@
+/* #### Authentication Vector Generator ####
+ * This class keeps a queue of ready authentication vectors
+ * per IMSI, so AUTHENTICATION_STEP_ONE takes a vector in O(1).
+ * A background thread refills a queue once it runs low, which
+ * keeps a mass re-attach (e.g. after an outage) off the RNG.
+ * Vectors of the least recently authenticated subscriber are
+ * evicted once vectors of max_subscribers are kept ready.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AuthVectorGenerator {
+	// range of random challenge, same as used to be generated per request
+	static final int RAND_MIN = 16;
+	static final int RAND_MAX = 255;
+
+	private final int batch_size;
+	private final int low_watermark;
+	private final int max_subscribers;
+
+	/* [Key => IMSI, Value => ready vectors of the subscriber], access ordered => eldest entry is the least recently used one */
+	private final LinkedHashMap<Long, Batch> batches;
+	private final ThreadPoolExecutor refiller;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong generated = new AtomicLong();
+	private final AtomicLong stale = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public AuthVectorGenerator(int batch_size, int low_watermark, int max_subscribers) {
+		this.batch_size = batch_size;
+		this.low_watermark = low_watermark;
+		this.max_subscribers = max_subscribers;
+
+		batches = new LinkedHashMap<Long, Batch>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Batch> eldest) {
+				if (size() > AuthVectorGenerator.this.max_subscribers) {
+					evictions.incrementAndGet();
+					return true;
+				};
+				return false;
+			};
+		};
+		// max_subscribers == 0 => no vectors kept ready and nothing ever refilled, queue must still have room for one
+		refiller = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, max_subscribers)), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "hss-auth-vector-refill");
+				t.setDaemon(true);
+				return t;
+			};
+		});
+	};
+
+	/* Takes a ready vector of the subscriber, generating one right away if none is left */
+	public AuthVector take(long imsi, long key) {
+		Batch batch = null;
+
+		if (max_subscribers > 0) {
+			synchronized (batches) {
+				batch = batches.get(imsi);
+				if (batch == null) {
+					batch = new Batch();
+					batches.put(imsi, batch);
+				};
+			}
+		};
+
+		AuthVector vector = null;
+
+		if (batch != null) {
+			// vectors made for an old subscriber key are useless
+			while ((vector = batch.poll()) != null && vector.key != key) {
+				stale.incrementAndGet();
+			};
+
+			if (batch.size() < low_watermark) {
+				refill(imsi, key, batch);
+			};
+		};
+
+		if (vector != null) {
+			hits.incrementAndGet();
+			return vector;
+		};
+
+		misses.incrementAndGet();
+		return generate(key);
+	};
+
+	/* Drops ready vectors of the subscriber, e.g. when its key has changed */
+	public void invalidate(long imsi) {
+		synchronized (batches) {
+			batches.remove(imsi);
+		}
+	};
+
+	public void invalidateAll() {
+		synchronized (batches) {
+			batches.clear();
+		}
+	};
+
+	public void shutdown() {
+		refiller.shutdownNow();
+	};
+
+	private void refill(final long imsi, final long key, final Batch batch) {
+		if (!batch.refilling.compareAndSet(false, true)) { return; };
+
+		try {
+			refiller.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (batch.size() < batch_size) {
+							batch.offer(generate(key));
+						};
+					} finally {
+						batch.refilling.set(false);
+					};
+				};
+			});
+		} catch (RejectedExecutionException e) {
+			// refill queue is full, vectors are generated on demand till next attempt
+			batch.refilling.set(false);
+		};
+	};
+
+	private AuthVector generate(long key) {
+		generated.incrementAndGet();
+		return new AuthVector(key, ThreadLocalRandom.current().nextInt(RAND_MIN, RAND_MAX + 1));
+	};
+
+	public String getStats() {
+		int subscribers;
+		synchronized (batches) {
+			subscribers = batches.size();
+		}
+
+		return "auth_vectors: subscribers=" + subscribers + ", hits=" + hits.get() + ", misses=" + misses.get() + ", generated=" + generated.get() +
+			", stale=" + stale.get() + ", evictions=" + evictions.get() + ", pending_refills=" + refiller.getQueue().size();
+	};
+
+	/* Ready vectors of one subscriber */
+	private static class Batch {
+		final ConcurrentLinkedQueue<AuthVector> vectors = new ConcurrentLinkedQueue<AuthVector>();
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicBoolean refilling = new AtomicBoolean();
+
+		AuthVector poll() {
+			AuthVector vector = vectors.poll();
+			if (vector != null) { count.decrementAndGet(); };
+			return vector;
+		};
+
+		void offer(AuthVector vector) {
+			vectors.offer(vector);
+			count.incrementAndGet();
+		};
+
+		// ConcurrentLinkedQueue.size() is O(n), keep our own count
+		int size() {
+			return count.get();
+		};
+	}
+}
@@ -0,0 +1,92 @@
+/* #### Consistent Hash Ring ####
+ * This class maps keys (IMSIs, UE keys) to nodes of the MME cluster.
+ * Every node is put on the ring at virtual_nodes points and a key
+ * belongs to the node of the first point at or after its hash, so when
+ * a node joins or leaves only the keys next to its points move, about
+ * 1/N of them. Points are kept in a sorted array and looked up with a
+ * binary search. A ring is never changed, membership changes build a
+ * new one (see MmeCluster).
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class ConsistentHashRing {
+	// returned by owner() when the ring has no nodes
+	public static final int NONE = -1;
+
+	private final long points[];
+	private final int owners[];
+	private final Set<Integer> nodes;
+
+	public ConsistentHashRing(Collection<Integer> nodes, int virtual_nodes) {
+		this.nodes = Collections.unmodifiableSet(new TreeSet<Integer>(nodes));
+
+		int count = this.nodes.size() * virtual_nodes;
+		final long hashes[] = new long[count];
+		int ids[] = new int[count];
+		int i = 0;
+
+		for (int node : this.nodes) {
+			for (int v = 0; v < virtual_nodes; v++) {
+				ids[i] = node;
+				hashes[i++] = hash(((long) node << 32) | v);
+			};
+		};
+
+		// points sorted by hash, each with the node it belongs to
+		Integer order[] = new Integer[count];
+		for (i = 0; i < count; i++) { order[i] = i; };
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(hashes[a], hashes[b]);
+			};
+		});
+
+		this.points = new long[count];
+		this.owners = new int[count];
+		for (i = 0; i < count; i++) {
+			points[i] = hashes[order[i]];
+			owners[i] = ids[order[i]];
+		};
+	};
+
+	/* Node owning the key, NONE if the ring is empty */
+	public int owner(long key) {
+		if(points.length == 0) { return NONE; };
+
+		int index = Arrays.binarySearch(points, hash(key));
+		if(index < 0) { index = -index - 1; };
+
+		// past the last point, wraps around to the first one
+		return owners[index == points.length ? 0 : index];
+	};
+
+	public Set<Integer> getNodes() {
+		return nodes;
+	};
+
+	public boolean contains(int node) {
+		return nodes.contains(node);
+	};
+
+	/* splitmix64 finalizer, spreads consecutive keys (UE keys, IMSIs) all over the ring */
+	static long hash(long key) {
+		long z = key + 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	};
+
+	@Override
+	public String toString() {
+		return "ring: nodes=" + nodes + ", points=" + points.length;
+	};
+}
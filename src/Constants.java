@@ -5,12 +5,10 @@ package net.floodlightcontroller.splus;
 
 import java.util.HashMap;
 
-import org.projectfloodlight.openflow.types.DatapathId;
-
 public class Constants {
 
     /* Enable / Disable Debug */
-    final static boolean DEBUG = true;
+    static boolean DEBUG = true;
 
 	/* #### HSS DB Connection Parameters #### */
 	final static String DB_DRIVER = "com.mysql.jdbc.Driver";
@@ -18,6 +16,52 @@ public class Constants {
 	final static String DB_USER = "root";
 	final static String DB_PASSWORD = "root";
 
+	// Maximum number of pooled HSS db connections (see HSSConnectionPool)
+	static int HSS_POOL_SIZE = 8;
+
+	// Time (in milliseconds) to wait for a free HSS db connection before giving up
+	static long HSS_POOL_ACQUIRE_TIMEOUT = 2000;
+
+	// Idle time (in milliseconds) after which a pooled connection is validated before reuse
+	static long HSS_POOL_VALIDATION_INTERVAL = 30000;
+
+	// Number of server side prepared statements cached per connection by mysql driver
+	static int HSS_STATEMENT_CACHE_SIZE = 64;
+
+	// Maximum number of cached ue_info rows and time (in milliseconds) a cached row is trusted (see HSSCache)
+	static int HSS_UE_CACHE_SIZE = 100000;
+	static long HSS_UE_CACHE_TTL = 300000;
+
+	// Maximum number of cached pgw_info rows and time (in milliseconds) a cached row is trusted
+	static int HSS_PGW_CACHE_SIZE = 1024;
+	static long HSS_PGW_CACHE_TTL = 600000;
+
+	// Number of authentication vectors kept ready per IMSI and count below which they are refilled (see AuthVectorGenerator)
+	static int AUTH_VECTOR_BATCH_SIZE = 8;
+	static int AUTH_VECTOR_LOW_WATERMARK = 2;
+
+	// Maximum number of IMSIs for which authentication vectors are kept ready, the least recently authenticated one is evicted beyond it
+	static int AUTH_VECTOR_MAX_SUBSCRIBERS = 100000;
+
+	// Time (in microseconds) AUTHENTICATION_STEP_ONE lookups are gathered for and resolved by one query, 0 => no batching (see HSSLookupBatcher)
+	static long HSS_BATCH_WINDOW = 1000;
+
+	// Maximum number of IMSIs looked up by one query and number of lookups waiting for a batch
+	static int HSS_BATCH_MAX_SIZE = 256;
+	static int HSS_BATCH_QUEUE_CAPACITY = 65536;
+
+	// Number of rows per INSERT when provisioning subscribers (see HSSPlus.provisionUEs)
+	static int HSS_PROVISION_BATCH_SIZE = 500;
+
+	// File of subscribers loaded into HSS on start up, "" => none. CSV if it ends in ".csv", binary records otherwise.
+	static String HSS_PROVISION_FILE = System.getProperty("splus.hss.provision.file", "");
+
+	// Maximum number of cached NAS key specs (see CryptoEngine)
+	static int CRYPTO_KEY_CACHE_SIZE = 100000;
+
+	// Interval (in seconds) after which procedure latency percentiles are printed, 0 => never (see LatencyRecorder)
+	static int LATENCY_REPORT_INTERVAL = 60;
+
 	/* #### Configurable Parameters #### */
 	final static String UE_MAC = "00:00:01:aa:bb:ca";			// MAC Address of UE/eNodeB Node	*
 	final static String ENODEB_SW_MAC = "00:00:01:aa:bb:cb";	// MAC Address of eNodeB Switch		*
@@ -66,6 +110,137 @@ public class Constants {
 	final static String INITIATE_NETWORK_SERVICE_REQUEST = "22";
 	final static String PDN_SERVICE_REQUEST = "23";
 
+	/* #### Binary Control Protocol (see ControlCodec) #### */
+	// First byte of every binary control message, never a valid first byte of legacy message
+	final static byte BINARY_PROTOCOL_MAGIC = (byte) 0xB5;
+
+	// Highest binary protocol version understood by MME
+	final static byte BINARY_PROTOCOL_VERSION = 1;
+
+	// Accept binary control messages, if false only legacy "@:##:@" messages are processed
+	static boolean ACCEPT_BINARY_PROTOCOL = true;
+
+	/* #### Procedure Workers (see ProcedureWorkerPool) #### */
+	// Number of MME worker threads, 0 => process procedures on OpenFlow I/O thread (e.g. number of cores to use all of them)
+	static int PROCEDURE_WORKERS = Integer.getInteger("splus.procedure.workers", 0);
+
+	// Maximum number of queued procedures per worker
+	static int PROCEDURE_QUEUE_CAPACITY = 10000;
+
+	// Interval (in seconds) after which worker and other MME metrics are printed, 0 => never
+	static int WORKER_STATS_INTERVAL = 10;
+
+	/* #### Pending Transactions (see PendingTransactions) #### */
+	// Time (in milliseconds) a procedure may wait for state of an earlier step before it is expired as stalled
+	static long PENDING_TRANSACTION_TIMEOUT = 5000;
+
+	// Interval (in milliseconds) after which expired pending transactions are cleaned up
+	static long PENDING_TRANSACTION_SWEEP_INTERVAL = 1000;
+
+	/* #### Flow Transactions (see FlowTransaction) #### */
+	// Time (in milliseconds) switches have to acknowledge flow mods of a procedure before its reply is dropped
+	static long FLOW_TRANSACTION_TIMEOUT = 3000;
+
+	/* #### Bearer Idle Timeout (see MME.idleTimeout) #### */
+	// Time (in seconds) without traffic after which switches remove a rule of a bearer on eNodeB / SGW-D and MME
+	// releases the UE context on its own, 0 => rules stay till UE sends UE_CONTEXT_RELEASE_REQUEST
+	static int BEARER_IDLE_TIMEOUT = 0;
+
+	// Upper 16 bits of cookie of idle timed bearer rules (see MME.bearerCookie)
+	final static long BEARER_COOKIE_TAG = 0x5350L << 48;
+
+	/* #### Paging (see PagingManager) #### */
+	// Interval (in milliseconds) after which pages which are due are sent as one batch
+	static long PAGING_TICK_INTERVAL = 20;
+
+	// Maximum number of pages sent per second across all UEs, 0 => unlimited
+	static int PAGING_RATE = 2000;
+
+	// Time (in milliseconds) before an unanswered page is sent again, doubled with every page up to the maximum
+	static long PAGING_RETRANSMIT_INTERVAL = 500;
+	static long PAGING_MAX_RETRANSMIT_INTERVAL = 4000;
+
+	// Number of pages sent to a UE before giving up on it
+	static int PAGING_MAX_ATTEMPTS = 5;
+
+	/* #### Downlink Buffering (see DownlinkBuffer) #### */
+	// Maximum number of downlink packets held per idle UE till its bearer is set up again, 0 => packets are dropped
+	static int DOWNLINK_BUFFER_PACKETS = 32;
+
+	// Time (in milliseconds) a held packet may wait for the bearer before it is dropped
+	static long DOWNLINK_BUFFER_MAX_AGE = 5000;
+
+	// Number of packet slots shared by all UEs and size (in bytes) of each, larger packets are dropped
+	static int DOWNLINK_BUFFER_SLOTS = 16384;
+	static int DOWNLINK_BUFFER_SLOT_SIZE = 2048;
+
+	/* #### Session Persistence (see SessionJournal) #### */
+	// Directory of session journal and snapshot, sessions found there are restored on start up. Empty => not persisted
+	static String SESSION_JOURNAL_DIR = "";
+
+	// Size (in bytes) of a journal file, appends move on to a new file once it is full
+	static int SESSION_JOURNAL_SIZE = 64 << 20;
+
+	// Interval (in seconds) after which live sessions are written to a snapshot and older journals deleted
+	static int SESSION_SNAPSHOT_INTERVAL = 300;
+
+	// Interval (in milliseconds) after which journal is forced to disk, 0 => left to OS (survives controller restarts, not host crashes)
+	static long SESSION_JOURNAL_SYNC_INTERVAL = 1000;
+
+	/* #### MME Cluster (see MmeCluster) #### */
+	// Nodes of the cluster as "id=host:port,...", e.g. "1=127.0.0.1:7101,2=127.0.0.1:7102" (-Dsplus.cluster.nodes=...). Empty => MME runs alone
+	static String CLUSTER_NODES = System.getProperty("splus.cluster.nodes", "");
+
+	// ID of this node in CLUSTER_NODES (-Dsplus.cluster.node=...), so controllers on one machine can share the rest of the configuration
+	static int CLUSTER_NODE_ID = Integer.getInteger("splus.cluster.node", 1);
+
+	// Points of each node on the hash ring, more => UEs spread more evenly across nodes
+	static int CLUSTER_VIRTUAL_NODES = 160;
+
+	// Interval (in milliseconds) of heartbeats to idle nodes, and time without hearing from a node after which it leaves the ring
+	static long CLUSTER_HEARTBEAT_INTERVAL = 250;
+	static long CLUSTER_FAILURE_TIMEOUT = 1500;
+
+	// Maximum number of messages queued for a node, further ones are dropped (UE retries)
+	static int CLUSTER_QUEUE_CAPACITY = 10000;
+
+	// true => packet-ins of UEs owned by another node are forwarded to it (switches connected to any one node),
+	// false => they are dropped (switches connected to all nodes in EQUAL role, every node gets every packet-in)
+	static boolean CLUSTER_FORWARD_PACKET_INS = true;
+
+	/* #### Hot Standby (see SessionReplicator) #### */
+	// "active" => sessions are replicated to a standby, "standby" => mirrors them till the active stops, then takes over (-Dsplus.replication.role=...). Empty => no standby
+	static String REPLICATION_ROLE = System.getProperty("splus.replication.role", "");
+
+	// host:port the standby listens on and the active connects to (-Dsplus.replication.address=...)
+	static String REPLICATION_ADDRESS = System.getProperty("splus.replication.address", "127.0.0.1:7200");
+
+	// Maximum number of session changes written to the standby with one flush
+	static int REPLICATION_BATCH_SIZE = 256;
+
+	// Maximum number of session changes sent to the standby but not yet acknowledged by it
+	static int REPLICATION_WINDOW = 8192;
+
+	// Maximum number of session changes queued for the standby, once full the standby is sent all sessions again instead
+	static int REPLICATION_QUEUE_CAPACITY = 100000;
+
+	// Interval (in milliseconds) of heartbeats to an idle standby, and time without hearing from the active after which the standby takes over
+	static long REPLICATION_HEARTBEAT_INTERVAL = 100;
+	static long REPLICATION_FAILOVER_TIMEOUT = 500;
+
+	// Interval (in milliseconds) after which a standby which can't listen for the active tries again
+	static long REPLICATION_RETRY_INTERVAL = 1000;
+
+	/* #### SGW-D Selection (see SgwStatsCollector) #### */
+	// Interval (in milliseconds) after which port and flow stats of SGW-Ds are polled, 0 => always use SGW_DISPATCH_ID
+	static long SGW_STATS_INTERVAL = 2000;
+
+	// Weight (0.0 - 1.0) of the latest sample in moving averages of SGW-D byte / packet rates
+	static double SGW_STATS_EWMA_ALPHA = 0.3;
+
+	// Bytes / second a bearer is taken to add to its SGW-D (also the weight of each installed flow)
+	static double SGW_BEARER_LOAD = 10000;
+
 	// Serving Network ID of the MME
 	final static int SN_ID = 1;
 
@@ -82,6 +257,12 @@ public class Constants {
 	final static int MIN_TE_ID = 1;
 	final static int MAX_TE_ID = 4095;
 
+	// Tunnel IDs handed out by SGW-C and PGW-C, ranges must not overlap (see TeidAllocator)
+	static int SGW_MIN_TE_ID = 1;
+	static int SGW_MAX_TE_ID = 2047;
+	static int PGW_MIN_TE_ID = 2048;
+	static int PGW_MAX_TE_ID = 4095;
+
 	// Dispatch ID or unique ID of SGW-D switch (assuming only one SGW-D in the network)
 	final static int SGW_DISPATCH_ID = 2;
 
@@ -89,7 +270,7 @@ public class Constants {
 	static boolean DO_ENCRYPTION = true;
 	static boolean CHECK_INTEGRITY = true;
 
-	// Dispatch ID or unique ID of eNodeB switch 
+	// Dispatch ID or unique ID of eNodeB switch (the default one, see ENODEBS)
 	final static int ENODEB_SW_ID = 1;
 	
 	// Dispatch ID of SGW-D
@@ -101,43 +282,40 @@ public class Constants {
 	// its the source port used by MME while sending UDP packets to UE
 	final static int DEFAULT_CONTROL_TRAFFIC_UDP_PORT = 9876;
 
-	// Port of eNodeB switch with which UE is connected
-	final static int ENODEB_SW_UE_PORT = 3;
-
-	// Port with which eNodeB switch is connected to UE
+	// Port with which eNodeB switch is connected to UE (of the default eNodeB, see ENODEBS)
 	final static int UE_PORT = 3; 
 
 	// Port of PGW-D which is connected with PDN
 	final static int PGW_PDN_PORT = 4;
 
-	/* We assumed here that there are two SGW-D namely SGW-D1 and SGW-D2 connected
-	 * in series between eNodeB switch and PGW-D.
-	 * 
-	 * Note: one SGW-D is also good as long as its port numbers that are connected to
-	 * both ends are correct.
+	/* eNodeB switches (see EnodebRegistry) as "dispatch_id=ue_port:ran_ip:uplink_ip:downlink_ip,..." (-Dsplus.enodebs=...),
+	 * i.e. port of the switch facing UEs of its cell, IP of the radio access network of the cell and IPs of the
+	 * switch facing UEs and SGW-Ds. The first one is used for sessions whose eNodeB isn't known.
 	 */
-	@SuppressWarnings("serial")
-	final static HashMap<String, Integer> PGW_SGW_PORT_MAP = new HashMap<String, Integer>()
-	{{
-		put("4" + SEPARATOR + "2", 3); // for switch S2(SGW-D1) connected to S4(PGW-D) via port 4 of PGW
-		put("4" + SEPARATOR + "3", 1); // for switch S3(SGW-D2) connected to S4(PGW-D) via port 1 of PGW
-	}};
+	static String ENODEBS = System.getProperty("splus.enodebs", ENODEB_SW_ID + "=" + UE_PORT + ":" + RAN_IP + ":" + ENODEB_SW_IP_UPLINK + ":" + ENODEB_SW_IP_DOWNLINK);
 
-	@SuppressWarnings("serial")
-	final static HashMap<DatapathId, int[]> SGW_PORT_MAP = new HashMap<DatapathId, int[]>()
-	{{
-		// new int[]{SGW-INPORT, SGW-OUTPORT}
-		put(DatapathId.of(2), new int[]{3,4}); 
+	/* Links between eNodeB switch, SGW-Ds and PGW-D as "switch:port-switch:port,..." (see Topology),
+	 * each pair is linked both ways (-Dsplus.topology.links=...). They are used till link discovery
+	 * reports the switches, a discovered link between the same pair of switches takes precedence.
+	 * Any switch linked to both an eNodeB switch (see ENODEBS) and PGW-D is a SGW-D.
+	 *
+	 * We assumed here that there are two SGW-D namely SGW-D1 (S2) and SGW-D2 (S3) connected
+	 * in parallel between eNodeB switch (S1) and PGW-D (S4):
+	 *   S1 port 4 <=> S2 port 3, S2 port 4 <=> S4 port 3
+	 *   S1 port 1 <=> S3 port 3, S3 port 4 <=> S4 port 1
+	 */
+	static String TOPOLOGY_LINKS = System.getProperty("splus.topology.links", "1:4-2:3,2:4-4:3,1:1-3:3,3:4-4:1");
 
-		// new int[]{SGW-INPORT, SGW-OUTPORT}
-		put(DatapathId.of(3), new int[]{3,4}); 
-	}};
+	/* UE IP pools (CIDR blocks, see IpPool) of an APN on a PGW-D, tried in order.
+	 * APNs without pools of their own share DEFAULT_UE_IP_POOLS. Blocks must not overlap,
+	 * addresses of network components above are never handed out.
+	 */
+	static String DEFAULT_UE_IP_POOLS[] = {STARTING_UE_IP + "/16"};
 
 	@SuppressWarnings("serial")
-	final static HashMap<String, Integer> ENODEB_SGW_PORT_MAP = new HashMap<String, Integer>()
+	final static HashMap<String, String[]> UE_IP_POOLS = new HashMap<String, String[]>()
 	{{
-		put(ENODEB_SW_ID + SEPARATOR + "2", 4);// , 3// for switch S2(SGW-D1) connected to S1(eNodeB) via port 3 of eNodeB Switch
-		put(ENODEB_SW_ID + SEPARATOR + "3", 1);// , 4// for switch S3(SGW-D2) connected to S1(ENodeB) via port 4 of eNodeB Switch
+		// put("2" + SEPARATOR + PGW_ID, new String[]{"10.2.0.0/16", "10.3.0.0/16"}); // for APN 2 on switch S4(PGW-D)
 	}};
 
 	/* Stores Algorithm ID for encryption / integrity algorithms */
@@ -0,0 +1,452 @@
+/* #### Control Plane Codec ####
+ * This class encodes / decodes the control messages exchanged between
+ * UE (via eNodeB switch) and MME. Two wire formats are supported:
+ *
+ * 1. Binary (versioned TLV) format:
+ *
+ *    +-------+---------+------+--------------------------------------+
+ *    | MAGIC | VERSION | CODE | IE* => [TYPE (1)][LENGTH (2)][VALUE] |
+ *    +-------+---------+------+--------------------------------------+
+ *
+ *    IMSI, TEID, IP etc. are fixed width big-endian values, so decoding
+ *    reads them straight from the packet payload without any Strings.
+ *
+ * 2. Legacy format, i.e. CODE@:##:@FIELD@:##:@FIELD... as sent by the old
+ *    UE simulators. It is decoded by scanning the payload bytes for the
+ *    separator instead of String.split.
+ *
+ * A UE negotiates the binary format simply by using it, MME always replies
+ * in the format the UE has used. Binary format can be turned off altogether
+ * with Constants.ACCEPT_BINARY_PROTOCOL.
+ */
+package net.floodlightcontroller.splus;
+
+import java.nio.charset.StandardCharsets;
+
+public class ControlCodec {
+	/* #### Message Codes ####
+	 * These have the same values as the string codes in Constants
+	 */
+	final static int UNKNOWN = 0;
+	final static int AUTHENTICATION_FAILURE = -1;
+	final static int AUTHENTICATION_STEP_ONE = 1;
+	final static int AUTHENTICATION_STEP_TWO = 2;
+	final static int AUTHENTICATION_STEP_THREE = 3;
+	final static int NAS_STEP_ONE = 4;
+	final static int SEND_APN = 5;
+	final static int SEND_IP_SGW_TE_ID = 6;
+	final static int SEND_UE_TE_ID = 7;
+	final static int ATTACH_ACCEPT = 8;
+	final static int DETACH_REQUEST = 9;
+	final static int DETACH_ACCEPT = 10;
+	final static int DETACH_FAILURE = 11;
+	final static int REQUEST_STARTING_IP = 12;
+	final static int SEND_STARTING_IP = 13;
+	final static int UE_CONTEXT_RELEASE_REQUEST = 14;
+	final static int UE_CONTEXT_RELEASE_COMMAND = 15;
+	final static int UE_CONTEXT_RELEASE_COMPLETE = 16;
+	final static int UE_SERVICE_REQUEST = 17;
+	final static int INITIAL_CONTEXT_SETUP_REQUEST = 18;
+	final static int INITIAL_CONTEXT_SETUP_RESPONSE = 19;
+	final static int NAS_STEP_TWO = 20;
+	final static int PAGING_REQUEST = 21;
+	final static int INITIATE_NETWORK_SERVICE_REQUEST = 22;
+	final static int PDN_SERVICE_REQUEST = 23;
+	final static int MAX_CODE = 23;
+
+	/* #### Information Element Types #### */
+	final static int IE_NONE = 0;						// empty field (legacy format only)
+	final static int IE_IMSI = 1;
+	final static int IE_NW_CAPABILITY = 2;
+	final static int IE_KSI_ASME = 3;
+	final static int IE_SQN = 4;
+	final static int IE_TAI = 5;
+	final static int IE_RES = 6;
+	final static int IE_RAND = 7;
+	final static int IE_AUTN = 8;
+	final static int IE_APN = 9;
+	final static int IE_UE_KEY = 10;
+	final static int IE_UE_TE_ID = 11;
+	final static int IE_SGW_TE_ID = 12;
+	final static int IE_UE_IP = 13;
+	final static int IE_GUTI = 14;
+	final static int IE_NETWORK_SERVICE_REQUEST = 15;
+	final static int IE_PDN_PORT = 16;
+	final static int IE_CIPHER_ALGO_ID = 17;
+	final static int IE_INTEGRITY_ALGO_ID = 18;
+	final static int IE_NAS_CIPHER_TEXT = 19;
+	final static int IE_NAS_MAC = 20;
+	final static int IE_COUNT = 21;
+
+	// Width in bytes of each information element (-1 => variable length)
+	final static int IE_WIDTH[] = {
+		0, 8, 8, 1, 4, 8, 8, 8, 8, 8, 4, 4, 4, 4, 4, 1, 2, 1, 1, -1, -1
+	};
+
+	final static String IE_NAMES[] = {
+		"none", "imsi", "nw_capability", "ksi_asme", "sqn", "tai", "res", "rand", "autn", "apn", "ue_key",
+		"ue_te_id", "sgw_te_id", "ue_ip", "guti", "network_service_request", "pdn_port", "cipher_algo_id",
+		"integrity_algo_id", "nas_cipher_text", "nas_mac"
+	};
+
+	// Length of HMAC SHA1 digest carried in IE_NAS_MAC
+	final static int MAC_LENGTH = 20;
+
+	final static int HEADER_LENGTH = 3;
+	final static int IE_HEADER_LENGTH = 3;
+
+	private final static byte SEPARATOR[] = Constants.SEPARATOR.getBytes(StandardCharsets.ISO_8859_1);
+	private final static int MAX_SEGMENTS = 16;
+
+	/* Order of fields in legacy format per message code, [Key => code, Value => IE types] */
+	private final static int LEGACY_LAYOUT[][] = new int[MAX_CODE + 1][];
+
+	static {
+		LEGACY_LAYOUT[AUTHENTICATION_STEP_ONE] = new int[]{IE_IMSI, IE_NW_CAPABILITY, IE_KSI_ASME, IE_SQN, IE_TAI};
+		LEGACY_LAYOUT[AUTHENTICATION_STEP_TWO] = new int[]{IE_RAND, IE_AUTN, IE_KSI_ASME};
+		LEGACY_LAYOUT[AUTHENTICATION_STEP_THREE] = new int[]{IE_IMSI, IE_RES};
+		LEGACY_LAYOUT[NAS_STEP_ONE] = new int[]{IE_KSI_ASME, IE_NW_CAPABILITY, IE_CIPHER_ALGO_ID, IE_INTEGRITY_ALGO_ID};
+		LEGACY_LAYOUT[SEND_APN] = new int[]{IE_APN, IE_UE_KEY};
+		LEGACY_LAYOUT[SEND_IP_SGW_TE_ID] = new int[]{IE_UE_IP, IE_SGW_TE_ID};
+		LEGACY_LAYOUT[SEND_UE_TE_ID] = new int[]{IE_UE_TE_ID, IE_UE_KEY};
+		LEGACY_LAYOUT[ATTACH_ACCEPT] = new int[]{IE_GUTI};
+		LEGACY_LAYOUT[DETACH_REQUEST] = new int[]{IE_UE_IP, IE_UE_TE_ID, IE_SGW_TE_ID, IE_UE_KEY};
+		LEGACY_LAYOUT[DETACH_ACCEPT] = new int[]{IE_NONE};
+		LEGACY_LAYOUT[DETACH_FAILURE] = new int[]{IE_NONE};
+		LEGACY_LAYOUT[REQUEST_STARTING_IP] = new int[]{};
+		LEGACY_LAYOUT[SEND_STARTING_IP] = new int[]{IE_UE_IP};
+		LEGACY_LAYOUT[UE_CONTEXT_RELEASE_REQUEST] = new int[]{IE_UE_IP, IE_UE_TE_ID, IE_SGW_TE_ID, IE_UE_KEY};
+		LEGACY_LAYOUT[UE_CONTEXT_RELEASE_COMMAND] = new int[]{IE_NONE};
+		LEGACY_LAYOUT[UE_CONTEXT_RELEASE_COMPLETE] = new int[]{IE_UE_KEY, IE_UE_IP, IE_NETWORK_SERVICE_REQUEST, IE_PDN_PORT};
+		LEGACY_LAYOUT[UE_SERVICE_REQUEST] = new int[]{IE_UE_KEY, IE_KSI_ASME, IE_UE_IP};
+		LEGACY_LAYOUT[INITIAL_CONTEXT_SETUP_REQUEST] = new int[]{IE_SGW_TE_ID};
+		LEGACY_LAYOUT[INITIAL_CONTEXT_SETUP_RESPONSE] = new int[]{IE_UE_TE_ID, IE_UE_KEY, IE_UE_IP};
+		LEGACY_LAYOUT[PAGING_REQUEST] = new int[]{IE_UE_TE_ID};
+		LEGACY_LAYOUT[INITIATE_NETWORK_SERVICE_REQUEST] = new int[]{IE_UE_KEY};
+		LEGACY_LAYOUT[PDN_SERVICE_REQUEST] = new int[]{IE_UE_KEY};
+	};
+
+	/* Whether code is one of the message codes above */
+	public static boolean isCode(int code) {
+		return code == AUTHENTICATION_FAILURE || (code > UNKNOWN && code <= MAX_CODE);
+	};
+
+	public static String getIEName(int ie) {
+		return (ie >= 0 && ie < IE_COUNT) ? IE_NAMES[ie] : "ie_" + ie;
+	};
+
+	/* Decodes the control message in given payload in whichever format it has been sent.
+	 * Returns false if payload is not a (well formed) control message, or its code is not known.
+	 */
+	public static boolean decode(byte[] data, ControlMessage msg) {
+		msg.reset();
+
+		if (data == null || data.length == 0) {
+			return false;
+		};
+
+		if (data[0] == Constants.BINARY_PROTOCOL_MAGIC) {
+			return Constants.ACCEPT_BINARY_PROTOCOL && decodeBinary(data, msg);
+		};
+
+		return decodeLegacy(data, msg);
+	};
+
+	/* Decodes binary TLV format */
+	private static boolean decodeBinary(byte[] data, ControlMessage msg) {
+		if (data.length < HEADER_LENGTH) { return false; };
+
+		int version = data[1] & 0xFF;
+		if (version < 1 || version > Constants.BINARY_PROTOCOL_VERSION) {
+			if (Constants.DEBUG) {
+				System.out.println("ControlCodec: unsupported binary protocol version '" + version + "'");
+			};
+			return false;
+		};
+
+		if (!isCode(data[2])) { return false; };
+
+		msg.binary = true;
+		msg.buffer = data;
+		msg.code = data[2];
+
+		int pos = HEADER_LENGTH;
+		while (pos < data.length) {
+			if (pos + IE_HEADER_LENGTH > data.length) { return false; };
+
+			int type = data[pos] & 0xFF;
+			int length = ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+			pos += IE_HEADER_LENGTH;
+
+			if (pos + length > data.length) { return false; };
+
+			// skip information elements introduced by newer versions
+			if (type == IE_NONE || type >= IE_COUNT) {
+				pos += length;
+				continue;
+			};
+
+			int width = IE_WIDTH[type];
+			if (width > 0) {
+				if (length != width) { return false; };
+				msg.set(type, readValue(data, pos, width));
+
+			} else if (type == IE_NAS_CIPHER_TEXT) {
+				msg.nas_offset = pos;
+				msg.nas_length = length;
+				msg.set(type, length);
+
+			} else if (type == IE_NAS_MAC) {
+				msg.mac_offset = pos;
+				msg.mac_length = length;
+				msg.set(type, length);
+			};
+
+			pos += length;
+		};
+
+		return true;
+	};
+
+	/* Decodes legacy CODE@:##:@FIELD... format */
+	private static boolean decodeLegacy(byte[] data, ControlMessage msg) {
+		int starts[] = new int[MAX_SEGMENTS];
+		int ends[] = new int[MAX_SEGMENTS];
+		int count = 0, start = 0;
+
+		for (int i = 0; i <= data.length - SEPARATOR.length; i++) {
+			if (!matchesSeparator(data, i)) { continue; };
+			if (count == MAX_SEGMENTS - 1) { break; };
+
+			starts[count] = start;
+			ends[count++] = i;
+			start = i + SEPARATOR.length;
+			i = start - 1;
+		};
+
+		// not a control message, e.g. mDNS or other noise arriving at the controller
+		if (count == 0) { return false; };
+
+		starts[count] = start;
+		ends[count++] = data.length;
+
+		msg.binary = false;
+		msg.buffer = data;
+
+		int code;
+		try {
+			code = (int) parseLong(data, starts[0], ends[0]);
+		} catch (NumberFormatException e) {
+			code = UNKNOWN;
+		};
+
+		int layout[] = (code > 0 && code <= MAX_CODE) ? LEGACY_LAYOUT[code] : null;
+
+		/* NAS STEP TWO carries no code [0 => Encrypted text, 1 => NAS-MAC, 2 => IMSI] */
+		if (layout == null && count == 3) {
+			msg.code = NAS_STEP_TWO;
+			msg.nas_offset = starts[0];
+			msg.nas_length = ends[0] - starts[0];
+			msg.set(IE_NAS_CIPHER_TEXT, msg.nas_length);
+			msg.mac_offset = starts[1];
+			msg.mac_length = ends[1] - starts[1];
+			msg.set(IE_NAS_MAC, msg.mac_length);
+
+			try {
+				msg.set(IE_IMSI, parseLong(data, starts[2], ends[2]));
+			} catch (NumberFormatException e) {
+				return false;
+			};
+
+			return true;
+		};
+
+		// code not known, or a message which has no legacy layout
+		if (layout == null) {
+			return false;
+		};
+
+		msg.code = code;
+
+		if (count - 1 < layout.length) {
+			return false;
+		};
+
+		try {
+			for (int i = 0; i < layout.length; i++) {
+				int ie = layout[i];
+				if (ie == IE_NONE) { continue; };
+
+				if (ie == IE_UE_IP) {
+					msg.set(ie, parseIPv4(data, starts[i + 1], ends[i + 1]));
+				} else {
+					msg.set(ie, parseLong(data, starts[i + 1], ends[i + 1]));
+				};
+			};
+
+		} catch (NumberFormatException e) {
+			return false;
+		};
+
+		return true;
+	};
+
+	/* Encodes the message in the format set in message (binary / legacy) */
+	public static byte[] encode(ControlMessage msg) {
+		return encode(msg, null);
+	};
+
+	/* Encodes the message and appends NAS-MAC generated with given integrity key over encoded message */
+	public static byte[] encode(ControlMessage msg, String mac_key) {
+		return msg.binary ? encodeBinary(msg, mac_key) : encodeLegacy(msg, mac_key);
+	};
+
+	private static byte[] encodeBinary(ControlMessage msg, String mac_key) {
+		int size = HEADER_LENGTH;
+
+		for (int ie = 1; ie < IE_COUNT; ie++) {
+			if (msg.has(ie) && IE_WIDTH[ie] > 0) {
+				size += IE_HEADER_LENGTH + IE_WIDTH[ie];
+			};
+		};
+
+		if (mac_key != null) {
+			size += IE_HEADER_LENGTH + MAC_LENGTH;
+		};
+
+		byte[] out = new byte[size];
+		out[0] = Constants.BINARY_PROTOCOL_MAGIC;
+		out[1] = Constants.BINARY_PROTOCOL_VERSION;
+		out[2] = (byte) msg.code;
+
+		int pos = HEADER_LENGTH;
+		for (int ie = 1; ie < IE_COUNT; ie++) {
+			int width = IE_WIDTH[ie];
+			if (!msg.has(ie) || width <= 0) { continue; };
+
+			pos = writeIEHeader(out, pos, ie, width);
+			writeValue(out, pos, width, msg.values[ie]);
+			pos += width;
+		};
+
+		if (mac_key != null) {
+			// MAC over everything before it, written straight into its IE
+			CryptoEngine.get().mac(CryptoEngine.macKey(mac_key), out, 0, pos, out, pos + IE_HEADER_LENGTH);
+			writeIEHeader(out, pos, IE_NAS_MAC, MAC_LENGTH);
+		};
+
+		return out;
+	};
+
+	private static byte[] encodeLegacy(ControlMessage msg, String mac_key) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(msg.code);
+
+		int layout[] = (msg.code > 0 && msg.code <= MAX_CODE) ? LEGACY_LAYOUT[msg.code] : null;
+		if (layout != null) {
+			for (int ie : layout) {
+				sb.append(Constants.SEPARATOR);
+
+				if (ie == IE_NONE) {
+					continue;
+				} else if (ie == IE_UE_IP) {
+					sb.append(msg.getIP(ie));
+				} else {
+					sb.append(msg.values[ie]);
+				};
+			};
+		};
+
+		if (mac_key != null) {
+			String mac = Utils.hmacDigest(sb.toString(), mac_key);
+			sb.append(Constants.SEPARATOR).append(mac);
+		};
+
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	};
+
+	private static int writeIEHeader(byte[] out, int pos, int type, int length) {
+		out[pos] = (byte) type;
+		out[pos + 1] = (byte) (length >>> 8);
+		out[pos + 2] = (byte) length;
+		return pos + IE_HEADER_LENGTH;
+	};
+
+	private static long readValue(byte[] data, int pos, int width) {
+		long value = 0;
+		for (int i = 0; i < width; i++) {
+			value = (value << 8) | (data[pos + i] & 0xFF);
+		};
+
+		// sign extend 32 bit values so that IPs / keys read back as the int they were
+		return (width == 4) ? (long) (int) value : value;
+	};
+
+	private static void writeValue(byte[] out, int pos, int width, long value) {
+		for (int i = width - 1; i >= 0; i--) {
+			out[pos + i] = (byte) value;
+			value >>>= 8;
+		};
+	};
+
+	private static boolean matchesSeparator(byte[] data, int pos) {
+		for (int j = 0; j < SEPARATOR.length; j++) {
+			if (data[pos + j] != SEPARATOR[j]) { return false; };
+		};
+		return true;
+	};
+
+	/* Parses a signed decimal number from data[start, end) */
+	static long parseLong(byte[] data, int start, int end) throws NumberFormatException {
+		if (start >= end) { throw new NumberFormatException("empty field"); };
+
+		boolean negative = data[start] == '-';
+		int i = negative ? start + 1 : start;
+		if (i >= end) { throw new NumberFormatException("bad number"); };
+
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9) { throw new NumberFormatException("bad number"); };
+			value = value * 10 + digit;
+		};
+
+		return negative ? -value : value;
+	};
+
+	/* Parses a dotted IPv4 address from data[start, end) into its int form */
+	static int parseIPv4(byte[] data, int start, int end) throws NumberFormatException {
+		int ip = 0, octet = 0, octets = 0, digits = 0;
+
+		for (int i = start; i <= end; i++) {
+			if (i == end || data[i] == '.') {
+				if (digits == 0 || octet > 255) { throw new NumberFormatException("bad IP address"); };
+				ip = (ip << 8) | octet;
+				octets++;
+				octet = digits = 0;
+				continue;
+			};
+
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9) { throw new NumberFormatException("bad IP address"); };
+			octet = octet * 10 + digit;
+			digits++;
+		};
+
+		if (octets != 4) { throw new NumberFormatException("bad IP address"); };
+		return ip;
+	};
+
+	/* Text form of a binary / legacy NAS-MAC, used for logging */
+	static String macToString(ControlMessage msg) {
+		if (!msg.binary) {
+			return new String(msg.buffer, msg.mac_offset, msg.mac_length, StandardCharsets.ISO_8859_1);
+		};
+
+		StringBuilder sb = new StringBuilder(msg.mac_length * 2);
+		for (int i = msg.mac_offset; i < msg.mac_offset + msg.mac_length; i++) {
+			sb.append(Character.forDigit((msg.buffer[i] >> 4) & 0xF, 16)).append(Character.forDigit(msg.buffer[i] & 0xF, 16));
+		};
+		return sb.toString();
+	};
+}
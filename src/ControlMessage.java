@@ -0,0 +1,93 @@
+/* #### Control Message ####
+ * This class holds a decoded NAS / S1 control message exchanged
+ * between UE (via eNodeB switch) and MME. Information elements are
+ * kept as primitives so that neither wire format needs Strings.
+ */
+package net.floodlightcontroller.splus;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+public class ControlMessage {
+	// message code, see ControlCodec
+	int code;
+
+	// true if message was received (or has to be sent) in binary format
+	boolean binary;
+
+	// bit mask of information elements present in this message
+	int present;
+
+	// values of fixed width information elements, indexed by IE type
+	final long values[];
+
+	/* Variable length information elements are not copied, instead these
+	 * point into the packet payload the message was decoded from.
+	 */
+	byte[] buffer;
+	int nas_offset, nas_length;
+	int mac_offset, mac_length;
+
+	public ControlMessage() {
+		this(ControlCodec.UNKNOWN, false);
+	};
+
+	public ControlMessage(int code, boolean binary) {
+		this.code = code;
+		this.binary = binary;
+		this.values = new long[ControlCodec.IE_COUNT];
+	};
+
+	/* Clears the message so that it can be reused for decoding */
+	public void reset() {
+		code = ControlCodec.UNKNOWN;
+		binary = false;
+		present = 0;
+		buffer = null;
+		nas_offset = nas_length = mac_offset = mac_length = 0;
+	};
+
+	public ControlMessage set(int ie, long value) {
+		values[ie] = value;
+		present |= (1 << ie);
+		return this;
+	};
+
+	public boolean has(int ie) {
+		return (present & (1 << ie)) != 0;
+	};
+
+	public long getLong(int ie) {
+		return values[ie];
+	};
+
+	public int getInt(int ie) {
+		return (int) values[ie];
+	};
+
+	public IPv4Address getIP(int ie) {
+		return IPv4Address.of((int) values[ie]);
+	};
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(binary ? "[binary] " : "[legacy] ").append("code=").append(code);
+
+		for (int ie = 1; ie < ControlCodec.IE_COUNT; ie++) {
+			if (!has(ie)) { continue; };
+			sb.append(", ").append(ControlCodec.getIEName(ie)).append('=');
+
+			if (ie == ControlCodec.IE_UE_IP) {
+				sb.append(getIP(ie));
+			} else if (ie == ControlCodec.IE_NAS_CIPHER_TEXT) {
+				sb.append(nas_length).append(" bytes");
+			} else if (ie == ControlCodec.IE_NAS_MAC) {
+				sb.append(mac_length).append(" bytes");
+			} else {
+				sb.append(values[ie]);
+			};
+		};
+
+		return sb.toString();
+	};
+}
@@ -0,0 +1,189 @@
+/* #### Crypto Engine ####
+ * This class keeps one AES cipher and one HMAC SHA1 engine
+ * per thread, along with cached key specs, so NAS security
+ * doesn't look up a provider or build a key per message.
+ * Engines write into caller supplied buffers, so the hot
+ * path allocates nothing.
+ */
+package net.floodlightcontroller.splus;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class CryptoEngine {
+	static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5PADDING";
+	static final String MAC_ALGORITHM = "HmacSHA1";
+	static final int MAC_LENGTH = 20;
+	static final int BLOCK_SIZE = 16;
+
+	private static final IvParameterSpec IV = new IvParameterSpec("0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1));
+	private static final char HEX[] = "0123456789abcdef".toCharArray();
+
+	/* [Key => key string, Value => key spec], shared by all threads */
+	private static final LinkedHashMap<String, SecretKeySpec> aes_keys = keyCache();
+	private static final LinkedHashMap<String, SecretKeySpec> mac_keys = keyCache();
+
+	private static final ThreadLocal<CryptoEngine> engines = new ThreadLocal<CryptoEngine>() {
+		@Override
+		protected CryptoEngine initialValue() {
+			return new CryptoEngine();
+		};
+	};
+
+	private final Cipher encryptor;
+	private final Cipher decryptor;
+	private final Mac mac;
+
+	// keys engines are initialized with, engines are re-initialized only when key changes
+	private Key encrypt_key, decrypt_key, mac_key;
+
+	private final byte mac_buffer[] = new byte[MAC_LENGTH];
+	private byte buffer[] = new byte[256];
+
+	private CryptoEngine() {
+		try {
+			encryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			decryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			mac = Mac.getInstance(MAC_ALGORITHM);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Crypto engines not available: " + e.getMessage(), e);
+		};
+	};
+
+	/* Returns engines of the calling thread */
+	public static CryptoEngine get() {
+		return engines.get();
+	};
+
+	/* Returns cached AES key spec of the key string */
+	public static SecretKeySpec aesKey(String key) {
+		return keySpec(aes_keys, key, "AES");
+	};
+
+	/* Returns cached HMAC SHA1 key spec of the key string */
+	public static SecretKeySpec macKey(String key) {
+		return keySpec(mac_keys, key, MAC_ALGORITHM);
+	};
+
+	private static SecretKeySpec keySpec(LinkedHashMap<String, SecretKeySpec> keys, String key, String algorithm) {
+		synchronized (keys) {
+			SecretKeySpec spec = keys.get(key);
+			if (spec != null) { return spec; };
+		}
+
+		SecretKeySpec spec = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), algorithm);
+
+		synchronized (keys) {
+			keys.put(key, spec);
+		}
+
+		return spec;
+	};
+
+	// access ordered => eldest entry is the least recently used one, evicted once CRYPTO_KEY_CACHE_SIZE keys are cached
+	private static LinkedHashMap<String, SecretKeySpec> keyCache() {
+		return new LinkedHashMap<String, SecretKeySpec>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SecretKeySpec> eldest) {
+				return size() > Constants.CRYPTO_KEY_CACHE_SIZE;
+			};
+		};
+	};
+
+	/* Size of cipher text for plain text of given length */
+	public static int encryptedSize(int length) {
+		return (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+	};
+
+	/* Writes HMAC SHA1 of in[offset, offset + length) at out[out_offset], returns MAC length or -1 on failure */
+	public int mac(Key key, byte[] in, int offset, int length, byte[] out, int out_offset) {
+		try {
+			if (key != mac_key) {
+				mac.init(key);
+				mac_key = key;
+			};
+
+			mac.update(in, offset, length);
+			mac.doFinal(out, out_offset);
+			return MAC_LENGTH;
+
+		} catch (GeneralSecurityException e) {
+			mac_key = null;
+			System.out.println(e.getMessage());
+			return -1;
+		}
+	};
+
+	/* Encrypts in[offset, offset + length) into out[out_offset], which must have encryptedSize(length) bytes left.
+	 * Returns cipher text length or -1 on failure.
+	 */
+	public int encrypt(Key key, byte[] in, int offset, int length, byte[] out, int out_offset) {
+		try {
+			// after doFinal cipher is back to state of last init, so same key => no init
+			if (key != encrypt_key) {
+				encryptor.init(Cipher.ENCRYPT_MODE, key, IV);
+				encrypt_key = key;
+			};
+
+			return encryptor.doFinal(in, offset, length, out, out_offset);
+
+		} catch (GeneralSecurityException e) {
+			encrypt_key = null;
+			System.out.println(e.getMessage());
+			return -1;
+		}
+	};
+
+	/* Decrypts in[offset, offset + length) into out[out_offset], returns plain text length or -1 on failure */
+	public int decrypt(Key key, byte[] in, int offset, int length, byte[] out, int out_offset) {
+		try {
+			if (key != decrypt_key) {
+				decryptor.init(Cipher.DECRYPT_MODE, key, IV);
+				decrypt_key = key;
+			};
+
+			return decryptor.doFinal(in, offset, length, out, out_offset);
+
+		} catch (GeneralSecurityException e) {
+			decrypt_key = null;
+			System.out.println(e.getMessage());
+			return -1;
+		}
+	};
+
+	/* Thread's own MAC_LENGTH bytes buffer, valid till next call on this thread */
+	public byte[] macBuffer() {
+		return mac_buffer;
+	};
+
+	/* Thread's own buffer of at least size bytes, valid till next call on this thread */
+	public byte[] buffer(int size) {
+		if (buffer.length < size) {
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+		};
+		return buffer;
+	};
+
+	/* Lower case hex string of bytes[offset, offset + length) */
+	public static String toHex(byte[] bytes, int offset, int length) {
+		char out[] = new char[length * 2];
+
+		for (int i = 0; i < length; i++) {
+			int b = bytes[offset + i] & 0xFF;
+			out[i * 2] = HEX[b >>> 4];
+			out[i * 2 + 1] = HEX[b & 0x0F];
+		};
+
+		return new String(out);
+	};
+}
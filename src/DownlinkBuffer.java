@@ -0,0 +1,250 @@
+/* #### Downlink Buffer ####
+ * This class holds downlink packets of idle UEs, which reach the
+ * controller because their SGW-D down-link rule has been released,
+ * till the bearer is set up again and they can be flushed. Each UE
+ * has a ring of at most packets_per_ue packets; packet bytes are kept
+ * in fixed size slots taken from a pool shared by all UEs, so memory
+ * held is bounded and slots are reused instead of reallocated. Packets
+ * are dropped when the ring or the pool is full, and once they are
+ * older than max_age (see expire()). A packet which comes in while its
+ * ring is being flushed or discarded is dropped too, as no later flush
+ * would pick up a ring opened for it.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DownlinkBuffer {
+	/* Takes flushed packets, oldest first */
+	public interface Sink {
+		void send(int in_port, byte[] frame);
+	}
+
+	/* Packets held for one UE, guarded by its monitor */
+	private static class Ring {
+		final byte[][] slots;
+		final int[] lengths;
+		final int[] in_ports;
+		final long[] times;
+		int head, count;
+
+		// taken out of the map by expire, packets must go into a new ring
+		boolean closed;
+
+		// taken out of the map by flush / discard, bearer is up again or gone
+		boolean released;
+
+		Ring(int capacity) {
+			slots = new byte[capacity][];
+			lengths = new int[capacity];
+			in_ports = new int[capacity];
+			times = new long[capacity];
+		};
+	}
+
+	private final int packets_per_ue;
+	private final int pool_slots;
+	private final int slot_size;
+	private final long max_age;
+
+	/* [Key => SGW-TE-ID of the UE, Value => its packets] */
+	private final ConcurrentHashMap<Integer, Ring> rings;
+
+	// free slots, slots are created lazily up to pool_slots
+	private final ConcurrentLinkedQueue<byte[]> free_slots;
+	private final AtomicInteger slots_created = new AtomicInteger();
+	private final AtomicInteger slots_in_use = new AtomicInteger();
+	private final AtomicLong bytes_held = new AtomicLong();
+
+	private final AtomicLong buffered = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong dropped_full = new AtomicLong();
+	private final AtomicLong dropped_pool = new AtomicLong();
+	private final AtomicLong dropped_oversize = new AtomicLong();
+	private final AtomicLong dropped_aged = new AtomicLong();
+	private final AtomicLong dropped_released = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+
+	public DownlinkBuffer(int packets_per_ue, int pool_slots, int slot_size, long max_age) {
+		this.packets_per_ue = packets_per_ue;
+		this.pool_slots = pool_slots;
+		this.slot_size = slot_size;
+		this.max_age = max_age;
+
+		this.rings = new ConcurrentHashMap<Integer, Ring>();
+		this.free_slots = new ConcurrentLinkedQueue<byte[]>();
+	};
+
+	/* Holds a copy of the packet for the UE, returns false if it had to be dropped (e.g. it lost the race with flush()) */
+	public boolean buffer(int key, int in_port, byte[] frame) {
+		if(frame.length > slot_size) {
+			dropped_oversize.incrementAndGet();
+			return false;
+		};
+
+		while (true) {
+			Ring ring = rings.get(key);
+			if(ring == null) {
+				ring = new Ring(packets_per_ue);
+				Ring existing = rings.putIfAbsent(key, ring);
+				if(existing != null) { ring = existing; };
+			};
+
+			synchronized (ring) {
+				// packets held so far are gone, packet would sit in a new ring no one flushes
+				if(ring.released) {
+					dropped_released.incrementAndGet();
+					return false;
+				};
+
+				// ring has just expired, packet goes into a new one
+				if(ring.closed) { continue; };
+
+				if(ring.count == ring.slots.length) {
+					dropped_full.incrementAndGet();
+					return false;
+				};
+
+				byte[] slot = acquire();
+				if(slot == null) {
+					dropped_pool.incrementAndGet();
+					return false;
+				};
+
+				System.arraycopy(frame, 0, slot, 0, frame.length);
+
+				int tail = (ring.head + ring.count) % ring.slots.length;
+				ring.slots[tail] = slot;
+				ring.lengths[tail] = frame.length;
+				ring.in_ports[tail] = in_port;
+				ring.times[tail] = System.currentTimeMillis();
+				ring.count++;
+			}
+
+			buffered.incrementAndGet();
+			bytes_held.addAndGet(frame.length);
+			return true;
+		}
+	};
+
+	/* Hands packets held for the UE to sink in order, packets past max_age are dropped. Returns number of packets sent. */
+	public int flush(int key, Sink sink) {
+		Ring ring = rings.remove(key);
+		if(ring == null) { return 0; };
+
+		long oldest = System.currentTimeMillis() - max_age;
+		int count = 0;
+
+		synchronized (ring) {
+			ring.closed = ring.released = true;
+
+			while (ring.count > 0) {
+				int index = ring.head;
+
+				if(ring.times[index] >= oldest) {
+					sink.send(ring.in_ports[index], Arrays.copyOf(ring.slots[index], ring.lengths[index]));
+					count++;
+				} else {
+					dropped_aged.incrementAndGet();
+				};
+
+				removeHead(ring);
+			};
+		}
+
+		flushed.addAndGet(count);
+		return count;
+	};
+
+	/* Drops packets held for the UE, e.g. it has detached */
+	public int discard(int key) {
+		Ring ring = rings.remove(key);
+		if(ring == null) { return 0; };
+
+		int count;
+		synchronized (ring) {
+			ring.closed = ring.released = true;
+			count = ring.count;
+
+			while (ring.count > 0) { removeHead(ring); };
+		}
+
+		discarded.addAndGet(count);
+		return count;
+	};
+
+	/* Drops packets older than max_age, and rings left empty */
+	public void expire() {
+		long oldest = System.currentTimeMillis() - max_age;
+
+		for (Map.Entry<Integer, Ring> entry : rings.entrySet()) {
+			Ring ring = entry.getValue();
+
+			synchronized (ring) {
+				while (ring.count > 0 && ring.times[ring.head] < oldest) {
+					removeHead(ring);
+					dropped_aged.incrementAndGet();
+				};
+
+				if(ring.count == 0 && rings.remove(entry.getKey(), ring)) {
+					ring.closed = true;
+				};
+			}
+		};
+	};
+
+	public boolean isBuffering(int key) {
+		return rings.containsKey(key);
+	};
+
+	/* Number of packets held for all UEs */
+	public int getPackets() {
+		return slots_in_use.get();
+	};
+
+	// caller holds monitor of ring
+	private void removeHead(Ring ring) {
+		int index = ring.head;
+
+		bytes_held.addAndGet(-ring.lengths[index]);
+		release(ring.slots[index]);
+		ring.slots[index] = null;
+
+		ring.head = (index + 1) % ring.slots.length;
+		ring.count--;
+	};
+
+	// free slot of the pool, or null if all of them are holding packets
+	private byte[] acquire() {
+		byte[] slot = free_slots.poll();
+
+		if(slot == null) {
+			int created;
+			do {
+				created = slots_created.get();
+				if(created >= pool_slots) { return null; };
+			} while (!slots_created.compareAndSet(created, created + 1));
+
+			slot = new byte[slot_size];
+		};
+
+		slots_in_use.incrementAndGet();
+		return slot;
+	};
+
+	private void release(byte[] slot) {
+		slots_in_use.decrementAndGet();
+		free_slots.offer(slot);
+	};
+
+	public String getStats() {
+		return "downlink_buffer: ues=" + rings.size() + ", packets=" + slots_in_use.get() + ", bytes=" + bytes_held.get() + ", slots=" + slots_created.get() + "/" + pool_slots +
+			", buffered=" + buffered.get() + ", flushed=" + flushed.get() + ", dropped_full=" + dropped_full.get() + ", dropped_pool=" + dropped_pool.get() +
+			", dropped_oversize=" + dropped_oversize.get() + ", dropped_aged=" + dropped_aged.get() + ", dropped_released=" + dropped_released.get() + ", discarded=" + discarded.get();
+	};
+}
@@ -0,0 +1,141 @@
+/* #### eNodeB Registry ####
+ * This class keeps the eNodeB switches (see Constants.ENODEBS) and the
+ * addresses of their cells, i.e. port facing UEs, IP of the radio access
+ * network and IPs of the switch. MME looks up the switch of every
+ * packet-in here to tell whether it is an eNodeB, so switches are kept in
+ * an open addressed table of dispatch IDs: a lookup neither locks nor
+ * allocates, however many cells there are.
+ *
+ * Ports of an eNodeB towards SGW-Ds are those of the topology (see
+ * Topology), a UE keeps the eNodeB it has attached through in its
+ * context (see UeContext.enodeb_dispatch_id).
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+
+public class EnodebRegistry {
+	/* An eNodeB switch and its cell */
+	public static class Enodeb {
+		final DatapathId dispatch_id;
+		final int ue_port;			// Port of the switch facing UEs of the cell
+		final String ran_ip;		// Radio access network IP, i.e. of UEs of the cell
+		final String uplink_ip;		// IP of the switch facing UEs
+		final String downlink_ip;	// IP of the switch facing SGW-Ds
+
+		Enodeb(DatapathId dispatch_id, int ue_port, String ran_ip, String uplink_ip, String downlink_ip) {
+			this.dispatch_id = dispatch_id;
+			this.ue_port = ue_port;
+			this.ran_ip = ran_ip;
+			this.uplink_ip = uplink_ip;
+			this.downlink_ip = downlink_ip;
+		};
+
+		/* Port of the eNodeB reaching the SGW-D, Topology.NONE if they are not linked */
+		int portTo(DatapathId sgw_dispatch_id) {
+			return Topology.portTo(dispatch_id.getLong(), sgw_dispatch_id.getLong());
+		};
+
+		@Override
+		public String toString() {
+			return "enodeb " + dispatch_id.getLong() + ": ue_port=" + ue_port + ", ran_ip=" + ran_ip + ", uplink_ip=" + uplink_ip + ", downlink_ip=" + downlink_ip;
+		};
+	}
+
+	/* eNodeBs in configured order */
+	private static final Enodeb all[];
+
+	/* [Index => slot, Value => dispatch ID / eNodeB in the slot, null if free] */
+	private static final long keys[];
+	private static final Enodeb slots[];
+
+	static {
+		List<Enodeb> configured = configure(Constants.ENODEBS);
+		all = configured.toArray(new Enodeb[configured.size()]);
+
+		int capacity = 8;
+		while (capacity < 2 * all.length) { capacity <<= 1; };
+		keys = new long[capacity];
+		slots = new Enodeb[capacity];
+
+		for (Enodeb enodeb : all) {
+			int slot = hash(enodeb.dispatch_id.getLong()) & (capacity - 1);
+			while (slots[slot] != null) { slot = (slot + 1) & (capacity - 1); };
+			keys[slot] = enodeb.dispatch_id.getLong();
+			slots[slot] = enodeb;
+		};
+	};
+
+	/* eNodeB of the switch, null if it isn't one */
+	public static Enodeb get(long dispatch_id) {
+		int mask = slots.length - 1;
+		for (int slot = hash(dispatch_id) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+			if(keys[slot] == dispatch_id) { return slots[slot]; };
+		};
+		return null;
+	};
+
+	public static boolean isEnodeb(long dispatch_id) {
+		return get(dispatch_id) != null;
+	};
+
+	/* First configured eNodeB, for sessions whose eNodeB isn't known */
+	public static Enodeb getDefault() {
+		return all[0];
+	};
+
+	/* All eNodeBs, the array is shared and must not be changed */
+	public static Enodeb[] getAll() {
+		return all;
+	};
+
+	/* eNodeB which the port of the switch reaches, null if none does */
+	public static Enodeb reachedVia(long dispatch_id, int port) {
+		for (Enodeb enodeb : all) {
+			if(Topology.portTo(dispatch_id, enodeb.dispatch_id.getLong()) == port) { return enodeb; };
+		};
+		return null;
+	};
+
+	/* Reads "dispatch_id=ue_port:ran_ip:uplink_ip:downlink_ip,...", exits on a malformed or duplicate eNodeB or if there is none */
+	private static List<Enodeb> configure(String config) {
+		List<Enodeb> configured = new ArrayList<Enodeb>();
+
+		for (String entry : config.split(",")) {
+			entry = entry.trim();
+			if(entry.isEmpty()) { continue; };
+
+			try {
+				int eq = entry.indexOf('=');
+				String cell[] = entry.substring(eq + 1).split(":");
+				if(eq < 0 || cell.length != 4) { throw new IllegalArgumentException(); };
+
+				long dispatch_id = Long.parseLong(entry.substring(0, eq).trim());
+				for (Enodeb enodeb : configured) {
+					if(enodeb.dispatch_id.getLong() == dispatch_id) { throw new IllegalArgumentException(); };
+				};
+
+				configured.add(new Enodeb(DatapathId.of(dispatch_id), Integer.parseInt(cell[0].trim()), cell[1].trim(), cell[2].trim(), cell[3].trim()));
+
+			} catch (RuntimeException e) {
+				System.out.println("ERROR: Invalid eNodeB '" + entry + "', expected 'dispatch_id=ue_port:ran_ip:uplink_ip:downlink_ip' once per switch");
+				System.exit(1);
+			};
+		};
+
+		if(configured.isEmpty()) {
+			System.out.println("ERROR: No eNodeB configured (see Constants.ENODEBS)");
+			System.exit(1);
+		};
+
+		return configured;
+	};
+
+	private static int hash(long dispatch_id) {
+		long h = dispatch_id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	};
+}
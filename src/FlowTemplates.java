@@ -0,0 +1,230 @@
+/* #### Flow Templates ####
+ * This class caches the parts of bearer rules which are the same for
+ * every UE, so a procedure doesn't build them again for each flow mod.
+ * Each rule has a role (see Rule Roles below), which fixes its constant
+ * match fields and actions: the match part is built once per (switch,
+ * in port, role), the action part once per (switch, out port, role), with
+ * the OFFactory of the switch. Parts are immutable, so callers only fill
+ * in what belongs to the UE (tunnel endpoint ID VLAN, UE IP) on top.
+ *
+ * Constant addresses are parsed once as well (see ip() and mac()).
+ * Parts of a switch are built again if it reconnects with another
+ * OpenFlow version, parts of all switches once the topology changes
+ * (a port may reach another eNodeB, see Topology).
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.action.OFAction;
+import org.projectfloodlight.openflow.protocol.action.OFActions;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+
+public class FlowTemplates {
+	/* #### Rule Roles, [match => actions], * => filled in per UE #### */
+	static final int ENODEB_UPLINK = 0;		// [in port, IPv4 src *UE IP => VLAN *SGW TEID, IPv4 dst SGW-D, MAC dst PDN, out port]
+	static final int ENODEB_DOWNLINK = 1;	// [in port, IPv4 src PDN, VLAN *UE TEID => IPv4 dst *UE IP, VLAN 0, MAC dst UE, out port]
+	static final int SGW_UPLINK = 2;		// [in port, IPv4 src *UE IP, VLAN *SGW TEID => VLAN *PGW TEID, IPv4 dst PGW-D, out port]
+	static final int SGW_DOWNLINK = 3;		// [in port, IPv4 src PDN, VLAN *SGW TEID => VLAN *UE TEID, IPv4 dst eNodeB of out port, out port]
+	static final int PGW_UPLINK = 4;		// [in port, IPv4 src *UE IP, VLAN *PGW TEID => strip VLAN, IPv4 dst PDN, out port]
+	static final int PGW_DOWNLINK = 5;		// [in port, IPv4 dst *UE IP => VLAN *SGW TEID, IPv4 dst SGW-D, out port]
+	static final int ROLES = 6;
+
+	// parts of ports above this are built on each call instead of being cached
+	private static final int MAX_CACHED_PORT = 0xffff;
+
+	/* Parts of the rules of one switch, built with its factory [Index => role, port] */
+	private static class SwitchTemplates {
+		final long dispatch_id;
+		final OFFactory factory;
+		final Match matches[][] = new Match[ROLES][];
+		final Object actions[][] = new Object[ROLES][];
+
+		SwitchTemplates(long dispatch_id, OFFactory factory) {
+			this.dispatch_id = dispatch_id;
+			this.factory = factory;
+		};
+	}
+
+	// [Key => switch Dispatch ID]
+	private static final ConcurrentHashMap<DatapathId, SwitchTemplates> templates = new ConcurrentHashMap<DatapathId, SwitchTemplates>();
+
+	// constant addresses by their configured string (see Constants)
+	private static final ConcurrentHashMap<String, IPv4Address> ips = new ConcurrentHashMap<String, IPv4Address>();
+	private static final ConcurrentHashMap<String, MacAddress> macs = new ConcurrentHashMap<String, MacAddress>();
+
+	private static final AtomicLong built = new AtomicLong();
+
+	/* Builder of the match of a rule of the role, holding its constant fields. Fields of the UE are set on top. */
+	public static Match.Builder match(IOFSwitch switch_id, int role, int in_port) {
+		SwitchTemplates switch_templates = templatesOf(switch_id);
+		Match parts[] = switch_templates.matches[role];
+
+		// parts are immutable, a stale or half filled table just means the slow path
+		Match match = parts != null && in_port >= 0 && in_port < parts.length ? parts[in_port] : null;
+		if(match == null) { match = cacheMatch(switch_templates, role, in_port); };
+
+		return match.createBuilder();
+	};
+
+	/* Actions of a rule of the role, ue_action (set per UE, null if there is none) followed by its constant ones */
+	@SuppressWarnings("unchecked")
+	public static List<OFAction> actions(IOFSwitch switch_id, int role, int out_port, OFAction ue_action) {
+		SwitchTemplates switch_templates = templatesOf(switch_id);
+		Object parts[] = switch_templates.actions[role];
+
+		List<OFAction> constant = parts != null && out_port >= 0 && out_port < parts.length ? (List<OFAction>) parts[out_port] : null;
+		if(constant == null) { constant = cacheActions(switch_templates, role, out_port); };
+
+		if(ue_action == null) { return constant; };
+
+		OFAction all[] = new OFAction[constant.size() + 1];
+		all[0] = ue_action;
+		for (int i = 1; i < all.length; i++) { all[i] = constant.get(i - 1); };
+		return Arrays.asList(all);
+	};
+
+	/* Action setting the VLAN carrying the tunnel endpoint ID */
+	public static OFAction setTunnel(IOFSwitch switch_id, int te_id) {
+		return switch_id.getOFFactory().actions().setVlanVid(VlanVid.ofVlan(te_id));
+	};
+
+	/* Constant IP address, e.g. Constants.PDN_IP, parsed once */
+	public static IPv4Address ip(String address) {
+		IPv4Address ip = ips.get(address);
+		if(ip == null) {
+			ip = IPv4Address.of(address);
+			ips.put(address, ip);
+		};
+		return ip;
+	};
+
+	/* Constant MAC address, e.g. Constants.UE_MAC, parsed once */
+	public static MacAddress mac(String address) {
+		MacAddress mac = macs.get(address);
+		if(mac == null) {
+			mac = MacAddress.of(address);
+			macs.put(address, mac);
+		};
+		return mac;
+	};
+
+	/* Drops parts of the switch, e.g. it has disconnected */
+	public static void forget(DatapathId dispatch_id) {
+		templates.remove(dispatch_id);
+	};
+
+	/* Drops parts of all switches, e.g. the topology has changed */
+	public static void clear() {
+		templates.clear();
+	};
+
+	private static SwitchTemplates templatesOf(IOFSwitch switch_id) {
+		OFFactory factory = switch_id.getOFFactory();
+		SwitchTemplates switch_templates = templates.get(switch_id.getId());
+
+		// new switch, or it has reconnected with another version
+		if(switch_templates == null || switch_templates.factory != factory) {
+			switch_templates = new SwitchTemplates(switch_id.getId().getLong(), factory);
+			templates.put(switch_id.getId(), switch_templates);
+		};
+
+		return switch_templates;
+	};
+
+	private static synchronized Match cacheMatch(SwitchTemplates switch_templates, int role, int in_port) {
+		Match parts[] = switch_templates.matches[role];
+		if(parts != null && in_port >= 0 && in_port < parts.length && parts[in_port] != null) { return parts[in_port]; };
+
+		Match match = buildMatch(switch_templates.factory, role, in_port);
+		built.incrementAndGet();
+
+		if(in_port < 0 || in_port > MAX_CACHED_PORT) { return match; };
+
+		// table is replaced rather than written to, readers never see it grow under them
+		Match grown[] = Arrays.copyOf(parts == null ? new Match[0] : parts, Math.max(parts == null ? 0 : parts.length, in_port + 1));
+		grown[in_port] = match;
+		switch_templates.matches[role] = grown;
+		return match;
+	};
+
+	@SuppressWarnings("unchecked")
+	private static synchronized List<OFAction> cacheActions(SwitchTemplates switch_templates, int role, int out_port) {
+		Object parts[] = switch_templates.actions[role];
+		if(parts != null && out_port >= 0 && out_port < parts.length && parts[out_port] != null) { return (List<OFAction>) parts[out_port]; };
+
+		List<OFAction> actions = buildActions(switch_templates, role, out_port);
+		built.incrementAndGet();
+
+		if(out_port < 0 || out_port > MAX_CACHED_PORT) { return actions; };
+
+		Object grown[] = Arrays.copyOf(parts == null ? new Object[0] : parts, Math.max(parts == null ? 0 : parts.length, out_port + 1));
+		grown[out_port] = actions;
+		switch_templates.actions[role] = grown;
+		return actions;
+	};
+
+	private static Match buildMatch(OFFactory factory, int role, int in_port) {
+		Match.Builder mb = factory.buildMatch();
+		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4).setExact(MatchField.IN_PORT, OFPort.of(in_port));
+
+		if(role == ENODEB_DOWNLINK || role == SGW_DOWNLINK) {
+			mb.setExact(MatchField.IPV4_SRC, ip(Constants.PDN_IP));
+		};
+
+		return mb.build();
+	};
+
+	private static List<OFAction> buildActions(SwitchTemplates switch_templates, int role, int out_port) {
+		OFActions actions = switch_templates.factory.actions();
+		OFAction constant[];
+		EnodebRegistry.Enodeb enodeb;
+
+		switch (role) {
+			case ENODEB_UPLINK:
+				constant = new OFAction[] { actions.setNwDst(ip(Constants.SGWD_IP_UPLINK)), actions.setDlDst(mac(Constants.PDN_MAC)) };
+				break;
+			case ENODEB_DOWNLINK:
+				constant = new OFAction[] { actions.setVlanVid(VlanVid.ZERO), actions.setDlDst(mac(Constants.UE_MAC)) };
+				break;
+			case SGW_UPLINK:
+				constant = new OFAction[] { actions.setNwDst(ip(Constants.PGWD_IP_UPLINK)) };
+				break;
+			case SGW_DOWNLINK:
+				// down-link IP of the eNodeB the out port reaches
+				enodeb = EnodebRegistry.reachedVia(switch_templates.dispatch_id, out_port);
+				constant = new OFAction[] { actions.setNwDst(ip(enodeb != null ? enodeb.downlink_ip : EnodebRegistry.getDefault().downlink_ip)) };
+				break;
+			case PGW_UPLINK:
+				constant = new OFAction[] { actions.stripVlan(), actions.setNwDst(ip(Constants.PDN_IP)) };
+				break;
+			case PGW_DOWNLINK:
+				constant = new OFAction[] { actions.setNwDst(ip(Constants.SGWD_IP_DOWNLINK)) };
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown rule role: " + role);
+		};
+
+		OFAction all[] = Arrays.copyOf(constant, constant.length + 1);
+		all[constant.length] = actions.output(OFPort.of(out_port), Integer.MAX_VALUE);
+		return Collections.unmodifiableList(Arrays.asList(all));
+	};
+
+	public static String getStats() {
+		return "flow_templates: switches=" + templates.size() + ", built=" + built.get();
+	};
+}
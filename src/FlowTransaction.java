@@ -0,0 +1,191 @@
+/* #### Flow Transaction ####
+ * This class collects all flow mods written by one procedure
+ * (on eNodeB, SGW-D and PGW-D) and sends them per switch as a
+ * single batch followed by a barrier request. The transaction
+ * completes asynchronously once every switch has answered its
+ * barrier, i.e. once the data path is really installed.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.projectfloodlight.openflow.protocol.OFBarrierReply;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class FlowTransaction {
+	protected static Logger log = LoggerFactory.getLogger(FlowTransaction.class);
+
+	/* Notified once, either when all switches have acknowledged or when the transaction failed */
+	public interface Callback {
+		void onComplete(FlowTransaction tx);
+		void onFailure(FlowTransaction tx, String reason);
+	}
+
+	// barrier replies are handled right on the thread delivering them
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		};
+	};
+
+	private static final AtomicLong committed = new AtomicLong();
+	private static final AtomicLong completed = new AtomicLong();
+	private static final AtomicLong failed = new AtomicLong();
+	private static final AtomicLong batches = new AtomicLong();
+	private static final AtomicLong flow_mods = new AtomicLong();
+
+	private final String name;
+	private final Map<IOFSwitch, List<OFMessage>> batch;
+	private final AtomicBoolean finished = new AtomicBoolean();
+	private long started;
+
+	// reason the procedure couldn't build all of its flow mods, null if it could
+	private String aborted;
+
+	public FlowTransaction(String name) {
+		this.name = name;
+		batch = new LinkedHashMap<IOFSwitch, List<OFMessage>>(4);
+	};
+
+	/* Writes the message as part of transaction tx, or straight to the switch if there is no transaction */
+	public static void write(FlowTransaction tx, IOFSwitch switch_id, OFMessage message) {
+		if(tx == null) {
+			switch_id.write(message);
+		} else {
+			tx.add(switch_id, message);
+		};
+	};
+
+	/* Fails transaction tx on commit() without sending anything, e.g. a switch of the procedure isn't connected */
+	public static void abort(FlowTransaction tx, String reason) {
+		if(tx == null) {
+			System.out.println("ERROR: Flow rules not written, " + reason);
+		} else if(tx.aborted == null) {
+			tx.aborted = reason;
+		};
+	};
+
+	/* Queues a message for the switch, nothing is sent till commit() */
+	public void add(IOFSwitch switch_id, OFMessage message) {
+		List<OFMessage> messages = batch.get(switch_id);
+
+		if(messages == null) {
+			messages = new ArrayList<OFMessage>(4);
+			batch.put(switch_id, messages);
+		};
+
+		messages.add(message);
+	};
+
+	public String getName() {
+		return name;
+	};
+
+	public int size() {
+		int size = 0;
+		for (List<OFMessage> messages : batch.values()) { size += messages.size(); };
+		return size;
+	};
+
+	/* Sends one batch plus barrier per switch. The callback is run on the thread delivering the last
+	 * barrier reply (or on the timer thread if timeout_ms passes first), so it should not block.
+	 */
+	public void commit(final Callback callback, ScheduledExecutorService timer, final long timeout_ms) {
+		committed.incrementAndGet();
+		started = System.nanoTime();
+
+		if(aborted != null) {
+			fail(callback, aborted);
+			return;
+		};
+
+		if(batch.isEmpty()) {
+			complete(callback);
+			return;
+		};
+
+		// nothing is written unless every switch can take its batch, else some would be left half configured
+		for (IOFSwitch switch_id : batch.keySet()) {
+			if(switch_id == null || !switch_id.isActive()) {
+				fail(callback, "switch " + (switch_id == null ? "null" : switch_id.getId()) + " is not connected");
+				return;
+			};
+		};
+
+		final AtomicInteger outstanding = new AtomicInteger(batch.size());
+
+		for (Map.Entry<IOFSwitch, List<OFMessage>> entry : batch.entrySet()) {
+			final IOFSwitch switch_id = entry.getKey();
+			List<OFMessage> messages = entry.getValue();
+
+			switch_id.write(messages);
+			batches.incrementAndGet();
+			flow_mods.addAndGet(messages.size());
+
+			final ListenableFuture<OFBarrierReply> future = switch_id.writeRequest(switch_id.getOFFactory().buildBarrierRequest().build());
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.get();
+					} catch (Exception e) {
+						fail(callback, "barrier to switch " + switch_id.getId() + " failed: " + e);
+						return;
+					};
+
+					if(outstanding.decrementAndGet() == 0) {
+						complete(callback);
+					};
+				};
+			}, DIRECT);
+		};
+
+		if(timer != null && timeout_ms > 0 && !finished.get()) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					fail(callback, "not acknowledged by " + outstanding.get() + " switch(es) in " + timeout_ms + " ms");
+				};
+			}, timeout_ms, TimeUnit.MILLISECONDS);
+		};
+	};
+
+	private void complete(Callback callback) {
+		if(!finished.compareAndSet(false, true)) { return; };
+		completed.incrementAndGet();
+
+		if(Constants.DEBUG) {
+			System.out.println("Flow transaction '" + name + "' with " + size() + " flow mods on " + batch.size() + " switch(es) acknowledged in " + (System.nanoTime() - started) / 1000 + " us");
+		};
+
+		callback.onComplete(this);
+	};
+
+	private void fail(Callback callback, String reason) {
+		if(!finished.compareAndSet(false, true)) { return; };
+		failed.incrementAndGet();
+
+		log.warn("Flow transaction '{}' failed: {}", name, reason);
+		callback.onFailure(this, reason);
+	};
+
+	public static String getStats() {
+		return "flow_transactions: committed=" + committed.get() + ", completed=" + completed.get() + ", failed=" + failed.get() + ", switch_batches=" + batches.get() + ", flow_mods=" + flow_mods.get();
+	};
+}
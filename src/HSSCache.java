@@ -0,0 +1,180 @@
+/* #### HSS Cache ####
+ * This class is a bounded read-through cache of rows HSS
+ * reads from mysql database. Entries expire after a TTL
+ * and the least recently used entry is evicted once the
+ * cache is full. Only found rows are cached, so a newly
+ * provisioned subscriber is seen on the next lookup. A row
+ * loaded while entries are being invalidated is not cached,
+ * as it may have been read before the change (see generation()).
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HSSCache<K, V> {
+	private final String name;
+	private final int max_size;
+	private final long ttl;
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	// bumped by every invalidation, guarded by entries
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	/* Loads the value of a key on a miss, returns null if there is none */
+	public interface Loader<K, V> {
+		V load(K key);
+	}
+
+	/* Selects keys to be invalidated */
+	public interface Matcher<K> {
+		boolean matches(K key);
+	}
+
+	public HSSCache(String name, final int max_size, long ttl) {
+		this.name = name;
+		this.max_size = max_size;
+		this.ttl = ttl;
+
+		// access ordered => eldest entry is the least recently used one
+		entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if (size() > HSSCache.this.max_size) {
+					evictions.incrementAndGet();
+					return true;
+				};
+				return false;
+			};
+		};
+	};
+
+	/* Returns cached value of the key, or null if it is not cached or has expired */
+	public V get(K key) {
+		synchronized (entries) {
+			Entry<V> entry = entries.get(key);
+
+			if (entry != null && entry.expires > System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return entry.value;
+			};
+
+			if (entry != null) {
+				entries.remove(key);
+				expirations.incrementAndGet();
+			};
+		}
+
+		misses.incrementAndGet();
+		return null;
+	};
+
+	/* true if an unexpired value of the key is cached, without counting a hit or miss */
+	public boolean contains(K key) {
+		synchronized (entries) {
+			Entry<V> entry = entries.get(key);
+			return entry != null && entry.expires > System.currentTimeMillis();
+		}
+	};
+
+	/* Returns cached value of the key, loading (and caching) it on a miss. The loader runs without the cache lock held. */
+	public V get(K key, Loader<K, V> loader) {
+		V value = get(key);
+		if (value != null) { return value; };
+
+		long loaded_at = generation();
+		value = loader.load(key);
+		if (value != null) { put(key, value, loaded_at); };
+		return value;
+	};
+
+	/* Generation to pass to put() for a value about to be read from database */
+	public long generation() {
+		synchronized (entries) {
+			return generation;
+		}
+	};
+
+	/* Caches value read from database when cache was at given generation, unless something has been invalidated since.
+	 * Returns false if value is not cached.
+	 */
+	public boolean put(K key, V value, long loaded_at) {
+		if (max_size <= 0) { return false; };
+
+		synchronized (entries) {
+			if (generation != loaded_at) { return false; };
+
+			entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+			return true;
+		}
+	};
+
+	public void invalidate(K key) {
+		synchronized (entries) {
+			generation++;
+			entries.remove(key);
+		}
+	};
+
+	/* Drops every entry whose key matches, e.g. all rows of one IMSI */
+	public int invalidateIf(Matcher<K> matcher) {
+		int count = 0;
+
+		synchronized (entries) {
+			generation++;
+			for (Iterator<K> it = entries.keySet().iterator(); it.hasNext();) {
+				if (matcher.matches(it.next())) {
+					it.remove();
+					count++;
+				};
+			};
+		}
+
+		return count;
+	};
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	};
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	};
+
+	public long getHits() {
+		return hits.get();
+	};
+
+	public long getMisses() {
+		return misses.get();
+	};
+
+	public String getStats() {
+		return name + ": size=" + size() + "/" + max_size + ", hits=" + hits.get() + ", misses=" + misses.get() +
+			", evictions=" + evictions.get() + ", expirations=" + expirations.get();
+	};
+
+	private static class Entry<V> {
+		final V value;
+		final long expires;
+
+		Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		};
+	}
+}
@@ -0,0 +1,190 @@
+/* #### HSS Connection Pool ####
+ * This class keeps a bounded pool of connections to the
+ * HSS mysql database, so UE validation doesn't pay a TCP
+ * and auth handshake per request. Every pooled connection
+ * caches its prepared statements, which are also prepared
+ * server side by the driver.
+ */
+package net.floodlightcontroller.splus;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class HSSConnectionPool {
+	protected static Logger log = LoggerFactory.getLogger(HSSConnectionPool.class);
+
+	private final String url;
+	private final Properties properties;
+	private final int size;
+	private final long acquire_timeout;
+
+	// permits => connections which may still be handed out, idle => connections ready for reuse
+	private final Semaphore permits;
+	private final BlockingQueue<PooledConnection> idle;
+
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong closed = new AtomicLong();
+	private final AtomicLong wait_ns = new AtomicLong();
+	private final AtomicLong max_wait_ns = new AtomicLong();
+
+	public HSSConnectionPool(String url, String user, String password, int size, long acquire_timeout) {
+		if (size <= 0) { throw new IllegalArgumentException("Connection pool size must be greater than 0"); };
+
+		this.url = url;
+		this.size = size;
+		this.acquire_timeout = acquire_timeout;
+
+		// let mysql driver prepare statements on server and keep them cached per connection
+		properties = new Properties();
+		properties.setProperty("user", user);
+		properties.setProperty("password", password);
+		properties.setProperty("useServerPrepStmts", "true");
+		properties.setProperty("cachePrepStmts", "true");
+		properties.setProperty("prepStmtCacheSize", String.valueOf(Constants.HSS_STATEMENT_CACHE_SIZE));
+
+		permits = new Semaphore(size, true);
+		idle = new ArrayBlockingQueue<PooledConnection>(size);
+	};
+
+	/* Takes a connection from the pool, opening a new one if no idle connection is left and pool
+	 * is not full yet. Waits at most acquire_timeout ms for a connection to be released.
+	 */
+	public PooledConnection acquire() throws SQLException {
+		long started = System.nanoTime();
+
+		try {
+			if (!permits.tryAcquire(acquire_timeout, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLException("No HSS database connection available within " + acquire_timeout + " ms (pool size " + size + ")");
+			};
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for HSS database connection");
+		};
+
+		long wait = System.nanoTime() - started;
+		wait_ns.addAndGet(wait);
+		if (wait > max_wait_ns.get()) { max_wait_ns.set(wait); };
+		acquired.incrementAndGet();
+
+		try {
+			PooledConnection pc;
+			while ((pc = idle.poll()) != null) {
+				if (pc.isUsable()) { return pc; };
+				discard(pc);
+			};
+
+			pc = new PooledConnection(DriverManager.getConnection(url, properties));
+			created.incrementAndGet();
+			return pc;
+
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+	};
+
+	/* Gives the connection back, a connection which failed (broken == true) is closed instead of reused */
+	public void release(PooledConnection pc, boolean broken) {
+		if (pc == null) { return; };
+
+		pc.last_used = System.currentTimeMillis();
+
+		if (broken || !idle.offer(pc)) {
+			discard(pc);
+		};
+
+		permits.release();
+	};
+
+	private void discard(PooledConnection pc) {
+		closed.incrementAndGet();
+		pc.close();
+	};
+
+	/* Closes all idle connections, connections in use are closed when released */
+	public void close() {
+		PooledConnection pc;
+		while ((pc = idle.poll()) != null) { discard(pc); };
+	};
+
+	public int getActive() {
+		return size - permits.availablePermits();
+	};
+
+	public int getIdle() {
+		return idle.size();
+	};
+
+	public String getStats() {
+		long count = acquired.get();
+		return "hss_pool: size=" + size + ", active=" + getActive() + ", idle=" + getIdle() + ", acquired=" + count + ", timeouts=" + timeouts.get() +
+			", created=" + created.get() + ", closed=" + closed.get() + ", avg_wait_us=" + (count == 0 ? 0 : wait_ns.get() / count / 1000) + ", max_wait_us=" + max_wait_ns.get() / 1000;
+	};
+
+	/* A pooled connection along with the statements prepared on it */
+	public static class PooledConnection {
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements;
+		volatile long last_used;
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.statements = new HashMap<String, PreparedStatement>();
+			this.last_used = System.currentTimeMillis();
+		};
+
+		/* Returns the cached statement for sql, preparing it on first use. Statements must not be closed by the caller. */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement ps = statements.get(sql);
+
+			if (ps == null) {
+				ps = connection.prepareStatement(sql);
+				statements.put(sql, ps);
+			};
+
+			return ps;
+		};
+
+		/* Underlying connection, e.g. for a transaction. Statements must be prepared with prepare() to be cached. */
+		public Connection getConnection() {
+			return connection;
+		};
+
+		/* Connections idle for a while are checked before reuse, server may have dropped them */
+		boolean isUsable() {
+			try {
+				if (connection.isClosed()) { return false; };
+				if (System.currentTimeMillis() - last_used < Constants.HSS_POOL_VALIDATION_INTERVAL) { return true; };
+				return connection.isValid(1);
+			} catch (SQLException e) {
+				return false;
+			}
+		};
+
+		void close() {
+			try {
+				for (PreparedStatement ps : statements.values()) { ps.close(); };
+				statements.clear();
+				connection.close();
+			} catch (SQLException e) {
+				log.warn("Error closing HSS database connection: {}", e.getMessage());
+			};
+		};
+	}
+}
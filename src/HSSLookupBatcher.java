@@ -0,0 +1,180 @@
+/* #### HSS Lookup Batcher ####
+ * This class coalesces database lookups of subscribers which attach
+ * at about the same time (e.g. a fleet of IoT devices powering up)
+ * into one round trip. MME submits the lookup of an AUTHENTICATION_STEP_ONE
+ * as it dispatches the request, a flusher thread waits one window for more
+ * to arrive and resolves all of them at once (see HSSPlus.validateUEs).
+ * The worker running the procedure then waits for the batch in flight
+ * instead of querying on its own.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class HSSLookupBatcher<K, V> {
+	protected static Logger log = LoggerFactory.getLogger(HSSLookupBatcher.class);
+
+	/* Resolves a batch of keys at once, keys without a value are left out of the result */
+	public interface Resolver<K, V> {
+		Map<K, V> resolve(List<K> keys);
+	}
+
+	/* Lookup of one key, done once its batch has been resolved (or has failed) */
+	private static class Lookup<V> {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile V value;
+		volatile boolean failed;
+	}
+
+	private final String name;
+	private final Resolver<K, V> resolver;
+	private final long window_ns;
+	private final int max_batch;
+	private final long wait_timeout;
+
+	// [Key => key submitted and not resolved yet], queued holds them in order of submission
+	private final ConcurrentHashMap<K, Lookup<V>> pending;
+	private final LinkedBlockingQueue<K> queued;
+	private final Thread flusher;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong joined = new AtomicLong();
+	private final AtomicLong direct = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong max_batch_seen = new AtomicLong();
+
+	/* window => time (in microseconds) a batch is held open, wait_timeout => time (in milliseconds) a caller waits for it */
+	public HSSLookupBatcher(String name, Resolver<K, V> resolver, long window, int max_batch, int queue_capacity, long wait_timeout) {
+		if (max_batch <= 0) { throw new IllegalArgumentException("Batch size must be greater than 0"); };
+
+		this.name = name;
+		this.resolver = resolver;
+		this.window_ns = TimeUnit.MICROSECONDS.toNanos(window);
+		this.max_batch = max_batch;
+		this.wait_timeout = wait_timeout;
+
+		pending = new ConcurrentHashMap<K, Lookup<V>>();
+		queued = new LinkedBlockingQueue<K>(queue_capacity);
+
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			};
+		}, name + "-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	};
+
+	/* Queues the key for the next batch, a key already waiting for one is not queued again */
+	public void submit(K key) {
+		Lookup<V> lookup = new Lookup<V>();
+		if (pending.putIfAbsent(key, lookup) != null) { return; };
+
+		submitted.incrementAndGet();
+
+		// queue full, whoever waits for the key looks it up on its own
+		if (!queued.offer(key)) {
+			rejected.incrementAndGet();
+			pending.remove(key, lookup);
+			lookup.failed = true;
+			lookup.done.countDown();
+		};
+	};
+
+	/* Returns the value of the key from its batch, or loads it with the loader if it has not been submitted,
+	 * its batch has failed or doesn't complete within wait_timeout ms.
+	 */
+	public V get(K key, HSSCache.Loader<K, V> loader) {
+		Lookup<V> lookup = pending.get(key);
+
+		if (lookup != null) {
+			try {
+				if (lookup.done.await(wait_timeout, TimeUnit.MILLISECONDS) && !lookup.failed) {
+					joined.incrementAndGet();
+					return lookup.value;
+				};
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			};
+		};
+
+		direct.incrementAndGet();
+		return loader.load(key);
+	};
+
+	public void shutdown() {
+		flusher.interrupt();
+	};
+
+	private void flushLoop() {
+		List<K> batch = new ArrayList<K>(max_batch);
+
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				// window opens with the first key
+				batch.add(queued.take());
+				long closes = System.nanoTime() + window_ns;
+
+				while (batch.size() < max_batch) {
+					long left = closes - System.nanoTime();
+					K key = left > 0 ? queued.poll(left, TimeUnit.NANOSECONDS) : queued.poll();
+					if (key == null) { break; };
+					batch.add(key);
+				};
+			} catch (InterruptedException e) {
+				if (batch.isEmpty()) { return; };
+				Thread.currentThread().interrupt();
+			};
+
+			flush(batch);
+			batch.clear();
+		};
+	};
+
+	private void flush(List<K> batch) {
+		Map<K, V> found = null;
+
+		try {
+			found = resolver.resolve(batch);
+		} catch (RuntimeException e) {
+			log.error("Batch lookup of " + batch.size() + " keys failed in " + name, e);
+		};
+
+		if (found == null) { failures.incrementAndGet(); };
+
+		batches.incrementAndGet();
+		if (batch.size() > max_batch_seen.get()) { max_batch_seen.set(batch.size()); };
+
+		for (K key : batch) {
+			Lookup<V> lookup = pending.remove(key);
+			if (lookup == null) { continue; };
+
+			if (found == null) {
+				lookup.failed = true;
+			} else {
+				lookup.value = found.get(key);
+			};
+
+			lookup.done.countDown();
+		};
+	};
+
+	public String getStats() {
+		long count = batches.get();
+		return name + ": submitted=" + submitted.get() + ", batches=" + count + ", avg_batch=" + (count == 0 ? 0 : (submitted.get() - rejected.get()) / count) +
+			", max_batch=" + max_batch_seen.get() + ", joined=" + joined.get() + ", direct=" + direct.get() + ", rejected=" + rejected.get() + ", failures=" + failures.get();
+	};
+}
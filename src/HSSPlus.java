@@ -1,19 +1,87 @@
 /* #### Home Subscriber Service ####
  * This class establishes a secure db connection
- * to mysql database for UE validation.
+ * to mysql database for UE validation. Connections
+ * are taken from a bounded pool (see HSSConnectionPool)
+ * and rows read are kept in read-through caches (see HSSCache).
+ * Authentication vectors are generated ahead of time per IMSI
+ * (see AuthVectorGenerator).
+ *
+ * Many subscribers can be looked up with one query (see validateUEs),
+ * which also resolves lookups of attaches arriving together (see
+ * HSSLookupBatcher), and loaded from a file with multi-row inserts
+ * (see provisionUEs).
  */
 
 package net.floodlightcontroller.splus;
 
-import java.sql.ResultSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.projectfloodlight.openflow.types.DatapathId;
 
 public class HSSPlus {
+	// size of a binary subscriber record, [key, imsi, msisdn, tai => 8 bytes each, nt => 16 bytes NUL padded]
+	static final int SUBSCRIBER_RECORD_SIZE = 48;
+	static final int NT_SIZE = 16;
+
+	private final HSSConnectionPool pool;
+
+	// [Key => IMSI + TAI + NT, Value => subscriber key] rows of ue_info
+	private final HSSCache<UeInfoKey, Long> ue_info_cache;
+
+	// [Key => APN, Value => PGW-D dispatch id] rows of pgw_info
+	private final HSSCache<Long, DatapathId> pgw_info_cache;
+
+	// ready authentication vectors per IMSI
+	private final AuthVectorGenerator auth_vectors;
+
+	// lookups of attaching subscribers resolved together, null if batching is off
+	private final HSSLookupBatcher<UeInfoKey, Long> ue_info_batcher;
+
+	private final AtomicLong provisioned = new AtomicLong();
+
+	// the batch of the subscriber may have been resolved (and cached) since the cache was checked
+	private final HSSCache.Loader<UeInfoKey, Long> ue_info_direct_loader = new HSSCache.Loader<UeInfoKey, Long>() {
+		@Override
+		public Long load(UeInfoKey key) {
+			Long cached = ue_info_cache.get(key);
+			return cached != null ? cached : selectUEKey(key.imsi, key.tai, key.nt);
+		};
+	};
+
+	// joins the batch of the subscriber if it has been submitted, see submitUE()
+	private final HSSCache.Loader<UeInfoKey, Long> ue_info_loader = new HSSCache.Loader<UeInfoKey, Long>() {
+		@Override
+		public Long load(UeInfoKey key) {
+			return ue_info_batcher != null ? ue_info_batcher.get(key, ue_info_direct_loader) : selectUEKey(key.imsi, key.tai, key.nt);
+		};
+	};
+
+	private final HSSCache.Loader<Long, DatapathId> pgw_info_loader = new HSSCache.Loader<Long, DatapathId>() {
+		@Override
+		public DatapathId load(Long apn) {
+			return selectPGW(apn);
+		};
+	};
+
 	HSSPlus() {
 		// load mysql database driver
 		try {
@@ -21,123 +89,535 @@ public class HSSPlus {
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
 		};
+
+		pool = new HSSConnectionPool(Constants.DB_CONNECTION, Constants.DB_USER, Constants.DB_PASSWORD, Constants.HSS_POOL_SIZE, Constants.HSS_POOL_ACQUIRE_TIMEOUT);
+		ue_info_cache = new HSSCache<UeInfoKey, Long>("ue_info_cache", Constants.HSS_UE_CACHE_SIZE, Constants.HSS_UE_CACHE_TTL);
+		pgw_info_cache = new HSSCache<Long, DatapathId>("pgw_info_cache", Constants.HSS_PGW_CACHE_SIZE, Constants.HSS_PGW_CACHE_TTL);
+		auth_vectors = new AuthVectorGenerator(Constants.AUTH_VECTOR_BATCH_SIZE, Constants.AUTH_VECTOR_LOW_WATERMARK, Constants.AUTH_VECTOR_MAX_SUBSCRIBERS);
+
+		if (Constants.HSS_BATCH_WINDOW > 0) {
+			ue_info_batcher = new HSSLookupBatcher<UeInfoKey, Long>("ue_info_batcher", new HSSLookupBatcher.Resolver<UeInfoKey, Long>() {
+				@Override
+				public Map<UeInfoKey, Long> resolve(List<UeInfoKey> keys) {
+					long loaded_at = ue_info_cache.generation();
+					Map<UeInfoKey, Long> found = selectUEKeys(keys);
+					if (found == null) { return null; };
+
+					// a worker getting to its lookup after the batch is done finds the row here
+					for (Map.Entry<UeInfoKey, Long> row : found.entrySet()) { ue_info_cache.put(row.getKey(), row.getValue(), loaded_at); };
+					return found;
+				};
+			}, Constants.HSS_BATCH_WINDOW, Constants.HSS_BATCH_MAX_SIZE, Constants.HSS_BATCH_QUEUE_CAPACITY, Constants.HSS_POOL_ACQUIRE_TIMEOUT);
+		} else {
+			ue_info_batcher = null;
+		};
+	};
+
+	/* Returns connection pool metrics (active, idle, wait time) */
+	public String getPoolStats() {
+		return pool.getStats();
+	};
+
+	/* Returns hit / miss counters of subscriber and APN caches */
+	public String getCacheStats() {
+		return ue_info_cache.getStats() + "\n" + pgw_info_cache.getStats() + "\n" + auth_vectors.getStats() +
+			(ue_info_batcher != null ? "\n" + ue_info_batcher.getStats() : "") + "\nhss_provisioning: provisioned=" + provisioned.get();
 	};
 
-	/* Validates the UE on the various parameters like IMSI. */
-    public String validateUE(
-		String IMSI,	// International Mobile Subscriber Identity 
-		int SNID, 		// Serving Network ID
-		String NT, 		// Network Type ID
-		int SQN, 		// UE Sequence Number
-		String TAI		// Tracking Area ID
+	/* Validates the UE on the various parameters like IMSI and returns a ready authentication vector,
+	 * null if the subscriber is not known.
+	 */
+	public AuthVector getAuthVector(
+		long IMSI,		// International Mobile Subscriber Identity
+		String NT,		// Network Type ID
+		long TAI		// Tracking Area ID
 	) {
-		long key = 0, rand;
+		// re-attaching subscribers are found in cache without a database round trip
+		Long key = ue_info_cache.get(new UeInfoKey(IMSI, TAI, NT), ue_info_loader);
+
+		// no matching record - validation failed
+		if (key == null) {
+			return null;
+		};
+
+		return auth_vectors.take(IMSI, key);
+	};
+
+	/* Queues lookup of the subscriber for the next batch, so getAuthVector() of a UE which has just
+	 * sent AUTHENTICATION_STEP_ONE shares a query with others arriving in the same window.
+	 */
+	public void submitUE(long IMSI, String NT, long TAI) {
+		if (ue_info_batcher == null) { return; };
+
+		UeInfoKey key = new UeInfoKey(IMSI, TAI, NT);
+		if (!ue_info_cache.contains(key)) {
+			ue_info_batcher.submit(key);
+		};
+	};
+
+	/* Validates many UEs at once, returns their ready authentication vectors in the same order (null for
+	 * a subscriber which is not known). Rows not cached are read with one query per HSS_BATCH_MAX_SIZE IMSIs.
+	 */
+	public List<AuthVector> validateUEs(List<UeInfoKey> ues) {
+		List<UeInfoKey> missing = new ArrayList<UeInfoKey>();
+		Map<UeInfoKey, Long> keys = new HashMap<UeInfoKey, Long>();
+
+		for (UeInfoKey ue : ues) {
+			Long key = ue_info_cache.get(ue);
+			if (key != null) {
+				keys.put(ue, key);
+			} else {
+				missing.add(ue);
+			};
+		};
+
+		if (!missing.isEmpty()) {
+			long loaded_at = ue_info_cache.generation();
+			Map<UeInfoKey, Long> found = selectUEKeys(missing);
+
+			if (found != null) {
+				for (Map.Entry<UeInfoKey, Long> row : found.entrySet()) {
+					ue_info_cache.put(row.getKey(), row.getValue(), loaded_at);
+					keys.put(row.getKey(), row.getValue());
+				};
+			};
+		};
+
+		List<AuthVector> vectors = new ArrayList<AuthVector>(ues.size());
+		for (UeInfoKey ue : ues) {
+			Long key = keys.get(ue);
+			vectors.add(key != null ? auth_vectors.take(ue.imsi, key) : null);
+		};
+
+		return vectors;
+	};
+
+	/* Fetches the ID of PGW based on the APN (Access Point Name) specified by the UE */
+	public DatapathId getPGW(long apn) {
+		return pgw_info_cache.get(apn, pgw_info_loader);
+	};
+
+	/* Drops cached ue_info rows of the subscriber, e.g. after its key has been changed in database */
+	public void invalidateUE(final long imsi) {
+		ue_info_cache.invalidateIf(new HSSCache.Matcher<UeInfoKey>() {
+			@Override
+			public boolean matches(UeInfoKey key) {
+				return key.imsi == imsi;
+			};
+		});
+
+		auth_vectors.invalidate(imsi);
+	};
+
+	/* Drops cached pgw_info row of the APN, e.g. after it has been moved to another PGW-D */
+	public void invalidatePGW(long apn) {
+		pgw_info_cache.invalidate(apn);
+	};
+
+	public void invalidateAll() {
+		ue_info_cache.invalidateAll();
+		pgw_info_cache.invalidateAll();
+		auth_vectors.invalidateAll();
+	};
+
+	/* Loads subscribers of the file into ue_info, replacing rows with the same key. A file ending in ".csv" has
+	 * a "key,imsi,msisdn,nt,tai" line per subscriber ('#' starts a comment), any other one SUBSCRIBER_RECORD_SIZE
+	 * byte records. Returns the number of subscribers loaded, -1 if the file couldn't be read or loaded.
+	 */
+	public int provisionUEs(String path) {
+		boolean csv = path.toLowerCase().endsWith(".csv");
+		int chunk = Math.max(1, Constants.HSS_PROVISION_BATCH_SIZE) * 16;
+		List<Subscriber> subscribers = new ArrayList<Subscriber>(chunk);
+		BufferedReader reader = null;
+		DataInputStream in = null;
+		int total = 0, line = 0;
+
+		try {
+			if (csv) {
+				reader = new BufferedReader(new FileReader(path));
+			} else {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 << 10));
+			};
+
+			while (true) {
+				Subscriber subscriber;
+
+				if (csv) {
+					String text = reader.readLine();
+					if (text == null) { break; };
+					line++;
+
+					int comment = text.indexOf('#');
+					if (comment >= 0) { text = text.substring(0, comment); };
+					if (text.trim().isEmpty()) { continue; };
+
+					subscriber = parseSubscriber(text);
+					if (subscriber == null) {
+						System.out.println("ERROR: Invalid subscriber at line " + line + " of '" + path + "', expected 'key,imsi,msisdn,nt,tai'");
+						return -1;
+					};
+				} else {
+					subscriber = readSubscriber(in);
+					if (subscriber == null) { break; };
+				};
+
+				subscribers.add(subscriber);
+
+				// a transaction per chunk, a huge file is neither held in memory nor in one transaction
+				if (subscribers.size() == chunk) {
+					if (provisionUEs(subscribers) < 0) { return -1; };
+					total += subscribers.size();
+					subscribers.clear();
+				};
+			};
+
+			if (provisionUEs(subscribers) < 0) { return -1; };
+			total += subscribers.size();
+
+			if (Constants.DEBUG) {
+				System.out.println("HSS provisioned " + total + " subscribers from '" + path + "'");
+			};
+
+			return total;
+
+		} catch (IOException e) {
+			System.out.println("ERROR: Reading subscribers from '" + path + "' failed after " + total + " loaded: " + e.getMessage());
+			return -1;
+
+		} finally {
+			try {
+				if (reader != null) { reader.close(); };
+				if (in != null) { in.close(); };
+			} catch (IOException e) {
+				e.printStackTrace();
+			};
+		}
+	};
+
+	/* Inserts or replaces the subscribers in one transaction, HSS_PROVISION_BATCH_SIZE rows per statement.
+	 * Returns the number of subscribers loaded, -1 if the transaction failed.
+	 */
+	public int provisionUEs(List<Subscriber> subscribers) {
+		if (subscribers.isEmpty()) { return 0; };
+
+		boolean broken = false;
+		HSSConnectionPool.PooledConnection cn = null;
+		int batch = Math.max(1, Constants.HSS_PROVISION_BATCH_SIZE);
+
+		try {
+			// take a connection from pool
+			cn = pool.acquire();
+			Connection connection = cn.getConnection();
+			connection.setAutoCommit(false);
+
+			try {
+				for (int done = 0; done < subscribers.size();) {
+					int rows = Math.min(batch, subscribers.size() - done);
+
+					// full batches share the cached statement, the last (shorter) one is prepared just for itself
+					PreparedStatement ps = rows == batch ? cn.prepare(insertSql(rows)) : connection.prepareStatement(insertSql(rows));
+
+					try {
+						int p = 1;
+						for (int i = done; i < done + rows; i++) {
+							Subscriber subscriber = subscribers.get(i);
+							ps.setLong(p++, subscriber.key);
+							ps.setLong(p++, subscriber.imsi);
+							ps.setLong(p++, subscriber.msisdn);
+							ps.setString(p++, subscriber.nt);
+							ps.setLong(p++, subscriber.tai);
+						};
+
+						ps.executeUpdate();
+					} finally {
+						if (rows != batch) { ps.close(); };
+					};
+
+					done += rows;
+				};
+
+				connection.commit();
+
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+
+			} finally {
+				connection.setAutoCommit(true);
+			};
+
+		} catch (SQLException e) {
+			System.out.println("ERROR: Provisioning of " + subscribers.size() + " subscribers failed: " + e.getMessage());
+			broken = true;
+			return -1;
+
+		} finally {
+			pool.release(cn, broken);
+		};
+
+		// rows (and vectors made with old keys) cached before are stale now
+		final Set<Long> imsis = new HashSet<Long>();
+		for (Subscriber subscriber : subscribers) { imsis.add(subscriber.imsi); };
+
+		ue_info_cache.invalidateIf(new HSSCache.Matcher<UeInfoKey>() {
+			@Override
+			public boolean matches(UeInfoKey key) {
+				return imsis.contains(key.imsi);
+			};
+		});
+
+		for (Long imsi : imsis) { auth_vectors.invalidate(imsi); };
+
+		provisioned.addAndGet(subscribers.size());
+		return subscribers.size();
+	};
+
+	/* Reads the subscriber key from database, returns null if there is no matching record */
+	private Long selectUEKey(long imsi, long tai, String nt) {
 		ResultSet rs = null;
-		Connection cn = null;;
-		PreparedStatement ps = null;
-		String sql = "SELECT key FROM ue_info WHERE imsi = ? AND tai = ? AND nt = ?";
+		boolean broken = false;
+		HSSConnectionPool.PooledConnection cn = null;
+		String sql = "SELECT `key` FROM ue_info WHERE imsi = ? AND tai = ? AND nt = ?";
 
 		try {
-			// connect to mysql database
-			cn = DriverManager.getConnection(Constants.DB_CONNECTION, Constants.DB_USER, Constants.DB_PASSWORD);
+			// take a connection from pool
+			cn = pool.acquire();
 
-			// prepare sql statement
-			ps = cn.prepareStatement(sql);
-			ps.setLong(1, Long.parseLong(IMSI));
-			ps.setLong(2, Long.parseLong(TAI));
-			ps.setString(3, NT);
+			// prepared sql statement, cached on the connection
+			PreparedStatement ps = cn.prepare(sql);
+			ps.setLong(1, imsi);
+			ps.setLong(2, tai);
+			ps.setString(3, nt);
 
 			// execute query
 			rs = ps.executeQuery();
 
 			// check if we have found a matching record
 			if (rs.next()) {
-				key = rs.getLong("key");
+				return rs.getLong("key");
 
 			// if not, then just return null - validation failed
 			} else {
 				System.out.println("Error in selecting UE key - no matching record in HSSPlus");
 				return null;
+			}
+
+		// if anything went wrong then return null - validation failure
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			broken = true;
+
+		// make sure to close result-set and give connection back to pool before exit
+		} finally {
+			try {
+				if (rs != null) { rs.close(); };
+			} catch (Exception e) {
+				e.printStackTrace();
 			};
 
-			// get a random number from any range of numbers
-			rand = Utils.randInt(16, 255);
+			pool.release(cn, broken);
+		};
 
-			// Authentication & Key Agreement Algorithm
-			long CK		= (rand + 1) * (key - 1) - (SQN + 1);	// Cipher key
-			long IK		= (rand + 1) * (key + 1) - (SQN - 1);	// Integrity key
+		// validation failure
+		return null;
+	};
 
-			long xres	= rand * key + SQN;						// Expected Response
-			long autn	= (rand - 1) * (key + 1) - SQN;			// Authentication token
-			long K_ASME	= SQN * CK + SNID * IK;					// Access Security Management
+	/* Reads subscriber keys of many UEs from database, one indexed query per HSS_BATCH_MAX_SIZE IMSIs.
+	 * Returns [Key => UE, Value => subscriber key] of UEs found, null if database couldn't be read.
+	 */
+	private Map<UeInfoKey, Long> selectUEKeys(List<UeInfoKey> ues) {
+		Map<UeInfoKey, Long> found = new HashMap<UeInfoKey, Long>();
+		Set<UeInfoKey> wanted = new HashSet<UeInfoKey>(ues);
+		Set<Long> distinct = new LinkedHashSet<Long>();
+		for (UeInfoKey ue : ues) { distinct.add(ue.imsi); };
+		List<Long> imsis = new ArrayList<Long>(distinct);
 
-			// validation successful
-			return xres + Constants.SEPARATOR + autn + Constants.SEPARATOR + rand + Constants.SEPARATOR + K_ASME;
+		ResultSet rs = null;
+		boolean broken = false;
+		HSSConnectionPool.PooledConnection cn = null;
+		int batch = Math.max(1, Constants.HSS_BATCH_MAX_SIZE);
+
+		try {
+			// take a connection from pool
+			cn = pool.acquire();
+
+			for (int done = 0; done < imsis.size(); done += batch) {
+				int count = Math.min(batch, imsis.size() - done);
+
+				// padded to a power of two with the last IMSI, so a few cached statements serve every batch size
+				int placeholders = 1;
+				while (placeholders < count) { placeholders <<= 1; };
+				placeholders = Math.min(placeholders, batch);
+
+				PreparedStatement ps = cn.prepare(selectKeysSql(placeholders));
+				for (int i = 0; i < placeholders; i++) {
+					ps.setLong(i + 1, imsis.get(done + Math.min(i, count - 1)));
+				};
+
+				rs = ps.executeQuery();
+
+				// rows of other tracking areas / network types of the IMSIs are not asked for
+				while (rs.next()) {
+					UeInfoKey ue = new UeInfoKey(rs.getLong("imsi"), rs.getLong("tai"), rs.getString("nt"));
+					if (wanted.contains(ue)) { found.put(ue, rs.getLong("key")); };
+				};
+
+				rs.close();
+				rs = null;
+			};
+
+			return found;
 
-		// if anything went wrong then return null - validation failure
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
+			broken = true;
 
-		// make sure to close database connection and result-set etc. before exit
+		// make sure to close result-set and give connection back to pool before exit
 		} finally {
 			try {
-				if (ps != null) { ps.close(); };
 				if (rs != null) { rs.close(); };
-				if (cn != null) { cn.close(); };
 			} catch (Exception e) {
 				e.printStackTrace();
 			};
+
+			pool.release(cn, broken);
 		};
 
-		// validation failure
 		return null;
 	};
 
-	/* Fetches the ID of PGW based on the APN (Access Point Name) specified by the UE */
-	public DatapathId getPGW(String apn) {
+	private static String selectKeysSql(int placeholders) {
+		StringBuilder sql = new StringBuilder("SELECT `key`, imsi, tai, nt FROM ue_info WHERE imsi IN (?");
+		for (int i = 1; i < placeholders; i++) { sql.append(", ?"); };
+		return sql.append(')').toString();
+	};
+
+	private static String insertSql(int rows) {
+		StringBuilder sql = new StringBuilder("INSERT INTO ue_info (`key`, imsi, msisdn, nt, tai) VALUES (?, ?, ?, ?, ?)");
+		for (int i = 1; i < rows; i++) { sql.append(", (?, ?, ?, ?, ?)"); };
+		return sql.append(" ON DUPLICATE KEY UPDATE imsi = VALUES(imsi), msisdn = VALUES(msisdn), nt = VALUES(nt), tai = VALUES(tai)").toString();
+	};
+
+	/* Subscriber of a "key,imsi,msisdn,nt,tai" line, null if it is malformed */
+	private static Subscriber parseSubscriber(String line) {
+		String fields[] = line.split(",");
+		if (fields.length != 5 || fields[3].trim().isEmpty() || fields[3].trim().length() > NT_SIZE) { return null; };
+
+		try {
+			return new Subscriber(Long.parseLong(fields[0].trim()), Long.parseLong(fields[1].trim()), Long.parseLong(fields[2].trim()), fields[3].trim(), Long.parseLong(fields[4].trim()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	};
+
+	/* Next binary subscriber record, null at end of file */
+	private static Subscriber readSubscriber(DataInputStream in) throws IOException {
+		long key;
+		try {
+			key = in.readLong();
+		} catch (EOFException e) {
+			return null;
+		};
+
+		long imsi = in.readLong();
+		long msisdn = in.readLong();
+		long tai = in.readLong();
+
+		byte nt[] = new byte[NT_SIZE];
+		in.readFully(nt);
+		int length = 0;
+		while (length < NT_SIZE && nt[length] != 0) { length++; };
+
+		return new Subscriber(key, imsi, msisdn, new String(nt, 0, length, StandardCharsets.ISO_8859_1), tai);
+	};
+
+	/* Reads the PGW-D dispatch id of the APN from database, returns null if there is no matching record */
+	private DatapathId selectPGW(long apn) {
 		ResultSet rs = null;
-		Connection cn = null;
-		DatapathId dispatch_id = null;
-		PreparedStatement ps = null;
+		boolean broken = false;
+		HSSConnectionPool.PooledConnection cn = null;
 		String sql = "SELECT dispatch_id FROM pgw_info WHERE apn = ?";
 
 		try {
-			// connect to mysql database
-			cn = DriverManager.getConnection(Constants.DB_CONNECTION, Constants.DB_USER, Constants.DB_PASSWORD);
+			// take a connection from pool
+			cn = pool.acquire();
 
-			// prepare sql statement
-			ps = cn.prepareStatement(sql);
-			ps.setLong(1, Long.parseLong(apn));
+			// prepared sql statement, cached on the connection
+			PreparedStatement ps = cn.prepare(sql);
+			ps.setLong(1, apn);
 
 			// execute query
 			rs = ps.executeQuery();
 
 			// check if we have found a matching record
 			if (rs.next()) {
-				dispatch_id = DatapathId.of(rs.getLong("dispatch_id"));
+				return DatapathId.of(rs.getLong("dispatch_id"));
 
 			// if not, then just return null - validation failed
 			} else {
 				System.out.println("Error in selecting dispatch id - no matching record in HSSPlus");
 				return null;
-			};
-
-			return dispatch_id;
+			}
 
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
+			broken = true;
 
 		} finally {
-			// make sure to close database connection and result-set etc. before exit
+			// make sure to close result-set and give connection back to pool before exit
 			try {
-				if (ps != null) { ps.close(); };
 				if (rs != null) { rs.close(); };
-				if (cn != null) { cn.close(); };
 			} catch (Exception e) {
 				e.printStackTrace();
 			};
+
+			pool.release(cn, broken);
 		};
 
 		return null;
 	};
+
+	/* A row of ue_info, as provisioned */
+	public static class Subscriber {
+		final long key;
+		final long imsi;
+		final long msisdn;
+		final String nt;
+		final long tai;
+
+		public Subscriber(long key, long imsi, long msisdn, String nt, long tai) {
+			this.key = key;
+			this.imsi = imsi;
+			this.msisdn = msisdn;
+			this.nt = nt;
+			this.tai = tai;
+		};
+	}
+
+	/* UE looked up in ue_info (see validateUEs), also the cache key of its row */
+	public static class UeInfoKey {
+		final long imsi;
+		final long tai;
+		final String nt;
+
+		public UeInfoKey(long imsi, long tai, String nt) {
+			this.imsi = imsi;
+			this.tai = tai;
+			this.nt = nt;
+		};
+
+		@Override
+		public int hashCode() {
+			int h = (int) (imsi ^ (imsi >>> 32));
+			h = 31 * h + (int) (tai ^ (tai >>> 32));
+			return 31 * h + (nt == null ? 0 : nt.hashCode());
+		};
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof UeInfoKey)) { return false; };
+			UeInfoKey k = (UeInfoKey) o;
+			return imsi == k.imsi && tai == k.tai && (nt == null ? k.nt == null : nt.equals(k.nt));
+		};
+	}
 }
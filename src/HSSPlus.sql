@@ -15,6 +15,8 @@ CREATE TABLE `ue_info` (
   `msisdn` bigint(20) DEFAULT NULL,
   `nt` varchar(16) DEFAULT 'UMTS',
   `tai` bigint(20) DEFAULT NULL,
-  PRIMARY KEY (`key_id`)
+  PRIMARY KEY (`key`),
+  KEY `imsi_tai_nt` (`imsi`,`tai`,`nt`),
+  KEY `tai` (`tai`)
 ) ENGINE=InnoDB DEFAULT CHARSET=latin1;
 
@@ -0,0 +1,156 @@
+/* #### UE IP Pool ####
+ * This class hands out UE IP addresses of a CIDR block. Addresses are
+ * ints (see IPv4Address.getInt()) kept in an AtomicBitmap, so they are
+ * allocated / released without locks in constant time. The network and
+ * broadcast addresses and addresses reserved with reserve() (e.g. of
+ * network components inside the block) are never handed out. A block
+ * written with a host address, e.g. "192.168.127.7/16", hands out the
+ * addresses after it first, which is what PGW-C has always done with
+ * STARTING_UE_IP.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+public class IpPool {
+	// returned by allocate() when the pool is exhausted (0.0.0.0 is never a UE address)
+	public static final int NONE = 0;
+
+	private final String name;
+	private final int network;
+	private final int mask;
+	private final int start;
+	private final AtomicBitmap addresses;
+
+	// [Bit => address - network, Set => never handed out], so releases can't free them
+	private final AtomicBitmap reserved;
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+	private final AtomicLong duplicate_releases = new AtomicLong();
+
+	/* Pool of a CIDR block "a.b.c.d/prefix", prefix between 8 and 30 */
+	public IpPool(String cidr) {
+		int slash = cidr.indexOf('/');
+		int prefix = slash < 0 ? -1 : Integer.parseInt(cidr.substring(slash + 1).trim());
+
+		if(prefix < 8 || prefix > 30) {
+			throw new IllegalArgumentException("Bad UE IP pool: '" + cidr + "', expected a.b.c.d/prefix with prefix between 8 and 30");
+		};
+
+		this.name = cidr;
+		this.mask = -1 << (32 - prefix);
+		this.start = IPv4Address.of(cidr.substring(0, slash).trim()).getInt();
+		this.network = start & mask;
+		this.addresses = new AtomicBitmap(1 << (32 - prefix));
+		this.reserved = new AtomicBitmap(1 << (32 - prefix));
+
+		reserve(network);
+		reserve(network | ~mask);
+
+		// host address given, hand out the ones after it
+		if(start != network) {
+			reserve(start);
+			addresses.startFrom(start - network + 1);
+		};
+	};
+
+	/* Keeps an address of the block from being handed out, returns false if it isn't in the block or is in use */
+	public boolean reserve(int address) {
+		if(!contains(address) || !addresses.allocate(address - network)) { return false; };
+
+		reserved.allocate(address - network);
+		return true;
+	};
+
+	/* Keeps all addresses but those of part (0 => first) of parts equal slices of the block from being handed out,
+	 * so nodes of the MME cluster never hand out the same address. Call before any address is allocated.
+	 */
+	public void restrict(int part, int parts) {
+		long size = addresses.size();
+		int first = (int) (size * part / parts), end = (int) (size * (part + 1) / parts);
+
+		for (int index = 0; index < size; index++) {
+			if(index < first || index >= end) { reserve(network + index); };
+		};
+	};
+
+	/* Allocates a free address, or returns NONE if all addresses of the pool are in use */
+	public int allocate() {
+		int index = addresses.allocate();
+
+		if(index < 0) {
+			exhausted.incrementAndGet();
+			return NONE;
+		};
+
+		allocated.incrementAndGet();
+		return network + index;
+	};
+
+	/* Allocates the given address, e.g. one in use before a restart. Returns false if it isn't in the block or is in use. */
+	public boolean allocate(int address) {
+		if(!contains(address) || !addresses.allocate(address - network)) { return false; };
+
+		allocated.incrementAndGet();
+		return true;
+	};
+
+	/* Releases an address handed out by allocate(). Returns false (and changes nothing)
+	 * if the address isn't in the pool, is reserved or isn't in use, e.g. it has already been released.
+	 */
+	public boolean release(int address) {
+		if(!contains(address) || reserved.isAllocated(address - network) || !addresses.release(address - network)) {
+			duplicate_releases.incrementAndGet();
+			return false;
+		};
+
+		released.incrementAndGet();
+		return true;
+	};
+
+	public boolean contains(int address) {
+		return (address & mask) == network;
+	};
+
+	public boolean isAllocated(int address) {
+		return contains(address) && addresses.isAllocated(address - network);
+	};
+
+	/* Whether the blocks of both pools have an address in common */
+	public boolean overlaps(IpPool other) {
+		int common = mask & other.mask;
+		return (network & common) == (other.network & common);
+	};
+
+	/* Address allocation starts after (the network address, or the host address the block was written with) */
+	public int getStartingAddress() {
+		return start;
+	};
+
+	public String getName() {
+		return name;
+	};
+
+	public int getInUse() {
+		return addresses.getInUse() - reserved.getInUse();
+	};
+
+	/* Number of addresses which can be handed out */
+	public int getCapacity() {
+		return addresses.size() - reserved.getInUse();
+	};
+
+	/* Fraction (0.0 - 1.0) of the addresses in use */
+	public double getUtilisation() {
+		return getInUse() / (double) getCapacity();
+	};
+
+	public String getStats() {
+		return "ip_pool " + name + ": in_use=" + getInUse() + "/" + getCapacity() + String.format(" (%.1f%%)", getUtilisation() * 100) + ", peak=" + (addresses.getPeak() - reserved.getInUse()) +
+			", allocated=" + allocated.get() + ", released=" + released.get() + ", exhausted=" + exhausted.get() + ", duplicate_releases=" + duplicate_releases.get();
+	};
+}
@@ -0,0 +1,131 @@
+/* #### Latency Histogram ####
+ * This class records latencies (in nanoseconds) into log-linear
+ * buckets: every power of two is split into 32 linear sub-buckets,
+ * so a recorded value is off by at most ~3%. Recording is lock-free
+ * and allocation free, so it can stay on in production.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// values below SUB_BUCKETS get a bucket of their own, above that 32 buckets per power of two up to 2^63
+	static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong interval_max = new AtomicLong();
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+	};
+
+	public void record(long nanos) {
+		if (nanos < 0) { nanos = 0; };
+
+		counts.incrementAndGet(indexOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos));
+		while (nanos > (current = interval_max.get()) && !interval_max.compareAndSet(current, nanos));
+	};
+
+	/* Max recorded since previous call */
+	public long takeIntervalMax() {
+		return interval_max.getAndSet(0);
+	};
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) { return (int) value; };
+
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exp - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+	};
+
+	/* Highest value falling into the bucket */
+	static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) { return index; };
+
+		int exp = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exp - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS)) + width - 1;
+	};
+
+	/* Copies current counts, the copy is not affected by later recording */
+	public Snapshot snapshot() {
+		long copy[] = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) { copy[i] = counts.get(i); };
+		return new Snapshot(copy, count.get(), sum.get(), max.get());
+	};
+
+	/* Immutable state of a histogram at a point in time, or of an interval between two such points */
+	public static class Snapshot {
+		private final long counts[];
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long counts[], long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		};
+
+		/* Values recorded after 'earlier' was taken, max can't be subtracted so max of the interval is given */
+		public Snapshot since(Snapshot earlier, long interval_max) {
+			long diff[] = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) { diff[i] = counts[i] - earlier.counts[i]; };
+			return new Snapshot(diff, count - earlier.count, sum - earlier.sum, interval_max);
+		};
+
+		public long getCount() {
+			return count;
+		};
+
+		public long getMax() {
+			return max;
+		};
+
+		public long getMean() {
+			return count == 0 ? 0 : sum / count;
+		};
+
+		/* Value below which given percent (0 - 100) of recorded values fall */
+		public long getPercentile(double percent) {
+			if (count == 0) { return 0; };
+
+			// rounded, Math.ceil would take e.g. 0.999 * 1000 = 999.0000000000001 for the 1000th value
+			long rank = Math.round(percent / 100.0 * count);
+			if (rank < 1) { rank = 1; };
+
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank) { return Math.min(upperBoundOf(i), max); };
+			};
+
+			return max;
+		};
+
+		@Override
+		public String toString() {
+			return "count=" + count + ", mean_us=" + micros(getMean()) + ", p50_us=" + micros(getPercentile(50)) + ", p99_us=" + micros(getPercentile(99)) +
+				", p99.9_us=" + micros(getPercentile(99.9)) + ", max_us=" + micros(max);
+		};
+
+		private static String micros(long nanos) {
+			return String.format("%.1f", nanos / 1000.0);
+		};
+	}
+}
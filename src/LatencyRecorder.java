@@ -0,0 +1,71 @@
+/* #### Latency Recorder ####
+ * This class keeps one latency histogram per procedure step.
+ * Cumulative figures can be read at any time and interval
+ * figures (since the previous interval) are taken periodically.
+ */
+package net.floodlightcontroller.splus;
+
+public class LatencyRecorder {
+	private final String names[];
+	private final LatencyHistogram histograms[];
+	private final LatencyHistogram.Snapshot last_interval[];
+
+	/* names[step] is the name of the step, steps without a name are not recorded */
+	public LatencyRecorder(String names[]) {
+		this.names = names;
+		histograms = new LatencyHistogram[names.length];
+		last_interval = new LatencyHistogram.Snapshot[names.length];
+
+		for (int step = 0; step < names.length; step++) {
+			if (names[step] == null) { continue; };
+			histograms[step] = new LatencyHistogram();
+			last_interval[step] = histograms[step].snapshot();
+		};
+	};
+
+	public void record(int step, long nanos) {
+		if (step <= 0 || step >= histograms.length || histograms[step] == null) { return; };
+		histograms[step].record(nanos);
+	};
+
+	/* Everything recorded for the step so far, null if step is unknown */
+	public LatencyHistogram.Snapshot getSnapshot(int step) {
+		if (step <= 0 || step >= histograms.length || histograms[step] == null) { return null; };
+		return histograms[step].snapshot();
+	};
+
+	/* One line per step which has seen any sample */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+
+		for (int step = 1; step < histograms.length; step++) {
+			if (histograms[step] == null) { continue; };
+
+			LatencyHistogram.Snapshot snapshot = histograms[step].snapshot();
+			if (snapshot.getCount() == 0) { continue; };
+
+			sb.append(names[step]).append(": ").append(snapshot).append('\n');
+		};
+
+		return sb.toString();
+	};
+
+	/* Same as getReport() for samples recorded since previous call, one caller (the periodic reporter) is expected */
+	public synchronized String getIntervalReport() {
+		StringBuilder sb = new StringBuilder();
+
+		for (int step = 1; step < histograms.length; step++) {
+			if (histograms[step] == null) { continue; };
+
+			long interval_max = histograms[step].takeIntervalMax();
+			LatencyHistogram.Snapshot now = histograms[step].snapshot();
+			LatencyHistogram.Snapshot interval = now.since(last_interval[step], interval_max);
+			last_interval[step] = now;
+
+			if (interval.getCount() == 0) { continue; };
+			sb.append(names[step]).append(": ").append(interval).append('\n');
+		};
+
+		return sb.toString();
+	};
+}
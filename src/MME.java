@@ -4,16 +4,18 @@
  */
 package net.floodlightcontroller.splus;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -27,6 +29,8 @@ import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -34,9 +38,13 @@ import net.floodlightcontroller.packet.PacketParsingException;
 import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 
+import org.projectfloodlight.openflow.protocol.OFFactory;
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
+import org.projectfloodlight.openflow.protocol.OFFlowRemovedReason;
 import org.projectfloodlight.openflow.protocol.OFMessage;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
+import org.projectfloodlight.openflow.protocol.OFPacketInReason;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
 import org.projectfloodlight.openflow.protocol.OFPortDesc;
 import org.projectfloodlight.openflow.protocol.OFType;
@@ -53,64 +61,108 @@ import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFBufferId;
 import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.OFVlanVidMatch;
+import org.projectfloodlight.openflow.types.TableId;
 import org.projectfloodlight.openflow.types.TransportPort;
+import org.projectfloodlight.openflow.types.U64;
 import org.projectfloodlight.openflow.types.VlanVid;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchListener {
+public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchListener, ILinkDiscoveryListener {
 	protected static Logger log = LoggerFactory.getLogger(MME.class);
 
+	// key specs of the sample NAS key, built once (see CryptoEngine)
+	private static final SecretKeySpec SAMPLE_AES_KEY = CryptoEngine.aesKey(Constants.SAMPLE_ENC_KEY);
+	private static final SecretKeySpec SAMPLE_MAC_KEY = CryptoEngine.macKey(Constants.SAMPLE_ENC_KEY);
+
+	// bits of a flow cookie holding Constants.BEARER_COOKIE_TAG
+	private static final long BEARER_COOKIE_MASK = 0xffffL << 48;
+
 	protected SingletonTask discoveryTask;
+	protected SingletonTask workerStatsTask;
+	protected SingletonTask pendingSweepTask;
+	protected SingletonTask latencyReportTask;
+	protected SingletonTask sgwStatsTask;
+	protected SingletonTask pagingTask;
+	protected SingletonTask journalSyncTask;
+	protected SingletonTask snapshotTask;
+	protected SingletonTask clusterTask;
+	protected SingletonTask standbyListenTask;
 	protected IOFSwitchService switchService;
 	protected IThreadPoolService threadPoolService;
+	protected ILinkDiscoveryService linkDiscoveryService;
 
-	private HashMap<String, Boolean> ue_state;
-	private HashMap<String, String> uekey_ueip_map;
-	private HashMap<String, String> uekey_guti_map;
-	private HashMap<String, String> imsi_xres_mapping;
-	private HashMap<String, String> uekey_sgw_te_id_map;
-	private HashMap<String, String[]> uekey_nas_keys_map;
-	private HashMap<DatapathId, IOFSwitch> switch_mapping;
-	private HashMap<String, TransportPort> uekey_udp_src_port_map;
+	private UeContextStore ue_contexts;
+	private ConcurrentHashMap<DatapathId, IOFSwitch> switch_mapping;
+	private ProcedureWorkerPool workers;
+	private PendingTransactions pending;
+	private LatencyRecorder latency;
+	private PagingManager paging;
+	private SessionJournal journal;
+	private MmeCluster cluster;
+	private SessionReplicator replicator;
 
-	private Hashtable<String, String> sgw_teid_uekey_map;
-	private IFloodlightProviderService floodlightProvider;
+	// true while this MME is a hot standby, mirroring sessions of the active one (see SessionReplicator)
+	private volatile boolean standby;
+
+	/* sessions handed to another MME node whose tunnel endpoint IDs and UE IP this node handed out and
+	 * holds till that node releases them (see releaseLentTunnel), [Key => SGW-TE-ID]
+	 */
+	private ConcurrentHashMap<Integer, UeContext> lent;
+
+	/* UEs which have authenticated but not sent SEND_APN yet, [Key => UDP flow of the UE (see attachFlow), Value => IMSI].
+	 * Legacy SEND_APN carries no IMSI, the flow it comes over tells which context of authentication to bind to the UE key.
+	 * Entries of attaches which are abandoned or fail authentication expire after PENDING_TRANSACTION_TIMEOUT.
+	 */
+	private ConcurrentHashMap<Long, AttachFlow> attach_flows;
+
+	// bearers released by MME after their rules idled out (see idleTimeout)
+	private final AtomicLong idle_releases = new AtomicLong();
+
+	// sessions handed to other MME nodes on membership changes (see rebalance) and at SEND_APN (see handOverAttach)
+	private final AtomicLong handoffs = new AtomicLong();
 
-	int ue_port;
+	// control messages of a code MME doesn't take from a UE, dropped
+	private final AtomicLong unexpected_messages = new AtomicLong();
+
+	private IFloodlightProviderService floodlightProvider;
 
 	SGWC sgw;
 	HSSPlus hss;
-	IOFSwitch switch_id;
 	Set<DatapathId> switches;
-	DatapathId eNodeB; 
-	HashMap<DatapathId, Long> switchStats;
+	SgwStatsCollector sgw_stats;
 
 	public MME() {
 		sgw = new SGWC();
 		hss = new HSSPlus();
-		ue_port = Constants.UE_PORT;
-		
-		imsi_xres_mapping = new HashMap<String, String>();
-		uekey_sgw_te_id_map = new HashMap<String, String>();
-		sgw_teid_uekey_map = new Hashtable<String, String>();
-		uekey_ueip_map = new HashMap<String, String>();
-		switch_mapping = new HashMap<DatapathId, IOFSwitch>();
-		
-		/* [Key => UE-Key, Value => State [TRUE => Active, FALSE => Idle] ] */
-		ue_state = new HashMap<String, Boolean>();	
-		
-		/* [Key => UE-Key, Value => GUTI] */
-		uekey_guti_map = new HashMap<String, String>();
-		
-		/* [Key => IMSI, Value => [ [0] => K_ASME, [1] => NAS Integrity Key, [3] => NAS Encryption Key] ] */
-		uekey_nas_keys_map = new HashMap<String, String[]>();
-		
-		/* [Key => UE-Key, Value => UE UDP Port] */
-		uekey_udp_src_port_map = new HashMap<String, TransportPort>();
 
-		switchStats =  new HashMap<DatapathId, Long>();
-		eNodeB = DatapathId.of(Constants.ENODEB_SW_ID);
+		switch_mapping = new ConcurrentHashMap<DatapathId, IOFSwitch>();
+		lent = new ConcurrentHashMap<Integer, UeContext>();
+		attach_flows = new ConcurrentHashMap<Long, AttachFlow>();
+
+		/* UE contexts, [Key => UE-Key, indexed by IMSI, SGW-TE-ID and UE-IP] */
+		ue_contexts = new UeContextStore();
+
+		/* procedures waiting for state of an earlier step, [Key => UE-Key] */
+		pending = new PendingTransactions();
+
+		/* latency histogram per procedure step, [Index => step, see getStepName] */
+		String step_names[] = new String[15];
+		for(int step = 1; step < step_names.length; step++) { step_names[step] = getStepName(step); };
+		latency = new LatencyRecorder(step_names);
+
+		/* pages of idle UEs with downlink data, [Key => UE-Key], sent in batches by pagingTask */
+		paging = new PagingManager(new PagingManager.Sender() {
+			@Override
+			public void sendPages(List<PagingManager.Page> batch) {
+				sendPagingRequests(batch);
+			};
+		});
+
+		/* load of SGW-Ds for selectSGWD(), polled from connected switches */
+		sgw_stats = new SgwStatsCollector(switch_mapping);
 	};
 
 	@Override
@@ -119,13 +171,150 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 		floodlightProvider = context.getServiceImpl(IFloodlightProviderService.class);
 		threadPoolService = context.getServiceImpl(IThreadPoolService.class);
 		switchService = context.getServiceImpl(IOFSwitchService.class);
+
+		// optional, without it the configured links are used (see Constants.TOPOLOGY_LINKS)
+		linkDiscoveryService = context.getServiceImpl(ILinkDiscoveryService.class);
 	};
 
 	@Override
 	public void startUp(FloodlightModuleContext context) {
 		System.out.println("--- Starting up MME Controller Service ---");
+
+		/* UEs are partitioned across MME nodes, tunnel endpoint IDs and UE IPs are split before any is handed out */
+		if(!Constants.CLUSTER_NODES.isEmpty()) {
+			startCluster();
+		};
+
+		/* a standby mirrors sessions of the active MME, instead of restoring its own, till it takes over */
+		if(!Constants.REPLICATION_ROLE.isEmpty()) {
+			startReplication();
+		};
+
+		/* subscribers of a fleet are in HSS before any of them attaches */
+		if(!Constants.HSS_PROVISION_FILE.isEmpty()) {
+			int count = hss.provisionUEs(Constants.HSS_PROVISION_FILE);
+			if(count >= 0) {
+				System.out.println("--- HSS provisioned " + count + " subscribers from '" + Constants.HSS_PROVISION_FILE + "' ---");
+			};
+		};
+
+		/* sessions of the previous run are back before switches connect and UEs send anything */
+		if(!Constants.SESSION_JOURNAL_DIR.isEmpty() && !standby) {
+			restoreSessions();
+		};
+
 		floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
 		switchService.addOFSwitchListener(this);
+
+		/* links between eNodeB switch, SGW-Ds and PGW-D are kept up to date as they are discovered */
+		if(linkDiscoveryService != null) {
+			linkDiscoveryService.addListener(this);
+		};
+
+		/* bearer rules idle out on switches, which report their removal */
+		if(Constants.BEARER_IDLE_TIMEOUT > 0) {
+			floodlightProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
+		};
+
+		/* run procedures on worker threads instead of OpenFlow I/O thread */
+		if(Constants.PROCEDURE_WORKERS > 0) {
+			workers = new ProcedureWorkerPool("mme-worker", Constants.PROCEDURE_WORKERS, Constants.PROCEDURE_QUEUE_CAPACITY);
+			workers.start();
+			System.out.println("--- MME running procedures on " + workers.size() + " worker threads ---");
+		};
+
+		/* metrics of workers, pools and caches */
+		if(Constants.WORKER_STATS_INTERVAL > 0) {
+			workerStatsTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+				@Override
+				public void run() {
+					if(workers != null) { System.out.print(workers.getStats()); };
+					System.out.println(pending.getStats());
+					System.out.println(FlowTransaction.getStats());
+					System.out.println(FlowTemplates.getStats());
+					System.out.println(Topology.getStats());
+					System.out.println(sgw.getTunnelStats());
+					System.out.println("idle_releases: " + idle_releases.get() + ", unexpected_messages: " + unexpected_messages.get());
+					System.out.println(paging.getStats());
+					System.out.println(sgw.getDownlinkBufferStats());
+					if(journal != null) { System.out.println(journal.getStats()); };
+					if(cluster != null) { System.out.println(getClusterStats()); };
+					if(replicator != null) { System.out.println(getReplicationStats()); };
+					System.out.print(sgw.getIPPoolStats());
+					System.out.print(sgw_stats.getStats());
+					System.out.println(hss.getPoolStats());
+					System.out.println(hss.getCacheStats());
+					workerStatsTask.reschedule(Constants.WORKER_STATS_INTERVAL, TimeUnit.SECONDS);
+				};
+			});
+			workerStatsTask.reschedule(Constants.WORKER_STATS_INTERVAL, TimeUnit.SECONDS);
+		};
+
+		/* clean up procedures which waited too long for state of an earlier step */
+		pendingSweepTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pending.expire();
+					expireAttachFlows();
+					sgw.expireDownlink();
+				} finally {
+					pendingSweepTask.reschedule(Constants.PENDING_TRANSACTION_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+				};
+			};
+		});
+		pendingSweepTask.reschedule(Constants.PENDING_TRANSACTION_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+
+		/* print latency percentiles of the last interval */
+		if(Constants.LATENCY_REPORT_INTERVAL > 0) {
+			latencyReportTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+				@Override
+				public void run() {
+					try {
+						String report = latency.getIntervalReport();
+						if(!report.isEmpty()) {
+							System.out.print("--- Procedure latency over last " + Constants.LATENCY_REPORT_INTERVAL + " seconds ---\n" + report);
+						};
+					} finally {
+						latencyReportTask.reschedule(Constants.LATENCY_REPORT_INTERVAL, TimeUnit.SECONDS);
+					};
+				};
+			});
+			latencyReportTask.reschedule(Constants.LATENCY_REPORT_INTERVAL, TimeUnit.SECONDS);
+		};
+
+		/* force session journal to disk, and compact it into a snapshot now and then */
+		if(journal != null) {
+			scheduleJournalTasks();
+		};
+
+		/* send pages which are due, retransmit unanswered ones */
+		pagingTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+			@Override
+			public void run() {
+				try {
+					paging.tick();
+				} finally {
+					pagingTask.reschedule(Constants.PAGING_TICK_INTERVAL, TimeUnit.MILLISECONDS);
+				};
+			};
+		});
+		pagingTask.reschedule(Constants.PAGING_TICK_INTERVAL, TimeUnit.MILLISECONDS);
+
+		/* poll port and flow stats of SGW-Ds, replies arrive asynchronously */
+		if(Constants.SGW_STATS_INTERVAL > 0) {
+			sgwStatsTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sgw_stats.poll();
+					} finally {
+						sgwStatsTask.reschedule(Constants.SGW_STATS_INTERVAL, TimeUnit.MILLISECONDS);
+					};
+				};
+			});
+			sgwStatsTask.reschedule(Constants.SGW_STATS_INTERVAL, TimeUnit.MILLISECONDS);
+		};
 	};
 
 	@Override
@@ -149,6 +338,7 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 	public Collection<Class<? extends IFloodlightService>> getModuleDependencies() {
 		Collection<Class<? extends IFloodlightService>> deps = new ArrayList<Class<? extends IFloodlightService>>();
 		deps.add(IFloodlightProviderService.class);
+		deps.add(IThreadPoolService.class);
 		return deps;
 	};
 
@@ -157,15 +347,23 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 	};
 
 	public Command receive(IOFSwitch switch_id, OFMessage message, FloodlightContext context) {
+		// active MME answers UEs and handles bearers till the standby takes over
+		if(standby) {
+			return Command.CONTINUE;
+		};
+
 		switch (message.getType()) {
  			case PACKET_IN:
 				log.info("--- MME received PACKET_IN request from switch {} ---", switch_id);
- 				if(DatapathId.of(Constants.ENODEB_SW_ID).equals(switch_id.getId())) {
- 					return this.processPacketInMessage(switch_id, (OFPacketIn) message, context);
- 				} else if(DatapathId.of(Constants.SGW_DISPATCH_ID).equals(switch_id.getId())) {
- 					return this.processPacketInMessageFromSGW(switch_id, (OFPacketIn) message, context);
+ 				EnodebRegistry.Enodeb enodeb = EnodebRegistry.get(switch_id.getId().getLong());
+ 				if(enodeb != null) {
+ 					return this.dispatchPacketInMessage(switch_id, enodeb, (OFPacketIn) message, context, false);
+ 				} else if(Topology.isSgw(switch_id.getId().getLong())) {
+ 					return this.processPacketInMessageFromSGW(switch_id, (OFPacketIn) message, context, false);
  				};
  				return Command.CONTINUE;
+ 			case FLOW_REMOVED:
+ 				return this.dispatchFlowRemoved((OFFlowRemoved) message);
  			case ERROR:
  				log.info("received an error {} from switch {}", message, switch_id);
  				return Command.CONTINUE;
@@ -175,10 +373,10 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 		}
 	};
 
-	private Command processPacketInMessageFromSGW(IOFSwitch switch_id, OFPacketIn packet, FloodlightContext context) {
-		String payload_segments[];
+	/* Processes a packet from SGW-D switch, forwarded is true if another MME node has handed it to this one */
+	private Command processPacketInMessageFromSGW(IOFSwitch switch_id, OFPacketIn packet, FloodlightContext context, boolean forwarded) {
 		OFPort inPort = (packet.getVersion().compareTo(OFVersion.OF_12) < 0 ? packet.getInPort() : packet.getMatch().get(MatchField.IN_PORT));
-		
+
 		/* Read packet header attributes into Match */
 		Match match = createMatchFromPacket(switch_id, inPort, context);
 		VlanVid vlan = match.get(MatchField.VLAN_VID) == null ? VlanVid.ZERO : match.get(MatchField.VLAN_VID).getVlanVid();
@@ -194,42 +392,261 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 				if(Data.class.isInstance(udpPkt.getPayload())) {
 					dataPkt = (Data)udpPkt.getPayload();
 					byte[] data = dataPkt.getData();
-					String payload = "";
+					ControlMessage request = new ControlMessage();
 
-					try {
-						payload = new String(data, "ISO-8859-1");
-					} catch (UnsupportedEncodingException e) {
-						e.printStackTrace();
-					};
+					if(ControlCodec.decode(data, request)) {
+						/* [PDN_SERVICE_REQUEST code, UE Key] */
+						if(request.code == ControlCodec.PDN_SERVICE_REQUEST){
+							int ue_key = request.getInt(ControlCodec.IE_UE_KEY);
 
-					if(payload.contains(Constants.SEPARATOR)){
-						payload_segments = payload.split(Constants.SEPARATOR);
+							// UE belongs to another MME node, which pages it
+							if(cluster != null && !forwarded && !cluster.isLocal(ue_key)) {
+								return forwardPacketIn(switch_id, inPort, packet, cluster.owner(ue_key));
+							};
 
-						/* [payload_segments[0] => PDN_SERVICE_REQUEST code, payload_segments[1] => UE Key] */
-						if(payload_segments[0].equals(Constants.PDN_SERVICE_REQUEST)){
-							downlinkDataNotification(payload_segments[1], vlan);
+							downlinkDataNotification(ue_key, vlan);
 						} else {
-							System.out.println("ERROR: Unknown message code received from PDN, received: '" + payload + "' expected: '" + Constants.SEPARATOR + "'");
-							System.exit(1);
+							// stray packet on the data path, must not take the controller down
+							unexpected_messages.incrementAndGet();
+							System.out.println("ERROR: Unknown message code received from PDN, received: '" + request + "' expected: '" + Constants.PDN_SERVICE_REQUEST + "' - dropping");
 						};
 
-					} else {
-						System.out.println("ERROR: Unknown packet received from PDN, received: '" + payload + "'");
-						System.exit(1);
+						return Command.CONTINUE;
 					};
 				};
 			};
+
+			// not a control message, downlink data of a UE whose bearer is released
+			bufferDownlinkPacket(switch_id, inPort, vlan, packet, forwarded);
 		}
 		return Command.CONTINUE;
 	};
 
+	/* Holds downlink packet of an idle UE till INITIAL_CONTEXT_SETUP_RESPONSE sets up its bearer again */
+	private void bufferDownlinkPacket(IOFSwitch switch_id, OFPort in_port, VlanVid vlan, OFPacketIn packet, boolean forwarded) {
+		int sgw_te_id = vlan.getVlan();
+		UeContext ue = ue_contexts.getBySgwTeId(sgw_te_id);
+
+		if(ue == null) {
+			// UE may belong to another MME node
+			if(cluster != null && Constants.CLUSTER_FORWARD_PACKET_INS && forwardDownlinkPacket(switch_id, in_port, sgw_te_id, packet, forwarded)) {
+				return;
+			};
+
+			if(Constants.DEBUG) {
+				System.out.println("Dropping downlink packet with unknown SGW Tunnel Endpoint ID: '" + sgw_te_id + "' from switch: '" + switch_id.getId() + "'");
+			};
+			return;
+		};
+
+		// bearer is up and nothing is queued ahead of this packet, it came in before the rule did
+		if(ue.active && !sgw.isBufferingDownlink(sgw_te_id)) {
+			return;
+		};
+
+		sgw.bufferDownlink(sgw_te_id, in_port.getPortNumber(), packet.getData());
+	};
+
 	public String byteArrayToHex(byte[] a) {
 		StringBuilder sb = new StringBuilder(a.length * 2);
 		for(byte b: a) { sb.append(String.format("%02x", b & 0xff)); };
 		return sb.toString();
 	};
 
-	private Command processPacketInMessage(IOFSwitch switch_id, OFPacketIn packet, FloodlightContext context) {
+	/* Classifies the packet and queues its procedure on the worker owning the UE (if workers are enabled),
+	 * so that OpenFlow I/O thread never waits for HSS, crypto or switch writes. Packets of UEs owned by
+	 * another MME node go to that node, unless forwarded is true, i.e. another node has sent it here.
+	 */
+	private Command dispatchPacketInMessage(final IOFSwitch switch_id, final EnodebRegistry.Enodeb enodeb, final OFPacketIn packet, final FloodlightContext context, boolean forwarded) {
+		if(workers == null && cluster == null) {
+			return processPacketInMessage(switch_id, enodeb, packet, context, null);
+		};
+
+		final ControlMessage request = classifyPacket(context);
+
+		// not a control message, nothing worth a worker
+		if(request == null) {
+			return processPacketInMessage(switch_id, enodeb, packet, context, null);
+		};
+
+		// same UE key (or IMSI before UE key is known) => same worker => in order processing
+		long key = request.has(ControlCodec.IE_UE_KEY) ? request.getInt(ControlCodec.IE_UE_KEY) : request.getLong(ControlCodec.IE_IMSI);
+
+		// same key => same MME node, which holds state of the UE
+		if(cluster != null && !forwarded) {
+			long owner_key = key;
+			long flow = attachFlow(context);
+
+			// SEND_APN goes where the UE has authenticated, that node hands the context on to the owner of the UE key
+			if(request.code == ControlCodec.AUTHENTICATION_STEP_THREE) {
+				attach_flows.put(flow, new AttachFlow(request.getLong(ControlCodec.IE_IMSI)));
+			} else if(request.code == ControlCodec.SEND_APN) {
+				AttachFlow authenticated = attach_flows.get(flow);
+				if(request.has(ControlCodec.IE_IMSI)) {
+					owner_key = request.getLong(ControlCodec.IE_IMSI);
+				} else if(authenticated != null) {
+					owner_key = authenticated.imsi;
+				};
+			};
+
+			if(!cluster.isLocal(owner_key)) {
+				if(request.code == ControlCodec.SEND_APN) { attach_flows.remove(flow); };
+
+				OFPort in_port = (packet.getVersion().compareTo(OFVersion.OF_12) < 0 ? packet.getInPort() : packet.getMatch().get(MatchField.IN_PORT));
+				return forwardPacketIn(switch_id, in_port, packet, cluster.owner(owner_key));
+			};
+		};
+
+		if(workers == null) {
+			return processPacketInMessage(switch_id, enodeb, packet, context, request);
+		};
+
+		// subscribers attaching together are looked up in HSS with one query, the worker waits for its batch
+		if(request.code == ControlCodec.AUTHENTICATION_STEP_ONE) {
+			hss.submitUE(request.getLong(ControlCodec.IE_IMSI), Constants.NW_TYPE, request.getLong(ControlCodec.IE_TAI));
+		};
+
+		workers.dispatch(key, new Runnable() {
+			@Override
+			public void run() {
+				processPacketInMessage(switch_id, enodeb, packet, context, request);
+			};
+		});
+
+		return Command.CONTINUE;
+	};
+
+	/* Hands FLOW_REMOVED of an idle timed bearer rule (see bearerCookie) to the worker of its UE */
+	private Command dispatchFlowRemoved(OFFlowRemoved removed) {
+		// rules deleted by MME itself are reported too, only time outs are of interest
+		if(removed.getReason() != OFFlowRemovedReason.IDLE_TIMEOUT && removed.getReason() != OFFlowRemovedReason.HARD_TIMEOUT) {
+			return Command.CONTINUE;
+		};
+
+		long cookie = removed.getCookie().getValue();
+		if((cookie & BEARER_COOKIE_MASK) != Constants.BEARER_COOKIE_TAG) {
+			return Command.CONTINUE;
+		};
+
+		int ue_key = (int) cookie;
+		int generation = (int) (cookie >>> 32) & 0xffff;
+
+		// UE belongs to another MME node, which releases the bearer
+		if(cluster != null && !cluster.isLocal(ue_key)) {
+			if(Constants.CLUSTER_FORWARD_PACKET_INS) { cluster.forwardIdleTimeout(cluster.owner(ue_key), ue_key, generation); };
+			return Command.CONTINUE;
+		};
+
+		dispatchIdleTimeout(ue_key, generation);
+		return Command.CONTINUE;
+	};
+
+	private void dispatchIdleTimeout(final int ue_key, final int generation) {
+		if(workers == null) {
+			idleTimeout(ue_key, generation);
+			return;
+		};
+
+		// same worker as procedures of the UE, so a release never races with them
+		workers.dispatch(ue_key, new Runnable() {
+			@Override
+			public void run() {
+				idleTimeout(ue_key, generation);
+			};
+		});
+	};
+
+	/* Releases the bearer of a UE whose rule has idled out, as UE_CONTEXT_RELEASE_REQUEST does but without a
+	 * round trip to the UE. Other rules of the bearer idle out around the same time, the first one to be
+	 * reported releases it, the rest (and late ones of an earlier bearer of the UE) are ignored.
+	 */
+	private void idleTimeout(int ue_key, int generation) {
+		UeContext ue = ue_contexts.get(ue_key);
+
+		if(ue == null || !ue.active || (ue.bearer_generation & 0xffff) != generation) {
+			return;
+		};
+
+		if(Constants.DEBUG) {
+			System.out.println("MME releasing idle bearer of UE with Key: '" + ue_key + "', IP: '" + ue.getIP() + "' and Tunnel Endpoint ID: '" + ue.ue_te_id + "'");
+		};
+
+		final IPv4Address ue_ip = ue.getIP();
+		FlowTransaction tx = new FlowTransaction("IDLE_TIMEOUT");
+		releaseBearer(ue, sgwOf(ue), ue_ip, ue.ue_te_id, ue.sgw_te_id, tx);
+		idle_releases.incrementAndGet();
+
+		tx.commit(new FlowTransaction.Callback() {
+			@Override
+			public void onComplete(FlowTransaction tx) { };
+
+			@Override
+			public void onFailure(FlowTransaction tx, String reason) {
+				System.out.println("ERROR: Flow rules of '" + tx.getName() + "' not deleted (" + reason + ") for UE at: '" + ue_ip + "'");
+			};
+		}, threadPoolService.getScheduledExecutor(), Constants.FLOW_TRANSACTION_TIMEOUT);
+	};
+
+	/* Key of the UDP flow of a UE, i.e. its RAN IP and source port, which stay the same through an attach */
+	private static long attachFlow(IPv4Address ip, TransportPort port) {
+		return ((ip.getInt() & 0xffffffffL) << 16) | port.getPort();
+	};
+
+	/* Same as above for the packet-in, 0 if it isn't UDP over IPv4 */
+	private static long attachFlow(FloodlightContext context) {
+		Ethernet eth = IFloodlightProviderService.bcStore.get(context, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+		if(eth.getEtherType() != EthType.IPv4) { return 0; };
+
+		IPv4 ipPkt = (IPv4)eth.getPayload();
+		if(!ipPkt.getProtocol().equals(IpProtocol.UDP)) { return 0; };
+
+		return attachFlow(ipPkt.getSourceAddress(), ((UDP)ipPkt.getPayload()).getSourcePort());
+	};
+
+	/* IMSI authenticated over a UDP flow (see attach_flows), and when the entry expires */
+	private static class AttachFlow {
+		final long imsi;
+		final long expires;
+
+		AttachFlow(long imsi) {
+			this.imsi = imsi;
+			this.expires = System.currentTimeMillis() + Constants.PENDING_TRANSACTION_TIMEOUT;
+		};
+	}
+
+	/* Drops flows of UEs which never sent SEND_APN, e.g. authentication has failed or UE has given up */
+	private void expireAttachFlows() {
+		long now = System.currentTimeMillis();
+
+		for (Iterator<AttachFlow> it = attach_flows.values().iterator(); it.hasNext();) {
+			if(it.next().expires < now) { it.remove(); };
+		};
+	};
+
+	/* Decodes control message carried in UDP payload of the packet, returns null if there is none */
+	private ControlMessage classifyPacket(FloodlightContext context) {
+		Ethernet eth = IFloodlightProviderService.bcStore.get(context, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+
+		if(eth.getEtherType() == EthType.IPv4) {
+			IPv4 ipPkt = (IPv4)eth.getPayload();
+
+			if(ipPkt.getProtocol().equals(IpProtocol.UDP)) {
+				UDP udpPkt = (UDP)ipPkt.getPayload();
+
+				if(Data.class.isInstance(udpPkt.getPayload())) {
+					ControlMessage request = new ControlMessage();
+					if(ControlCodec.decode(((Data)udpPkt.getPayload()).getData(), request)) {
+						return request;
+					};
+				};
+			};
+		};
+
+		return null;
+	};
+
+	/* Processes a packet from the eNodeB switch, request is the already decoded control message (or null) */
+	private Command processPacketInMessage(IOFSwitch switch_id, EnodebRegistry.Enodeb enodeb, OFPacketIn packet, FloodlightContext context, ControlMessage request) {
 		OFPort in_port = (packet.getVersion().compareTo(OFVersion.OF_12) < 0 ? packet.getInPort() : packet.getMatch().get(MatchField.IN_PORT));
 
 		/* Read packet header attributes into Match */
@@ -250,611 +667,642 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 			IPv4 ipPkt = (IPv4)eth.getPayload();
 			src_ip = ipPkt.getSourceAddress();
 			dst_ip = ipPkt.getDestinationAddress();
-			
+
 			if(ipPkt.getProtocol().equals(IpProtocol.UDP)) {
 				UDP udpPkt = (UDP)ipPkt.getPayload();
 				src_port = udpPkt.getSourcePort();
 				dst_port = udpPkt.getDestinationPort();
 				Data dataPkt = null;
-				
+
 				if(Data.class.isInstance(udpPkt.getPayload())) {
 					dataPkt = (Data)udpPkt.getPayload();
 					byte[] data = dataPkt.getData();
-					String payload = "";
-					
-					try {
-						payload = new String(data, "ISO-8859-1");
-					} catch (UnsupportedEncodingException e) {
-						e.printStackTrace();
+
+					if(request == null) {
+						request = new ControlMessage();
+
+						// silently ignore anything which is not a control message (mDNS etc.)
+						if(!ControlCodec.decode(data, request)) {
+							return Command.CONTINUE;
+						};
 					};
 
 					if(Constants.DEBUG) {
-						if(!payload.startsWith("{") && !payload.startsWith("_ipps") && !payload.startsWith("�") && !payload.contains("arpa")) {
-							System.out.println("RECEIVED: '" + payload + "'");
-						};
+						System.out.println("RECEIVED: " + request);
 					};
 
 					String NAS_MAC = null;
-					StringBuilder response;
+					ControlMessage response;
 
 					@SuppressWarnings("unused")
-					String payload_segments[], payload_ext_segments[], decArray[], NAS_Keys[];
-					String res, xres, autn, rand, K_ASME, imsi, ue_nw_capability, KSI_ASME, SQN, tai;
-	
-					if(payload.contains(Constants.SEPARATOR)) {
-						payload_segments = payload.split(Constants.SEPARATOR);
-						DatapathId sgw_dispatch_id, pgw_dispatch_id;
-						Date d1 = null, d2 = null;
-						int step = 0;
-						
-						switch(payload_segments[0]) {
-							case Constants.AUTHENTICATION_STEP_ONE:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => AUTHENTICATION_STEP_ONE ---");
-									step = 1;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								//validating user in HSS
-								imsi = payload_segments[1];
-								ue_nw_capability = payload_segments[2];
-								KSI_ASME = payload_segments[3];
-								SQN = payload_segments[4];	// UE sequence number
-								tai = payload_segments[5];	// Tracking area ID
-								Date d3 = new Date();
-								payload = hss.validateUE(imsi, Constants.SN_ID, Constants.NW_TYPE, Integer.parseInt(SQN), tai);
-							
-								if(Constants.DEBUG) {
-									Date d4 = new Date();
-									timeDiff(d3, d4, 11);
-								};
+					String payload, payload_ext_segments[];
+					String K_ASME;
+					UeContext ue;
+					EnodebRegistry.Enodeb ue_enodeb;
+					FlowTransaction tx;
+					long imsi, xres, autn, rand, SQN, tai;
+					int ue_key, ue_te_id, sgw_te_id, KSI_ASME;
+					IPv4Address ue_ip;
+
+					DatapathId sgw_dispatch_id, pgw_dispatch_id;
+					long started = System.nanoTime();
+					int step = 0;
+
+					switch(request.code) {
+						case ControlCodec.AUTHENTICATION_STEP_ONE:
+							step = 1;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => AUTHENTICATION_STEP_ONE ---");
+							};
 
-								if(payload != null && payload.contains(Constants.SEPARATOR)) {
-									payload_ext_segments = payload.split(Constants.SEPARATOR);
-									/* [payload_ext_segments[0] => xres, payload_ext_segments[1] => autn, payload_ext_segments[2] => rand, payload_ext_segments[3] => K_ASME] */
-									xres = payload_ext_segments[0];
-									autn = payload_ext_segments[1];
-									rand = payload_ext_segments[2];
-									K_ASME = payload_ext_segments[3];
-									
-									if(Constants.DEBUG) {
-										System.out.println("INITIAL IMSI: '" + imsi + "', MSISDN: '" + ue_nw_capability + "'");
-									};
-									
-									imsi_xres_mapping.put(imsi, xres);
-									uekey_nas_keys_map.put(imsi, new String[]{K_ASME, "", ""});
-									KSI_ASME = "1";
-									
-									response = new StringBuilder();
-									response.append(Constants.AUTHENTICATION_STEP_TWO).append(Constants.SEPARATOR).append(rand).append(Constants.SEPARATOR);
-									response.append(autn);
-									response.append(Constants.SEPARATOR).append(KSI_ASME);
-									sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip, IpProtocol.UDP, dst_port, src_port, response.toString());
-									response = null;
-				
-								} else {
-									System.out.println("ERROR:: STEP ONE AUTHENTICATION failure with IMSI '" + imsi + "' and MSISDN: '" + ue_nw_capability + "', payload: '"+payload + "'");
-									sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, Constants.AUTHENTICATION_FAILURE);
-									System.exit(1);
-								};
-								
-								if(Constants.DEBUG) { d2 = new Date(); };
-								break;
-							
-							case Constants.AUTHENTICATION_STEP_THREE:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => AUTHENTICATION_STEP_THREE ---");
-									step = 2;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								imsi = payload_segments[1];
-								res = payload_segments[2];	// RES from UE
-								
-								if(Constants.DEBUG) {
-									System.out.println("imsi="+imsi + " res="+res);
-								};
-								
-								if(imsi_xres_mapping.containsKey(imsi)) {
-
-									// UE Authentication (RES == XRES)
-									if(imsi_xres_mapping.get(imsi).equals(res)) { 
-										imsi_xres_mapping.remove(imsi);
-										
-										//UE is authenticated
-										KSI_ASME = "1";
-
-										// Replayed UE Network Capability decided by MME
-										int replayed_nw_capability = Utils.randInt(0, 10);
-
-										int NAS_integrity_algo_id = Constants.CIPHER_ALGO_MAP.get("HmacSHA1");
-										int NAS_cipher_algo_id = Constants.CIPHER_ALGO_MAP.get("AES");
-
-										if(uekey_nas_keys_map.containsKey(imsi)) {
-											K_ASME = uekey_nas_keys_map.get(imsi)[0];
-										} else {
-											System.out.println("ERROR in AUTHENTICATION_STEP_THREE: IMSI '" + imsi + "' not found");
-											System.exit(1);
-										};
-										
-										K_ASME = uekey_nas_keys_map.get(imsi)[0];
-
-										// [NAS_keys[0] => K_NAS_int, NAS_keys[1] => K_NAS_enc]
-										String NAS_keys[] = KDF_NAS(Integer.parseInt(K_ASME), NAS_integrity_algo_id, NAS_cipher_algo_id);
-
-										if(Constants.DEBUG) {
-											System.out.println("AUTHENTICATION_STEP_THREE: INT_KEY: '" + NAS_keys[0] + "', ENC_KEY: '" + NAS_keys[1] + "'");
-										};
-										
-										uekey_nas_keys_map.put(imsi, new String[]{K_ASME, NAS_keys[0], NAS_keys[1]});
-										response = new StringBuilder();
-										response.append(Constants.NAS_STEP_ONE).append(Constants.SEPARATOR).append(KSI_ASME).append(Constants.SEPARATOR).append(replayed_nw_capability).append(Constants.SEPARATOR).append(NAS_cipher_algo_id).append(Constants.SEPARATOR).append(NAS_integrity_algo_id);
-
-										// Generate Message Authentication Code using the hash function
-										NAS_MAC = Utils.hmacDigest(response.toString(), NAS_keys[0] + "");	
-			
-										if(Constants.DEBUG) {
-											System.out.println("AUTHENTICATION_STEP_THREE: Generated NAS MAC: '" + NAS_MAC + "'");
-										};
-										
-										response.append(Constants.SEPARATOR).append(NAS_MAC);
-										sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
-										response = null;
-								
-									} else {
-										System.out.println(imsi_xres_mapping.get(imsi).equals(res) +" ### "+ imsi_xres_mapping.get(imsi) +" ue_res= "+ res+" ### imsi "+ imsi);
-										sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, Constants.AUTHENTICATION_FAILURE);
-										System.exit(1);
-									};
-	
-								} else {
-									System.out.println("ERROR: AUTHENTICATION_STEP_THREE failure");
-									sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, Constants.AUTHENTICATION_FAILURE);
-									System.exit(1);
-								};
-					
-								if(Constants.DEBUG) { d2 = new Date(); };
-								break;
-								
-							case Constants.SEND_APN:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => SEND_APN ---");
-									step = 3;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								if(Constants.DO_ENCRYPTION) {
-									decArray = getDecryptedArray(payload_segments);
-								};
+							//validating user in HSS
+							imsi = request.getLong(ControlCodec.IE_IMSI);
+							SQN = request.getLong(ControlCodec.IE_SQN);	// UE sequence number
+							tai = request.getLong(ControlCodec.IE_TAI);	// Tracking area ID
+							long hss_started = System.nanoTime();
+							AuthVector vector = hss.getAuthVector(imsi, Constants.NW_TYPE, tai);
+							latency.record(12, System.nanoTime() - hss_started);
+
+							if(vector != null) {
+								// finish the ready vector with UE sequence number
+								xres = vector.getXres(SQN);
+								autn = vector.getAutn(SQN);
+								rand = vector.getRand();
+								K_ASME = String.valueOf(vector.getKasme(SQN, Constants.SN_ID));
 
-								/* [payload_segments[1] => UE APN, payload_segments[2] => UE Key] */
 								if(Constants.DEBUG) {
-									System.out.println("Received APN: '" + payload_segments[1] + "'");
+									System.out.println("INITIAL IMSI: '" + imsi + "', MSISDN: '" + request.getLong(ControlCodec.IE_NW_CAPABILITY) + "'");
 								};
-								
-								/* storing source port of UDP packet to identify the specific UE, 
-								 * when MME wants to initiate connection with this UE.
-								 */
-								uekey_udp_src_port_map.put(payload_segments[2], src_port);
-
-								pgw_dispatch_id = hss.getPGW(payload_segments[1]);
-								sgw_dispatch_id = DatapathId.of(Constants.SGW_DISPATCH_ID);
 
-								String sgw_ip = sgw.contactPGW(switch_mapping.get(sgw_dispatch_id),switch_mapping.get(pgw_dispatch_id), sgw_dispatch_id, pgw_dispatch_id, payload_segments[1]);
+								ue = ue_contexts.createForImsi(imsi);
+								ue.xres = xres;
+								ue.awaiting_res = true;
+								ue.k_asme = K_ASME;
+								KSI_ASME = 1;
 
-								response = new StringBuilder();
-								response.append(Constants.SEND_IP_SGW_TE_ID).append(Constants.SEPARATOR).append(sgw_ip);
-
-								if(Constants.DO_ENCRYPTION) {
-									Utils.aesEncrypt(response.toString(), Constants.SAMPLE_ENC_KEY);
-									Utils.hmacDigest(response.toString(), Constants.SAMPLE_ENC_KEY);
-								};
+								response = new ControlMessage(ControlCodec.AUTHENTICATION_STEP_TWO, request.binary);
+								response.set(ControlCodec.IE_RAND, rand).set(ControlCodec.IE_AUTN, autn).set(ControlCodec.IE_KSI_ASME, KSI_ASME);
+								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip, IpProtocol.UDP, dst_port, src_port, ControlCodec.encode(response));
+								response = null;
 
-								payload_ext_segments = sgw_ip.split(Constants.SEPARATOR);
-								int sgw_te_id = Integer.parseInt(payload_ext_segments[1]);
+							} else {
+								System.out.println("ERROR:: STEP ONE AUTHENTICATION failure with IMSI '" + imsi + "' and MSISDN: '" + request.getLong(ControlCodec.IE_NW_CAPABILITY) + "'");
+								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, authenticationFailure(request));
+								System.exit(1);
+							};
 
-								// install up-link rule on default switch
-								if(Constants.DEBUG) {
-									System.out.println("eNodeB controller installing uplink rule on eNodeB switch Dispatch ID: '" + eNodeB.getLong() + "' In-Port: '" + ue_port + "' and Source IP: '" + payload_ext_segments[0] + 
-										"' Out-Port: '" + Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + sgw_dispatch_id.getLong()) + "' and Out Source IP: '" + Constants.RAN_IP + "' Out-Tunnel Endpoint ID: '" + sgw_te_id + "' of UE Key: '" + payload_segments[2] + "'");
-								};
+							break;
 
-								installFlowRuleWithIP(eNodeB, ue_port, Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + sgw_dispatch_id.getLong()), sgw_te_id, payload_ext_segments[0], Constants.RAN_IP, Constants.SGWD_IP_UPLINK, Constants.PDN_MAC);
-								uekey_ueip_map.put(payload_segments[2], payload_ext_segments[0]); 
+						case ControlCodec.AUTHENTICATION_STEP_THREE:
+							step = 2;
 
-								uekey_sgw_te_id_map.put(payload_segments[2], sgw_dispatch_id.toString() + Constants.SEPARATOR + payload_ext_segments[1]);
-								sgw_teid_uekey_map.put(payload_ext_segments[1], payload_segments[2]);
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => AUTHENTICATION_STEP_THREE ---");
+							};
 
-								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
-								response = null;
-								
-								if(Constants.DEBUG) { d2 = new Date(); };
-								break;
+							imsi = request.getLong(ControlCodec.IE_IMSI);
+							long res = request.getLong(ControlCodec.IE_RES);	// RES from UE
 
-							case Constants.SEND_UE_TE_ID:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => SEND_UE_TE_ID ---");
-									step = 4;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								if(Constants.DO_ENCRYPTION) {
-									decArray = getDecryptedArray(payload_segments);
-								};
+							if(Constants.DEBUG) {
+								System.out.println("imsi="+imsi + " res="+res);
+							};
 
-								/* [payload_segments[1] => ue_te_id, payload_segments[2] => UE Key] */
-								if(Constants.DEBUG) {
-									System.out.println("received teid="+payload_segments[1]);
-								};
-								
-								String str = uekey_sgw_te_id_map.get(payload_segments[2]);
-								payload_ext_segments = str.split(Constants.SEPARATOR);
+							ue = ue_contexts.getByImsi(imsi);
 
-								sgw.modifyBearerRequest(switch_mapping.get(DatapathId.of(payload_ext_segments[0])), DatapathId.of(payload_ext_segments[0]), Integer.parseInt(payload_ext_segments[1]), Integer.parseInt(payload_segments[1]), payload_segments[2]);
+							if(ue != null && ue.awaiting_res) {
 
-								String ue_ip = uekey_ueip_map.get(payload_segments[2]);
-								uekey_ueip_map.remove(payload_segments[2]);
+								// UE Authentication (RES == XRES)
+								if(ue.xres == res) {
+									ue.awaiting_res = false;
 
-								if(Constants.DEBUG) {
-									// install down-link rule on default switch
-									System.out.println("eNodeB controller installing downlink rule on eNodeB switch Dispatch ID: '" + eNodeB.getLong() + "' In-Port: '" + Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + DatapathId.of(payload_ext_segments[0]).getLong()) + 
-										"' In-Tunnel Endpoint ID: '" + Integer.parseInt(payload_segments[1]) + "' Out-Port: '" + ue_port + "' Out-Tunnel Endpoint ID: '" + Integer.parseInt(payload_segments[1]) + "' of UE Key: '" + payload_segments[2] + "'");
-								};
+									// SEND_APN of the UE comes over the same flow, see attachFlow
+									attach_flows.put(attachFlow(src_ip, src_port), new AttachFlow(imsi));
 
-								installFlowRule(eNodeB, Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + DatapathId.of(payload_ext_segments[0]).getLong()), Integer.parseInt(payload_segments[1]), ue_port, Integer.parseInt(payload_segments[1]), Constants.PDN_IP, ue_ip, Constants.UE_MAC);
+									//UE is authenticated
+									KSI_ASME = 1;
 
-								response = new StringBuilder();
-								uekey_guti_map.put(payload_segments[2], (Integer.parseInt(payload_segments[2]) + 1000) + "");
-								ue_state.put(payload_segments[2], true);
-								response.append(Constants.ATTACH_ACCEPT).append(Constants.SEPARATOR).append(Integer.parseInt(payload_segments[2])+1000);
+									// Replayed UE Network Capability decided by MME
+									int replayed_nw_capability = Utils.randInt(0, 10);
 
-								if(Constants.DO_ENCRYPTION) {
-									decArray = getDecryptedArray(payload_segments);
-								};
+									int NAS_integrity_algo_id = Constants.CIPHER_ALGO_MAP.get("HmacSHA1");
+									int NAS_cipher_algo_id = Constants.CIPHER_ALGO_MAP.get("AES");
 
-								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
-								response = null;
-								
-								if(Constants.DEBUG) { d2 = new Date(); };
-								break;
-								
-							case Constants.DETACH_REQUEST:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => DETACH_REQUEST ---");
-									step = 5;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								if(Constants.DO_ENCRYPTION) {
-									decArray = getDecryptedArray(payload_segments);
-								};
+									K_ASME = ue.k_asme;
 
-								// [payload_segments[1] => UE-IP, payload_segments[2] => UE-TE-ID, payload_segments[3] => SGW-TE-ID, payload_segments[4] => UE-KEY]
-								if(Constants.DEBUG) {
-									System.out.println("RECEIVED DETACH REQUEST from UE with IP: '" + payload_segments[1] + "', Tunnel Endpoint ID: '" + payload_segments[2] + "', corresponding SGW Tunnel Endpoint ID: '" + payload_segments[3] + "' and UE-KEY: '" + payload_segments[4] + "'");
-								};
-								
-								// removing the port mapping between UE key and its source port (UDP) used for control traffic
-								uekey_udp_src_port_map.remove(payload_segments[4]);
+									// [NAS_keys[0] => K_NAS_int, NAS_keys[1] => K_NAS_enc]
+									String NAS_keys[] = KDF_NAS(Integer.parseInt(K_ASME), NAS_integrity_algo_id, NAS_cipher_algo_id);
 
-								pgw_dispatch_id = DatapathId.of(Constants.PGW_ID);
-								sgw_dispatch_id = DatapathId.of(Constants.SGW_ID);
+									if(Constants.DEBUG) {
+										System.out.println("AUTHENTICATION_STEP_THREE: INT_KEY: '" + NAS_keys[0] + "', ENC_KEY: '" + NAS_keys[1] + "'");
+									};
 
-								// newly added, we can't remove it in SEND_UE_TE_ID step due to tunnel re-establishment
-								uekey_sgw_te_id_map.remove(payload_segments[4]);
-								sgw_teid_uekey_map.remove(payload_segments[3]);
+									ue.nas_int_key = NAS_keys[0];
+									ue.nas_enc_key = NAS_keys[1];
+									ue.nas_int_spec = CryptoEngine.macKey(NAS_keys[0]);
+									ue.nas_enc_spec = CryptoEngine.aesKey(NAS_keys[1]);
+									response = new ControlMessage(ControlCodec.NAS_STEP_ONE, request.binary);
+									response.set(ControlCodec.IE_KSI_ASME, KSI_ASME).set(ControlCodec.IE_NW_CAPABILITY, replayed_nw_capability)
+										.set(ControlCodec.IE_CIPHER_ALGO_ID, NAS_cipher_algo_id).set(ControlCodec.IE_INTEGRITY_ALGO_ID, NAS_integrity_algo_id);
 
-								// delete up-link rule
-								deleteFlowRuleWithIP(eNodeB, ue_port, payload_segments[1]);
-								
-								if(Constants.DEBUG) {
-									System.out.println("eNodeB controller deleting uplink rule for UE with IP: " + payload_segments[1] + "'");
-								};
-								
-								int eNodeB_SGW_PORT = Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + sgw_dispatch_id.getLong());
-						
-								//delete down-link rule
-								deleteFlowRuleWithTEID(eNodeB, eNodeB_SGW_PORT, Integer.parseInt(payload_segments[2]), Constants.PDN_IP);
-					
-								if(Constants.DEBUG) {
-									System.out.println("DEFAULT SWITCH deleting downlink rule for UE with IP: '" + payload_segments[1] + "' and UE Tunnel Endpoint ID: '" + payload_segments[2] + "'");
-								};
+									// Generate Message Authentication Code using the hash function and append it to the message
+									sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, ControlCodec.encode(response, NAS_keys[0]));
+									response = null;
 
-								boolean status = sgw.detachUEFromSGW(switch_mapping.get(sgw_dispatch_id), switch_mapping.get(pgw_dispatch_id), sgw_dispatch_id, pgw_dispatch_id, Integer.parseInt(payload_segments[3]), payload_segments[1]);
-								response = new StringBuilder();
-					
-								if(status) {
-									response.append(Constants.DETACH_ACCEPT).append(Constants.SEPARATOR).append("");
-						
-									if(Constants.DO_ENCRYPTION) {
-										Utils.aesEncrypt(response.toString(), Constants.SAMPLE_ENC_KEY);
-										Utils.hmacDigest(response.toString(), Constants.SAMPLE_ENC_KEY);
-									};
-									
-									sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
-						
 								} else {
-									response.append(Constants.DETACH_FAILURE).append(Constants.SEPARATOR).append("");
-									
-									if(Constants.DO_ENCRYPTION) {
-										Utils.aesEncrypt(response.toString(), Constants.SAMPLE_ENC_KEY);
-										Utils.hmacDigest(response.toString(), Constants.SAMPLE_ENC_KEY);
-									};
-									
-									sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
-									System.out.println("ERROR: DETACH_FAILURE - aborting");
+									System.out.println("false ### "+ ue.xres +" ue_res= "+ res+" ### imsi "+ imsi);
+									sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, authenticationFailure(request));
 									System.exit(1);
 								};
-								
-								response = null;
-								
-								if(Constants.DEBUG) { d2 = new Date(); };
-								break;
 
-							case Constants.REQUEST_STARTING_IP:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => REQUEST_STARTING_IP ---");
+							} else {
+								System.out.println("ERROR: AUTHENTICATION_STEP_THREE failure");
+								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, authenticationFailure(request));
+								System.exit(1);
+							};
 
-									step = 6;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								String ip = sgw.getStartingIPAddress();
-						
-								if(Constants.DEBUG) {
-									System.out.println("Current Starting IP: '" + ip + "'");
-								};
-								
-								response = new StringBuilder();
-								response.append(Constants.SEND_STARTING_IP).append(Constants.SEPARATOR).append(ip);
-								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
-								response = null;
-							
-								if(Constants.DEBUG) { d2 = new Date(); };
-								break;
+							break;
 
-							case Constants.UE_CONTEXT_RELEASE_REQUEST:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => UE_CONTEXT_RELEASE_REQUEST ---");
-									/* [payload_segments[1] => UE-IP, payload_segments[2] => UE-TE-ID,  payload_segments[3] => SGW-TE-ID, payload_segments[4] => UE-KEY] */
-									System.out.println("RECEIVED UE CONTEXT RELEASE REQUEST from UE with IP: '" + payload_segments[1] + "' Tunnel Endpoint ID: '" + payload_segments[2] + "', corresponding SGW Tunnel Endpoint ID: '" + payload_segments[3] + "' and UE KEY: '" + payload_segments[4] + "'");
+						case ControlCodec.SEND_APN:
+							step = 3;
 
-									step = 7;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								sgw_dispatch_id = DatapathId.of(Constants.SGW_ID);
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => SEND_APN ---");
+							};
 
-								// delete up-link rule
-								deleteFlowRuleWithIP(eNodeB, ue_port, payload_segments[1]);
-								
-								if(Constants.DEBUG) {
-									System.out.println("DEFAULT SWITCH deleting uplink rule for UE with IP: '"+payload_segments[1] + "'");
-								};
-								
-								eNodeB_SGW_PORT = Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + sgw_dispatch_id.getLong());
-								
-								//delete down-link rule
-								deleteFlowRuleWithTEID(eNodeB, eNodeB_SGW_PORT, Integer.parseInt(payload_segments[2]), Constants.PDN_IP);
+							if(Constants.DO_ENCRYPTION) {
+								decryptPayload(data);
+							};
 
-								if(Constants.DEBUG) {
-									System.out.println("DEFAULT SWITCH deleting downlink rule for UE with IP: '" + payload_segments[1] + "' and UE Tunnel Endpoint ID: '" + payload_segments[2] + "'");
-								};
+							/* [IE_APN => UE APN, IE_UE_KEY => UE Key, IE_IMSI (optional, binary only) => IMSI] */
+							long apn = request.getLong(ControlCodec.IE_APN);
+							ue_key = request.getInt(ControlCodec.IE_UE_KEY);
 
-								sgw.releaseAccessBearersRequest(switch_mapping.get(sgw_dispatch_id), sgw_dispatch_id, Integer.parseInt(payload_segments[3]), payload_segments[1]);
+							// bind the context created during authentication, found by IMSI if UE tells it, else by the flow it authenticated over
+							AttachFlow authenticated = attach_flows.remove(attachFlow(src_ip, src_port));
+							imsi = request.has(ControlCodec.IE_IMSI) ? request.getLong(ControlCodec.IE_IMSI) : (authenticated != null ? authenticated.imsi : 0);
+							ue = ue_contexts.getOrCreate(ue_key, imsi);
 
-								response = new StringBuilder();
-								ue_state.put(payload_segments[4], false);
-								response.append(Constants.UE_CONTEXT_RELEASE_COMMAND).append(Constants.SEPARATOR).append("");
-								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
+							// UE key belongs to another MME node, which takes the context and this request and does the rest of the attach
+							if(cluster != null && !cluster.isLocal(ue_key)) {
+								handOverAttach(ue, switch_id, in_port, packet);
 								response = null;
-				
-								if(Constants.DEBUG) { d2 = new Date(); };
 								break;
+							};
 
-							case Constants.UE_CONTEXT_RELEASE_COMPLETE:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => UE_CONTEXT_RELEASE_COMPLETE ---");
-									System.out.println("RECEIVED UE_CONTEXT_RELEASE_COMPLETE from UE with UE-Key: '" + payload_segments[1] + "', UE-IP: '" + payload_segments[2] +"', Network_Service_Request_Boolean: '" + payload_segments[3] + "' and PDN UDP server port: '" + payload_segments[4] + "'");
-								};	
-				
-								/* [payload_segments[1] => UE-Key, payload_segments[2] => UE-IP, payload_segments[3] => Network-Service-Request-Boolean, payload_segments[4] => PDN-UDP-Server-Port] */
-								if(payload_segments[3].equals("1")) {
-									int serverPort = Integer.parseInt(payload_segments[4]);
-									
-									src_ip = IPv4Address.of(payload_segments[2]);
-									src_port = TransportPort.of(serverPort);
-
-									dst_ip = IPv4Address.of(Constants.PDN_IP);
-									dst_port = TransportPort.of(serverPort);
-
-									MacAddress srcMac = MacAddress.of(Constants.UE_MAC), dstMac =  MacAddress.of(Constants.PDN_MAC);
-									switch_id = switchService.getSwitch(DatapathId.of(Constants.PGW_ID));
-
-									response = new StringBuilder();
-									response.append(Constants.INITIATE_NETWORK_SERVICE_REQUEST).append(Constants.SEPARATOR).append(payload_segments[1]);
-						
-									if(Constants.DEBUG) {
-										System.out.println("Sending Network Service Request to PDN for UE-Key: '" + payload_segments[1] + "', UE-IP: '" + payload_segments[2] + "'");
-									};
+							if(Constants.DEBUG) {
+								System.out.println("Received APN: '" + apn + "'");
+							};
 
-									// Inform PDN to initiate network service request
-									sendPacket(switch_id, OFPort.of(Constants.PGW_PDN_PORT), srcMac, dstMac, src_ip, dst_ip,  IpProtocol.UDP, src_port, dst_port, response.toString());
-								};
+							/* storing source port of UDP packet to identify the specific UE,
+							 * when MME wants to initiate connection with this UE.
+							 */
+							ue.udp_src_port = src_port;
+							ue.binary = request.binary;
 
-								step = 8;
-								d1 = d2 = null;
-								d1 = new Date();
+							// bearer goes through the eNodeB UE attaches through
+							ue.enodeb_dispatch_id = enodeb.dispatch_id;
 
-								if(Constants.DEBUG) { d2 = new Date(); };
-								break;
+							pgw_dispatch_id = hss.getPGW(apn);
+							sgw_dispatch_id = selectSGWD(enodeb);
 
-							case Constants.UE_SERVICE_REQUEST:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => UE_SERVICE_REQUEST ---");
-									
-									step = 9;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								/* [payload_segments[1] => UE-KEY, payload_segments[2] => KSI_ASME, payload_segments[3] => UE-IP] */
-								if(Constants.DEBUG) {
-									System.out.println("RECEIVED UE_SERVICE_REQUEST from UE with UE-Key: '" + payload_segments[1] + "', KSI_ASME: '" + payload_segments[2] + "'");
-								};
-								
-								if(Constants.DO_ENCRYPTION) {
-									decArray = getDecryptedArray(payload_segments);
-								};
-								
-								sgw_dispatch_id = DatapathId.of(Constants.SGW_DISPATCH_ID);
-								ue_ip = payload_segments[3];
+							// no SGW-D linked to the eNodeB is connected, nor is the configured one linked to it
+							if(pgw_dispatch_id == null || enodeb.portTo(sgw_dispatch_id) == Topology.NONE) {
+								System.out.println("ERROR: SEND_APN: no SGW-D reachable from eNodeB: '" + enodeb.dispatch_id.getLong() + "' for UE Key: '" + ue_key + "' - dropping request");
+								response = null;
+								break;
+							};
 
-								String sgw_dispatch_id_sgw_te_id = uekey_sgw_te_id_map.get(payload_segments[1]);
-								payload_ext_segments = sgw_dispatch_id_sgw_te_id.split(Constants.SEPARATOR);
-								sgw_te_id = Integer.parseInt(payload_ext_segments[1]);
+							tx = new FlowTransaction("SEND_APN");
+							String sgw_ip = sgw.contactPGW(switch_mapping.get(sgw_dispatch_id),switch_mapping.get(pgw_dispatch_id), sgw_dispatch_id, pgw_dispatch_id, enodeb.dispatch_id, apn, tx);
 
-								// install up-link rule on eNodeB switch
-								if(Constants.DEBUG) {
-									System.out.println("eNodeB controller installing uplink rule on eNodeB Switch Dispatch ID: '" + eNodeB.getLong() + "', In-Port: '" + ue_port + "' and Source IP: '" + ue_ip + 
-										"', Out-Port: '" + Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + sgw_dispatch_id.getLong())+"' and Out Source IP: '" + Constants.RAN_IP + "', Out-Tunnel Endpoint ID: '" + sgw_te_id + "' of UE Key: '" + payload_segments[1] + "'");
-								};
-								
-								installFlowRuleWithIP(eNodeB, ue_port, Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + sgw_dispatch_id.getLong()), sgw_te_id, ue_ip, Constants.RAN_IP, Constants.SGWD_IP_UPLINK, Constants.PDN_MAC);
+							// gateways are out of tunnel endpoint IDs, UE retries the attach later
+							if(sgw_ip == null) {
+								System.out.println("ERROR: SEND_APN: no bearer for UE Key: '" + ue_key + "' - dropping request");
+								response = null;
+								break;
+							};
 
-								response = new StringBuilder();
-								response.append(Constants.INITIAL_CONTEXT_SETUP_REQUEST).append(Constants.SEPARATOR).append(sgw_te_id);
+							sgw_stats.assigned(sgw_dispatch_id);
+							payload_ext_segments = sgw_ip.split(Constants.SEPARATOR);
+							ue_ip = IPv4Address.of(payload_ext_segments[0]);
+							sgw_te_id = Integer.parseInt(payload_ext_segments[1]);
 
-								if(Constants.DO_ENCRYPTION) {
-									decArray = getDecryptedArray(payload_segments);
-								};
+							response = new ControlMessage(ControlCodec.SEND_IP_SGW_TE_ID, request.binary);
+							response.set(ControlCodec.IE_UE_IP, ue_ip.getInt()).set(ControlCodec.IE_SGW_TE_ID, sgw_te_id);
+							byte[] encoded = ControlCodec.encode(response);
+
+							if(Constants.DO_ENCRYPTION) {
+								encryptPayload(encoded);
+							};
 
-								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
+							// install up-link rule on default switch
+							if(Constants.DEBUG) {
+								System.out.println("eNodeB controller installing uplink rule on eNodeB switch Dispatch ID: '" + enodeb.dispatch_id.getLong() + "' In-Port: '" + enodeb.ue_port + "' and Source IP: '" + ue_ip +
+									"' Out-Port: '" + enodeb.portTo(sgw_dispatch_id) + "' and Out Source IP: '" + enodeb.ran_ip + "' Out-Tunnel Endpoint ID: '" + sgw_te_id + "' of UE Key: '" + ue_key + "'");
+							};
+
+							installFlowRuleWithIP(enodeb.dispatch_id, enodeb.ue_port, enodeb.portTo(sgw_dispatch_id), sgw_te_id, ue_ip, bearerCookie(ue), tx);
+							ue_contexts.setUeIp(ue, ue_ip.getInt());
+							ue_contexts.setSgwTunnel(ue, sgw_dispatch_id, sgw_te_id);
+							ue.pgw_te_id = sgw.getPgwTeId(sgw_te_id);
+							ue.pgw_dispatch_id = pgw_dispatch_id;
+							journalSession(ue, true);
+
+							// reply once up-link path is installed on eNodeB, SGW-D and PGW-D, else the bearer is taken back
+							sendPacketAfter(tx, null, bearerRollback(ue_key, sgw_te_id), switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, encoded);
+							response = null;
+
+							// bearer is ready, resume procedures of this UE waiting for it
+							pending.complete(ue_key);
+
+							break;
+
+						case ControlCodec.SEND_UE_TE_ID:
+							step = 4;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => SEND_UE_TE_ID ---");
+							};
+
+							if(Constants.DO_ENCRYPTION) {
+								decryptPayload(data);
+							};
+
+							/* [IE_UE_TE_ID => ue_te_id, IE_UE_KEY => UE Key] */
+							ue_te_id = request.getInt(ControlCodec.IE_UE_TE_ID);
+							ue_key = request.getInt(ControlCodec.IE_UE_KEY);
+
+							if(Constants.DEBUG) {
+								System.out.println("received teid="+ue_te_id);
+							};
+
+							ue = ue_contexts.get(ue_key);
+
+							// unknown or stale UE key, or its bearer has been taken back (see releaseFailedBearer)
+							if(ue == null || !ue.hasBearer()) {
+								System.out.println("ERROR: SEND_UE_TE_ID: no bearer for UE Key: '" + ue_key + "' - dropping request");
 								response = null;
-							
-								if(Constants.DEBUG) { d2 = new Date(); };
 								break;
+							};
 
-							case Constants.INITIAL_CONTEXT_SETUP_RESPONSE:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => INITIAL_CONTEXT_SETUP_RESPONSE ---");
-									
-									step = 10;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
-								
-								if(Constants.DO_ENCRYPTION){
-									decArray = getDecryptedArray(payload_segments);
-								};
+							ue.ue_te_id = ue_te_id;
+							ue_enodeb = enodebOf(ue);
 
-								/* [payload_segments[1] => UE-Tunnel-ID, payload_segments[2] => UE Key, payload_segments[3] => UE IP] */
-								if(Constants.DEBUG) {
-									System.out.println("received teid="+payload_segments[1]);
-								};
+							tx = new FlowTransaction("SEND_UE_TE_ID");
+							sgw.modifyBearerRequest(switch_mapping.get(ue.sgw_dispatch_id), ue.sgw_dispatch_id, ue_enodeb.dispatch_id, ue.sgw_te_id, ue_te_id, String.valueOf(ue_key), bearerCookie(ue), tx);
+							ue_ip = ue.getIP();
+
+							if(Constants.DEBUG) {
+								// install down-link rule on eNodeB of the UE
+								System.out.println("eNodeB controller installing downlink rule on eNodeB switch Dispatch ID: '" + ue_enodeb.dispatch_id.getLong() + "' In-Port: '" + ue_enodeb.portTo(ue.sgw_dispatch_id) +
+									"' In-Tunnel Endpoint ID: '" + ue_te_id + "' Out-Port: '" + ue_enodeb.ue_port + "' Out-Tunnel Endpoint ID: '" + ue_te_id + "' of UE Key: '" + ue_key + "'");
+							};
 
-								// find matching UE-Key to SGW-TE-ID map
-								while(uekey_sgw_te_id_map.get(payload_segments[2]) == null);
+							installFlowRule(ue_enodeb.dispatch_id, ue_enodeb.portTo(ue.sgw_dispatch_id), ue_te_id, ue_enodeb.ue_port, ue_ip, bearerCookie(ue), tx);
+
+							ue.guti = ue_key + 1000;
+							ue.active = true;
+							journalSession(ue, false);
+							response = new ControlMessage(ControlCodec.ATTACH_ACCEPT, request.binary);
+							response.set(ControlCodec.IE_GUTI, ue_key + 1000);
+
+							if(Constants.DO_ENCRYPTION) {
+								decryptPayload(data);
+							};
+
+							// accept attach only once down-link path is installed on SGW-D and eNodeB
+							sendPacketAfter(tx, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, ControlCodec.encode(response));
+							response = null;
+
+							break;
+
+						case ControlCodec.DETACH_REQUEST:
+							step = 5;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => DETACH_REQUEST ---");
+							};
+
+							if(Constants.DO_ENCRYPTION) {
+								decryptPayload(data);
+							};
+
+							// [IE_UE_IP => UE-IP, IE_UE_TE_ID => UE-TE-ID, IE_SGW_TE_ID => SGW-TE-ID, IE_UE_KEY => UE-KEY]
+							ue_ip = request.getIP(ControlCodec.IE_UE_IP);
+							ue_te_id = request.getInt(ControlCodec.IE_UE_TE_ID);
+							sgw_te_id = request.getInt(ControlCodec.IE_SGW_TE_ID);
+							ue_key = request.getInt(ControlCodec.IE_UE_KEY);
+
+							if(Constants.DEBUG) {
+								System.out.println("RECEIVED DETACH REQUEST from UE with IP: '" + ue_ip + "', Tunnel Endpoint ID: '" + ue_te_id + "', corresponding SGW Tunnel Endpoint ID: '" + sgw_te_id + "' and UE-KEY: '" + ue_key + "'");
+							};
+
+							// tunnel adopted from another MME node, which frees its IDs and UE IP once its rules are deleted here
+							boolean adopted = cluster != null && !sgw.isLocalTunnel(sgw_te_id);
+							int pgw_te_id = sgw.getPgwTeId(sgw_te_id);
+
+							// free the whole UE context (control port, security and bearer context, indexes)
+							ue = ue_contexts.get(ue_key);
+							sgw_dispatch_id = sgwOf(ue);
+							pgw_dispatch_id = pgwOf(ue);
+							ue_enodeb = enodebOf(ue);
+							ue_contexts.remove(ue);
+							paging.cancel(ue_key);
+							sgw.discardDownlink(sgw_te_id);
+							forgetSession(ue_key);
+
+							// delete up-link rule
+							tx = new FlowTransaction("DETACH_REQUEST");
+
+							deleteFlowRuleWithIP(ue_enodeb.dispatch_id, ue_enodeb.ue_port, ue_ip, tx);
+
+							if(Constants.DEBUG) {
+								System.out.println("eNodeB controller deleting uplink rule for UE with IP: " + ue_ip + "'");
+							};
+
+							int eNodeB_SGW_PORT = ue_enodeb.portTo(sgw_dispatch_id);
+
+							//delete down-link rule
+							deleteFlowRuleWithTEID(ue_enodeb.dispatch_id, eNodeB_SGW_PORT, ue_te_id, tx);
+
+							if(Constants.DEBUG) {
+								System.out.println("DEFAULT SWITCH deleting downlink rule for UE with IP: '" + ue_ip + "' and UE Tunnel Endpoint ID: '" + ue_te_id + "'");
+							};
+
+							boolean status = sgw.detachUEFromSGW(switch_mapping.get(sgw_dispatch_id), switch_mapping.get(pgw_dispatch_id), sgw_dispatch_id, pgw_dispatch_id, ue_enodeb.dispatch_id, sgw_te_id, ue_ip.toString(), tx);
+							if(status && adopted) {
+								cluster.releaseTunnel(cluster.nodeOfPart(SGWC.partOf(sgw_te_id, cluster.getParts())), sgw_te_id, pgw_te_id, ue_ip.getInt());
+							};
+							response = new ControlMessage(status ? ControlCodec.DETACH_ACCEPT : ControlCodec.DETACH_FAILURE, request.binary);
+							encoded = ControlCodec.encode(response);
+
+							if(Constants.DO_ENCRYPTION) {
+								encryptPayload(encoded);
+							};
+
+							sendPacketAfter(tx, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, encoded);
+
+							// e.g. a retransmitted DETACH_REQUEST, the tunnel is already gone
+							if(!status) {
+								System.out.println("ERROR: DETACH_FAILURE for UE Key: '" + ue_key + "' and SGW Tunnel Endpoint ID: '" + sgw_te_id + "'");
+							};
 
-								str = uekey_sgw_te_id_map.get(payload_segments[2]);
-								payload_ext_segments = str.split(Constants.SEPARATOR);
+							response = null;
+
+							break;
+
+						case ControlCodec.REQUEST_STARTING_IP:
+							step = 6;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => REQUEST_STARTING_IP ---");
+							};
+
+							int ip = sgw.getStartingIPAddress();
+
+							if(Constants.DEBUG) {
+								System.out.println("Current Starting IP: '" + IPv4Address.of(ip) + "'");
+							};
+
+							response = new ControlMessage(ControlCodec.SEND_STARTING_IP, request.binary);
+							response.set(ControlCodec.IE_UE_IP, ip);
+							sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, ControlCodec.encode(response));
+							response = null;
+
+							break;
+
+						case ControlCodec.UE_CONTEXT_RELEASE_REQUEST:
+							step = 7;
+
+							/* [IE_UE_IP => UE-IP, IE_UE_TE_ID => UE-TE-ID,  IE_SGW_TE_ID => SGW-TE-ID, IE_UE_KEY => UE-KEY] */
+							ue_ip = request.getIP(ControlCodec.IE_UE_IP);
+							ue_te_id = request.getInt(ControlCodec.IE_UE_TE_ID);
+							sgw_te_id = request.getInt(ControlCodec.IE_SGW_TE_ID);
+							ue_key = request.getInt(ControlCodec.IE_UE_KEY);
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => UE_CONTEXT_RELEASE_REQUEST ---");
+								System.out.println("RECEIVED UE CONTEXT RELEASE REQUEST from UE with IP: '" + ue_ip + "' Tunnel Endpoint ID: '" + ue_te_id + "', corresponding SGW Tunnel Endpoint ID: '" + sgw_te_id + "' and UE KEY: '" + ue_key + "'");
+							};
+
+							ue = ue_contexts.get(ue_key);
+							sgw_dispatch_id = sgwOf(ue);
+
+							tx = new FlowTransaction("UE_CONTEXT_RELEASE_REQUEST");
+							releaseBearer(ue, sgw_dispatch_id, ue_ip, ue_te_id, sgw_te_id, tx);
+
+							response = new ControlMessage(ControlCodec.UE_CONTEXT_RELEASE_COMMAND, request.binary);
+							sendPacketAfter(tx, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, ControlCodec.encode(response));
+							response = null;
+
+							break;
+
+						case ControlCodec.UE_CONTEXT_RELEASE_COMPLETE:
+							step = 8;
+
+							/* [IE_UE_KEY => UE-Key, IE_UE_IP => UE-IP, IE_NETWORK_SERVICE_REQUEST => Network-Service-Request-Boolean, IE_PDN_PORT => PDN-UDP-Server-Port] */
+							ue_key = request.getInt(ControlCodec.IE_UE_KEY);
+							ue_ip = request.getIP(ControlCodec.IE_UE_IP);
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => UE_CONTEXT_RELEASE_COMPLETE ---");
+								System.out.println("RECEIVED UE_CONTEXT_RELEASE_COMPLETE from UE with UE-Key: '" + ue_key + "', UE-IP: '" + ue_ip +"', Network_Service_Request_Boolean: '" + request.getInt(ControlCodec.IE_NETWORK_SERVICE_REQUEST) + "' and PDN UDP server port: '" + request.getInt(ControlCodec.IE_PDN_PORT) + "'");
+							};
+
+							if(request.getInt(ControlCodec.IE_NETWORK_SERVICE_REQUEST) == 1) {
+								int serverPort = request.getInt(ControlCodec.IE_PDN_PORT);
+
+								src_ip = ue_ip;
+								src_port = TransportPort.of(serverPort);
+
+								dst_ip = FlowTemplates.ip(Constants.PDN_IP);
+								dst_port = TransportPort.of(serverPort);
+
+								MacAddress srcMac = FlowTemplates.mac(Constants.UE_MAC), dstMac = FlowTemplates.mac(Constants.PDN_MAC);
+								switch_id = switchService.getSwitch(pgwOf(ue_contexts.get(ue_key)));
+
+								// PDN server only understands legacy format
+								response = new ControlMessage(ControlCodec.INITIATE_NETWORK_SERVICE_REQUEST, false);
+								response.set(ControlCodec.IE_UE_KEY, ue_key);
 
-								sgw.modifyBearerRequest(switch_mapping.get(DatapathId.of(payload_ext_segments[0])), DatapathId.of(payload_ext_segments[0]), Integer.parseInt(payload_ext_segments[1]), Integer.parseInt(payload_segments[1]), payload_segments[2]);
-								ue_ip = payload_segments[3];
-								
 								if(Constants.DEBUG) {
-									// install down-link rule on default switch
-									System.out.println("eNodeB controller installing downlink rule on eNodeB Switch Dispatch ID: '" + eNodeB.getLong() + "', In-Port: '" + Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + DatapathId.of(payload_ext_segments[0]).getLong()) + 
-										"' in Tunnel Endpoint ID: '" + Integer.parseInt(payload_segments[1]) + "' Out-Port: '" + ue_port + "', Out-Tunnel Endpoint ID: '" + Integer.parseInt(payload_segments[1]) + "' of UE Key: '" + payload_segments[2] + "'");
+									System.out.println("Sending Network Service Request to PDN for UE-Key: '" + ue_key + "', UE-IP: '" + ue_ip + "'");
 								};
-								
-								installFlowRule( eNodeB, Constants.ENODEB_SGW_PORT_MAP.get(Constants.ENODEB_SW_ID + Constants.SEPARATOR + DatapathId.of(payload_ext_segments[0]).getLong()), Integer.parseInt(payload_segments[1]), ue_port, Integer.parseInt(payload_segments[1]), Constants.PDN_IP, ue_ip, Constants.UE_MAC);
 
-								response = new StringBuilder();
-								uekey_guti_map.put(payload_segments[2], (Integer.parseInt(payload_segments[2]) + 1000) + "");
-								
-								ue_state.put(payload_segments[2], true);
-								response.append(Constants.ATTACH_ACCEPT).append(Constants.SEPARATOR).append(payload_segments[2]);
+								// Inform PDN to initiate network service request
+								sendPacket(switch_id, OFPort.of(Constants.PGW_PDN_PORT), srcMac, dstMac, src_ip, dst_ip,  IpProtocol.UDP, src_port, dst_port, ControlCodec.encode(response));
+							};
 
-								if(Constants.DO_ENCRYPTION) {
-									decArray = getDecryptedArray(payload_segments);
-								};
+							break;
+
+						case ControlCodec.UE_SERVICE_REQUEST:
+							step = 9;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => UE_SERVICE_REQUEST ---");
+							};
+
+							/* [IE_UE_KEY => UE-KEY, IE_KSI_ASME => KSI_ASME, IE_UE_IP => UE-IP] */
+							ue_key = request.getInt(ControlCodec.IE_UE_KEY);
+
+							if(Constants.DEBUG) {
+								System.out.println("RECEIVED UE_SERVICE_REQUEST from UE with UE-Key: '" + ue_key + "', KSI_ASME: '" + request.getInt(ControlCodec.IE_KSI_ASME) + "'");
+							};
+
+							if(Constants.DO_ENCRYPTION) {
+								decryptPayload(data);
+							};
+
+							// UE has answered, stop paging it
+							paging.stop(ue_key);
+
+							ue = ue_contexts.get(ue_key);
 
-								sendPacket(switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, response.toString());
+							// unknown, stale or detached UE key, UE has to attach again
+							if(ue == null || !ue.hasBearer()) {
+								System.out.println("ERROR: UE_SERVICE_REQUEST: no session for UE Key: '" + ue_key + "' - dropping request");
 								response = null;
+								break;
+							};
+
+							sgw_dispatch_id = sgwOf(ue);
+							ue_ip = request.getIP(ControlCodec.IE_UE_IP);
+
+							sgw_te_id = ue.sgw_te_id;
+							tx = new FlowTransaction("UE_SERVICE_REQUEST");
+
+							// UE comes back through another eNodeB, its up-link rule on SGW-D follows it
+							ue_enodeb = enodebOf(ue);
+							if(ue_enodeb != enodeb) {
+								sgw.moveUplink(switch_mapping.get(sgw_dispatch_id), sgw_dispatch_id, ue_enodeb.dispatch_id, enodeb.dispatch_id, sgw_te_id, ue.pgw_te_id, ue.getIP().toString(), tx);
+								ue.enodeb_dispatch_id = enodeb.dispatch_id;
+								journalSession(ue, false);
+							};
+
+							// install up-link rule on eNodeB switch
+							if(Constants.DEBUG) {
+								System.out.println("eNodeB controller installing uplink rule on eNodeB Switch Dispatch ID: '" + enodeb.dispatch_id.getLong() + "', In-Port: '" + enodeb.ue_port + "' and Source IP: '" + ue_ip +
+									"', Out-Port: '" + enodeb.portTo(sgw_dispatch_id) + "' and Out Source IP: '" + enodeb.ran_ip + "', Out-Tunnel Endpoint ID: '" + sgw_te_id + "' of UE Key: '" + ue_key + "'");
+							};
+
+							installFlowRuleWithIP(enodeb.dispatch_id, enodeb.ue_port, enodeb.portTo(sgw_dispatch_id), sgw_te_id, ue_ip, bearerCookie(ue), tx);
+
+							response = new ControlMessage(ControlCodec.INITIAL_CONTEXT_SETUP_REQUEST, request.binary);
+							response.set(ControlCodec.IE_SGW_TE_ID, sgw_te_id);
+
+							if(Constants.DO_ENCRYPTION) {
+								decryptPayload(data);
+							};
+
+							sendPacketAfter(tx, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, ControlCodec.encode(response));
+							response = null;
+
+							break;
+
+						case ControlCodec.INITIAL_CONTEXT_SETUP_RESPONSE:
+							step = 10;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => INITIAL_CONTEXT_SETUP_RESPONSE ---");
+							};
+
+							if(Constants.DO_ENCRYPTION){
+								decryptPayload(data);
+							};
+
+							/* [IE_UE_TE_ID => UE-Tunnel-ID, IE_UE_KEY => UE Key, IE_UE_IP => UE IP] */
+							ue_te_id = request.getInt(ControlCodec.IE_UE_TE_ID);
+							ue_key = request.getInt(ControlCodec.IE_UE_KEY);
+
+							if(Constants.DEBUG) {
+								System.out.println("received teid="+ue_te_id);
+							};
 
-								if(Constants.DEBUG) { d2 = new Date(); };
+							// resume now if SGW tunnel of UE is known, else once SEND_APN has set it up
+							ue = ue_contexts.get(ue_key);
+							if(ue != null && ue.hasBearer()) {
+								initialContextSetupResponse(ue, ue_te_id, request, data, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip, dst_port, src_port);
+							} else {
+								awaitBearer(ue_key, ue_te_id, request, data, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip, dst_port, src_port);
+							};
+
+							break;
+
+						case ControlCodec.PDN_SERVICE_REQUEST:
+							step = 14;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => PDN_SERVICE_REQUEST ---");
+							};
+
+							downlinkDataNotification(request.getInt(ControlCodec.IE_UE_KEY), vlan);
+							break;
+
+						case ControlCodec.NAS_STEP_TWO:
+							step = 13;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => NAS_STEP_TWO ---");
+							};
+
+							imsi = request.getLong(ControlCodec.IE_IMSI);
+
+							if(Constants.DEBUG) {
+								System.out.println("NAS STEP TWO: data length: '" + data.length + "', received encrypted text: '" + request.nas_length + " bytes', NAS-MAC: '" + ControlCodec.macToString(request) + "', IMSI: '" + imsi + "'");
+								System.out.println("Encrypted length: '" + request.nas_length + "', NAS-MAC length: '" + request.mac_length + "'");
+							};
+
+							if(!Constants.CHECK_INTEGRITY) {
 								break;
+							};
 
-							case Constants.PDN_SERVICE_REQUEST:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => PDN_SERVICE_REQUEST ---");
-								};
+							ue = ue_contexts.getByImsi(imsi);
 
-								if(payload_segments[0].equals(Constants.PDN_SERVICE_REQUEST)) {
-									downlinkDataNotification(payload_segments[1], vlan);
-								} else {
-									System.out.println("** ERROR: Unknown message code received from PDN, received: '" + payload + "', expected: '" + Constants.SEPARATOR + "' - aborting ");
-									System.exit(1);
-								};
-				
+							// unknown or released IMSI (or owned by another MME node), or UE hasn't authenticated yet
+							if(ue == null || ue.nas_int_spec == null) {
+								System.out.println("ERROR: NAS_STEP_TWO: no NAS security context for IMSI: '" + imsi + "' - dropping request");
+								response = null;
 								break;
+							};
 
-							default:
-								if(Constants.DEBUG) {
-									System.out.println("--- Case => default ---");
-									
-									step = 11;
-									d1 = d2 = null;
-									d1 = new Date();
-								};
+							CryptoEngine engine = CryptoEngine.get();
+							byte[] mac = engine.macBuffer();
+							engine.mac(ue.nas_int_spec, data, request.nas_offset, request.nas_length, mac, 0);
 
-								if(payload_segments.length == 3) {
-									if(Constants.DEBUG) {
-										System.out.println("NAS STEP TWO: data length: '" + data.length + "', received encrypted text: '" + payload_segments[0] + "', NAS-MAC: '" + payload_segments[1] + "', IMSI: '" + payload_segments[2] + "'");
-										System.out.println("Encrypted length: '" + payload_segments[0].length() + "', NAS-MAC length: '" + payload_segments[1].length() + "', IMSI length: '" + payload_segments[2].length() + "'");
-									};
-									
-									if(!Constants.CHECK_INTEGRITY) {
-										d2 = new Date();
-										break;
-									};
+							if(Constants.DEBUG) {
+								System.out.println("NAS_STEP_TWO: Generated NAS MAC: '" + CryptoEngine.toHex(mac, 0, mac.length) + "'");
+							};
 
-									NAS_Keys = uekey_nas_keys_map.get(payload_segments[2]);
-									NAS_MAC = Utils.hmacDigest(payload_segments[0], NAS_Keys[1]);
-								
-									if(Constants.DEBUG) {
-										System.out.println("NAS_STEP_TWO: Generated NAS MAC: '" + NAS_MAC + "'");
-									};
-									
-								} else {
-									System.out.println("ERROR: NAS STEP TWO: unknown command. payload length: '" + payload_segments.length + "', payload: '" + payload + "' - aborting");
-									System.exit(1);
-								};
-								
-								d2 = new Date();
+							break;
+
+						default:
+							step = 11;
+
+							if(Constants.DEBUG) {
+								System.out.println("--- Case => default ---");
 							};
-							
-							if(Constants.DEBUG) { timeDiff(d1, d2, step); };
-						};
+
+							// a stray packet of one UE must not take the controller down
+							unexpected_messages.incrementAndGet();
+							System.out.println("ERROR: Unexpected control message from UE, payload length: '" + data.length + "', payload: '" + request + "' - dropping");
+							response = null;
+							break;
 					};
 
+					// always on, nanosecond latency of the step (see LatencyRecorder)
+					latency.record(step, System.nanoTime() - started);
+				};
+
 			} else if(ipPkt.getProtocol().equals(IpProtocol.IPIP)) { //IP within IP tunnel
 				if(Constants.DEBUG) {
 					System.out.println("src-ip: '" + src_ip.toString() + "', dst-ip: '" + dst_ip.toString() + "'");
 					System.out.println("proto: '" + ipPkt.getProtocol().toString() + "', version: '" + EthType.IPv4 + "', encaps: '" + IpProtocol.IPX_IN_IP + "'");
 				};
-				
+
 				Data dataPkt1 = (Data) ipPkt.getPayload();
 				byte[] data1 = dataPkt1.getData();
-				
+
 				try {
 					IPv4 ipPkt1 = (IPv4) ipPkt.deserialize(data1, 0, data1.length);
 					src_ip = ipPkt1.getSourceAddress();
@@ -867,87 +1315,202 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 					if(Constants.DEBUG){
 						System.out.println("src-ip: '" + src_ip.toString() + "', dst-ip: '" + dst_ip.toString() + "'");
 					};
-					
+
 				} catch (PacketParsingException e) {
 					e.printStackTrace();
 				};
 			};
 		};
-		
+
 		return Command.CONTINUE;
 	};
 
-	long case_sum[] = new long[20];
-	long case_cnt[] = new long[20];
-	long MOD = 10;
+	/* Latency of procedure steps recorded so far, one line per step: count, mean, p50, p99, p99.9 and max */
+	public String getLatencyReport() {
+		return latency.getReport();
+	};
+
+	/* Latency histogram of a single step (see getStepName), null if step is unknown */
+	public LatencyHistogram.Snapshot getLatency(int step) {
+		return latency.getSnapshot(step);
+	};
+
+	/* Pages the UE PDN has downlink data for, notifications coalesce into one pending page per UE (see PagingManager) */
+	protected boolean downlinkDataNotification(int ue_key, VlanVid vlan) {
+		UeContext ue = ue_contexts.get(ue_key);
 
-	/* This method is used for measuring execution time of procedures */ 
-	private void timeDiff(Date d1, Date d2, int step) {
-		if(d1 == null || d2 == null) {
-			System.out.println("Step " + step + ": start => " + d1 + ",  end => " + d2);
-			System.exit(1);
+		if(ue == null || ue.udp_src_port == null) {
+			System.out.println("ERROR: UE UDP port not found for the UE key: '" + ue_key + "' - not paging");
+			return false;
 		};
-		
-		long diff = d2.getTime() - d1.getTime();
-		case_cnt[step-1]++;
-		case_sum[step-1] += diff;
 
-		if (case_cnt[step-1] % MOD == 0) {
-			System.out.println(getStepName(step) + " Average over "+ MOD + " no. of steps is " + (case_sum[step-1]*1.0/case_cnt[step-1]) +" ms");
-			case_cnt[step-1] = case_sum[step-1] = 0;
-			if(step == 5) { System.out.println(); };
+		if(paging.page(ue_key, vlan.getVlan()) && Constants.DEBUG) {
+			System.out.println("Paging UE with UE Key: '" + ue_key + "'");
 		};
+		return true;
 	};
 
-	protected boolean downlinkDataNotification(String ue_key, VlanVid vlan) {
-		TransportPort src_port = TransportPort.of(Constants.DEFAULT_CONTROL_TRAFFIC_UDP_PORT), dstPort = TransportPort.of(67);
-		IPv4Address src_ip = IPv4Address.of(Constants.ENODEB_SW_IP_UPLINK), dstIp = IPv4Address.of(Constants.RAN_IP);
-		MacAddress src_mac = MacAddress.of(Constants.ENODEB_SW_MAC), dstMac =  MacAddress.of(Constants.UE_MAC);
-		IOFSwitch switch_id = switchService.getSwitch(DatapathId.of(Constants.ENODEB_SW_ID));
-		StringBuilder response = new StringBuilder();
+	/* Sends pages due in the same tick to the eNodeB switch of each UE, in a single write per switch */
+	private void sendPagingRequests(List<PagingManager.Page> batch) {
+		TransportPort src_port = TransportPort.of(Constants.DEFAULT_CONTROL_TRAFFIC_UDP_PORT);
+		MacAddress src_mac = FlowTemplates.mac(Constants.ENODEB_SW_MAC), dstMac = FlowTemplates.mac(Constants.UE_MAC);
 
-		if(uekey_udp_src_port_map.containsKey(ue_key)) {
-			dstPort = uekey_udp_src_port_map.get(ue_key);
-		} else {
-			System.out.println("ERROR: UE UDP port not found for the UE key: '" + ue_key + "' - aborting ");
-			System.exit(1);
+		/* [Key => eNodeB, Value => its paging requests] */
+		Map<EnodebRegistry.Enodeb, List<OFMessage>> packets = new HashMap<EnodebRegistry.Enodeb, List<OFMessage>>();
+
+		for (PagingManager.Page page : batch) {
+			UeContext ue = ue_contexts.get(page.ue_key);
+
+			// UE has detached meanwhile
+			if(ue == null || ue.udp_src_port == null) {
+				paging.cancel(page.ue_key);
+				continue;
+			};
+
+			EnodebRegistry.Enodeb enodeb = enodebOf(ue);
+			IOFSwitch switch_id = switchService.getSwitch(enodeb.dispatch_id);
+
+			if(switch_id == null) {
+				System.out.println("ERROR: eNodeB switch '" + enodeb.dispatch_id.getLong() + "' not connected, paging request not sent to UE with UE Key: '" + page.ue_key + "'");
+				continue;
+			};
+
+			// page the UE in the same format it has used for attach
+			ControlMessage request = new ControlMessage(ControlCodec.PAGING_REQUEST, ue.binary);
+			request.set(ControlCodec.IE_UE_TE_ID, page.ue_te_id);
+
+			if(Constants.DEBUG) {
+				System.out.println("Sending paging request " + page.attempts + " to UE with UE Key: '" + page.ue_key + "'");
+			};
+
+			List<OFMessage> enodeb_packets = packets.get(enodeb);
+			if(enodeb_packets == null) {
+				enodeb_packets = new ArrayList<OFMessage>();
+				packets.put(enodeb, enodeb_packets);
+			};
+
+			enodeb_packets.add(buildPacketOut(switch_id, OFPort.of(enodeb.ue_port), src_mac, dstMac, FlowTemplates.ip(enodeb.uplink_ip), FlowTemplates.ip(enodeb.ran_ip),
+				IpProtocol.UDP, src_port, ue.udp_src_port, ControlCodec.encode(request)));
 		};
 
-		response.append(Constants.PAGING_REQUEST).append(Constants.SEPARATOR).append(vlan.getVlan());
-	
-		if(Constants.DEBUG) {
-			System.out.println("Sending paging request to UE with UE Key: '" + ue_key + "'");
+		for (Map.Entry<EnodebRegistry.Enodeb, List<OFMessage>> entry : packets.entrySet()) {
+			IOFSwitch switch_id = switchService.getSwitch(entry.getKey().dispatch_id);
+			if(switch_id != null) { switch_id.write(entry.getValue()); };
 		};
-		
-		sendPacket(switch_id, OFPort.of(Constants.ENODEB_SW_UE_PORT), src_mac, dstMac, src_ip, dstIp,  IpProtocol.UDP, src_port, dstPort, response.toString());
-		return true;
 	};
 
-	private String getStepName(int step) {
+	/* Name of a step whose latency is recorded */
+	static String getStepName(int step) {
 		switch(step) {
-			case 1: return "AUTHENTICATION_STEP_ONE: ";
-			case 2: return "AUTHENTICATION_STEP_THREE: ";
-			case 3: return "SEND_APN: ";
-			case 4: return "SEND_UE_TEID: ";
-			case 5: return "DETACH_REQUEST: ";
-			case 6: return "REQUEST_STARTING_IP: ";
-			case 7: return "UE_CONTEXT_RELEASE_REQUEST: ";
+			case 1: return "AUTHENTICATION_STEP_ONE";
+			case 2: return "AUTHENTICATION_STEP_THREE";
+			case 3: return "SEND_APN";
+			case 4: return "SEND_UE_TEID";
+			case 5: return "DETACH_REQUEST";
+			case 6: return "REQUEST_STARTING_IP";
+			case 7: return "UE_CONTEXT_RELEASE_REQUEST";
 			case 8: return "UE_CONTEXT_RELEASE_COMPLETE";
-			case 9: return "UE_SERVICE_REQUEST: ";
-			case 10: return "TUNNEL_SETUP_ACCEPT: ";
-			case 11: return "DEFAULT: ";
-			case 12: return "HSS call: ";
-			default: return "Invalid";
+			case 9: return "UE_SERVICE_REQUEST";
+			case 10: return "TUNNEL_SETUP_ACCEPT";
+			case 11: return "DEFAULT";
+			case 12: return "HSS call";
+			case 13: return "NAS_STEP_TWO";
+			case 14: return "PDN_SERVICE_REQUEST";
+			default: return null;
 		}
 	};
 
-	private String[] getDecryptedArray(String tmpArray[]) {
-		/* [tmpArray[1] => Encrypted text, tmpArray[2] => HMAC, tmpArray[3] => IMSI] */
-		Utils.hmacDigest(tmpArray[1], Constants.SAMPLE_ENC_KEY);
+	/* Encodes AUTHENTICATION_FAILURE in the format used by the UE */
+	private byte[] authenticationFailure(ControlMessage request) {
+		return ControlCodec.encode(new ControlMessage(ControlCodec.AUTHENTICATION_FAILURE, request.binary));
+	};
+
+	/* Completes INITIAL_CONTEXT_SETUP_RESPONSE once SGW tunnel of the UE is known:
+	 * modifies bearer on SGW, installs downlink rule on eNodeB and accepts the attach
+	 */
+	private void initialContextSetupResponse(UeContext ue, int ue_te_id, ControlMessage request, byte[] data, IOFSwitch switch_id, OFPort in_port,
+			MacAddress dst_mac, MacAddress src_mac, IPv4Address dst_ip, IPv4Address src_ip, TransportPort dst_port, TransportPort src_port) {
+		int ue_key = ue.ue_key;
+
+		ue.ue_te_id = ue_te_id;
+		EnodebRegistry.Enodeb enodeb = enodebOf(ue);
+		FlowTransaction tx = new FlowTransaction("INITIAL_CONTEXT_SETUP_RESPONSE");
+		sgw.modifyBearerRequest(switch_mapping.get(ue.sgw_dispatch_id), ue.sgw_dispatch_id, enodeb.dispatch_id, ue.sgw_te_id, ue_te_id, String.valueOf(ue_key), bearerCookie(ue), tx);
+		IPv4Address ue_ip = request.getIP(ControlCodec.IE_UE_IP);
+
+		if(Constants.DEBUG) {
+			// install down-link rule on eNodeB of the UE
+			System.out.println("eNodeB controller installing downlink rule on eNodeB Switch Dispatch ID: '" + enodeb.dispatch_id.getLong() + "', In-Port: '" + enodeb.portTo(ue.sgw_dispatch_id) +
+				"' in Tunnel Endpoint ID: '" + ue_te_id + "' Out-Port: '" + enodeb.ue_port + "', Out-Tunnel Endpoint ID: '" + ue_te_id + "' of UE Key: '" + ue_key + "'");
+		};
+
+		installFlowRule(enodeb.dispatch_id, enodeb.portTo(ue.sgw_dispatch_id), ue_te_id, enodeb.ue_port, ue_ip, bearerCookie(ue), tx);
+
+		ue.guti = ue_key + 1000;
+		ue.active = true;
+		journalSession(ue, false);
+
+		ControlMessage response = new ControlMessage(ControlCodec.ATTACH_ACCEPT, request.binary);
+		response.set(ControlCodec.IE_GUTI, ue_key);
+
+		if(Constants.DO_ENCRYPTION) {
+			decryptPayload(data);
+		};
+
+		// downlink packets held while UE was idle follow the new down-link rule of SGW-D
+		final IOFSwitch sgw_id = switch_mapping.get(ue.sgw_dispatch_id);
+		final int sgw_te_id = ue.sgw_te_id;
+		Runnable flush = new Runnable() {
+			@Override
+			public void run() {
+				sgw.flushDownlink(sgw_id, sgw_te_id);
+			};
+		};
+
+		// accept attach only once down-link path is installed on SGW-D and eNodeB
+		sendPacketAfter(tx, flush, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip,  IpProtocol.UDP, dst_port, src_port, ControlCodec.encode(response));
+	};
+
+	/* Parks INITIAL_CONTEXT_SETUP_RESPONSE till SEND_APN of the same UE has set up its SGW tunnel,
+	 * instead of spinning on the UE context. The continuation runs on the thread completing SEND_APN,
+	 * which is the worker owning this UE key, so ordering of the UE's procedures is kept.
+	 */
+	private void awaitBearer(final int ue_key, final int ue_te_id, final ControlMessage request, final byte[] data, final IOFSwitch switch_id, final OFPort in_port,
+			final MacAddress dst_mac, final MacAddress src_mac, final IPv4Address dst_ip, final IPv4Address src_ip, final TransportPort dst_port, final TransportPort src_port) {
+		pending.register(ue_key, "INITIAL_CONTEXT_SETUP_RESPONSE", Constants.PENDING_TRANSACTION_TIMEOUT, new Runnable() {
+			@Override
+			public void run() {
+				UeContext ue = ue_contexts.get(ue_key);
+				if(ue != null && ue.hasBearer()) {
+					initialContextSetupResponse(ue, ue_te_id, request, data, switch_id, in_port, dst_mac, src_mac, dst_ip, src_ip, dst_port, src_port);
+				};
+			};
+		}, new Runnable() {
+			@Override
+			public void run() {
+				System.out.println("ERROR: No SGW tunnel set up for UE Key: '" + ue_key + "' in " + Constants.PENDING_TRANSACTION_TIMEOUT + " ms, dropping INITIAL_CONTEXT_SETUP_RESPONSE");
+			};
+		});
+
+		// SEND_APN may have completed while registering, resume right away then
+		UeContext ue = ue_contexts.get(ue_key);
+		if(ue != null && ue.hasBearer()) {
+			pending.complete(ue_key);
+		};
+	};
+
+	/* Simulates integrity check and decryption of NAS payload received from UE */
+	private void decryptPayload(byte[] data) {
+		CryptoEngine engine = CryptoEngine.get();
+		engine.mac(SAMPLE_MAC_KEY, data, 0, data.length, engine.macBuffer(), 0);
+		engine.encrypt(SAMPLE_AES_KEY, data, 0, data.length, engine.buffer(CryptoEngine.encryptedSize(data.length)), 0);
+	};
 
-		String decText = "";
-		Utils.aesEncrypt(tmpArray[1], Constants.SAMPLE_ENC_KEY);
-		return decText.split(Constants.SEPARATOR);
+	/* Simulates encryption and integrity protection of NAS payload sent to UE */
+	private void encryptPayload(byte[] data) {
+		CryptoEngine engine = CryptoEngine.get();
+		engine.encrypt(SAMPLE_AES_KEY, data, 0, data.length, engine.buffer(CryptoEngine.encryptedSize(data.length)), 0);
+		engine.mac(SAMPLE_MAC_KEY, data, 0, data.length, engine.macBuffer(), 0);
 	};
 
 	private String[] KDF_NAS(int K_ASME, int NAS_integrity_algo_id, int NAS_cipher_algo_id) {
@@ -968,154 +1531,792 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 	};
 
 	/* This method deletes up-link rule */
-	private void deleteFlowRuleWithIP(DatapathId dispatch_id, int inPort, String ue_ip) {
+	private void deleteFlowRuleWithIP(DatapathId dispatch_id, int inPort, IPv4Address ue_ip, FlowTransaction tx) {
+		IOFSwitch switch_id = switch_mapping.get(dispatch_id);
 		if(switch_id == null) {
-			switch_id = switchService.getSwitch(dispatch_id);
+			FlowTransaction.abort(tx, "eNodeB switch " + dispatch_id + " is not connected");
+			return;
 		};
-		
+
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowDelete();
 		
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4).setExact(MatchField.IN_PORT, OFPort.of(inPort)).setExact(MatchField.IPV4_SRC, IPv4Address.of(ue_ip));
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.ENODEB_UPLINK, inPort);
+		mb.setExact(MatchField.IPV4_SRC, ue_ip);
 
 		fmb.setMatch(mb.build());
-		switch_id.write(fmb.build());
+		FlowTransaction.write(tx, switch_id, fmb.build());
 	};
 
 	/* This method delete down-link rule */
-	private void deleteFlowRuleWithTEID(DatapathId dispatch_id, int in_port, int ue_te_id, String src_ip) {
+	private void deleteFlowRuleWithTEID(DatapathId dispatch_id, int in_port, int ue_te_id, FlowTransaction tx) {
+		IOFSwitch switch_id = switch_mapping.get(dispatch_id);
 		if(switch_id == null) {
-			switch_id = switchService.getSwitch(dispatch_id);
+			FlowTransaction.abort(tx, "eNodeB switch " + dispatch_id + " is not connected");
+			return;
 		};
-		
+
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowDelete();
 		
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(in_port))
-		.setExact(MatchField.IPV4_SRC, IPv4Address.of(src_ip))
-		.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(ue_te_id)));
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.ENODEB_DOWNLINK, in_port);
+		mb.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(ue_te_id)));
 
 		fmb.setMatch(mb.build());
-		switch_id.write(fmb.build());
+		FlowTransaction.write(tx, switch_id, fmb.build());
 	};
 
-	/* This method installs up-link rule */
-	private void installFlowRuleWithIP(DatapathId dispatch_id, int in_port, int out_port, int out_tunnel_id, String ue_ip, String src_ip, String dst_ip, String dst_mac) {
+	/* This method installs up-link rule, constant parts come from FlowTemplates.ENODEB_UPLINK */
+	private void installFlowRuleWithIP(DatapathId dispatch_id, int in_port, int out_port, int out_tunnel_id, IPv4Address ue_ip, U64 idle_cookie, FlowTransaction tx) {
+		IOFSwitch switch_id = switch_mapping.get(dispatch_id);
 		if(switch_id == null) {
-			switch_id = switchService.getSwitch(dispatch_id);
+			FlowTransaction.abort(tx, "eNodeB switch " + dispatch_id + " is not connected");
+			return;
 		};
-		
+
+		// link to SGW-D of the bearer has gone down
+		if(in_port == Topology.NONE || out_port == Topology.NONE) {
+			FlowTransaction.abort(tx, "eNodeB switch " + dispatch_id + " is not linked to SGW-D of the bearer");
+			return;
+		};
+
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowAdd();
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.ENODEB_UPLINK, in_port);
+		mb.setExact(MatchField.IPV4_SRC, ue_ip);
 
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4);
-		mb.setExact(MatchField.IN_PORT, OFPort.of(in_port));
-		mb.setExact(MatchField.IPV4_SRC, IPv4Address.of(ue_ip));
+		fmb.setActions(FlowTemplates.actions(switch_id, FlowTemplates.ENODEB_UPLINK, out_port, FlowTemplates.setTunnel(switch_id, out_tunnel_id)));
+		fmb.setHardTimeout(0).setPriority(1).setBufferId(OFBufferId.NO_BUFFER).setMatch(mb.build());
+		SGWC.setIdleTimeout(fmb, idle_cookie);
+		FlowTransaction.write(tx, switch_id, fmb.build());
+	};
 
-		List<OFAction> actions = new ArrayList<OFAction>();
-		actions.add(switch_id.getOFFactory().actions().setVlanVid(VlanVid.ofVlan(out_tunnel_id)));
+	//* This method installs down-link rule, constant parts come from FlowTemplates.ENODEB_DOWNLINK */
+	private void installFlowRule(DatapathId dispatch_id, int in_port, int in_tunnel_id, int out_port, IPv4Address dst_ip, U64 idle_cookie, FlowTransaction tx) {
+		IOFSwitch switch_id = switch_mapping.get(dispatch_id);
+		if(switch_id == null) {
+			FlowTransaction.abort(tx, "eNodeB switch " + dispatch_id + " is not connected");
+			return;
+		};
 
-		if(!dst_ip.isEmpty()) {
-			actions.add(switch_id.getOFFactory().actions().setNwDst(IPv4Address.of(dst_ip)));
+		// link to SGW-D of the bearer has gone down
+		if(in_port == Topology.NONE || out_port == Topology.NONE) {
+			FlowTransaction.abort(tx, "eNodeB switch " + dispatch_id + " is not linked to SGW-D of the bearer");
+			return;
 		};
+
+		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowAdd();
 		
-		actions.add(switch_id.getOFFactory().actions().setDlDst(MacAddress.of(dst_mac)));
-		actions.add(switch_id.getOFFactory().actions().output(OFPort.of(out_port), Integer.MAX_VALUE));
-		fmb.setActions(actions);
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.ENODEB_DOWNLINK, in_port);
+		mb.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(in_tunnel_id)));
 
-		fmb.setHardTimeout(0).setIdleTimeout(0).setPriority(1).setBufferId(OFBufferId.NO_BUFFER).setMatch(mb.build());
-		switch_id.write(fmb.build());
+		fmb.setActions(FlowTemplates.actions(switch_id, FlowTemplates.ENODEB_DOWNLINK, out_port, switch_id.getOFFactory().actions().setNwDst(dst_ip)));
+		fmb.setHardTimeout(0).setPriority(1).setBufferId(OFBufferId.NO_BUFFER).setMatch(mb.build());
+		SGWC.setIdleTimeout(fmb, idle_cookie);
+		FlowTransaction.write(tx, switch_id, fmb.build());
+	};
+
+	public DatapathId selectSGWD(EnodebRegistry.Enodeb enodeb) {
+		// least loaded SGW-D linked to the eNodeB by polled port / flow stats, configured one until any such SGW-D is connected
+		return sgw_stats.select(enodeb.dispatch_id, DatapathId.of(Constants.SGW_DISPATCH_ID));
+	};
+
+	/* SGW-D serving the UE since SEND_APN, configured one if UE is unknown */
+	private DatapathId sgwOf(UeContext ue) {
+		return ue != null && ue.sgw_dispatch_id != null ? ue.sgw_dispatch_id : DatapathId.of(Constants.SGW_DISPATCH_ID);
+	};
+
+	/* PGW-D serving the UE, the default one if UE is unknown or its bearer predates per UE PGW-Ds */
+	private DatapathId pgwOf(UeContext ue) {
+		return ue != null && ue.pgw_dispatch_id != null ? ue.pgw_dispatch_id : DatapathId.of(Constants.PGW_ID);
+	};
+
+	/* eNodeB the UE has attached through, default one if UE is unknown or its eNodeB is no longer configured */
+	private EnodebRegistry.Enodeb enodebOf(UeContext ue) {
+		EnodebRegistry.Enodeb enodeb = ue != null && ue.enodeb_dispatch_id != null ? EnodebRegistry.get(ue.enodeb_dispatch_id.getLong()) : null;
+		return enodeb != null ? enodeb : EnodebRegistry.getDefault();
+	};
+
+	/* Cookie of idle timed rules of the current bearer of UE, null if bearers don't idle out.
+	 * [Bits 63-48 => Constants.BEARER_COOKIE_TAG, 47-32 => bearer generation, 31-0 => UE key]
+	 */
+	private U64 bearerCookie(UeContext ue) {
+		if(Constants.BEARER_IDLE_TIMEOUT <= 0 || ue == null) {
+			return null;
+		};
+
+		return U64.of(Constants.BEARER_COOKIE_TAG | (long) (ue.bearer_generation & 0xffff) << 32 | (ue.ue_key & 0xffffffffL));
 	};
 
-	//* This method installs down-link rule */
-	private void installFlowRule(DatapathId dispatch_id, int in_port, int in_tunnel_id, int out_port, int out_tunnel_id, String src_ip, String dst_ip, String dst_mac) {
+	/* Deletes up-link and down-link rules of a bearer on eNodeB and its down-link rule on SGW-D, leaving the UE idle */
+	private void releaseBearer(UeContext ue, DatapathId sgw_dispatch_id, IPv4Address ue_ip, int ue_te_id, int sgw_te_id, FlowTransaction tx) {
+		EnodebRegistry.Enodeb enodeb = enodebOf(ue);
+
+		// delete up-link rule
+		deleteFlowRuleWithIP(enodeb.dispatch_id, enodeb.ue_port, ue_ip, tx);
+
+		if(Constants.DEBUG) {
+			System.out.println("DEFAULT SWITCH deleting uplink rule for UE with IP: '"+ue_ip + "'");
+		};
+
+		int eNodeB_SGW_PORT = enodeb.portTo(sgw_dispatch_id);
+
+		//delete down-link rule
+		deleteFlowRuleWithTEID(enodeb.dispatch_id, eNodeB_SGW_PORT, ue_te_id, tx);
+
+		if(Constants.DEBUG) {
+			System.out.println("DEFAULT SWITCH deleting downlink rule for UE with IP: '" + ue_ip + "' and UE Tunnel Endpoint ID: '" + ue_te_id + "'");
+		};
+
+		sgw.releaseAccessBearersRequest(switch_mapping.get(sgw_dispatch_id), sgw_dispatch_id, sgw_te_id, ue_ip.toString(), tx);
+
+		// rules of the next bearer get a new cookie, so late removals of these are told apart
+		if(ue != null) {
+			ue.active = false;
+			ue.bearer_generation++;
+			journalSession(ue, false);
+		};
+	};
+
+	/* Journals bearer state of the UE, if sessions are persisted or replicated to a standby */
+	private void journalSession(UeContext ue, boolean created) {
+		if(journal != null) { journal.update(ue, created); };
+		if(replicator != null) { replicator.update(ue); };
+	};
+
+	/* Journals the end of the session of the UE, e.g. it has detached */
+	private void forgetSession(int ue_key) {
+		if(journal != null) { journal.delete(ue_key); };
+		if(replicator != null) { replicator.delete(ue_key); };
+	};
+
+	/* Rebuilds UE contexts, tunnel endpoint IDs and UE IPs in use from the session journal.
+	 * Their rules are installed again as switches connect (see reinstallBearers).
+	 */
+	private void restoreSessions() {
+		journal = new SessionJournal(Constants.SESSION_JOURNAL_DIR, Constants.SESSION_JOURNAL_SIZE);
+		Map<Integer, UeContext> sessions;
+
+		try {
+			sessions = journal.recover();
+		} catch (IOException e) {
+			System.out.println("ERROR: Sessions not restored, journal in: '" + Constants.SESSION_JOURNAL_DIR + "' unreadable (" + e + ")");
+			journal = null;
+			return;
+		}
+
+		int restored = 0;
+		for (UeContext ue : sessions.values()) {
+			// session adopted from another MME node, which holds its tunnel endpoint IDs and UE IP
+			if(ue.hasBearer() && cluster != null && SGWC.partOf(ue.sgw_te_id, cluster.getParts()) != cluster.getPart()) {
+				sgw.adoptTunnel(ue.sgw_te_id, ue.pgw_te_id);
+
+			} else if(!ue.hasBearer() || !sgw.restoreTunnel(ue.sgw_te_id, ue.pgw_te_id, ue.ue_ip)) {
+				System.out.println("ERROR: Session of UE Key: '" + ue.ue_key + "' not restored, tunnel endpoint IDs or IP: '" + ue.getIP() + "' out of range or in use");
+				continue;
+			};
+
+			ue_contexts.restore(ue);
+			restored++;
+		};
+
+		System.out.println("--- MME restored " + restored + " sessions, " + journal.getStats() + " ---");
+
+		// start the new run from a snapshot of what was restored
+		compactJournal();
+	};
+
+	/* Forces session journal to disk, and compacts it into a snapshot now and then */
+	private void scheduleJournalTasks() {
+		if(Constants.SESSION_JOURNAL_SYNC_INTERVAL > 0) {
+			journalSyncTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+				@Override
+				public void run() {
+					try {
+						journal.sync();
+					} finally {
+						journalSyncTask.reschedule(Constants.SESSION_JOURNAL_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+					};
+				};
+			});
+			journalSyncTask.reschedule(Constants.SESSION_JOURNAL_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+		};
+
+		snapshotTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(journal.hasAppended()) { compactJournal(); };
+				} finally {
+					snapshotTask.reschedule(Constants.SESSION_SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+				};
+			};
+		});
+		snapshotTask.reschedule(Constants.SESSION_SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+	};
+
+	private void compactJournal() {
+		try {
+			journal.compact(new SessionJournal.Source() {
+				@Override
+				public Iterable<UeContext> getSessions() {
+					// lent sessions keep their tunnel endpoint IDs and UE IP allocated after a restart
+					if(lent.isEmpty()) { return ue_contexts.values(); };
+
+					List<UeContext> sessions = new ArrayList<UeContext>(ue_contexts.values());
+					sessions.addAll(lent.values());
+					return sessions;
+				};
+			});
+		} catch (IOException e) {
+			System.out.println("ERROR: Session snapshot not written (" + e + "), journal keeps growing");
+		}
+	};
+
+	/* Installs rules of all sessions using the switch, as they were set up by the procedures */
+	private void reinstallBearers(DatapathId dispatch_id, IOFSwitch iof_switch) {
+		EnodebRegistry.Enodeb enodeb = EnodebRegistry.get(dispatch_id.getLong());
+		boolean is_sgw = Topology.isSgw(dispatch_id.getLong());
+		int count = 0;
+
+		for (UeContext ue : ue_contexts.values()) {
+			if(!ue.hasBearer() || ue.pgw_te_id == 0) { continue; };
+
+			String ue_ip = ue.getIP().toString();
+
+			// rules of eNodeB and down-link rule of SGW-D are only there while UE is active
+			if(enodeb != null && ue.active && enodebOf(ue) == enodeb) {
+				int enodeb_sgw_port = enodeb.portTo(ue.sgw_dispatch_id);
+				installFlowRuleWithIP(enodeb.dispatch_id, enodeb.ue_port, enodeb_sgw_port, ue.sgw_te_id, ue.getIP(), bearerCookie(ue), null);
+				installFlowRule(enodeb.dispatch_id, enodeb_sgw_port, ue.ue_te_id, enodeb.ue_port, ue.getIP(), bearerCookie(ue), null);
+				count++;
+			};
+
+			if(is_sgw && dispatch_id.equals(ue.sgw_dispatch_id)) {
+				sgw.installBearerRules(iof_switch, dispatch_id, enodebOf(ue).dispatch_id, ue.sgw_te_id, ue.pgw_te_id, ue.ue_te_id, ue_ip, ue.active, bearerCookie(ue), null);
+				count++;
+			};
+
+			if(dispatch_id.equals(ue.pgw_dispatch_id)) {
+				sgw.installPGWBearerRules(iof_switch, dispatch_id, ue.sgw_dispatch_id, ue.pgw_te_id, ue.sgw_te_id, ue_ip, null);
+				count++;
+			};
+		};
+
+		if(count > 0) {
+			System.out.println("--- Reinstalled rules of " + count + " sessions on switch: '" + dispatch_id + "' ---");
+		};
+	};
+
+	/* Joins the MME cluster, this node hands out its own part of tunnel endpoint IDs and UE IPs from now on */
+	private void startCluster() {
+		MmeCluster node = new MmeCluster(Constants.CLUSTER_NODES, Constants.CLUSTER_NODE_ID, new MmeCluster.Listener() {
+			@Override
+			public void packetIn(int from, long dpid, int in_port, byte[] frame) {
+				receiveForwardedPacketIn(from, dpid, in_port, frame);
+			};
+
+			@Override
+			public void session(byte[] record) {
+				adoptSession(record);
+			};
+
+			@Override
+			public void releaseTunnel(int sgw_te_id, int pgw_te_id, int ue_ip) {
+				releaseLentTunnel(sgw_te_id, pgw_te_id, ue_ip);
+			};
+
+			@Override
+			public void idleTimeout(int ue_key, int generation) {
+				dispatchIdleTimeout(ue_key, generation);
+			};
+
+			@Override
+			public void membershipChanged(ConsistentHashRing ring) {
+				rebalance(ring);
+			};
+		});
+
+		sgw.restrictToPart(node.getPart(), node.getParts());
+
+		try {
+			node.start();
+		} catch (IOException e) {
+			System.out.println("ERROR: MME cluster node " + Constants.CLUSTER_NODE_ID + " not started (" + e + "), running alone");
+			return;
+		}
+
+		cluster = node;
+		System.out.println("--- MME running as cluster node " + cluster.getSelf() + " (part " + (cluster.getPart() + 1) + " of " + cluster.getParts() + ") ---");
+
+		/* heartbeats go out on their own, this takes silent nodes off the ring and puts new ones on it */
+		clusterTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cluster.tick();
+				} finally {
+					clusterTask.reschedule(Constants.CLUSTER_HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+				};
+			};
+		});
+		clusterTask.reschedule(Constants.CLUSTER_HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+	};
+
+	/* Sessions held by this node and traffic with other MME nodes, empty if MME runs alone */
+	public String getClusterStats() {
+		if(cluster == null) { return ""; };
+		return cluster.getStats() + ", sessions=" + ue_contexts.size() + ", handoffs=" + handoffs.get() + ", lent=" + lent.size();
+	};
+
+	/* Hands packet-in of a UE to the MME node owning it. Dropped if switches send packet-ins to every node,
+	 * the owner has got it too.
+	 */
+	private Command forwardPacketIn(IOFSwitch switch_id, OFPort in_port, OFPacketIn packet, int owner) {
+		if(Constants.CLUSTER_FORWARD_PACKET_INS && !cluster.forwardPacketIn(owner, switch_id.getId().getLong(), in_port.getPortNumber(), packet.getData()) && Constants.DEBUG) {
+			System.out.println("MME cluster node " + owner + " is down or too far behind, dropping packet-in from switch: '" + switch_id.getId() + "'");
+		};
+
+		return Command.CONTINUE;
+	};
+
+	/* Downlink packet with an SGW tunnel endpoint ID unknown here. It goes to the node the session was handed to
+	 * if this node has lent it, else (once) to the node which handed out the ID. Returns false if it goes nowhere.
+	 */
+	private boolean forwardDownlinkPacket(IOFSwitch switch_id, OFPort in_port, int sgw_te_id, OFPacketIn packet, boolean forwarded) {
+		UeContext lent_ue = lent.get(sgw_te_id);
+		int node = ConsistentHashRing.NONE;
+
+		if(lent_ue != null) {
+			node = cluster.owner(lent_ue.ue_key);
+		} else if(!forwarded) {
+			int part = SGWC.partOf(sgw_te_id, cluster.getParts());
+			if(part >= 0) { node = cluster.nodeOfPart(part); };
+		};
+
+		if(node == ConsistentHashRing.NONE || node == cluster.getSelf()) {
+			return false;
+		};
+
+		return cluster.forwardPacketIn(node, switch_id.getId().getLong(), in_port.getPortNumber(), packet.getData());
+	};
+
+	/* Processes packet-in another MME node has received for a UE owned by this one, as if it came from the switch.
+	 * Replies go out through the same switch, which must be connected to this node as well.
+	 */
+	private void receiveForwardedPacketIn(int from, long dpid, int in_port, byte[] frame) {
+		IOFSwitch switch_id = switch_mapping.get(DatapathId.of(dpid));
+
 		if(switch_id == null) {
-			switch_id = switchService.getSwitch(dispatch_id);
+			System.out.println("ERROR: Packet-in forwarded by MME node " + from + " from switch: '" + dpid + "', which is not connected to this node - dropping");
+			return;
 		};
-		
-		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowAdd();
-		
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(in_port))
-		.setExact(MatchField.IPV4_SRC, IPv4Address.of(src_ip))
-		.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(in_tunnel_id)));
 
-		List<OFAction> actions = new ArrayList<OFAction>();
-		actions.add(switch_id.getOFFactory().actions().setVlanVid(VlanVid.ZERO));
-		actions.add(switch_id.getOFFactory().actions().setNwDst(IPv4Address.of(dst_ip)));
-		actions.add(switch_id.getOFFactory().actions().setDlDst(MacAddress.of(dst_mac)));
-		actions.add(switch_id.getOFFactory().actions().output(OFPort.of(out_port), Integer.MAX_VALUE));
-		fmb.setActions(actions);
+		OFFactory factory = switch_id.getOFFactory();
+		OFPacketIn.Builder builder = factory.buildPacketIn().setBufferId(OFBufferId.NO_BUFFER).setTotalLen(frame.length).setReason(OFPacketInReason.NO_MATCH).setData(frame);
 
-		fmb.setHardTimeout(0).setIdleTimeout(0).setPriority(1).setBufferId(OFBufferId.NO_BUFFER).setMatch(mb.build());
-		switch_id.write(fmb.build());
-	};
-
-	public DatapathId selectSGWD() {
-		DatapathId minLoadedSwitch = null;
-		Long minBytes = 0l;
-		boolean first_time = true;
-
-		// find the minimum loaded sgw switch
-		for (Map.Entry<DatapathId, Long> entry : switchStats.entrySet()) {
-			if(first_time) {
-				minLoadedSwitch = entry.getKey();
-				minBytes = entry.getValue();
-				first_time = false;
-			} else {
-				if(entry.getValue() < minBytes) {
-					minBytes = entry.getValue();
-					minLoadedSwitch = entry.getKey();
+		if(factory.getVersion().compareTo(OFVersion.OF_12) < 0) {
+			builder.setInPort(OFPort.of(in_port));
+		} else {
+			builder.setMatch(factory.buildMatch().setExact(MatchField.IN_PORT, OFPort.of(in_port)).build()).setTableId(TableId.ZERO);
+			if(factory.getVersion().compareTo(OFVersion.OF_13) >= 0) { builder.setCookie(U64.ZERO); };
+		};
+
+		Ethernet eth = new Ethernet();
+		try {
+			eth.deserialize(frame, 0, frame.length);
+		} catch (PacketParsingException e) {
+			System.out.println("ERROR: Packet-in forwarded by MME node " + from + " not parsed (" + e + ") - dropping");
+			return;
+		}
+
+		FloodlightContext context = new FloodlightContext();
+		IFloodlightProviderService.bcStore.put(context, IFloodlightProviderService.CONTEXT_PI_PAYLOAD, eth);
+
+		EnodebRegistry.Enodeb enodeb = EnodebRegistry.get(dpid);
+		if(enodeb != null) {
+			dispatchPacketInMessage(switch_id, enodeb, builder.build(), context, true);
+		} else if(Topology.isSgw(switch_id.getId().getLong())) {
+			processPacketInMessageFromSGW(switch_id, builder.build(), context, true);
+		};
+	};
+
+	/* Hands sessions now owned by another MME node to it, on the worker of each UE so no procedure of the UE
+	 * is halfway through. UEs still authenticating aren't moved, they restart authentication if they have to.
+	 * Sessions of a node which has failed are not taken over, see MmeCluster.
+	 */
+	private void rebalance(ConsistentHashRing ring) {
+		for (final UeContext ue : ue_contexts.values()) {
+			if(ue.ue_key == 0 || !ue.hasBearer() || ue.pgw_te_id == 0) { continue; };
+
+			final int owner = ring.owner(ue.ue_key);
+			if(owner == cluster.getSelf()) { continue; };
+
+			if(workers == null) {
+				handOff(ue, owner);
+				continue;
+			};
+
+			workers.dispatch(ue.ue_key, new Runnable() {
+				@Override
+				public void run() {
+					handOff(ue, owner);
 				};
+			});
+		};
+	};
+
+	private void handOff(UeContext ue, int owner) {
+		// UE has detached, or ring has changed again meanwhile
+		if(ue_contexts.get(ue.ue_key) != ue || cluster.owner(ue.ue_key) != owner) {
+			return;
+		};
+
+		// node is gone again or too far behind, session stays here till the next membership change
+		if(!cluster.sendSession(owner, SessionJournal.encodeSession(ue))) {
+			return;
+		};
+
+		ue_contexts.remove(ue);
+		paging.cancel(ue.ue_key);
+		sgw.handOffTunnel(ue.sgw_te_id);
+
+		// IDs and UE IP handed out here stay allocated till the UE detaches, wherever it is then
+		if(sgw.isLocalTunnel(ue.sgw_te_id)) {
+			lent.put(ue.sgw_te_id, ue);
+		} else {
+			forgetSession(ue.ue_key);
+		};
+
+		handoffs.incrementAndGet();
+	};
+
+	/* Hands the context bound at SEND_APN to the node owning its UE key, followed by SEND_APN itself over the same
+	 * connection, so that node has the context before it processes the request. Steps after SEND_APN carry the
+	 * UE key only, so authentication (keyed by IMSI) and the bearer (keyed by UE key) end up on one node.
+	 */
+	private void handOverAttach(UeContext ue, IOFSwitch switch_id, OFPort in_port, OFPacketIn packet) {
+		int owner = cluster.owner(ue.ue_key);
+
+		if(!cluster.sendSession(owner, SessionJournal.encodeSession(ue)) || !cluster.forwardPacketIn(owner, switch_id.getId().getLong(), in_port.getPortNumber(), packet.getData())) {
+			System.out.println("ERROR: SEND_APN of UE Key: '" + ue.ue_key + "' not handed to MME node " + owner + ", which is down or too far behind - dropping request");
+		};
+
+		ue_contexts.remove(ue);
+		handoffs.incrementAndGet();
+	};
+
+	/* Takes over session of a UE another MME node has handed to this one, or the context of a UE
+	 * which has authenticated there and attaches here (see handOverAttach)
+	 */
+	private void adoptSession(byte[] record) {
+		final UeContext ue = SessionJournal.decodeSession(record);
+
+		if(ue == null || ue.ue_key == 0 || (!ue.hasBearer() && ue.imsi == 0)) {
+			System.out.println("ERROR: Session handed over by another MME node is damaged - dropping");
+			return;
+		};
+
+		Runnable adopt = new Runnable() {
+			@Override
+			public void run() {
+				// e.g. restored from the journal of this node too, the handed over one is newer
+				UeContext old = ue_contexts.get(ue.ue_key);
+				if(old != null) { ue_contexts.remove(old); };
+
+				// attach goes on here, SEND_APN follows
+				if(!ue.hasBearer()) {
+					ue_contexts.restore(ue);
+					return;
+				};
+
+				// session lent by this node has come back
+				lent.remove(ue.sgw_te_id);
+
+				sgw.adoptTunnel(ue.sgw_te_id, ue.pgw_te_id);
+				ue_contexts.restore(ue);
+				journalSession(ue, true);
 			};
 		};
-		
-		return minLoadedSwitch;
+
+		if(workers == null) {
+			adopt.run();
+		} else {
+			workers.dispatch(ue.ue_key, adopt);
+		};
 	};
 
-	/* This method creates and sends packet to eNodeB switch on port in which it arrived */
-	public boolean sendPacket(IOFSwitch switch_id, OFPort out_port, MacAddress src_mac, MacAddress dst_mac, 
-			IPv4Address src_ip, IPv4Address dst_ip, IpProtocol proto, 
-			TransportPort src_port, TransportPort dst_port, String data) {
+	/* Frees tunnel endpoint IDs and UE IP of a lent session, its UE has detached from the node holding it */
+	private void releaseLentTunnel(int sgw_te_id, int pgw_te_id, int ue_ip) {
+		UeContext ue = lent.remove(sgw_te_id);
 
-		try{
-			// sending packet in response
-			OFPacketOut.Builder pktNew = switch_id.getOFFactory().buildPacketOut();
-			pktNew.setBufferId(OFBufferId.NO_BUFFER);
+		if(ue == null) {
+			System.out.println("ERROR: MME cluster releasing SGW Tunnel Endpoint ID: '" + sgw_te_id + "' which is not lent by this node");
+			return;
+		};
+
+		forgetSession(ue.ue_key);
+		sgw.releaseTunnel(sgw_te_id, pgw_te_id, ue_ip);
+	};
+
+	/* Starts replicating sessions to the standby MME, or as standby mirroring sessions of the active one */
+	private void startReplication() {
+		// sessions handed between cluster nodes aren't mirrored with their new owners
+		if(cluster != null) {
+			System.out.println("ERROR: Hot standby isn't supported on MME cluster nodes, running without standby");
+			return;
+		};
+
+		replicator = new SessionReplicator(Constants.REPLICATION_ADDRESS);
+
+		if(Constants.REPLICATION_ROLE.equals("active")) {
+			replicator.startActive(new SessionJournal.Source() {
+				@Override
+				public Iterable<UeContext> getSessions() {
+					return ue_contexts.values();
+				};
+			});
+			return;
+		};
+
+		if(!Constants.REPLICATION_ROLE.equals("standby")) {
+			System.out.println("ERROR: Unknown replication role: '" + Constants.REPLICATION_ROLE + "' expected: 'active' or 'standby', running without standby");
+			replicator = null;
+			return;
+		};
+
+		standby = true;
+
+		// standby stays passive till it can listen, taking over right away could leave two active MMEs
+		standbyListenTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+			@Override
+			public void run() {
+				if(!listenAsStandby()) {
+					standbyListenTask.reschedule(Constants.REPLICATION_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+				};
+			};
+		});
+		standbyListenTask.reschedule(0, TimeUnit.MILLISECONDS);
+	};
+
+	/* Listens for the active MME as standby, returns false if it can't (yet) */
+	private boolean listenAsStandby() {
+		try {
+			replicator.startStandby(new SessionReplicator.Standby() {
+				@Override
+				public void reset() {
+					resetMirroredSessions();
+				};
+
+				@Override
+				public void update(UeContext ue) {
+					mirrorSession(ue);
+				};
+
+				@Override
+				public void delete(int ue_key) {
+					dropMirroredSession(ue_key);
+				};
+
+				@Override
+				public void takeOver() {
+					takeOverFromActive();
+				};
+			});
+		} catch (IOException e) {
+			System.out.println("ERROR: Standby MME can't listen at: '" + Constants.REPLICATION_ADDRESS + "' (" + e + "), retrying in " + Constants.REPLICATION_RETRY_INTERVAL + " ms");
+			return false;
+		}
+
+		System.out.println("--- MME running as standby, listening for active at: '" + Constants.REPLICATION_ADDRESS + "' ---");
+		return true;
+	};
+
+	/* Replication to / from the standby MME and sessions held, empty if there is no standby */
+	public String getReplicationStats() {
+		if(replicator == null) { return ""; };
+		return replicator.getStats() + ", sessions=" + ue_contexts.size();
+	};
+
+	/* Forgets all mirrored sessions, the active is about to send them again */
+	private void resetMirroredSessions() {
+		for (UeContext ue : ue_contexts.values()) {
+			sgw.forgetTunnel(ue.sgw_te_id, ue.pgw_te_id, ue.ue_ip);
+		};
+
+		ue_contexts.clear();
+	};
+
+	/* Applies new or changed session of the active MME, tunnel endpoint IDs and UE IP are taken as the active has */
+	private void mirrorSession(UeContext ue) {
+		UeContext old = ue_contexts.get(ue.ue_key);
+
+		if(old != null) {
+			ue_contexts.remove(old);
+
+			// same tunnel, e.g. UE has gone idle or active
+			if(old.sgw_te_id == ue.sgw_te_id && old.pgw_te_id == ue.pgw_te_id && old.ue_ip == ue.ue_ip) {
+				ue_contexts.restore(ue);
+				return;
+			};
+
+			sgw.forgetTunnel(old.sgw_te_id, old.pgw_te_id, old.ue_ip);
+		};
+
+		if(!ue.hasBearer() || !sgw.restoreTunnel(ue.sgw_te_id, ue.pgw_te_id, ue.ue_ip)) {
+			System.out.println("ERROR: Session of UE Key: '" + ue.ue_key + "' not mirrored, tunnel endpoint IDs or IP: '" + ue.getIP() + "' out of range or in use");
+			return;
+		};
 
-			Ethernet ethNew = new Ethernet();
-			ethNew.setSourceMACAddress(src_mac);
-			ethNew.setDestinationMACAddress(dst_mac);
-			ethNew.setEtherType(EthType.IPv4);
+		ue_contexts.restore(ue);
+	};
+
+	private void dropMirroredSession(int ue_key) {
+		UeContext ue = ue_contexts.get(ue_key);
+		if(ue == null) { return; };
+
+		ue_contexts.remove(ue);
+		sgw.forgetTunnel(ue.sgw_te_id, ue.pgw_te_id, ue.ue_ip);
+	};
+
+	/* Standby becomes the active MME with the sessions mirrored so far, whose rules are on the switches already */
+	private void takeOverFromActive() {
+		long start = System.nanoTime();
+		standby = false;
+		replicator = null;
+
+		// journal of this MME starts from a snapshot of the mirrored sessions, whatever else it holds is stale
+		if(!Constants.SESSION_JOURNAL_DIR.isEmpty()) {
+			SessionJournal taken_over = new SessionJournal(Constants.SESSION_JOURNAL_DIR, Constants.SESSION_JOURNAL_SIZE);
+
+			try {
+				taken_over.recover();
+				journal = taken_over;
+				compactJournal();
+				scheduleJournalTasks();
+			} catch (IOException e) {
+				System.out.println("ERROR: Sessions not persisted, journal in: '" + Constants.SESSION_JOURNAL_DIR + "' unreadable (" + e + ")");
+			}
+		};
+
+		System.out.println("--- MME took over " + ue_contexts.size() + " sessions from active in " + (System.nanoTime() - start) / 1000000 + " ms ---");
+
+		// active may have died halfway through a procedure, rules of the mirrored sessions are installed again
+		for (Map.Entry<DatapathId, IOFSwitch> entry : switch_mapping.entrySet()) {
+			setUpSwitch(entry.getKey(), entry.getValue());
+		};
+	};
+
+	/* Commits flow transaction of a procedure and sends its reply only once all switches have acknowledged
+	 * the flow mods. If the data path could not be installed the reply is dropped and UE has to retry.
+	 */
+	private void sendPacketAfter(final FlowTransaction tx, final IOFSwitch switch_id, final OFPort out_port, final MacAddress src_mac, final MacAddress dst_mac,
+			final IPv4Address src_ip, final IPv4Address dst_ip, final IpProtocol proto,
+			final TransportPort src_port, final TransportPort dst_port, final byte[] data) {
+		sendPacketAfter(tx, null, switch_id, out_port, src_mac, dst_mac, src_ip, dst_ip, proto, src_port, dst_port, data);
+	};
+
+	/* Same as above, then runs then (may be null) once the reply is sent */
+	private void sendPacketAfter(final FlowTransaction tx, final Runnable then, final IOFSwitch switch_id, final OFPort out_port, final MacAddress src_mac, final MacAddress dst_mac,
+			final IPv4Address src_ip, final IPv4Address dst_ip, final IpProtocol proto,
+			final TransportPort src_port, final TransportPort dst_port, final byte[] data) {
+		sendPacketAfter(tx, then, null, switch_id, out_port, src_mac, dst_mac, src_ip, dst_ip, proto, src_port, dst_port, data);
+	};
+
+	/* Same as above, runs rollback (may be null) instead if the flow rules could not be installed */
+	private void sendPacketAfter(final FlowTransaction tx, final Runnable then, final Runnable rollback, final IOFSwitch switch_id, final OFPort out_port, final MacAddress src_mac, final MacAddress dst_mac,
+			final IPv4Address src_ip, final IPv4Address dst_ip, final IpProtocol proto,
+			final TransportPort src_port, final TransportPort dst_port, final byte[] data) {
+		tx.commit(new FlowTransaction.Callback() {
+			@Override
+			public void onComplete(FlowTransaction tx) {
+				sendPacket(switch_id, out_port, src_mac, dst_mac, src_ip, dst_ip, proto, src_port, dst_port, data);
+				if(then != null) { then.run(); };
+			};
 
-			IPv4 ipNew = new IPv4();
-			ipNew.setSourceAddress(src_ip);
-			ipNew.setDestinationAddress(dst_ip);
+			@Override
+			public void onFailure(FlowTransaction tx, String reason) {
+				System.out.println("ERROR: Flow rules of '" + tx.getName() + "' not installed (" + reason + "), dropping reply to UE at: '" + dst_ip + "'");
+				if(rollback != null) { rollback.run(); };
+			};
+		}, threadPoolService.getScheduledExecutor(), Constants.FLOW_TRANSACTION_TIMEOUT);
+	};
 
-			ipNew.setProtocol(proto);
-			ipNew.setTtl((byte) 64);
+	/* Takes back the bearer SEND_APN has set up for the UE if its rules could not be installed, on the worker of
+	 * the UE as the failure is reported on a switch or timer thread (see releaseFailedBearer)
+	 */
+	private Runnable bearerRollback(final int ue_key, final int sgw_te_id) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				if(workers == null) {
+					releaseFailedBearer(ue_key, sgw_te_id);
+					return;
+				};
 
-			UDP updNew = new UDP();
-			updNew.setSourcePort(src_port);
-			updNew.setDestinationPort(dst_port);
+				workers.dispatch(ue_key, new Runnable() {
+					@Override
+					public void run() {
+						releaseFailedBearer(ue_key, sgw_te_id);
+					};
+				});
+			};
+		};
+	};
 
-			Data dataNew = new Data();
-			dataNew.setData(data.getBytes());
+	/* Deletes whatever rules of the bearer made it to the switches, frees its tunnel endpoint IDs and UE IP, and
+	 * drops it from the context and the journal / standby. UE retries SEND_APN as it gets no reply.
+	 */
+	private void releaseFailedBearer(int ue_key, int sgw_te_id) {
+		UeContext ue = ue_contexts.get(ue_key);
 
-			// putting it all together
-			ethNew.setPayload(ipNew.setPayload(updNew.setPayload(dataNew)));
+		// UE has detached or attached again meanwhile, that has dealt with the bearer
+		if(ue == null || ue.sgw_te_id != sgw_te_id) {
+			return;
+		};
+
+		final IPv4Address ue_ip = ue.getIP();
+		DatapathId sgw_dispatch_id = sgwOf(ue);
+		DatapathId pgw_dispatch_id = pgwOf(ue);
+		EnodebRegistry.Enodeb enodeb = enodebOf(ue);
 
-			// set in-port to OFPP_NONE
-			pktNew.setInPort(OFPort.ZERO);
-			List<OFAction> actions = new ArrayList<OFAction>();
-			actions.add(switch_id.getOFFactory().actions().output(out_port, 0xffFFffFF));
+		FlowTransaction tx = new FlowTransaction("SEND_APN_ROLLBACK");
+		deleteFlowRuleWithIP(enodeb.dispatch_id, enodeb.ue_port, ue_ip, tx);
+		if(ue.ue_te_id != 0) {
+			deleteFlowRuleWithTEID(enodeb.dispatch_id, enodeb.portTo(sgw_dispatch_id), ue.ue_te_id, tx);
+		};
+		sgw.detachUEFromSGW(switch_mapping.get(sgw_dispatch_id), switch_mapping.get(pgw_dispatch_id), sgw_dispatch_id, pgw_dispatch_id, enodeb.dispatch_id, sgw_te_id, ue_ip.toString(), tx);
+		sgw.discardDownlink(sgw_te_id);
+
+		ue_contexts.setUeIp(ue, 0);
+		ue_contexts.setSgwTunnel(ue, null, 0);
+		ue.pgw_te_id = 0;
+		ue.pgw_dispatch_id = null;
+		ue.ue_te_id = 0;
+		ue.active = false;
+		forgetSession(ue_key);
+
+		tx.commit(new FlowTransaction.Callback() {
+			@Override
+			public void onComplete(FlowTransaction tx) { };
+
+			@Override
+			public void onFailure(FlowTransaction tx, String reason) {
+				System.out.println("ERROR: Flow rules of '" + tx.getName() + "' not deleted (" + reason + ") for UE at: '" + ue_ip + "'");
+			};
+		}, threadPoolService.getScheduledExecutor(), Constants.FLOW_TRANSACTION_TIMEOUT);
+	};
+
+	public boolean sendPacket(IOFSwitch switch_id, OFPort out_port, MacAddress src_mac, MacAddress dst_mac, 
+			IPv4Address src_ip, IPv4Address dst_ip, IpProtocol proto, 
+			TransportPort src_port, TransportPort dst_port, String data) {
+		return sendPacket(switch_id, out_port, src_mac, dst_mac, src_ip, dst_ip, proto, src_port, dst_port, data.getBytes());
+	};
 
-			pktNew.setActions(actions);
-			pktNew.setData(ethNew.serialize());
+	/* Same as above for an already encoded payload (see ControlCodec) */
+	public boolean sendPacket(IOFSwitch switch_id, OFPort out_port, MacAddress src_mac, MacAddress dst_mac, 
+			IPv4Address src_ip, IPv4Address dst_ip, IpProtocol proto, 
+			TransportPort src_port, TransportPort dst_port, byte[] data) {
 
-			switch_id.write(pktNew.build());
+		try{
+			switch_id.write(buildPacketOut(switch_id, out_port, src_mac, dst_mac, src_ip, dst_ip, proto, src_port, dst_port, data));
 			return true;
 	
 		} catch(Exception e) {
@@ -1125,6 +2326,47 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 		return false;
 	};
 
+	/* Builds packet-out carrying a UDP datagram, for switch to send on out_port */
+	private OFPacketOut buildPacketOut(IOFSwitch switch_id, OFPort out_port, MacAddress src_mac, MacAddress dst_mac, 
+			IPv4Address src_ip, IPv4Address dst_ip, IpProtocol proto, 
+			TransportPort src_port, TransportPort dst_port, byte[] data) {
+		// sending packet in response
+		OFPacketOut.Builder pktNew = switch_id.getOFFactory().buildPacketOut();
+		pktNew.setBufferId(OFBufferId.NO_BUFFER);
+
+		Ethernet ethNew = new Ethernet();
+		ethNew.setSourceMACAddress(src_mac);
+		ethNew.setDestinationMACAddress(dst_mac);
+		ethNew.setEtherType(EthType.IPv4);
+
+		IPv4 ipNew = new IPv4();
+		ipNew.setSourceAddress(src_ip);
+		ipNew.setDestinationAddress(dst_ip);
+
+		ipNew.setProtocol(proto);
+		ipNew.setTtl((byte) 64);
+
+		UDP updNew = new UDP();
+		updNew.setSourcePort(src_port);
+		updNew.setDestinationPort(dst_port);
+
+		Data dataNew = new Data();
+		dataNew.setData(data);
+
+		// putting it all together
+		ethNew.setPayload(ipNew.setPayload(updNew.setPayload(dataNew)));
+
+		// set in-port to OFPP_NONE
+		pktNew.setInPort(OFPort.ZERO);
+		List<OFAction> actions = new ArrayList<OFAction>();
+		actions.add(switch_id.getOFFactory().actions().output(out_port, 0xffFFffFF));
+
+		pktNew.setActions(actions);
+		pktNew.setData(ethNew.serialize());
+
+		return pktNew.build();
+	};
+
 	protected Match createMatchFromPacket(IOFSwitch switch_id, OFPort in_port, FloodlightContext context) {
 		Ethernet eth = IFloodlightProviderService.bcStore.get(context, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
 		VlanVid vlan = VlanVid.ofVlan(eth.getVlanID());
@@ -1157,8 +2399,15 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 		System.out.println("--- SWITCH Added: '" + switch_id + "' ---");
 		switch_mapping.put(switch_id, switchService.getSwitch(switch_id));
 
+		// rules are installed by the active MME, and by this one once it takes over
+		if(!standby) {
+			setUpSwitch(switch_id, switchService.getSwitch(switch_id));
+		};
+	};
+
+	/* Installs ARP rule and rules of existing sessions on a switch */
+	private void setUpSwitch(DatapathId switch_id, IOFSwitch iof_switch) {
 		// install ARP rule
-		IOFSwitch iof_switch = switchService.getSwitch(switch_id);
 		OFFlowMod.Builder fmb = iof_switch.getOFFactory().buildFlowAdd();
 		
 		Match.Builder mb = iof_switch.getOFFactory().buildMatch();
@@ -1171,13 +2420,18 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 		fmb.setHardTimeout(0).setIdleTimeout(0).setPriority(1).setBufferId(OFBufferId.NO_BUFFER).setMatch(mb.build());
 
 		iof_switch.write(fmb.build());
+
+		// switch may have lost rules of existing sessions, e.g. it has restarted, or they were set up by an earlier run of the controller
+		reinstallBearers(switch_id, iof_switch);
 	};
 
 	@Override
 	public void switchRemoved(DatapathId switch_id) {
 		System.out.println("--- SWITCH Removed: '" + switch_id + "' ---");
-		switchStats.remove(switch_id);
+		sgw_stats.reset(switch_id);
 		switch_mapping.remove(switch_id);
+		FlowTemplates.forget(switch_id);
+		Topology.switchRemoved(switch_id.getLong());
 	};
 
 	@Override
@@ -1187,7 +2441,43 @@ public class MME implements IFloodlightModule, IOFMessageListener, IOFSwitchList
 
 	@Override
 	public void switchPortChanged(DatapathId switchId, OFPortDesc port, PortChangeType type) {
-		// TODO Auto-generated method stub
+		switch (type) {
+			case UP:
+			case ADD:
+				Topology.portChanged(switchId.getLong(), port.getPortNo().getPortNumber(), true);
+				break;
+			case DOWN:
+			case DELETE:
+				Topology.portChanged(switchId.getLong(), port.getPortNo().getPortNumber(), false);
+				break;
+			default:
+				break;
+		};
+	};
+
+	@Override
+	public void linkDiscoveryUpdate(List<LDUpdate> updateList) {
+		for (LDUpdate update : updateList) {
+			switch (update.getOperation()) {
+				case LINK_UPDATED:
+					Topology.linkUpdated(update.getSrc().getLong(), update.getSrcPort().getPortNumber(), update.getDst().getLong(), update.getDstPort().getPortNumber());
+					break;
+				case LINK_REMOVED:
+					Topology.linkRemoved(update.getSrc().getLong(), update.getSrcPort().getPortNumber(), update.getDst().getLong(), update.getDstPort().getPortNumber());
+					break;
+				case PORT_UP:
+					Topology.portChanged(update.getSrc().getLong(), update.getSrcPort().getPortNumber(), true);
+					break;
+				case PORT_DOWN:
+					Topology.portChanged(update.getSrc().getLong(), update.getSrcPort().getPortNumber(), false);
+					break;
+				case SWITCH_REMOVED:
+					Topology.switchRemoved(update.getSrc().getLong());
+					break;
+				default:
+					break;
+			};
+		};
 	};
 
 	@Override
@@ -0,0 +1,493 @@
+/* #### MME Cluster ####
+ * This class connects MME nodes sharing the UEs of the network. UEs are
+ * partitioned across the nodes which are up with a ConsistentHashRing
+ * keyed by IMSI / UE key, a node hands packet-ins of UEs it doesn't own
+ * to their owner over a TCP connection per pair of nodes. Messages are
+ * framed as [int length][byte type][payload], queued per node and
+ * written in batches by a sender thread. Nodes send heartbeats while
+ * idle; a node not heard from for Constants.CLUSTER_FAILURE_TIMEOUT
+ * leaves the ring and joins it again as soon as it is heard from. Each
+ * membership change builds a new ring and is handed to the Listener,
+ * which moves sessions to their new owners (see MME.rebalance).
+ *
+ * Sessions are only moved by a node which is up. A node which fails
+ * takes its sessions down with it: nobody else has them (hot standby
+ * isn't supported on cluster nodes), its UEs attach again with their
+ * new owners, or find their sessions back once the node has restarted
+ * from its session journal and rejoined the ring.
+ *
+ * A batch of messages lost with a broken connection is written again
+ * once reconnected, receivers take sessions, releases and idle timeouts
+ * twice harmlessly. Packet-ins of the batch are counted as lost instead,
+ * as processing one twice isn't harmless and the UE retransmits anyway.
+ *
+ * Nodes are configured as "id=host:port,..." (see Constants.CLUSTER_NODES),
+ * so several controllers on one machine just listen on different ports.
+ */
+package net.floodlightcontroller.splus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MmeCluster {
+	/* Takes messages received from other nodes, called on the reader thread of the connection */
+	public interface Listener {
+		// packet-in of a UE owned by this node, received from switch dpid by another node
+		void packetIn(int from, long dpid, int in_port, byte[] frame);
+
+		// session of a UE this node has become the owner of, as a journal record (see SessionJournal.encodeSession)
+		void session(byte[] record);
+
+		// tunnel endpoint IDs and UE IP handed out by this node are free again, UE has detached from another node
+		void releaseTunnel(int sgw_te_id, int pgw_te_id, int ue_ip);
+
+		// idle timed rule of a bearer of a UE owned by this node was removed from a switch of another node (see MME.idleTimeout)
+		void idleTimeout(int ue_key, int generation);
+
+		// nodes have joined or left, called on the thread of tick()
+		void membershipChanged(ConsistentHashRing ring);
+	}
+
+	/* #### Message Types #### */
+	static final byte HELLO = 1;			// [int node ID], first message on every connection
+	static final byte HEARTBEAT = 2;		// []
+	static final byte PACKET_IN = 3;		// [long dpid, int in_port, frame]
+	static final byte SESSION = 4;			// [journal record]
+	static final byte RELEASE_TUNNEL = 5;	// [int sgw_te_id, int pgw_te_id, int ue_ip]
+	static final byte IDLE_TIMEOUT = 6;		// [int ue_key, int bearer generation]
+
+	// largest frame accepted, a bigger length means the stream is out of sync
+	private static final int MAX_FRAME_SIZE = 64 << 10;
+
+	private static final byte[] HEARTBEAT_FRAME = frame(HEARTBEAT, 0).array();
+
+	/* Another node, messages to it are queued and written by its sender thread */
+	private class Peer {
+		final int id;
+		final InetSocketAddress address;
+		final LinkedBlockingQueue<byte[]> queue;
+
+		volatile long last_heard;	// time (in milliseconds) of the last message from the node, 0 => never
+		volatile boolean up;		// node is on the ring
+		Thread sender;
+
+		Peer(int id, InetSocketAddress address) {
+			this.id = id;
+			this.address = address;
+			this.queue = new LinkedBlockingQueue<byte[]>(Constants.CLUSTER_QUEUE_CAPACITY);
+		};
+	}
+
+	private final int self;
+	private final int node_ids[];
+	private final InetSocketAddress listen_address;
+	private final Map<Integer, Peer> peers;
+	private final Listener listener;
+
+	private volatile ConsistentHashRing ring;
+	private volatile boolean running;
+	private ServerSocket server;
+
+	private final AtomicLong forwarded = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong sessions_sent = new AtomicLong();
+	private final AtomicLong sessions_received = new AtomicLong();
+	private final AtomicLong releases = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong resent = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong membership_changes = new AtomicLong();
+
+	/* Node self of the cluster of nodes "id=host:port,..." */
+	public MmeCluster(String nodes, int self, Listener listener) {
+		Map<Integer, InetSocketAddress> addresses = new HashMap<Integer, InetSocketAddress>();
+
+		for (String node : nodes.split(",")) {
+			String parts[] = node.trim().split("[=:]");
+			if(parts.length != 3) {
+				throw new IllegalArgumentException("Bad MME cluster node: '" + node + "', expected id=host:port");
+			};
+
+			addresses.put(Integer.parseInt(parts[0].trim()), new InetSocketAddress(parts[1].trim(), Integer.parseInt(parts[2].trim())));
+		};
+
+		if(!addresses.containsKey(self)) {
+			throw new IllegalArgumentException("MME cluster node ID: '" + self + "' not in: '" + nodes + "'");
+		};
+
+		this.self = self;
+		this.listener = listener;
+		this.listen_address = addresses.get(self);
+
+		this.node_ids = new int[addresses.size()];
+		int i = 0;
+		for (int id : addresses.keySet()) { node_ids[i++] = id; };
+		Arrays.sort(node_ids);
+
+		Map<Integer, Peer> peer_map = new HashMap<Integer, Peer>();
+		for (Map.Entry<Integer, InetSocketAddress> entry : addresses.entrySet()) {
+			if(entry.getKey() != self) { peer_map.put(entry.getKey(), new Peer(entry.getKey(), entry.getValue())); };
+		};
+		this.peers = Collections.unmodifiableMap(peer_map);
+
+		// other nodes join as they are heard from, till then this node owns all UEs
+		this.ring = new ConsistentHashRing(Collections.singleton(self), Constants.CLUSTER_VIRTUAL_NODES);
+	};
+
+	/* Listens for other nodes and starts connecting to them */
+	public void start() throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(listen_address);
+		running = true;
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			};
+		}, "mme-cluster-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (final Peer peer : peers.values()) {
+			peer.sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					send(peer);
+				};
+			}, "mme-cluster-sender-" + peer.id);
+			peer.sender.setDaemon(true);
+			peer.sender.start();
+		};
+	};
+
+	public void stop() {
+		running = false;
+
+		try {
+			if(server != null) { server.close(); };
+		} catch (IOException e) {
+			// closing anyway
+		}
+
+		for (Peer peer : peers.values()) {
+			if(peer.sender != null) { peer.sender.interrupt(); };
+		};
+	};
+
+	/* Takes nodes not heard from for too long off the ring and puts newly heard ones on it,
+	 * must be called every Constants.CLUSTER_HEARTBEAT_INTERVAL or so by a single thread
+	 */
+	public void tick() {
+		long now = System.currentTimeMillis();
+		Set<Integer> live = new HashSet<Integer>();
+		live.add(self);
+
+		for (Peer peer : peers.values()) {
+			peer.up = peer.last_heard > 0 && now - peer.last_heard < Constants.CLUSTER_FAILURE_TIMEOUT;
+			if(peer.up) { live.add(peer.id); };
+		};
+
+		if(live.equals(ring.getNodes())) { return; };
+
+		ConsistentHashRing before = ring;
+		ring = new ConsistentHashRing(live, Constants.CLUSTER_VIRTUAL_NODES);
+		membership_changes.incrementAndGet();
+
+		System.out.println("--- MME cluster node " + self + " membership changed from " + before.getNodes() + " to " + live + " ---");
+		listener.membershipChanged(ring);
+	};
+
+	/* Node owning the UE of the key (IMSI or UE key) */
+	public int owner(long key) {
+		return ring.owner(key);
+	};
+
+	public boolean isLocal(long key) {
+		return ring.owner(key) == self;
+	};
+
+	public int getSelf() {
+		return self;
+	};
+
+	/* Index of this node among all configured nodes, tunnel endpoint IDs and UE IPs are split by it
+	 * so nodes never hand out the same ones. It doesn't change when nodes leave the ring.
+	 */
+	public int getPart() {
+		return Arrays.binarySearch(node_ids, self);
+	};
+
+	/* Number of configured nodes */
+	public int getParts() {
+		return node_ids.length;
+	};
+
+	/* Node handing out tunnel endpoint IDs and UE IPs of part (see getPart) */
+	public int nodeOfPart(int part) {
+		return node_ids[part];
+	};
+
+	public boolean forwardPacketIn(int node, long dpid, int in_port, byte[] frame) {
+		ByteBuffer message = frame(PACKET_IN, 12 + frame.length);
+		message.putLong(dpid).putInt(in_port).put(frame);
+
+		if(!send(node, message.array())) { return false; };
+
+		forwarded.incrementAndGet();
+		return true;
+	};
+
+	public boolean sendSession(int node, byte[] record) {
+		ByteBuffer message = frame(SESSION, record.length);
+		message.put(record);
+
+		if(!send(node, message.array())) { return false; };
+
+		sessions_sent.incrementAndGet();
+		return true;
+	};
+
+	public boolean releaseTunnel(int node, int sgw_te_id, int pgw_te_id, int ue_ip) {
+		ByteBuffer message = frame(RELEASE_TUNNEL, 12);
+		message.putInt(sgw_te_id).putInt(pgw_te_id).putInt(ue_ip);
+
+		return send(node, message.array());
+	};
+
+	public boolean forwardIdleTimeout(int node, int ue_key, int generation) {
+		ByteBuffer message = frame(IDLE_TIMEOUT, 8);
+		message.putInt(ue_key).putInt(generation);
+
+		return send(node, message.array());
+	};
+
+	// queues message for the node, false if it is down or too far behind
+	private boolean send(int node, byte[] message) {
+		Peer peer = peers.get(node);
+
+		if(peer == null || !peer.up || !peer.queue.offer(message)) {
+			dropped.incrementAndGet();
+			return false;
+		};
+
+		return true;
+	};
+
+	// frame of the type with room for payload_length bytes, positioned at the payload
+	private static ByteBuffer frame(byte type, int payload_length) {
+		ByteBuffer buffer = ByteBuffer.allocate(5 + payload_length);
+		buffer.putInt(1 + payload_length).put(type);
+		return buffer;
+	};
+
+	/* Sender thread of a node: (re)connects, writes queued messages in batches and heartbeats while idle */
+	private void send(Peer peer) {
+		Socket socket = null;
+		DataOutputStream out = null;
+
+		// messages written since the last flush, which may not have reached the node
+		List<byte[]> unflushed = new ArrayList<byte[]>();
+
+		while (running) {
+			try {
+				if(socket == null) {
+					socket = new Socket();
+					socket.setTcpNoDelay(true);
+					socket.connect(peer.address, (int) Constants.CLUSTER_FAILURE_TIMEOUT);
+					out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 << 10));
+
+					ByteBuffer hello = frame(HELLO, 4);
+					hello.putInt(self);
+					out.write(hello.array());
+
+					// node has left the ring meanwhile, its state has moved on without them
+					if(!peer.up) {
+						lost.addAndGet(unflushed.size());
+						unflushed.clear();
+					};
+
+					for (byte[] message : unflushed) { out.write(message); };
+					resent.addAndGet(unflushed.size());
+				};
+
+				byte[] message = peer.queue.poll(Constants.CLUSTER_HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+				if(message == null) { message = HEARTBEAT_FRAME; };
+
+				// whatever has been queued meanwhile goes out with the same flush
+				do {
+					unflushed.add(message);
+					out.write(message);
+				} while ((message = peer.queue.poll()) != null);
+
+				out.flush();
+				unflushed.clear();
+
+			} catch (InterruptedException e) {
+				break;
+
+			} catch (IOException e) {
+				if(socket != null && Constants.DEBUG) {
+					System.out.println("MME cluster lost connection to node " + peer.id + " at: '" + peer.address + "' (" + e + ")");
+				};
+
+				// only state messages are written again, see header
+				for (Iterator<byte[]> it = unflushed.iterator(); it.hasNext();) {
+					byte type = it.next()[4];
+					if(type == SESSION || type == RELEASE_TUNNEL || type == IDLE_TIMEOUT) { continue; };
+
+					if(type == PACKET_IN) { lost.incrementAndGet(); };
+					it.remove();
+				};
+
+				close(socket);
+				socket = null;
+				reconnects.incrementAndGet();
+
+				try {
+					Thread.sleep(Constants.CLUSTER_HEARTBEAT_INTERVAL);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		};
+
+		close(socket);
+	};
+
+	/* Acceptor thread, each connection from another node gets a reader thread */
+	private void accept() {
+		while (running) {
+			try {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						read(socket);
+					};
+				}, "mme-cluster-reader");
+				reader.setDaemon(true);
+				reader.start();
+
+			} catch (IOException e) {
+				if(running) { System.out.println("ERROR: MME cluster not accepting connections (" + e + ")"); };
+			}
+		};
+	};
+
+	/* Reader thread of a connection, hands messages of the node to the listener */
+	private void read(Socket socket) {
+		Peer peer = null;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 << 10));
+
+			while (running) {
+				int length = in.readInt();
+				if(length < 1 || length > MAX_FRAME_SIZE) {
+					throw new IOException("bad frame length " + length);
+				};
+
+				byte type = in.readByte();
+				byte[] payload = new byte[length - 1];
+				in.readFully(payload);
+				ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+				if(peer == null) {
+					peer = type == HELLO ? peers.get(buffer.getInt()) : null;
+					if(peer == null) { throw new IOException("connection from an unknown node"); };
+				};
+
+				peer.last_heard = System.currentTimeMillis();
+
+				try {
+					switch (type) {
+						case PACKET_IN:
+							long dpid = buffer.getLong();
+							int in_port = buffer.getInt();
+							byte[] frame = Arrays.copyOfRange(payload, buffer.position(), payload.length);
+
+							received.incrementAndGet();
+							listener.packetIn(peer.id, dpid, in_port, frame);
+							break;
+
+						case SESSION:
+							sessions_received.incrementAndGet();
+							listener.session(payload);
+							break;
+
+						case RELEASE_TUNNEL:
+							releases.incrementAndGet();
+							listener.releaseTunnel(buffer.getInt(), buffer.getInt(), buffer.getInt());
+							break;
+
+						case IDLE_TIMEOUT:
+							listener.idleTimeout(buffer.getInt(), buffer.getInt());
+							break;
+
+						default:
+							// HELLO, HEARTBEAT
+							break;
+					};
+				} catch (RuntimeException e) {
+					System.out.println("ERROR: MME cluster message of type " + type + " from node " + peer.id + " not processed (" + e + ")");
+				}
+			};
+
+		} catch (EOFException e) {
+			// node has closed the connection, e.g. it is shutting down
+
+		} catch (IOException e) {
+			if(running) {
+				System.out.println("ERROR: MME cluster connection from: '" + socket.getRemoteSocketAddress() + "' dropped (" + e + ")");
+			};
+		}
+
+		close(socket);
+	};
+
+	private static void close(Socket socket) {
+		if(socket == null) { return; };
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	};
+
+	public String getStats() {
+		StringBuilder queued = new StringBuilder();
+		for (Peer peer : peers.values()) {
+			queued.append(queued.length() == 0 ? "" : ",").append(peer.id).append(peer.up ? "=" : "(down)=").append(peer.queue.size());
+		};
+
+		return "mme_cluster: node=" + self + ", ring=" + ring.getNodes() + ", queued=[" + queued + "], forwarded=" + forwarded.get() + ", received=" + received.get() +
+			", sessions_sent=" + sessions_sent.get() + ", sessions_received=" + sessions_received.get() + ", releases=" + releases.get() + ", dropped=" + dropped.get() + ", lost=" + lost.get() + ", resent=" + resent.get() +
+			", reconnects=" + reconnects.get() + ", membership_changes=" + membership_changes.get();
+	};
+}
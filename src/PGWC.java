@@ -8,10 +8,9 @@ package net.floodlightcontroller.splus;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.internal.IOFSwitchService;
@@ -21,38 +20,39 @@ import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
-import org.projectfloodlight.openflow.protocol.action.OFAction;
 import org.projectfloodlight.openflow.protocol.match.Match;
 import org.projectfloodlight.openflow.protocol.match.MatchField;
 import org.projectfloodlight.openflow.types.DatapathId;
-import org.projectfloodlight.openflow.types.EthType;
 import org.projectfloodlight.openflow.types.IPv4Address;
 import org.projectfloodlight.openflow.types.OFBufferId;
-import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.OFVlanVidMatch;
 import org.projectfloodlight.openflow.types.VlanVid;
 
 public class PGWC implements IFloodlightModule {
 	protected static IOFSwitchService switchService;
 
-	int numIPs;
-	int tunnel_id;
 	int pgw_pdn_port;
-	volatile String ip;
-	
-	Queue<String> reuseable_ip_pool;
-	Queue<Integer> reuseable_te_id_pool;
+	TeidAllocator te_ids;
+
+	/* [Key => APN + SEPARATOR + PGW-D dispatch ID, Value => UE IP pools tried in order] */
+	Map<String, IpPool[]> ip_pools;
+	IpPool[] default_ip_pools;
+	List<IpPool> all_ip_pools;
 
 	public PGWC() {
-		numIPs = 0;
-		tunnel_id = 4000;
+		te_ids = new TeidAllocator("pgw", Constants.PGW_MIN_TE_ID, Constants.PGW_MAX_TE_ID);
 
 		// proxy gateway port which is connected to PDN
 		pgw_pdn_port = Constants.PGW_PDN_PORT;
-		ip = Constants.STARTING_UE_IP;
-		
-		reuseable_te_id_pool = new LinkedList<Integer>();
-		reuseable_ip_pool = new LinkedList<String>();
+
+		// pools are only looked up after this, so plain maps are fine
+		ip_pools = new HashMap<String, IpPool[]>();
+		all_ip_pools = new ArrayList<IpPool>();
+		default_ip_pools = createIPPools(Constants.DEFAULT_UE_IP_POOLS);
+
+		for (Map.Entry<String, String[]> entry : Constants.UE_IP_POOLS.entrySet()) {
+			ip_pools.put(entry.getKey(), createIPPools(entry.getValue()));
+		};
 	};
 
 	@Override
@@ -85,146 +85,204 @@ public class PGWC implements IFloodlightModule {
 		return null;
 	};
 
-	public String[] getIPFragments(String ipAddr) {
-		return ipAddr.split("\\.");
+	/* Address handed out before the first UE address of the default pools (see REQUEST_STARTING_IP) */
+	public int getPGWStartIP() {
+		return default_ip_pools[0].getStartingAddress();
 	};
-	
-	public String getPGWStartIP() {
-		return this.ip;
+
+	/* Pools of the APN on the PGW-D, or the default pools if the APN has none of its own */
+	IpPool[] getIPPools(long apn, DatapathId pgw_dispatch_id) {
+		IpPool[] pools = ip_pools.get(apn + Constants.SEPARATOR + pgw_dispatch_id.getLong());
+		return pools == null ? default_ip_pools : pools;
 	};
 
-	/* This method generates the next IP address in sequence given the current IP address. */
-	public String getNextIP(String ipAddr) throws IllegalArgumentException {
-		String[] octets = getIPFragments(ipAddr);
-		
-		if (octets != null && octets.length == 4) {
-			Integer octet1 = Integer.parseInt(octets[0]);
-			Integer octet2 = Integer.parseInt(octets[1]);
-			Integer octet3 = Integer.parseInt(octets[2]);
-			Integer octet4 = Integer.parseInt(octets[3]);
-		
-			if (octet4 < 255) {
-				return octet1 + "." + octet2 + "." + octet3 + "." + (++octet4);
-			} else if (octet4 == 255) {
-				if (octet3 < 255) {
-					return octet1 + "." + octet2 + "." + (++octet3) + ".0";
-				} else if (octet3 == 255) {
-					if (octet2 < 255) {
-						return octet1 + "." + (++octet2) + ".0.0";
-					} else if (octet2 == 255) {
-						if (octet1 < 255) {
-							return (++octet1) + ".0.0.0";
-						} else if (octet1 == 255) {
-							throw new IllegalArgumentException("IP Range Exceeded: '" + ipAddr + "'");
-						};
-					};
+	/* Utilisation of all UE IP pools, one line per pool */
+	public String getIPPoolStats() {
+		StringBuilder sb = new StringBuilder();
+		for (IpPool pool : all_ip_pools) { sb.append(pool.getStats()).append('\n'); };
+		return sb.toString();
+	};
+
+	/* Builds pools of the blocks, a block configured more than once gets one pool */
+	private IpPool[] createIPPools(String[] blocks) {
+		IpPool[] pools = new IpPool[blocks.length];
+
+		for (int i = 0; i < blocks.length; i++) {
+			for (IpPool pool : all_ip_pools) {
+				if(pool.getName().equals(blocks[i])) { pools[i] = pool; };
+			};
+
+			if(pools[i] != null) { continue; };
+			pools[i] = new IpPool(blocks[i]);
+
+			for (IpPool pool : all_ip_pools) {
+				if(pool.overlaps(pools[i])) {
+					throw new IllegalArgumentException("UE IP pool '" + blocks[i] + "' overlaps with '" + pool.getName() + "'");
 				};
 			};
+
+			// addresses of network components (and cells of all eNodeBs) are not for UEs
+			for (String component : new String[]{Constants.SGWD_IP_UPLINK, Constants.SGWD_IP_DOWNLINK, Constants.PGWD_IP_UPLINK, Constants.PGWD_IP_DOWNLINK, Constants.PDN_IP}) {
+				pools[i].reserve(IPv4Address.of(component).getInt());
+			};
+
+			for (EnodebRegistry.Enodeb enodeb : EnodebRegistry.getAll()) {
+				pools[i].reserve(IPv4Address.of(enodeb.ran_ip).getInt());
+				pools[i].reserve(IPv4Address.of(enodeb.uplink_ip).getInt());
+				pools[i].reserve(IPv4Address.of(enodeb.downlink_ip).getInt());
+			};
+
+			all_ip_pools.add(pools[i]);
 		};
 
-		throw new IllegalArgumentException("Bad or Invalid IP Address: '" + ipAddr + "'");
+		return pools;
 	};
 
-	/* This method generates and allocates the UE IP along with PGW Tunnel ID for specific UE session */
-	String allocateIPForUE(IOFSwitch pgw_switch, int sgw_tunnel_id, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, String apn) {
-		int pgw_te_id;
-
-		// check is reusing old tunnel id possible
-		if(reuseable_te_id_pool.isEmpty()) {
-			if(tunnel_id < 0 || tunnel_id > 4000) { tunnel_id = 4000; };
-			pgw_te_id = tunnel_id;
-			tunnel_id--;
-			
-		} else {
-			pgw_te_id = reuseable_te_id_pool.remove();		
-			if(Constants.DEBUG) {
-				System.out.println("PGW-C Reusing Tunnel Endpoint ID: '" + pgw_te_id + "'");
-			};
+	/* This method generates and allocates the UE IP along with PGW Tunnel ID for specific UE session.
+	 * Returns null if PGW-C has run out of tunnel endpoint IDs or IP addresses of the APN.
+	 */
+	String allocateIPForUE(IOFSwitch pgw_switch, int sgw_tunnel_id, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, long apn, FlowTransaction tx) {
+		int pgw_te_id = te_ids.allocate();
+
+		if(pgw_te_id == TeidAllocator.NONE) {
+			System.out.println("ERROR: PGW-C has run out of Tunnel Endpoint IDs for UE: '" + apn + "', " + te_ids.getStats());
+			return null;
 		};
 		
-		try {
-			if(reuseable_ip_pool.isEmpty()) {
-				this.ip = getNextIP(ip);
-				numIPs++;
-	
-			} else {
-				this.ip = reuseable_ip_pool.remove();
-				if(Constants.DEBUG) {
-					System.out.println("PGW-C Reusing IP: '" + ip + "', IP Count: '" + numIPs + "'");
-				};
-			};
-			
-		} catch (Exception e) {
-			e.printStackTrace();
+		int address = IpPool.NONE;
+		for (IpPool pool : getIPPools(apn, pgw_dispatch_id)) {
+			address = pool.allocate();
+			if(address != IpPool.NONE) { break; };
 		};
+
+		if(address == IpPool.NONE) {
+			System.out.println("ERROR: PGW-C has run out of IP addresses for UE: '" + apn + "' on PGW-D: '" + pgw_dispatch_id.getLong() + "'");
+			te_ids.release(pgw_te_id);
+			return null;
+		};
+
+		String ip = IPv4Address.of(address).toString();
 		
 		if(Constants.DEBUG) {
 			System.out.println("PGW-D Tunnel ID of UE '" + apn + "' is '" + pgw_te_id + "'");
 		};
 		
 		// install up-link and down-link rules
-		installPGWRules(pgw_switch, pgw_dispatch_id, Constants.PGW_SGW_PORT_MAP.get(pgw_dispatch_id.getLong() + Constants.SEPARATOR + sgw_dispatch_id.getLong()), pgw_te_id, sgw_tunnel_id, pgw_pdn_port, apn, ip);
+		installPGWRules(pgw_switch, pgw_dispatch_id, Topology.portTo(pgw_dispatch_id.getLong(), sgw_dispatch_id.getLong()), pgw_te_id, sgw_tunnel_id, pgw_pdn_port, apn, ip, tx);
 		return ip + Constants.SEPARATOR + pgw_te_id;
 	};
 
-	/* This method deletes up-link and down-link flow rules from Proxy Gateway Switch (PGW-D) */
-	public boolean detachUEFromPGW(IOFSwitch pgw_switch, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, int pgw_te_id, String ue_ip) {
-		int pgw_port = Constants.PGW_SGW_PORT_MAP.get(pgw_dispatch_id.getLong() + Constants.SEPARATOR + sgw_dispatch_id.getLong());
+	/* This method deletes up-link and down-link flow rules from Proxy Gateway Switch (PGW-D),
+	 * release is false if tunnel endpoint ID and UE IP were handed out by another node of the MME cluster
+	 */
+	public boolean detachUEFromPGW(IOFSwitch pgw_switch, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, int pgw_te_id, String ue_ip, boolean release, FlowTransaction tx) {
+		int pgw_port = Topology.portTo(pgw_dispatch_id.getLong(), sgw_dispatch_id.getLong());
 
 		// delete up-link rule
-		deleteFlowRuleWithTEID(pgw_switch, pgw_port, pgw_te_id, ue_ip);
+		deleteFlowRuleWithTEID(pgw_switch, pgw_port, pgw_te_id, ue_ip, tx);
 
 		if(Constants.DEBUG) {
 			System.out.println("PGW-C deleting up-link rule with PGW-D Tunnel Endpoint ID: '" + pgw_te_id + "' and Port: '" + pgw_port + "' for UE with IP: '" + ue_ip + "'");
 		};
 
 		// delete down-link rule
-		deleteFlowRuleWithIP(pgw_switch, pgw_pdn_port, ue_ip);
+		deleteFlowRuleWithIP(pgw_switch, pgw_pdn_port, ue_ip, tx);
 		
 		if(Constants.DEBUG) {
 			System.out.println("PGW-C deleting down-link rule with PGW-D Tunnel Endpoint ID: '" + pgw_te_id + "' and Port: '" + pgw_pdn_port + "' for UE with IP: '" + ue_ip + "'");
 		};
 		
-		reuseable_ip_pool.add(ue_ip);
+		if(release) {
+			releaseTunnel(pgw_te_id, IPv4Address.of(ue_ip).getInt());
+		};
 		return true;
 	};
+
+	/* Frees tunnel endpoint ID and UE IP of a tunnel, returns false if either of them wasn't in use */
+	boolean releaseTunnel(int pgw_te_id, int address) {
+		boolean released = releaseIP(address);
+		return te_ids.release(pgw_te_id) && released;
+	};
+
+	/* Hands out only part (see MmeCluster.getPart) of tunnel endpoint IDs and of the addresses of every UE IP pool */
+	void restrictToPart(int part, int parts) {
+		te_ids = TeidAllocator.slice("pgw", Constants.PGW_MIN_TE_ID, Constants.PGW_MAX_TE_ID, part, parts);
+		for (IpPool pool : all_ip_pools) { pool.restrict(part, parts); };
+	};
 	
+	/* Takes back tunnel endpoint ID and UE address of a session restored from the session journal.
+	 * Returns false (and takes nothing) if either of them is already in use or out of range.
+	 */
+	boolean restoreTunnel(int pgw_te_id, int address) {
+		if(!te_ids.allocate(pgw_te_id)) { return false; };
+
+		for (IpPool pool : all_ip_pools) {
+			if(pool.contains(address)) {
+				if(pool.allocate(address)) { return true; };
+				break;
+			};
+		};
+
+		te_ids.release(pgw_te_id);
+		return false;
+	};
+
+	/* Installs up-link and down-link rules of an existing session again, e.g. PGW-D has reconnected */
+	void installBearerRules(IOFSwitch pgw_switch, DatapathId pgw_dispatch_id, DatapathId sgw_dispatch_id, int pgw_te_id, int sgw_te_id, String ue_ip, FlowTransaction tx) {
+		installPGWRules(pgw_switch, pgw_dispatch_id, Topology.portTo(pgw_dispatch_id.getLong(), sgw_dispatch_id.getLong()), pgw_te_id, sgw_te_id, pgw_pdn_port, 0, ue_ip, tx);
+	};
+
+	/* Returns UE address to the pool it came from, returns false if no pool has it in use */
+	boolean releaseIP(int address) {
+		for (IpPool pool : all_ip_pools) {
+			if(!pool.contains(address)) { continue; };
+
+			if(pool.release(address)) { return true; };
+			break;
+		};
+
+		System.out.println("ERROR: PGW-C releasing IP: '" + IPv4Address.of(address) + "' which is not in use");
+		return false;
+	};
+
 	/* This method deletes down-link rule */
-	private void deleteFlowRuleWithIP(IOFSwitch switch_id, int switch_port, String ue_ip) {
+	private void deleteFlowRuleWithIP(IOFSwitch switch_id, int switch_port, String ue_ip, FlowTransaction tx) {
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowDelete();
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.PGW_DOWNLINK, switch_port);
 
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(switch_port))
-		.setExact(MatchField.IPV4_DST, IPv4Address.of(ue_ip));
+		mb.setExact(MatchField.IPV4_DST, IPv4Address.of(ue_ip));
 
 		fmb.setMatch(mb.build());
-		switch_id.write(fmb.build());
+		FlowTransaction.write(tx, switch_id, fmb.build());
 	};
 	
 	/* This method deletes up-link rule */
-	private void deleteFlowRuleWithTEID(IOFSwitch switch_id, int switch_port, int pgw_te_id, String src_ip){
+	private void deleteFlowRuleWithTEID(IOFSwitch switch_id, int switch_port, int pgw_te_id, String src_ip, FlowTransaction tx){
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowDelete();
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.PGW_UPLINK, switch_port);
 
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(switch_port))
-		.setExact(MatchField.IPV4_SRC, IPv4Address.of(src_ip))
+		mb.setExact(MatchField.IPV4_SRC, IPv4Address.of(src_ip))
 		.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(pgw_te_id)));
 
 		fmb.setMatch(mb.build());
-		switch_id.write(fmb.build());
+		FlowTransaction.write(tx, switch_id, fmb.build());
 	};
 
 	/* This method installs up-link and down-link flow rules on Proxy Gateway Switch (PGW-D) */
-	private void installPGWRules(IOFSwitch pgw, DatapathId pgw_dispatch_id, int in_port, int pgw_tunnel_id, int sgw_tunnel_id, int out_port, String apn, String ue_ip) {
+	private void installPGWRules(IOFSwitch pgw, DatapathId pgw_dispatch_id, int in_port, int pgw_tunnel_id, int sgw_tunnel_id, int out_port, long apn, String ue_ip, FlowTransaction tx) {
+		// link to SGW-D has gone down (or PGW-D has disconnected)
+		if(pgw == null || in_port == Topology.NONE) {
+			FlowTransaction.abort(tx, "PGW-D " + pgw_dispatch_id.getLong() + " is not connected or not linked to SGW-D of the bearer");
+			return;
+		};
+
 		// up-link rule (PGW -> PDN)
 		if(Constants.DEBUG) {
 			System.out.println("PGW-C installing up-link rule on PGW-D Dispatch ID: '" + pgw_dispatch_id.getLong() + "' with In-Port: '" + in_port + "' and In-Tunnel Endpoint ID: '" + pgw_tunnel_id + 
 					"' to Out-Port: '" + out_port + "' and Out-Tunnel Endpoint ID: '" + pgw_tunnel_id + "' of UE: '" + apn + "'");
 		};
 		
-		installFlowRule(pgw, pgw_dispatch_id, in_port, pgw_tunnel_id, out_port, pgw_tunnel_id, ue_ip, Constants.PDN_IP);
+		installFlowRule(pgw, pgw_dispatch_id, in_port, pgw_tunnel_id, out_port, ue_ip, tx);
 
 		// down-link rule (PDN to PGW)
 		if(Constants.DEBUG) {
@@ -232,32 +290,23 @@ public class PGWC implements IFloodlightModule {
 					"' to Out-Port: '" + in_port + "' and Out-Tunnel Endpoint ID: '" + sgw_tunnel_id + " with Source IP: '" + Constants.PDN_IP + "' of UE: '" + apn + "'");
 		};
 		
-		installFlowRuleWithIP(pgw, pgw_dispatch_id, out_port, in_port, sgw_tunnel_id, ue_ip, Constants.PDN_IP, Constants.SGWD_IP_DOWNLINK);
+		installFlowRuleWithIP(pgw, pgw_dispatch_id, out_port, in_port, sgw_tunnel_id, ue_ip, tx);
 	};
 
-	/* This method installs up-link rule */
-	private void installFlowRule(IOFSwitch switch_id, DatapathId dispatch_id, int in_port, int in_tunnel_id, int out_port, int out_tunnel_id, String src_ip, String dst_ip) {
+	/* This method installs up-link rule, constant parts come from FlowTemplates.PGW_UPLINK */
+	private void installFlowRule(IOFSwitch switch_id, DatapathId dispatch_id, int in_port, int in_tunnel_id, int out_port, String ue_ip, FlowTransaction tx) {
 		if(Constants.DEBUG) {
 			System.out.println("Installing up-link rule at Switch Service: '" + switchService + "' and Dispatch ID '" + dispatch_id + "'");
 		};
 
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowAdd();
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.PGW_UPLINK, in_port);
 
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(in_port))
-		.setExact(MatchField.IPV4_SRC, IPv4Address.of(src_ip))
+		mb.setExact(MatchField.IPV4_SRC, IPv4Address.of(ue_ip))
 		.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(in_tunnel_id)));
 
-		List<OFAction> actions = new ArrayList<OFAction>();
-		actions.add(switch_id.getOFFactory().actions().stripVlan()); // Out-Tunnel-ID
-		
-		if(!dst_ip.isEmpty()) {
-			actions.add(switch_id.getOFFactory().actions().setNwDst(IPv4Address.of(dst_ip)));
-		};
-		
-		actions.add(switch_id.getOFFactory().actions().output(OFPort.of(out_port), Integer.MAX_VALUE));
-		fmb.setActions(actions);
+		// Out-Tunnel-ID is stripped, nothing in the actions depends on the UE
+		fmb.setActions(FlowTemplates.actions(switch_id, FlowTemplates.PGW_UPLINK, out_port, null));
 
 		fmb.setHardTimeout(0)
 		.setIdleTimeout(0)
@@ -265,27 +314,20 @@ public class PGWC implements IFloodlightModule {
 		.setBufferId(OFBufferId.NO_BUFFER)
 		.setMatch(mb.build());
 
-		switch_id.write(fmb.build());
+		FlowTransaction.write(tx, switch_id, fmb.build());
 	};
 
-	/* This method installs down-link rule */
-	private void installFlowRuleWithIP(IOFSwitch switch_id, DatapathId distpach_id, int in_port, int out_port, int out_tunnel_id, String ue_ip, String pdn_ip, String sgw_ip) {
+	/* This method installs down-link rule, constant parts come from FlowTemplates.PGW_DOWNLINK */
+	private void installFlowRuleWithIP(IOFSwitch switch_id, DatapathId distpach_id, int in_port, int out_port, int out_tunnel_id, String ue_ip, FlowTransaction tx) {
 		if(Constants.DEBUG) {
 			System.out.println("Installing down-link rule at Switch Service: '"+ switchService + "' and  Dispatch ID: '" + distpach_id + "'");
 		};
 
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowAdd();
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
-
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(in_port))
-		.setExact(MatchField.IPV4_DST, IPv4Address.of(ue_ip));
+		Match.Builder mb = FlowTemplates.match(switch_id, FlowTemplates.PGW_DOWNLINK, in_port);
 
-		List<OFAction> actions = new ArrayList<OFAction>();
-		actions.add(switch_id.getOFFactory().actions().setVlanVid(VlanVid.ofVlan(out_tunnel_id)));
-		actions.add(switch_id.getOFFactory().actions().setNwDst(IPv4Address.of(sgw_ip)));
-		actions.add(switch_id.getOFFactory().actions().output(OFPort.of(out_port), Integer.MAX_VALUE));
-		fmb.setActions(actions);
+		mb.setExact(MatchField.IPV4_DST, IPv4Address.of(ue_ip));
+		fmb.setActions(FlowTemplates.actions(switch_id, FlowTemplates.PGW_DOWNLINK, out_port, FlowTemplates.setTunnel(switch_id, out_tunnel_id)));
 
 		fmb.setHardTimeout(0)
 		.setIdleTimeout(0)
@@ -293,6 +335,6 @@ public class PGWC implements IFloodlightModule {
 		.setBufferId(OFBufferId.NO_BUFFER)
 		.setMatch(mb.build());
 
-		switch_id.write(fmb.build());
+		FlowTransaction.write(tx, switch_id, fmb.build());
 	};
 }
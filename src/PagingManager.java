@@ -0,0 +1,166 @@
+/* #### Paging Manager ####
+ * This class pages idle UEs for which PDN has downlink data. There is
+ * at most one page pending per UE, further downlink notifications for
+ * it are coalesced into that page. A periodic tick sends pages which
+ * are due as one batch, spends at most Constants.PAGING_RATE pages per
+ * second across all UEs and retransmits unanswered pages with doubling
+ * intervals till the UE asks for service (see stop()) or gives up after
+ * Constants.PAGING_MAX_ATTEMPTS pages.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PagingManager {
+	/* Sends pages due in the same tick, e.g. as one write of packet-outs to eNodeB switch */
+	public interface Sender {
+		void sendPages(List<Page> batch);
+	}
+
+	/* Pending page of a UE, attempts and due are only touched by tick() */
+	public static class Page {
+		final int ue_key;
+		volatile int ue_te_id;	// tunnel endpoint ID of the latest downlink notification
+		int attempts;			// pages sent so far
+		long due;				// time (in milliseconds) the next page is sent at
+
+		Page(int ue_key, int ue_te_id, long due) {
+			this.ue_key = ue_key;
+			this.ue_te_id = ue_te_id;
+			this.due = due;
+		};
+	}
+
+	// oldest pages go first when the rate limit doesn't let all due pages out
+	private static final Comparator<Page> BY_DUE = new Comparator<Page>() {
+		@Override
+		public int compare(Page a, Page b) {
+			return Long.compare(a.due, b.due);
+		};
+	};
+
+	/* [Key => UE-Key, Value => its pending page] */
+	private final ConcurrentHashMap<Integer, Page> pages;
+	private final Sender sender;
+
+	// pages which may still be sent under the rate limit, and when it was last topped up
+	private double budget;
+	private long last_tick;
+
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong retransmitted = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+	private final AtomicLong answered = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	public PagingManager(Sender sender) {
+		this.sender = sender;
+		this.pages = new ConcurrentHashMap<Integer, Page>();
+		this.last_tick = System.currentTimeMillis();
+	};
+
+	/* Pages the UE with the next tick, returns false if a page of the UE is already pending */
+	public boolean page(int ue_key, int ue_te_id) {
+		requested.incrementAndGet();
+
+		Page page = new Page(ue_key, ue_te_id, System.currentTimeMillis());
+		Page existing = pages.putIfAbsent(ue_key, page);
+
+		if(existing != null) {
+			existing.ue_te_id = ue_te_id;
+			coalesced.incrementAndGet();
+			return false;
+		};
+
+		return true;
+	};
+
+	/* Stops paging the UE, e.g. it has asked for service. Returns false if it wasn't being paged. */
+	public boolean stop(int ue_key) {
+		if(pages.remove(ue_key) == null) { return false; };
+
+		answered.incrementAndGet();
+		return true;
+	};
+
+	/* Forgets the page of a UE without counting it as answered, e.g. UE has gone */
+	public void cancel(int ue_key) {
+		pages.remove(ue_key);
+	};
+
+	/* Sends pages which are due, must not be called by more than one thread at once */
+	public void tick() {
+		long now = System.currentTimeMillis();
+
+		if(Constants.PAGING_RATE > 0) {
+			// a late tick doesn't get to send more than one tick's worth at once
+			double cap = Math.max(1.0, Constants.PAGING_RATE * Constants.PAGING_TICK_INTERVAL / 1000.0);
+			budget = Math.min(cap, budget + Constants.PAGING_RATE * (now - last_tick) / 1000.0);
+		};
+		last_tick = now;
+
+		List<Page> due = new ArrayList<Page>();
+		for (Page page : pages.values()) {
+			if(page.due > now) { continue; };
+
+			// no answer to the last page either, give up on the UE
+			if(page.attempts >= Constants.PAGING_MAX_ATTEMPTS) {
+				if(pages.remove(page.ue_key, page)) { expired.incrementAndGet(); };
+				continue;
+			};
+
+			due.add(page);
+		};
+
+		if(due.isEmpty()) { return; };
+
+		int allowed = due.size();
+		if(Constants.PAGING_RATE > 0) {
+			allowed = Math.min(allowed, (int) budget);
+			budget -= allowed;
+
+			if(allowed < due.size()) {
+				Collections.sort(due, BY_DUE);
+				deferred.addAndGet(due.size() - allowed);
+			};
+		};
+
+		if(allowed == 0) { return; };
+
+		List<Page> batch = allowed == due.size() ? due : new ArrayList<Page>(due.subList(0, allowed));
+		for (Page page : batch) {
+			if(page.attempts > 0) { retransmitted.incrementAndGet(); };
+
+			page.attempts++;
+			page.due = now + backoff(page.attempts);
+		};
+
+		sent.addAndGet(batch.size());
+		batches.incrementAndGet();
+		sender.sendPages(batch);
+	};
+
+	// wait after the n-th page, doubled with every page sent
+	private static long backoff(int attempts) {
+		long interval = Constants.PAGING_RETRANSMIT_INTERVAL << Math.min(attempts - 1, 16);
+		return Math.min(interval, Constants.PAGING_MAX_RETRANSMIT_INTERVAL);
+	};
+
+	/* Number of UEs being paged */
+	public int getPending() {
+		return pages.size();
+	};
+
+	public String getStats() {
+		return "paging: pending=" + pages.size() + ", requested=" + requested.get() + ", coalesced=" + coalesced.get() + ", sent=" + sent.get() + ", retransmitted=" + retransmitted.get() +
+			", batches=" + batches.get() + ", deferred=" + deferred.get() + ", answered=" + answered.get() + ", expired=" + expired.get();
+	};
+}
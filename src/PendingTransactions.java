@@ -0,0 +1,174 @@
+/* #### Pending Transactions ####
+ * This class keeps procedures which can't continue till state
+ * from an earlier step of the same UE arrives. A procedure registers
+ * a continuation keyed by UE key, the continuation is run by whoever
+ * completes that state. Transactions not completed within their
+ * timeout are expired by a periodic sweep and counted as stalled.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PendingTransactions {
+	protected static Logger log = LoggerFactory.getLogger(PendingTransactions.class);
+
+	/* [Key => UE-Key, Value => transactions waiting for state of that UE] */
+	private final ConcurrentHashMap<Integer, List<Transaction>> pending;
+
+	private final AtomicLong registered = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	public PendingTransactions() {
+		pending = new ConcurrentHashMap<Integer, List<Transaction>>();
+	};
+
+	/* Registers a continuation for the UE which is run by complete(), or
+	 * onTimeout (may be null) is run if nobody completes it within timeout_ms.
+	 */
+	public void register(int ue_key, String procedure, long timeout_ms, Runnable continuation, Runnable onTimeout) {
+		Transaction tx = new Transaction(procedure, System.currentTimeMillis() + timeout_ms, continuation, onTimeout);
+
+		List<Transaction> list = pending.get(ue_key);
+		while (true) {
+			if (list == null) {
+				list = new ArrayList<Transaction>();
+				List<Transaction> existing = pending.putIfAbsent(ue_key, list);
+				if (existing != null) { list = existing; };
+			};
+
+			synchronized (list) {
+				// list may have just been taken by complete(), retry with a new one
+				if (pending.get(ue_key) == list) {
+					list.add(tx);
+					break;
+				};
+			}
+
+			list = null;
+		};
+
+		registered.incrementAndGet();
+
+		if (Constants.DEBUG) {
+			System.out.println("Pending transaction '" + procedure + "' registered for UE Key: '" + ue_key + "'");
+		};
+	};
+
+	/* Runs (on the calling thread) all continuations waiting for given UE. Returns number of continuations run. */
+	public int complete(int ue_key) {
+		List<Transaction> list = pending.remove(ue_key);
+		if (list == null) { return 0; };
+
+		List<Transaction> ready;
+		synchronized (list) {
+			ready = new ArrayList<Transaction>(list);
+			list.clear();
+		}
+
+		int count = 0;
+		for (Transaction tx : ready) {
+			if (!tx.done.compareAndSet(false, true)) { continue; };
+
+			completed.incrementAndGet();
+			count++;
+
+			try {
+				tx.continuation.run();
+			} catch (Exception e) {
+				log.error("Continuation of pending transaction '" + tx.procedure + "' failed for UE Key " + ue_key, e);
+			};
+		};
+
+		return count;
+	};
+
+	/* Drops transactions whose timeout has passed, called periodically */
+	public int expire() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+
+		for (Iterator<Map.Entry<Integer, List<Transaction>>> it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Integer, List<Transaction>> entry = it.next();
+			List<Transaction> list = entry.getValue();
+			List<Transaction> timed_out = new ArrayList<Transaction>();
+
+			synchronized (list) {
+				for (Iterator<Transaction> txs = list.iterator(); txs.hasNext();) {
+					Transaction tx = txs.next();
+					if (tx.deadline <= now) {
+						txs.remove();
+						timed_out.add(tx);
+					};
+				};
+
+				if (list.isEmpty()) {
+					pending.remove(entry.getKey(), list);
+				};
+			}
+
+			for (Transaction tx : timed_out) {
+				if (!tx.done.compareAndSet(false, true)) { continue; };
+
+				expired.incrementAndGet();
+				count++;
+				log.warn("Pending transaction '{}' for UE Key {} stalled, expired after timeout", tx.procedure, entry.getKey());
+
+				if (tx.onTimeout != null) {
+					try {
+						tx.onTimeout.run();
+					} catch (Exception e) {
+						log.error("Timeout handler of pending transaction '" + tx.procedure + "' failed", e);
+					};
+				};
+			};
+		};
+
+		return count;
+	};
+
+	/* Number of UEs having at least one pending transaction */
+	public int size() {
+		return pending.size();
+	};
+
+	public long getRegistered() {
+		return registered.get();
+	};
+
+	public long getCompleted() {
+		return completed.get();
+	};
+
+	public long getExpired() {
+		return expired.get();
+	};
+
+	public String getStats() {
+		return "pending_transactions: waiting_ues=" + size() + ", registered=" + registered.get() + ", completed=" + completed.get() + ", stalled=" + expired.get();
+	};
+
+	private static class Transaction {
+		final String procedure;
+		final long deadline;
+		final Runnable continuation;
+		final Runnable onTimeout;
+		final AtomicBoolean done = new AtomicBoolean();
+
+		Transaction(String procedure, long deadline, Runnable continuation, Runnable onTimeout) {
+			this.procedure = procedure;
+			this.deadline = deadline;
+			this.continuation = continuation;
+			this.onTimeout = onTimeout;
+		};
+	}
+}
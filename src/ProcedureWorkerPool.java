@@ -0,0 +1,156 @@
+/* #### Procedure Worker Pool ####
+ * This class runs control procedures off the OpenFlow I/O thread.
+ * Every worker is a single thread with its own queue and a task is
+ * always queued to the worker selected by its ordering key (UE key
+ * or IMSI), so messages of the same UE are processed in order while
+ * different UEs are processed in parallel.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ProcedureWorkerPool {
+	protected static Logger log = LoggerFactory.getLogger(ProcedureWorkerPool.class);
+
+	private final Worker workers[];
+
+	public ProcedureWorkerPool(String name, int size, int queue_capacity) {
+		if (size <= 0) { throw new IllegalArgumentException("Worker pool size must be greater than 0"); };
+
+		workers = new Worker[size];
+		for (int i = 0; i < size; i++) {
+			workers[i] = new Worker(name + "-" + i, queue_capacity);
+		};
+	};
+
+	public void start() {
+		for (Worker worker : workers) { worker.start(); };
+	};
+
+	public void shutdown() {
+		for (Worker worker : workers) { worker.interrupt(); };
+	};
+
+	public int size() {
+		return workers.length;
+	};
+
+	/* Queues the task on the worker owning given ordering key.
+	 * Returns false if that worker's queue is full and task has been dropped.
+	 */
+	public boolean dispatch(long key, Runnable task) {
+		Worker worker = workers[indexOf(key)];
+		Job job = new Job(task, System.nanoTime());
+
+		if (!worker.queue.offer(job)) {
+			worker.rejected.incrementAndGet();
+			log.warn("Worker {} queue full, dropping procedure for key {}", worker.getName(), key);
+			return false;
+		};
+
+		worker.dispatched.incrementAndGet();
+
+		int depth = worker.queue.size();
+		if (depth > worker.max_depth.get()) { worker.max_depth.set(depth); };
+		return true;
+	};
+
+	/* Spreads keys evenly over workers, same key => same worker */
+	int indexOf(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		h ^= (h >>> 32);
+		return (int) ((h & 0x7FFFFFFFL) % workers.length);
+	};
+
+	/* Returns one line of metrics per worker */
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+
+		for (Worker worker : workers) {
+			long completed = worker.completed.get();
+			sb.append(worker.getName())
+				.append(": queue_depth=").append(worker.queue.size())
+				.append(", max_queue_depth=").append(worker.max_depth.get())
+				.append(", dispatched=").append(worker.dispatched.get())
+				.append(", completed=").append(completed)
+				.append(", rejected=").append(worker.rejected.get())
+				.append(", failed=").append(worker.failed.get())
+				.append(", avg_wait_us=").append(completed == 0 ? 0 : worker.wait_ns.get() / completed / 1000)
+				.append(", avg_latency_us=").append(completed == 0 ? 0 : worker.latency_ns.get() / completed / 1000)
+				.append(", max_latency_us=").append(worker.max_latency_ns.get() / 1000)
+				.append('\n');
+		};
+
+		return sb.toString();
+	};
+
+	public int getQueueDepth(int worker) {
+		return workers[worker].queue.size();
+	};
+
+	private static class Job {
+		final Runnable task;
+		final long queued_at;
+
+		Job(Runnable task, long queued_at) {
+			this.task = task;
+			this.queued_at = queued_at;
+		};
+	}
+
+	private static class Worker extends Thread {
+		final BlockingQueue<Job> queue;
+
+		final AtomicLong dispatched = new AtomicLong();
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong max_depth = new AtomicLong();
+
+		// time spent in queue and from queueing till completion
+		final AtomicLong wait_ns = new AtomicLong();
+		final AtomicLong latency_ns = new AtomicLong();
+		final AtomicLong max_latency_ns = new AtomicLong();
+
+		Worker(String name, int queue_capacity) {
+			super(name);
+			setDaemon(true);
+			queue = new LinkedBlockingQueue<Job>(queue_capacity);
+		};
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				Job job;
+
+				try {
+					job = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				};
+
+				long started = System.nanoTime();
+
+				try {
+					job.task.run();
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					log.error("Procedure failed on worker " + getName(), e);
+				};
+
+				long finished = System.nanoTime();
+				long latency = finished - job.queued_at;
+
+				wait_ns.addAndGet(started - job.queued_at);
+				latency_ns.addAndGet(latency);
+				if (latency > max_latency_ns.get()) { max_latency_ns.set(latency); };
+				completed.incrementAndGet();
+			};
+		};
+	}
+}
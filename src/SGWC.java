@@ -8,11 +8,10 @@ package net.floodlightcontroller.splus;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -27,6 +26,7 @@ import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
+import org.projectfloodlight.openflow.protocol.OFFlowModFlags;
 import org.projectfloodlight.openflow.protocol.OFMessage;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFType;
@@ -41,6 +41,7 @@ import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFBufferId;
 import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.OFVlanVidMatch;
+import org.projectfloodlight.openflow.types.U64;
 import org.projectfloodlight.openflow.types.VlanVid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,20 +51,23 @@ public class SGWC implements IFloodlightModule, IOFMessageListener {
 
 	private IFloodlightProviderService floodlightProvider;
 
-	int tunnel_id;
 	PGWC pgw_controller;
 	ModuleLoaderResource module_resource;
+	TeidAllocator te_ids;
+
+	/* downlink packets of idle UEs, [Key => SGW-TE-ID] */
+	DownlinkBuffer downlink_buffer;
 	
+	/* [Key => SGW-TE-ID, Value => PGW-TE-ID] */
 	Map<Integer, Integer> SGW_PGW_TE_ID_MAP;
-	Queue<Integer> reuseable_te_pool;
 
 	public SGWC() {
-		tunnel_id = 1;
 		pgw_controller = new PGWC();
 		module_resource = new ModuleLoaderResource();
+		te_ids = new TeidAllocator("sgw", Constants.SGW_MIN_TE_ID, Constants.SGW_MAX_TE_ID);
+		downlink_buffer = new DownlinkBuffer(Constants.DOWNLINK_BUFFER_PACKETS, Constants.DOWNLINK_BUFFER_SLOTS, Constants.DOWNLINK_BUFFER_SLOT_SIZE, Constants.DOWNLINK_BUFFER_MAX_AGE);
 		
-		SGW_PGW_TE_ID_MAP = new HashMap<Integer, Integer>();
-		reuseable_te_pool = new LinkedList<Integer>();
+		SGW_PGW_TE_ID_MAP = new ConcurrentHashMap<Integer, Integer>();
 	};
 
 	@Override
@@ -121,21 +125,23 @@ public class SGWC implements IFloodlightModule, IOFMessageListener {
 	 * by installing flow rules specific to the UE on SGW-D (for up-link data traffic)
 	 * Here PGW-C also allocated an IP address for the UE. This IP address will be passed on to UE via SGW-C,
 	 * MME and eNodeB in sequence.
+	 * Returns null if SGW-C or PGW-C has run out of tunnel endpoint IDs or PGW-C of UE IP addresses,
+	 * or if SGW-D isn't connected and linked to both the eNodeB and PGW-D (nothing is allocated then).
 	 */
-	String contactPGW(IOFSwitch sgw_id, IOFSwitch pgw_id, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, String apn) {
+	String contactPGW(IOFSwitch sgw_id, IOFSwitch pgw_id, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, DatapathId enodeb_dispatch_id, long apn, FlowTransaction tx) {
 		String[] data_segments = null;
 		int pgw_te_id, sgw_te_id;
-		
-		if(reuseable_te_pool.isEmpty()) {
-			if(tunnel_id > 4000) { tunnel_id = 1; };
-			sgw_te_id = tunnel_id;
-			tunnel_id++;
-			
-		} else {
-			sgw_te_id = reuseable_te_pool.remove();
-			if(Constants.DEBUG) {
-				System.out.println("SGW-C reusing Tunnel Endpoing ID: '" + sgw_te_id + "'");
-			};
+
+		if(sgw_id == null || pgw_id == null || Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()) == Topology.NONE ||
+				Topology.portTo(sgw_dispatch_id.getLong(), pgw_dispatch_id.getLong()) == Topology.NONE || Topology.portTo(pgw_dispatch_id.getLong(), sgw_dispatch_id.getLong()) == Topology.NONE) {
+			System.out.println("ERROR: SGW-D: '" + sgw_dispatch_id.getLong() + "' is not connected or not linked to eNodeB: '" + enodeb_dispatch_id.getLong() + "' and PGW-D: '" + pgw_dispatch_id.getLong() + "' for UE: '" + apn + "'");
+			return null;
+		};
+
+		sgw_te_id = te_ids.allocate();
+		if(sgw_te_id == TeidAllocator.NONE) {
+			System.out.println("ERROR: SGW-C has run out of Tunnel Endpoint IDs for UE: '" + apn + "', " + te_ids.getStats());
+			return null;
 		};
 
 		if(Constants.DEBUG){
@@ -145,116 +151,299 @@ public class SGWC implements IFloodlightModule, IOFMessageListener {
 		/* Request PGW-C to allocate an IP address for UE and tunnel end-point id for SGW-C
 		 * The return format will be "UE_IP_ADDRESS + SEPARATOR + PGW tunnel ID for this UE" 
 		 */
-		String ip_pgw = pgw_controller.allocateIPForUE(pgw_id, sgw_te_id, sgw_dispatch_id, pgw_dispatch_id,  apn);
+		String ip_pgw = pgw_controller.allocateIPForUE(pgw_id, sgw_te_id, sgw_dispatch_id, pgw_dispatch_id,  apn, tx);
+		if(ip_pgw == null) {
+			te_ids.release(sgw_te_id);
+			return null;
+		};
+
 		data_segments = ip_pgw.split(Constants.SEPARATOR);
 
 		// up-link rule (SGW-D to PGW-D)
 		if(Constants.DEBUG){
-			System.out.println("SGW-C installing up-link rule on SGW-D Dispatch ID: '" + sgw_dispatch_id.getLong() + "' and In-Port: '" + Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[0] + "' in Tunnel Endpoint ID: '" + sgw_te_id + 
-				"' to Out-Port: '" + Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[1] + "' and Out-Tunnel Endpoint ID: '" + data_segments[1] + "' of UE: '" + apn + "'");
+			System.out.println("SGW-C installing up-link rule on SGW-D Dispatch ID: '" + sgw_dispatch_id.getLong() + "' and In-Port: '" + Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()) + "' in Tunnel Endpoint ID: '" + sgw_te_id + 
+				"' to Out-Port: '" + Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID) + "' and Out-Tunnel Endpoint ID: '" + data_segments[1] + "' of UE: '" + apn + "'");
 		};
 		
 		pgw_te_id = Integer.parseInt(data_segments[1]);
 		SGW_PGW_TE_ID_MAP.put(sgw_te_id, pgw_te_id);
 
 		// up-link rule (SGW to PGW)
-		installFlowRule(sgw_id, sgw_dispatch_id, Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[0], sgw_te_id, Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[1], pgw_te_id, data_segments[0], Constants.PGWD_IP_UPLINK);
+		installFlowRule(sgw_id, sgw_dispatch_id, FlowTemplates.SGW_UPLINK, Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()), sgw_te_id, Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID), pgw_te_id, data_segments[0], null, tx);
 		return data_segments[0] + Constants.SEPARATOR + sgw_te_id;
 	};
 
 	/* This method installs down-link flow rule between SGW-D and eNodeB after knowing the UE generated tunnel for eNodeB */
-	public void modifyBearerRequest(IOFSwitch sgw_id, DatapathId sgw_dispatch_id, int sgw_te_id, int ue_te_id, String key) {
+	public void modifyBearerRequest(IOFSwitch sgw_id, DatapathId sgw_dispatch_id, DatapathId enodeb_dispatch_id, int sgw_te_id, int ue_te_id, String key, U64 idle_cookie, FlowTransaction tx) {
 		if(Constants.DEBUG) {
-			System.out.println("SGW-C installing downlink rule on SGW-D Dispatch ID: '" + sgw_dispatch_id.getLong() + "' and In-Port: '" + Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[1] + "' in Tunnel Endpoint ID: '" + sgw_te_id + 
-				"' to Out-Port: '" + Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[0] + "' and  Out-Tunnel Endpoing ID: '" + ue_te_id + "' of UE with Key: '" + key + "'");
+			System.out.println("SGW-C installing downlink rule on SGW-D Dispatch ID: '" + sgw_dispatch_id.getLong() + "' and In-Port: '" + Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID) + "' in Tunnel Endpoint ID: '" + sgw_te_id + 
+				"' to Out-Port: '" + Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()) + "' and  Out-Tunnel Endpoing ID: '" + ue_te_id + "' of UE with Key: '" + key + "'");
 		};
 
 		// down-link rule (SGW to ENodeB)
-		installFlowRule(sgw_id, sgw_dispatch_id, Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[1], sgw_te_id, Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[0], ue_te_id, Constants.PDN_IP, Constants.ENODEB_SW_IP_DOWNLINK);
+		installFlowRule(sgw_id, sgw_dispatch_id, FlowTemplates.SGW_DOWNLINK, Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID), sgw_te_id, Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()), ue_te_id, null, idle_cookie, tx);
 	};
 
 	/* This is a utility method requiring to know the starting IP address PGW-C will be using */
-	public String getStartingIPAddress() {
+	public int getStartingIPAddress() {
 		return pgw_controller.getPGWStartIP();
 	};
 
-	/* This method detaches the tunnel between SGW-D and eNodeB, by deleting the up-link and down-link rules on SGW-D */
-	public boolean detachUEFromSGW(IOFSwitch sgw_id, IOFSwitch pgw_id, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, int sgw_te_id, String ue_ip){
-		int pgw_te_id = SGW_PGW_TE_ID_MAP.get(sgw_te_id);
-		SGW_PGW_TE_ID_MAP.remove(sgw_te_id);
+	/* This method detaches the tunnel between SGW-D and eNodeB, by deleting the up-link and down-link rules on SGW-D.
+	 * Returns false if no tunnel uses the SGW tunnel endpoint ID, e.g. UE has already been detached.
+	 */
+	public boolean detachUEFromSGW(IOFSwitch sgw_id, IOFSwitch pgw_id, DatapathId sgw_dispatch_id, DatapathId pgw_dispatch_id, DatapathId enodeb_dispatch_id, int sgw_te_id, String ue_ip, FlowTransaction tx){
+		Integer pgw_te_id = SGW_PGW_TE_ID_MAP.remove(sgw_te_id);
+
+		if(pgw_te_id == null) {
+			System.out.println("ERROR: SGW-C has no tunnel with SGW Tunnel Endpoint ID: '" + sgw_te_id + "' for UE with IP: '" + ue_ip + "'");
+			return false;
+		};
 
 		// delete up-link rule
-		deleteFlowRuleWithTEID(sgw_id, Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[0], sgw_te_id, ue_ip);
+		deleteFlowRuleWithTEID(sgw_id, FlowTemplates.SGW_UPLINK, Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()), sgw_te_id, ue_ip, tx);
 		if(Constants.DEBUG) {
 			System.out.println("SGW-C deleting uplink rule with PGW-D Tunnel Endpoint ID: '" + pgw_te_id + "' for UE with IP: '" + ue_ip + "'");
 		};
 
 		// delete down-link rule
-		deleteFlowRuleWithTEID(sgw_id, Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[1], sgw_te_id, Constants.PDN_IP);
+		deleteFlowRuleWithTEID(sgw_id, FlowTemplates.SGW_DOWNLINK, Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID), sgw_te_id, null, tx);
 		if(Constants.DEBUG) {
 			System.out.println("SGW-C deleting downlink rule with SGW-D Tunnel Eendpoint ID: '" + sgw_te_id + "' for UE with IP: '" + ue_ip + "'");
 		};
 
-		return pgw_controller.detachUEFromPGW(pgw_id, sgw_dispatch_id, pgw_dispatch_id, pgw_te_id, ue_ip);
+		// flow deletes are queued before the ID can be handed out again, IDs of a tunnel adopted from another MME node are freed by that node
+		boolean local = te_ids.isAllocated(sgw_te_id);
+		if(local) { te_ids.release(sgw_te_id); };
+		return pgw_controller.detachUEFromPGW(pgw_id, sgw_dispatch_id, pgw_dispatch_id, pgw_te_id, ue_ip, local, tx);
+	};
+
+	/* Whether the tunnel endpoint ID was handed out by this SGW-C, not by another node of the MME cluster */
+	public boolean isLocalTunnel(int sgw_te_id) {
+		return te_ids.isAllocated(sgw_te_id);
+	};
+
+	/* Hands out only part (see MmeCluster.getPart) of tunnel endpoint IDs and UE IPs of SGW-C and PGW-C.
+	 * Must be called before any tunnel is set up.
+	 */
+	public void restrictToPart(int part, int parts) {
+		te_ids = TeidAllocator.slice("sgw", Constants.SGW_MIN_TE_ID, Constants.SGW_MAX_TE_ID, part, parts);
+		pgw_controller.restrictToPart(part, parts);
+	};
+
+	/* Part (see restrictToPart) which handed out the tunnel endpoint ID, and PGW tunnel endpoint ID and UE IP of its tunnel. -1 if ID is out of range. */
+	public static int partOf(int sgw_te_id, int parts) {
+		if(sgw_te_id < Constants.SGW_MIN_TE_ID || sgw_te_id > Constants.SGW_MAX_TE_ID) { return -1; };
+		return TeidAllocator.partOf(sgw_te_id, Constants.SGW_MIN_TE_ID, Constants.SGW_MAX_TE_ID, parts);
+	};
+
+	/* Takes over the tunnel of a session handed over by another MME node, its IDs and UE IP stay allocated there */
+	public void adoptTunnel(int sgw_te_id, int pgw_te_id) {
+		SGW_PGW_TE_ID_MAP.put(sgw_te_id, pgw_te_id);
+	};
+
+	/* Forgets the tunnel of a session handed to another MME node, its IDs and UE IP stay allocated here till that node releases them */
+	public void handOffTunnel(int sgw_te_id) {
+		SGW_PGW_TE_ID_MAP.remove(sgw_te_id);
+		downlink_buffer.discard(sgw_te_id);
+	};
+
+	/* Frees IDs and UE IP of a tunnel handed out here, whose UE has detached from another MME node (see releaseTunnel in MmeCluster) */
+	public boolean releaseTunnel(int sgw_te_id, int pgw_te_id, int ue_ip) {
+		boolean released = te_ids.release(sgw_te_id);
+		return pgw_controller.releaseTunnel(pgw_te_id, ue_ip) && released;
+	};
+
+	/* Drops the tunnel of a session mirrored from the active MME and frees its IDs and UE IP (see SessionReplicator) */
+	public boolean forgetTunnel(int sgw_te_id, int pgw_te_id, int ue_ip) {
+		SGW_PGW_TE_ID_MAP.remove(sgw_te_id);
+		return releaseTunnel(sgw_te_id, pgw_te_id, ue_ip);
+	};
+
+	/* PGW tunnel endpoint ID the SGW tunnel is connected to, 0 if there is no such tunnel */
+	public int getPgwTeId(int sgw_te_id) {
+		Integer pgw_te_id = SGW_PGW_TE_ID_MAP.get(sgw_te_id);
+		return pgw_te_id == null ? 0 : pgw_te_id;
+	};
+
+	/* Takes back tunnel endpoint IDs and UE address of a session restored from the session journal.
+	 * Returns false (and takes nothing) if any of them is already in use or out of range.
+	 */
+	public boolean restoreTunnel(int sgw_te_id, int pgw_te_id, int ue_ip) {
+		if(!te_ids.allocate(sgw_te_id)) { return false; };
+
+		if(!pgw_controller.restoreTunnel(pgw_te_id, ue_ip)) {
+			te_ids.release(sgw_te_id);
+			return false;
+		};
+
+		SGW_PGW_TE_ID_MAP.put(sgw_te_id, pgw_te_id);
+		return true;
+	};
+
+	/* Installs rules of an existing session on SGW-D again, e.g. it has reconnected. Down-link rule only if UE is active. */
+	public void installBearerRules(IOFSwitch sgw_id, DatapathId sgw_dispatch_id, DatapathId enodeb_dispatch_id, int sgw_te_id, int pgw_te_id, int ue_te_id, String ue_ip, boolean active, U64 idle_cookie, FlowTransaction tx) {
+		// up-link rule (SGW to PGW)
+		installFlowRule(sgw_id, sgw_dispatch_id, FlowTemplates.SGW_UPLINK, Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()), sgw_te_id, Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID), pgw_te_id, ue_ip, null, tx);
+
+		// down-link rule (SGW to ENodeB)
+		if(active) {
+			installFlowRule(sgw_id, sgw_dispatch_id, FlowTemplates.SGW_DOWNLINK, Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID), sgw_te_id, Topology.portTo(sgw_dispatch_id.getLong(), enodeb_dispatch_id.getLong()), ue_te_id, null, idle_cookie, tx);
+		};
+	};
+
+	/* Moves up-link rule of an idle UE to the port facing the eNodeB it comes back through */
+	public void moveUplink(IOFSwitch sgw_id, DatapathId sgw_dispatch_id, DatapathId from_enodeb, DatapathId to_enodeb, int sgw_te_id, int pgw_te_id, String ue_ip, FlowTransaction tx) {
+		if(Constants.DEBUG) {
+			System.out.println("SGW-C moving up-link rule with SGW Tunnel Endpoint ID: '" + sgw_te_id + "' from eNodeB: '" + from_enodeb.getLong() + "' to eNodeB: '" + to_enodeb.getLong() + "' for UE with IP: '" + ue_ip + "'");
+		};
+
+		deleteFlowRuleWithTEID(sgw_id, FlowTemplates.SGW_UPLINK, Topology.portTo(sgw_dispatch_id.getLong(), from_enodeb.getLong()), sgw_te_id, ue_ip, tx);
+		installFlowRule(sgw_id, sgw_dispatch_id, FlowTemplates.SGW_UPLINK, Topology.portTo(sgw_dispatch_id.getLong(), to_enodeb.getLong()), sgw_te_id, Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID), pgw_te_id, ue_ip, null, tx);
+	};
+
+	/* Installs rules of an existing session on PGW-D again */
+	public void installPGWBearerRules(IOFSwitch pgw_id, DatapathId pgw_dispatch_id, DatapathId sgw_dispatch_id, int pgw_te_id, int sgw_te_id, String ue_ip, FlowTransaction tx) {
+		pgw_controller.installBearerRules(pgw_id, pgw_dispatch_id, sgw_dispatch_id, pgw_te_id, sgw_te_id, ue_ip, tx);
+	};
+
+	/* Occupancy of tunnel endpoint IDs of SGW-C and PGW-C */
+	public String getTunnelStats() {
+		return te_ids.getStats() + "\n" + pgw_controller.te_ids.getStats();
+	};
+
+	/* Utilisation of UE IP pools of PGW-C */
+	public String getIPPoolStats() {
+		return pgw_controller.getIPPoolStats();
 	};
 
 	/* This method is used to simulate UE idle timeout after which we delete the down-link rule between SGW-D and eNodeB */
-	public void releaseAccessBearersRequest(IOFSwitch sgw_id, DatapathId sgw_dispatch_id, int sgw_te_id, String ue_ip){
+	public void releaseAccessBearersRequest(IOFSwitch sgw_id, DatapathId sgw_dispatch_id, int sgw_te_id, String ue_ip, FlowTransaction tx){
 		// delete down-link rule
-		deleteFlowRuleWithTEID(sgw_id, Constants.SGW_PORT_MAP.get(sgw_dispatch_id)[1], sgw_te_id, Constants.PDN_IP);
+		deleteFlowRuleWithTEID(sgw_id, FlowTemplates.SGW_DOWNLINK, Topology.portTo(sgw_dispatch_id.getLong(), Constants.PGW_ID), sgw_te_id, null, tx);
 		if(Constants.DEBUG){
 			System.out.println("SGW-C deleting downlink rule with SGW-D Tunnel Endpoint ID: '" + sgw_te_id + "' for UE with IP: '" + ue_ip + "'");
 		};
 	};
 
-	/* This method helps to delete the flow rule on SGW-D with matching TEID */
-	private void deleteFlowRuleWithTEID(IOFSwitch switch_id, int in_port, int ue_te_id, String src_ip) {
+	/* Holds a downlink packet which reached the controller while the down-link rule of its bearer is released */
+	public boolean bufferDownlink(int sgw_te_id, int in_port, byte[] frame) {
+		if(Constants.DOWNLINK_BUFFER_PACKETS <= 0) { return false; };
+		return downlink_buffer.buffer(sgw_te_id, in_port, frame);
+	};
+
+	/* Whether packets are held for the bearer, later ones must queue up behind them */
+	public boolean isBufferingDownlink(int sgw_te_id) {
+		return downlink_buffer.isBuffering(sgw_te_id);
+	};
+
+	/* Sends packets held for the bearer back through the flow table of SGW-D, once its down-link rule is installed again */
+	public int flushDownlink(final IOFSwitch sgw_id, int sgw_te_id) {
+		if(sgw_id == null) {
+			return downlink_buffer.discard(sgw_te_id);
+		};
+
+		final List<OFMessage> packets = new ArrayList<OFMessage>();
+		int count = downlink_buffer.flush(sgw_te_id, new DownlinkBuffer.Sink() {
+			@Override
+			public void send(int in_port, byte[] frame) {
+				List<OFAction> actions = new ArrayList<OFAction>();
+				actions.add(sgw_id.getOFFactory().actions().output(OFPort.TABLE, Integer.MAX_VALUE));
+
+				packets.add(sgw_id.getOFFactory().buildPacketOut()
+					.setBufferId(OFBufferId.NO_BUFFER)
+					.setInPort(OFPort.of(in_port))
+					.setActions(actions)
+					.setData(frame)
+					.build());
+			};
+		});
+
+		if(!packets.isEmpty()) {
+			sgw_id.write(packets);
+		};
+
+		if(Constants.DEBUG && count > 0) {
+			System.out.println("SGW-C flushed " + count + " buffered downlink packet(s) with SGW-D Tunnel Endpoint ID: '" + sgw_te_id + "'");
+		};
+		return count;
+	};
+
+	/* Drops packets held for the bearer, e.g. UE has detached */
+	public void discardDownlink(int sgw_te_id) {
+		downlink_buffer.discard(sgw_te_id);
+	};
+
+	/* Drops held packets which waited too long for their bearer */
+	public void expireDownlink() {
+		downlink_buffer.expire();
+	};
+
+	public String getDownlinkBufferStats() {
+		return downlink_buffer.getStats();
+	};
+
+	/* This method helps to delete the flow rule on SGW-D with matching TEID, ue_ip is null for the down-link rule (see FlowTemplates) */
+	private void deleteFlowRuleWithTEID(IOFSwitch switch_id, int role, int in_port, int ue_te_id, String ue_ip, FlowTransaction tx) {
 		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowDelete();
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
+		Match.Builder mb = FlowTemplates.match(switch_id, role, in_port);
+
+		if(ue_ip != null) {
+			mb.setExact(MatchField.IPV4_SRC, IPv4Address.of(ue_ip));
+		};
 
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(in_port))
-		.setExact(MatchField.IPV4_SRC, IPv4Address.of(src_ip))
-		.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(ue_te_id)));
+		mb.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(ue_te_id)));
 		fmb.setMatch(mb.build());
 
-		// delete the rule from the switch
-		switch_id.write(fmb.build());
+		// delete the rule from the switch (or queue it in the transaction)
+		FlowTransaction.write(tx, switch_id, fmb.build());
 	};
 
-	/* This method helps to install the flow rule on SGW-D with matching TEID */
-	private void installFlowRule(IOFSwitch switch_id, DatapathId dispatch_id, int in_port, int in_tunnel_id, int out_port, int out_tunnel_id, String src_ip, String dst_ip) {
-		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowAdd();
-		Match.Builder mb = switch_id.getOFFactory().buildMatch();
-
-		mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
-		.setExact(MatchField.IN_PORT, OFPort.of(in_port))
-		.setExact(MatchField.IPV4_SRC, IPv4Address.of(src_ip))
-		.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(in_tunnel_id)));
+	/* This method helps to install the flow rule on SGW-D with matching TEID, ue_ip is null for the down-link rule (see FlowTemplates) */
+	private void installFlowRule(IOFSwitch switch_id, DatapathId dispatch_id, int role, int in_port, int in_tunnel_id, int out_port, int out_tunnel_id, String ue_ip, U64 idle_cookie, FlowTransaction tx) {
+		// link has gone down (or switch has disconnected) since the gateway was chosen
+		if(switch_id == null || in_port == Topology.NONE || out_port == Topology.NONE) {
+			FlowTransaction.abort(tx, "SGW-D " + dispatch_id.getLong() + " is not connected or not linked to the ports of the bearer");
+			return;
+		};
 
-		List<OFAction> actions = new ArrayList<OFAction>();
-		actions.add(switch_id.getOFFactory().actions().setVlanVid(VlanVid.ofVlan(out_tunnel_id)));
+		OFFlowMod.Builder fmb = switch_id.getOFFactory().buildFlowAdd();
+		Match.Builder mb = FlowTemplates.match(switch_id, role, in_port);
 
-		if(!dst_ip.isEmpty()) {
-			actions.add(switch_id.getOFFactory().actions().setNwDst(IPv4Address.of(dst_ip)));
+		if(ue_ip != null) {
+			mb.setExact(MatchField.IPV4_SRC, IPv4Address.of(ue_ip));
 		};
 
-		actions.add(switch_id.getOFFactory().actions().output(OFPort.of(out_port), Integer.MAX_VALUE));
-		fmb.setActions(actions);
+		mb.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(VlanVid.ofVlan(in_tunnel_id)));
+		fmb.setActions(FlowTemplates.actions(switch_id, role, out_port, FlowTemplates.setTunnel(switch_id, out_tunnel_id)));
 
 		fmb.setHardTimeout(0)
-		.setIdleTimeout(0)
 		.setPriority(1)
 		.setBufferId(OFBufferId.NO_BUFFER)
 		.setMatch(mb.build());
 
-		switch_id.write(fmb.build());
+		setIdleTimeout(fmb, idle_cookie);
+		FlowTransaction.write(tx, switch_id, fmb.build());
+	};
+
+	/* Makes a bearer rule time out after Constants.BEARER_IDLE_TIMEOUT seconds without traffic and report
+	 * its removal to the controller (see MME.bearerCookie), null cookie => rule stays till it is deleted
+	 */
+	static void setIdleTimeout(OFFlowMod.Builder fmb, U64 idle_cookie) {
+		if(idle_cookie == null) {
+			fmb.setIdleTimeout(0);
+			return;
+		};
+
+		fmb.setIdleTimeout(Constants.BEARER_IDLE_TIMEOUT)
+		.setCookie(idle_cookie)
+		.setFlags(EnumSet.of(OFFlowModFlags.SEND_FLOW_REM));
 	};
 
 	public Command receive(IOFSwitch switch_id, OFMessage message, FloodlightContext context) {
 		switch (message.getType()) {
 			case PACKET_IN:
-				if(DatapathId.of(Constants.SGW_DISPATCH_ID).equals(switch_id.getId())) {
+				if(Topology.isSgw(switch_id.getId().getLong())) {
 					log.info("--- SGW-C received PACKET_IN request from switch {} ---", switch_id);
 					return this.processPacketInMessage(switch_id, (OFPacketIn) message, context);
 				};
@@ -0,0 +1,404 @@
+/* #### Session Journal ####
+ * This class persists bearer state of UE contexts, so that a restarted
+ * (or upgraded) controller carries on with the sessions it had instead of
+ * every UE having to attach again. Create / modify / delete events are
+ * appended as fixed size records to a memory mapped journal file; once
+ * it is full, appends move on to a journal of the next generation. Now
+ * and then the live sessions are written to a snapshot (see compact())
+ * and journals it covers are deleted. recover() reads the snapshot and
+ * replays the journals after it.
+ *
+ * Records are full copies of the session, so replaying a record more
+ * than once does no harm. Each one ends with a CRC, replay of a journal
+ * stops at the first record which was not completely written.
+ */
+package net.floodlightcontroller.splus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+public class SessionJournal {
+	/* Gives the live sessions to compact() */
+	public interface Source {
+		Iterable<UeContext> getSessions();
+	}
+
+	// record types, 0 => end of journal (files are zero filled)
+	static final byte CREATE = 1;
+	static final byte MODIFY = 2;
+	static final byte DELETE = 3;
+
+	static final int RECORD_SIZE = 80;
+	private static final int HEADER_SIZE = 64;
+	private static final int FORMAT_VERSION = 2;
+
+	// records of version 1 lack the eNodeB, they are still replayed after an upgrade
+	private static final int V1_RECORD_SIZE = 64;
+	private static final long JOURNAL_MAGIC = 0x53504c55534a4e4cL;	// "SPLUSJNL"
+	private static final long SNAPSHOT_MAGIC = 0x53504c5553534e50L;	// "SPLUSSNP"
+
+	private static final String JOURNAL_PREFIX = "sessions-";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String SNAPSHOT_NAME = "sessions.snapshot";
+
+	private final File dir;
+	private final int journal_size;
+
+	// journal appends go to, guarded by this
+	private long generation;
+	private MappedByteBuffer journal;
+	private int position;
+	private long sequence;
+	private boolean dirty;
+
+	private final CRC32 crc = new CRC32();
+
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong rotations = new AtomicLong();
+	private final AtomicLong snapshots = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile long recovered, replayed, torn;
+	private volatile long recovery_ms, snapshot_ms;
+
+	public SessionJournal(String dir, int journal_size) {
+		this.dir = new File(dir);
+		this.journal_size = Math.max(HEADER_SIZE + RECORD_SIZE, journal_size - (journal_size - HEADER_SIZE) % RECORD_SIZE);
+	};
+
+	/* Reads snapshot and replays journals after it, returns the sessions they leave behind [Key => UE-Key].
+	 * Appends start with a fresh journal afterwards, the old ones are deleted by the next compact().
+	 */
+	public synchronized Map<Integer, UeContext> recover() throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create session journal directory: '" + dir + "'");
+		};
+
+		long start = System.nanoTime();
+		Map<Integer, UeContext> sessions = new HashMap<Integer, UeContext>();
+
+		long covered = 0;
+		File snapshot = new File(dir, SNAPSHOT_NAME);
+		if(snapshot.isFile()) {
+			covered = replay(snapshot, SNAPSHOT_MAGIC, sessions);
+		};
+
+		long last = covered;
+		for (long journal_generation : listJournals()) {
+			if(journal_generation < covered) { continue; };
+
+			replay(new File(dir, JOURNAL_PREFIX + journal_generation + JOURNAL_SUFFIX), JOURNAL_MAGIC, sessions);
+			last = Math.max(last, journal_generation);
+		};
+
+		recovered = sessions.size();
+		recovery_ms = (System.nanoTime() - start) / 1000000;
+
+		openJournal(last + 1);
+		return sessions;
+	};
+
+	/* Journals a new or changed session */
+	public void update(UeContext ue, boolean created) {
+		append(created ? CREATE : MODIFY, ue, ue.ue_key);
+	};
+
+	/* Journals the end of a session, e.g. UE has detached */
+	public void delete(int ue_key) {
+		append(DELETE, null, ue_key);
+	};
+
+	private synchronized void append(byte type, UeContext ue, int ue_key) {
+		if(journal == null) { return; };
+
+		try {
+			// journal full, carry on with the next one
+			if(position + RECORD_SIZE > journal_size) {
+				openJournal(generation + 1);
+				rotations.incrementAndGet();
+			};
+
+			encode(journal, position, type, ue, ue_key, ++sequence);
+			position += RECORD_SIZE;
+			dirty = true;
+			appended.incrementAndGet();
+
+		} catch (IOException e) {
+			// sessions go on without being persisted, rather than failing the procedure
+			failures.incrementAndGet();
+			System.out.println("ERROR: Session journal not written (" + e + "), UE Key: '" + ue_key + "'");
+		}
+	};
+
+	/* Writes live sessions to a new snapshot and deletes journals it covers. Appends carry on meanwhile in a
+	 * new journal, which is replayed after the snapshot, so sessions changed while it is written aren't lost.
+	 */
+	public void compact(Source source) throws IOException {
+		long covered;
+		synchronized (this) {
+			if(journal == null) { return; };
+
+			covered = generation + 1;
+			openJournal(covered);
+		}
+
+		long start = System.nanoTime();
+		File tmp = new File(dir, SNAPSHOT_NAME + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+			writeHeader(buffer, SNAPSHOT_MAGIC, covered);
+			buffer.position(HEADER_SIZE);
+
+			CRC32 snapshot_crc = new CRC32();
+			long count = 0;
+
+			for (UeContext ue : source.getSessions()) {
+				if(!ue.hasBearer()) { continue; };
+
+				if(buffer.remaining() < RECORD_SIZE) {
+					out.write(buffer.array(), 0, buffer.position());
+					buffer.clear();
+				};
+
+				encode(buffer, buffer.position(), CREATE, ue, ue.ue_key, ++count, snapshot_crc);
+				buffer.position(buffer.position() + RECORD_SIZE);
+			};
+
+			out.write(buffer.array(), 0, buffer.position());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		};
+
+		// the old snapshot stays in place till the new one is complete
+		if(!tmp.renameTo(new File(dir, SNAPSHOT_NAME))) {
+			throw new IOException("Can't replace session snapshot in: '" + dir + "'");
+		};
+
+		for (long journal_generation : listJournals()) {
+			if(journal_generation < covered) {
+				new File(dir, JOURNAL_PREFIX + journal_generation + JOURNAL_SUFFIX).delete();
+			};
+		};
+
+		snapshots.incrementAndGet();
+		snapshot_ms = (System.nanoTime() - start) / 1000000;
+	};
+
+	/* Forces appended records to disk, till then they survive a restart of the controller but not of the host */
+	public void sync() {
+		MappedByteBuffer current;
+		synchronized (this) {
+			if(journal == null || !dirty) { return; };
+			current = journal;
+			dirty = false;
+		}
+
+		current.force();
+	};
+
+	/* Whether records have been appended since the journal was last rotated */
+	public synchronized boolean hasAppended() {
+		return position > HEADER_SIZE;
+	};
+
+	// caller holds the monitor, or nobody else uses the journal yet
+	private void openJournal(long journal_generation) throws IOException {
+		File file = new File(dir, JOURNAL_PREFIX + journal_generation + JOURNAL_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			raf.setLength(journal_size);
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, journal_size);
+			writeHeader(mapped, JOURNAL_MAGIC, journal_generation);
+
+			// previous journal is complete, make sure it is on disk before appends move on
+			if(journal != null) { journal.force(); };
+
+			journal = mapped;
+			generation = journal_generation;
+			position = HEADER_SIZE;
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		};
+	};
+
+	// replays records of a snapshot / journal into sessions, returns generation from its header
+	private long replay(File file, long magic, Map<Integer, UeContext> sessions) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			long length = raf.length();
+			if(length < HEADER_SIZE) { return 0; };
+
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			int version = mapped.getInt(8);
+			if(mapped.getLong(0) != magic || (version != FORMAT_VERSION && version != 1)) {
+				throw new IOException("Not a session " + (magic == SNAPSHOT_MAGIC ? "snapshot" : "journal") + " of this version: '" + file + "'");
+			};
+
+			int record_size = version == 1 ? V1_RECORD_SIZE : RECORD_SIZE;
+
+			long file_generation = mapped.getLong(16);
+
+			for (int offset = HEADER_SIZE; offset + record_size <= length; offset += record_size) {
+				byte type = mapped.get(offset);
+				if(type == 0) { break; };
+
+				crc.reset();
+				crc.update(record(mapped, offset, record_size));
+
+				// controller stopped while the record was being written, nothing after it was written either
+				if((int) crc.getValue() != mapped.getInt(offset + record_size - 4)) {
+					torn++;
+					break;
+				};
+
+				int ue_key = mapped.getInt(offset + 4);
+				if(type == DELETE) {
+					sessions.remove(ue_key);
+				} else {
+					sessions.put(ue_key, decode(mapped, offset, record_size));
+				};
+				replayed++;
+			};
+
+			return file_generation;
+		} finally {
+			raf.close();
+		}
+	};
+
+	private List<Long> listJournals() {
+		List<Long> generations = new ArrayList<Long>();
+		String names[] = dir.list();
+		if(names == null) { return generations; };
+
+		for (String name : names) {
+			if(!name.startsWith(JOURNAL_PREFIX) || !name.endsWith(JOURNAL_SUFFIX)) { continue; };
+
+			try {
+				generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length())));
+			} catch (NumberFormatException e) {
+				// not one of ours
+			}
+		};
+
+		Collections.sort(generations);
+		return generations;
+	};
+
+	private static void writeHeader(ByteBuffer buffer, long magic, long header_generation) {
+		buffer.putLong(0, magic);
+		buffer.putInt(8, FORMAT_VERSION);
+		buffer.putInt(12, RECORD_SIZE);
+		buffer.putLong(16, header_generation);
+	};
+
+	private void encode(ByteBuffer buffer, int offset, byte type, UeContext ue, int ue_key, long record_sequence) {
+		encode(buffer, offset, type, ue, ue_key, record_sequence, crc);
+	};
+
+	/* [0 type, 1 flags, 2 UDP port, 4 UE key, 8 IMSI, 16 UE IP, 20 UE TEID, 24 SGW TEID, 28 PGW TEID,
+	 *  32 SGW-D, 40 GUTI, 44 bearer generation, 48 PGW-D, 56 eNodeB, 64 sequence, 68 unused, 76 CRC of bytes 0 - 75]
+	 * Version 1 records end after PGW-D with [56 sequence, 60 CRC of bytes 0 - 59].
+	 */
+	private static void encode(ByteBuffer buffer, int offset, byte type, UeContext ue, int ue_key, long record_sequence, CRC32 crc) {
+		// type goes in last, so a reader never takes a half written record for the end of the journal
+		buffer.putInt(offset + 4, ue_key);
+
+		if(ue != null) {
+			buffer.put(offset + 1, (byte) ((ue.active ? 1 : 0) | (ue.binary ? 2 : 0)));
+			buffer.putShort(offset + 2, (short) (ue.udp_src_port == null ? 0 : ue.udp_src_port.getPort()));
+			buffer.putLong(offset + 8, ue.imsi);
+			buffer.putInt(offset + 16, ue.ue_ip);
+			buffer.putInt(offset + 20, ue.ue_te_id);
+			buffer.putInt(offset + 24, ue.sgw_te_id);
+			buffer.putInt(offset + 28, ue.pgw_te_id);
+			buffer.putLong(offset + 32, ue.sgw_dispatch_id == null ? 0 : ue.sgw_dispatch_id.getLong());
+			buffer.putInt(offset + 40, ue.guti);
+			buffer.putInt(offset + 44, ue.bearer_generation);
+			buffer.putLong(offset + 48, ue.pgw_dispatch_id == null ? 0 : ue.pgw_dispatch_id.getLong());
+			buffer.putLong(offset + 56, ue.enodeb_dispatch_id == null ? 0 : ue.enodeb_dispatch_id.getLong());
+		};
+
+		buffer.putInt(offset + 64, (int) record_sequence);
+		buffer.put(offset, type);
+
+		crc.reset();
+		crc.update(record(buffer, offset, RECORD_SIZE));
+		buffer.putInt(offset + RECORD_SIZE - 4, (int) crc.getValue());
+	};
+
+	// bytes of the record at offset covered by its CRC
+	private static ByteBuffer record(ByteBuffer buffer, int offset, int record_size) {
+		ByteBuffer record = buffer.duplicate();
+		record.limit(offset + record_size - 4).position(offset);
+		return record;
+	};
+
+	private static UeContext decode(ByteBuffer buffer, int offset, int record_size) {
+		UeContext ue = new UeContext(buffer.getInt(offset + 4), buffer.getLong(offset + 8));
+
+		byte flags = buffer.get(offset + 1);
+		int udp_port = buffer.getShort(offset + 2) & 0xffff;
+		long sgw = buffer.getLong(offset + 32);
+		long pgw = buffer.getLong(offset + 48);
+		long enodeb = record_size > V1_RECORD_SIZE ? buffer.getLong(offset + 56) : 0;
+
+		ue.active = (flags & 1) != 0;
+		ue.binary = (flags & 2) != 0;
+		ue.udp_src_port = udp_port == 0 ? null : TransportPort.of(udp_port);
+		ue.ue_ip = buffer.getInt(offset + 16);
+		ue.ue_te_id = buffer.getInt(offset + 20);
+		ue.sgw_te_id = buffer.getInt(offset + 24);
+		ue.pgw_te_id = buffer.getInt(offset + 28);
+		ue.sgw_dispatch_id = sgw == 0 ? null : DatapathId.of(sgw);
+		ue.guti = buffer.getInt(offset + 40);
+		ue.bearer_generation = buffer.getInt(offset + 44);
+		ue.pgw_dispatch_id = pgw == 0 ? null : DatapathId.of(pgw);
+		ue.enodeb_dispatch_id = enodeb == 0 ? null : DatapathId.of(enodeb);
+		return ue;
+	};
+
+	/* Session of the UE as a single record, e.g. to hand it to another MME node (see MmeCluster) */
+	public static byte[] encodeSession(UeContext ue) {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+		encode(buffer, 0, MODIFY, ue, ue.ue_key, 0, new CRC32());
+		return buffer.array();
+	};
+
+	/* Session of a record written by encodeSession(), null if the record is damaged */
+	public static UeContext decodeSession(byte[] record) {
+		if(record.length != RECORD_SIZE) { return null; };
+
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		CRC32 record_crc = new CRC32();
+		record_crc.update(record(buffer, 0, RECORD_SIZE));
+
+		if(buffer.get(0) != MODIFY || (int) record_crc.getValue() != buffer.getInt(RECORD_SIZE - 4)) { return null; };
+		return decode(buffer, 0, RECORD_SIZE);
+	};
+
+	public String getStats() {
+		return "session_journal: generation=" + generation + ", appended=" + appended.get() + ", rotations=" + rotations.get() + ", snapshots=" + snapshots.get() +
+			" (last " + snapshot_ms + " ms), failures=" + failures.get() + ", recovered=" + recovered + " sessions from " + replayed + " records in " + recovery_ms + " ms, torn=" + torn;
+	};
+}
@@ -0,0 +1,516 @@
+/* #### Session Replicator ####
+ * This class keeps a hot standby MME in step with the active one, so the
+ * standby can take over the sessions within a fraction of a second if
+ * the active controller dies. The active MME hands every session change
+ * it journals (attach with its tunnel endpoint IDs and UE IP, idle /
+ * active, detach, see SessionJournal) to update() / delete(), which
+ * queue it for a sender thread streaming changes to the standby over TCP
+ * in batches. The standby applies them to its own UE contexts and tunnel
+ * allocations as they arrive, and acknowledges the last one applied
+ * after each batch. At most Constants.REPLICATION_WINDOW changes are on
+ * the way unacknowledged, the queue fills up behind them.
+ *
+ * Records are full copies of a session, so whenever the standby may have
+ * missed a change (connection set up again, queue overflowed) queued
+ * changes are dropped and all live sessions are sent instead.
+ *
+ * Once it has been sent all sessions, the standby takes over (see
+ * Standby.takeOver) when it hears nothing from the active for
+ * Constants.REPLICATION_FAILOVER_TIMEOUT, or the connection is lost and
+ * not set up again within that time. The active sends heartbeats while
+ * there is nothing to replicate.
+ */
+package net.floodlightcontroller.splus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionReplicator {
+	/* Applies sessions replicated by the active MME, called on the single receiver thread of the standby */
+	public interface Standby {
+		// all sessions are sent again, forget the ones replicated so far
+		void reset();
+
+		// new or changed session
+		void update(UeContext ue);
+
+		// session has ended, e.g. UE has detached
+		void delete(int ue_key);
+
+		// active MME is gone, called once after the last change it sent has been applied
+		void takeOver();
+	}
+
+	/* #### Message Types #### */
+	static final byte HEARTBEAT = 1;	// []
+	static final byte RESET = 2;		// [], all sessions follow
+	static final byte SYNCED = 3;		// [], all sessions have been sent
+	static final byte UPDATE = 4;		// [long sequence, long time queued, journal record]
+	static final byte DELETE = 5;		// [long sequence, long time queued, int ue_key]
+	static final byte ACK = 6;			// [long sequence, long time queued] of the last change applied, standby => active
+
+	// [int length][byte type]
+	private static final int HEADER_SIZE = 5;
+
+	// largest frame accepted, a bigger length means the stream is out of sync
+	private static final int MAX_FRAME_SIZE = 1 << 10;
+
+	private static final byte[] HEARTBEAT_FRAME = frame(HEARTBEAT, 0).array();
+	private static final byte[] RESET_FRAME = frame(RESET, 0).array();
+	private static final byte[] SYNCED_FRAME = frame(SYNCED, 0).array();
+
+	private final InetSocketAddress address;
+	private volatile boolean running;
+
+	/* #### Active #### */
+	private SessionJournal.Source source;
+	private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(Constants.REPLICATION_QUEUE_CAPACITY);
+	private Thread sender;
+	private volatile Socket connection;		// to the standby, null => changes aren't queued
+	private volatile boolean resync;		// standby has to be sent all sessions
+	private volatile long sent;				// sequence of the last change written, written by the sender thread only
+	private volatile long acked;			// sequence of the last change applied by the standby
+	private volatile long acked_time;		// time (System.nanoTime) the last change applied was queued
+	private final Object window = new Object();
+
+	// time from queuing a change to its acknowledgement by the standby
+	private final LatencyHistogram lag = new LatencyHistogram();
+
+	/* #### Standby #### */
+	private Standby standby;
+	private ServerSocket server;
+	private volatile boolean synced;		// all sessions have been received since the last reset
+	private volatile long last_heard;		// time (in milliseconds) of the last message from the active, 0 => never
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+	private final AtomicLong resyncs = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/* Replicator of the standby at "host:port" (see Constants.REPLICATION_ADDRESS) */
+	public SessionReplicator(String address) {
+		String parts[] = address.trim().split(":");
+		if(parts.length != 2) {
+			throw new IllegalArgumentException("Bad standby MME address: '" + address + "', expected host:port");
+		};
+
+		this.address = new InetSocketAddress(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+	};
+
+	/* Starts replicating to the standby, which is sent all sessions of source first */
+	public void startActive(SessionJournal.Source source) {
+		this.source = source;
+		running = true;
+
+		sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				send();
+			};
+		}, "session-replicator-sender");
+		sender.setDaemon(true);
+		sender.start();
+	};
+
+	/* Listens for the active and applies what it replicates to standby, till it takes over */
+	public void startStandby(Standby standby) throws IOException {
+		this.standby = standby;
+
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+
+		try {
+			server.bind(address);
+		} catch (IOException e) {
+			// caller may try again
+			server.close();
+			server = null;
+			throw e;
+		}
+
+		running = true;
+
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			};
+		}, "session-replicator-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	};
+
+	public void stop() {
+		running = false;
+		close(connection);
+
+		try {
+			if(server != null) { server.close(); };
+		} catch (IOException e) {
+			// closing anyway
+		}
+
+		if(sender != null) { sender.interrupt(); };
+	};
+
+	/* Replicates a new or changed session, called by the thread running the procedure of the UE */
+	public void update(UeContext ue) {
+		if(connection == null) { return; };
+
+		ByteBuffer message = frame(UPDATE, 16 + SessionJournal.RECORD_SIZE);
+		message.putLong(0).putLong(System.nanoTime()).put(SessionJournal.encodeSession(ue));
+		enqueue(message.array());
+	};
+
+	/* Replicates the end of a session */
+	public void delete(int ue_key) {
+		if(connection == null) { return; };
+
+		ByteBuffer message = frame(DELETE, 20);
+		message.putLong(0).putLong(System.nanoTime()).putInt(ue_key);
+		enqueue(message.array());
+	};
+
+	// procedures never wait for the standby, once it is too far behind it is sent all sessions instead
+	private void enqueue(byte[] message) {
+		if(queue.offer(message)) {
+			queued.incrementAndGet();
+		} else if(!resync) {
+			overflows.incrementAndGet();
+			resync = true;
+		};
+	};
+
+	// frame of the type with room for payload_length bytes, positioned at the payload
+	private static ByteBuffer frame(byte type, int payload_length) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload_length);
+		buffer.putInt(1 + payload_length).put(type);
+		return buffer;
+	};
+
+	/* Sender thread of the active: (re)connects, sends all sessions if needed, then queued changes in batches */
+	private void send() {
+		Socket socket = null;
+		DataOutputStream out = null;
+
+		while (running) {
+			try {
+				if(socket == null) {
+					socket = new Socket();
+					socket.setTcpNoDelay(true);
+					socket.connect(address, (int) Constants.REPLICATION_FAILOVER_TIMEOUT);
+					out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 << 10));
+
+					sent = 0;
+					acked = 0;
+					resync = true;
+					connection = socket;
+
+					final Socket acked_socket = socket;
+					Thread reader = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							readAcks(acked_socket);
+						};
+					}, "session-replicator-acks");
+					reader.setDaemon(true);
+					reader.start();
+					System.out.println("--- MME replicating sessions to standby at: '" + address + "' ---");
+				};
+
+				if(resync) {
+					sendAll(out);
+					continue;
+				};
+
+				byte[] message = queue.poll(Constants.REPLICATION_HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+				if(message == null) {
+					out.write(HEARTBEAT_FRAME);
+					out.flush();
+					continue;
+				};
+
+				// whatever has been queued meanwhile goes out with the same flush
+				int batch = 0;
+				do {
+					write(out, message);
+				} while (++batch < Constants.REPLICATION_BATCH_SIZE && (message = queue.poll()) != null);
+
+				out.flush();
+
+			} catch (InterruptedException e) {
+				break;
+
+			} catch (IOException e) {
+				if(connection != null && running) {
+					System.out.println("ERROR: MME lost connection to standby at: '" + address + "' (" + e + ")");
+				};
+
+				// changes made meanwhile are covered by sending all sessions once connected again
+				connection = null;
+				close(socket);
+				socket = null;
+				queue.clear();
+				reconnects.incrementAndGet();
+
+				try {
+					Thread.sleep(Constants.REPLICATION_HEARTBEAT_INTERVAL);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			}
+		};
+
+		close(socket);
+	};
+
+	/* Sends all live sessions in place of queued changes. Changes made while they are read are queued and sent
+	 * after them; a session is read after the changes dropped from the queue, so the standby gets nothing older.
+	 */
+	private void sendAll(DataOutputStream out) throws IOException, InterruptedException {
+		resync = false;
+		queue.clear();
+		resyncs.incrementAndGet();
+
+		long start = System.nanoTime();
+		long count = 0;
+		out.write(RESET_FRAME);
+
+		for (UeContext ue : source.getSessions()) {
+			if(!ue.hasBearer()) { continue; };
+
+			ByteBuffer message = frame(UPDATE, 16 + SessionJournal.RECORD_SIZE);
+			message.putLong(0).putLong(System.nanoTime()).put(SessionJournal.encodeSession(ue));
+			write(out, message.array());
+			count++;
+		};
+
+		out.write(SYNCED_FRAME);
+		out.flush();
+
+		System.out.println("--- MME sent " + count + " sessions to standby in " + (System.nanoTime() - start) / 1000000 + " ms ---");
+	};
+
+	// writes change with the next sequence, once the standby has room for it
+	private void write(DataOutputStream out, byte[] message) throws IOException, InterruptedException {
+		if(sent - acked >= Constants.REPLICATION_WINDOW) {
+			// standby acknowledges what it has got, make sure it has got everything written so far
+			out.flush();
+
+			long deadline = System.currentTimeMillis() + Constants.REPLICATION_FAILOVER_TIMEOUT;
+			synchronized (window) {
+				while (sent - acked >= Constants.REPLICATION_WINDOW) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0 || connection == null) {
+						throw new IOException("standby is not acknowledging changes");
+					};
+					window.wait(remaining);
+				};
+			}
+		};
+
+		ByteBuffer.wrap(message).putLong(HEADER_SIZE, ++sent);
+		out.write(message);
+	};
+
+	/* Reader thread of the active, takes acknowledgements of the standby */
+	private void readAcks(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			while (running) {
+				int length = in.readInt();
+				byte type = in.readByte();
+				if(length != 17 || type != ACK) {
+					throw new IOException("bad acknowledgement from standby");
+				};
+
+				long sequence = in.readLong();
+				long time = in.readLong();
+
+				// acknowledgement of an earlier connection
+				if(socket != connection) { break; };
+
+				lag.record(System.nanoTime() - time);
+				acked_time = time;
+				synchronized (window) {
+					acked = sequence;
+					window.notifyAll();
+				}
+			};
+
+		} catch (IOException e) {
+			// sender finds out as well, connects again
+		}
+
+		close(socket);
+		synchronized (window) {
+			window.notifyAll();
+		}
+	};
+
+	/* Receiver thread of the standby: takes one connection from the active at a time, takes over once it is gone */
+	private void receive() {
+		while (running) {
+			Socket socket = null;
+
+			try {
+				// once in sync, the active has to connect again within the failover timeout
+				server.setSoTimeout(synced ? (int) Constants.REPLICATION_FAILOVER_TIMEOUT : 0);
+				socket = server.accept();
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout((int) Constants.REPLICATION_FAILOVER_TIMEOUT);
+				System.out.println("--- Standby MME replicating sessions of active at: '" + socket.getRemoteSocketAddress() + "' ---");
+
+				read(socket);
+
+			} catch (SocketTimeoutException e) {
+				if(socket == null) {
+					takeOver();
+					return;
+				};
+
+				System.out.println("ERROR: Standby MME heard nothing from active for " + Constants.REPLICATION_FAILOVER_TIMEOUT + " ms");
+				close(socket);
+
+				if(synced) {
+					takeOver();
+					return;
+				};
+
+			} catch (IOException e) {
+				if(!running) { return; };
+
+				if(socket != null) {
+					System.out.println("ERROR: Standby MME lost connection to active (" + e + ")");
+				};
+				close(socket);
+			}
+		};
+	};
+
+	// applies changes sent over the connection, acknowledges the last one applied whenever it has read all there is
+	private void read(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 << 10));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		byte record[] = new byte[SessionJournal.RECORD_SIZE];
+		long sequence = 0, time = 0, acknowledged = 0;
+
+		while (running) {
+			int length = in.readInt();
+			if(length < 1 || length > MAX_FRAME_SIZE) {
+				throw new IOException("bad frame length " + length);
+			};
+
+			byte type = in.readByte();
+			last_heard = System.currentTimeMillis();
+
+			switch (type) {
+				case RESET:
+					synced = false;
+					standby.reset();
+					break;
+
+				case SYNCED:
+					synced = true;
+					System.out.println("--- Standby MME in sync with active after " + applied.get() + " changes ---");
+					break;
+
+				case UPDATE:
+				case DELETE:
+					sequence = in.readLong();
+					time = in.readLong();
+
+					try {
+						if(type == DELETE) {
+							standby.delete(in.readInt());
+						} else {
+							in.readFully(record);
+							UeContext ue = SessionJournal.decodeSession(record);
+
+							if(ue == null) {
+								failures.incrementAndGet();
+								System.out.println("ERROR: Session replicated by active MME is damaged - dropping");
+							} else {
+								standby.update(ue);
+							};
+						};
+					} catch (RuntimeException e) {
+						failures.incrementAndGet();
+						System.out.println("ERROR: Session change replicated by active MME not applied (" + e + ")");
+					}
+
+					applied.incrementAndGet();
+					break;
+
+				default:
+					// HEARTBEAT
+					in.skipBytes(length - 1);
+					break;
+			};
+
+			if(sequence != acknowledged && in.available() == 0) {
+				out.writeInt(17);
+				out.writeByte(ACK);
+				out.writeLong(sequence);
+				out.writeLong(time);
+				out.flush();
+				acknowledged = sequence;
+			};
+		};
+	};
+
+	private void takeOver() {
+		running = false;
+
+		try {
+			server.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+
+		System.out.println("--- Standby MME taking over from active, last heard " + (System.currentTimeMillis() - last_heard) + " ms ago ---");
+		standby.takeOver();
+	};
+
+	private static void close(Socket socket) {
+		if(socket == null) { return; };
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	};
+
+	/* Time (in milliseconds) the standby is behind: 0 if it has applied every change, else the age of the last change it has applied */
+	public long getLagMillis() {
+		if(connection == null || (acked == sent && queue.isEmpty())) { return 0; };
+		return Math.max(0, (System.nanoTime() - acked_time) / 1000000);
+	};
+
+	public String getStats() {
+		if(standby != null) {
+			return "session_replicator: role=standby, synced=" + synced + ", applied=" + applied.get() + ", failures=" + failures.get() +
+				", last_heard=" + (last_heard == 0 ? "never" : (System.currentTimeMillis() - last_heard) + " ms ago");
+		};
+
+		LatencyHistogram.Snapshot lags = lag.snapshot();
+		return "session_replicator: role=active, connected=" + (connection != null) + ", queued=" + queued.get() + ", backlog=" + (queue.size() + sent - acked) +
+			", lag=" + getLagMillis() + " ms, ack_latency(us) p50=" + lags.getPercentile(50) / 1000 + " p99=" + lags.getPercentile(99) / 1000 + " max=" + lags.getMax() / 1000 +
+			", overflows=" + overflows.get() + ", resyncs=" + resyncs.get() + ", reconnects=" + reconnects.get();
+	};
+}
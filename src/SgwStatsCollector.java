@@ -0,0 +1,263 @@
+/* #### SGW-D Statistics Collector ####
+ * This class keeps the load of every SGW-D (see Topology.getSgws())
+ * for MME to pick the least loaded one for a new bearer. poll() sends
+ * port and aggregate flow stats requests to connected SGW-Ds; replies
+ * are handled asynchronously on the thread delivering them and update
+ * exponentially weighted moving averages of byte / packet rates (of the
+ * ports facing eNodeBs and PGW-D) and the flow count as last reported.
+ * Every bearer placed on a SGW-D counts as Constants.SGW_BEARER_LOAD till
+ * a flow count requested after it has come back, so a burst of attaches
+ * is spread instead of landing on the same SGW-D.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.projectfloodlight.openflow.protocol.OFAggregateStatsReply;
+import org.projectfloodlight.openflow.protocol.OFPortStatsEntry;
+import org.projectfloodlight.openflow.protocol.OFPortStatsReply;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TableId;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class SgwStatsCollector {
+	// stats replies are handled right on the thread delivering them
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		};
+	};
+
+	/* Load of a SGW-D, rates and counts are guarded by its monitor */
+	static class GatewayLoad {
+		final DatapathId id;
+
+		double byte_rate, packet_rate;
+		long flow_count, last_bytes, last_packets, last_sample;
+		boolean sampled, rated;
+
+		// bearers placed which may not be in the last flow count yet
+		final AtomicInteger assigned = new AtomicInteger();
+
+		// requests of last poll not answered yet, and when they were sent
+		final AtomicInteger outstanding = new AtomicInteger();
+		volatile long polled;
+
+		GatewayLoad(DatapathId id) {
+			this.id = id;
+		};
+
+		synchronized double getLoad() {
+			return byte_rate + Constants.SGW_BEARER_LOAD * (flow_count + assigned.get());
+		};
+
+		@Override
+		public synchronized String toString() {
+			return "sgw " + id.getLong() + String.format(": bytes/s=%.0f, packets/s=%.0f", byte_rate, packet_rate) + ", flows=" + flow_count + ", assigned=" + assigned.get() +
+				String.format(", load=%.0f", getLoad());
+		};
+	}
+
+	/* [Key => SGW-D dispatch ID, Value => its load], added as SGW-Ds show up in the topology */
+	private final ConcurrentHashMap<DatapathId, GatewayLoad> gateways;
+
+	/* connected switches of MME, [Key => dispatch ID] */
+	private final Map<DatapathId, IOFSwitch> switches;
+
+	private final AtomicLong polls = new AtomicLong();
+	private final AtomicLong replies = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	public SgwStatsCollector(Map<DatapathId, IOFSwitch> switches) {
+		this.switches = switches;
+		this.gateways = new ConcurrentHashMap<DatapathId, GatewayLoad>();
+	};
+
+	private GatewayLoad gatewayOf(DatapathId sgw_dispatch_id) {
+		GatewayLoad gateway = gateways.get(sgw_dispatch_id);
+		if(gateway == null) {
+			gateway = new GatewayLoad(sgw_dispatch_id);
+			GatewayLoad raced = gateways.putIfAbsent(sgw_dispatch_id, gateway);
+			if(raced != null) { gateway = raced; };
+		};
+		return gateway;
+	};
+
+	/* Least loaded connected SGW-D linked to the eNodeB, or fallback if none of them is connected */
+	public DatapathId select(DatapathId enodeb_dispatch_id, DatapathId fallback) {
+		GatewayLoad best = null;
+		double best_load = 0;
+
+		for (DatapathId sgw_dispatch_id : Topology.getSgws()) {
+			if(!switches.containsKey(sgw_dispatch_id) || Topology.portTo(enodeb_dispatch_id.getLong(), sgw_dispatch_id.getLong()) == Topology.NONE) { continue; };
+
+			GatewayLoad gateway = gatewayOf(sgw_dispatch_id);
+			double load = gateway.getLoad();
+			if(best == null || load < best_load) {
+				best = gateway;
+				best_load = load;
+			};
+		};
+
+		return best == null ? fallback : best.id;
+	};
+
+	/* Counts a bearer placed on the SGW-D till its flows show up in the next flow count */
+	public void assigned(DatapathId sgw_dispatch_id) {
+		GatewayLoad gateway = gateways.get(sgw_dispatch_id);
+		if(gateway != null) { gateway.assigned.incrementAndGet(); };
+	};
+
+	/* Forgets samples of a SGW-D, e.g. after it has disconnected */
+	public void reset(DatapathId sgw_dispatch_id) {
+		GatewayLoad gateway = gateways.get(sgw_dispatch_id);
+		if(gateway == null) { return; };
+
+		synchronized (gateway) {
+			gateway.byte_rate = gateway.packet_rate = 0;
+			gateway.flow_count = 0;
+			gateway.sampled = gateway.rated = false;
+			gateway.assigned.set(0);
+			gateway.outstanding.set(0);
+		}
+	};
+
+	/* Requests port and aggregate flow stats of all connected SGW-Ds, replies are handled asynchronously */
+	public void poll() {
+		long now = System.nanoTime();
+
+		for (DatapathId sgw_dispatch_id : Topology.getSgws()) {
+			final IOFSwitch sw = switches.get(sgw_dispatch_id);
+			if(sw == null || !sw.isActive()) { continue; };
+
+			final GatewayLoad gateway = gatewayOf(sgw_dispatch_id);
+
+			// previous poll still unanswered, give up on it only after a few intervals
+			if(gateway.outstanding.get() > 0 && now - gateway.polled < TimeUnit.MILLISECONDS.toNanos(5 * Constants.SGW_STATS_INTERVAL)) { continue; };
+
+			gateway.outstanding.set(2);
+			gateway.polled = now;
+			polls.incrementAndGet();
+
+			// bearers placed so far are in the flow count of this poll, those placed meanwhile are not
+			final int placed = gateway.assigned.get();
+
+			final ListenableFuture<List<OFPortStatsReply>> ports = sw.writeStatsRequest(sw.getOFFactory().buildPortStatsRequest().setPortNo(OFPort.ANY).build());
+			ports.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						onPortStats(gateway, ports.get());
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					} finally {
+						gateway.outstanding.decrementAndGet();
+					};
+				};
+			}, DIRECT);
+
+			final ListenableFuture<List<OFAggregateStatsReply>> flows = sw.writeStatsRequest(sw.getOFFactory().buildAggregateStatsRequest()
+				.setMatch(sw.getOFFactory().buildMatch().build()).setOutPort(OFPort.ANY).setTableId(TableId.ALL).build());
+			flows.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						onFlowStats(gateway, flows.get(), placed);
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					} finally {
+						gateway.outstanding.decrementAndGet();
+					};
+				};
+			}, DIRECT);
+		};
+	};
+
+	private void onPortStats(GatewayLoad gateway, List<OFPortStatsReply> stats) {
+		long bytes = 0, packets = 0;
+
+		for (OFPortStatsReply reply : stats) {
+			for (OFPortStatsEntry entry : reply.getEntries()) {
+				if(!isDataPort(gateway, entry.getPortNo().getPortNumber())) { continue; };
+
+				bytes += entry.getRxBytes().getValue() + entry.getTxBytes().getValue();
+				packets += entry.getRxPackets().getValue() + entry.getTxPackets().getValue();
+			};
+		};
+
+		long now = System.nanoTime();
+		replies.incrementAndGet();
+
+		synchronized (gateway) {
+			double seconds = (now - gateway.last_sample) / 1e9;
+
+			// counters going backwards means the switch has restarted, start over from this sample
+			if(gateway.sampled && seconds > 0 && bytes >= gateway.last_bytes && packets >= gateway.last_packets) {
+				gateway.byte_rate = ewma(gateway.rated, gateway.byte_rate, (bytes - gateway.last_bytes) / seconds);
+				gateway.packet_rate = ewma(gateway.rated, gateway.packet_rate, (packets - gateway.last_packets) / seconds);
+				gateway.rated = true;
+			};
+
+			gateway.last_bytes = bytes;
+			gateway.last_packets = packets;
+			gateway.last_sample = now;
+			gateway.sampled = true;
+		}
+	};
+
+	/* placed => bearers assigned to the SGW-D when the flow stats were requested */
+	private void onFlowStats(GatewayLoad gateway, List<OFAggregateStatsReply> stats, int placed) {
+		long flows = 0;
+		for (OFAggregateStatsReply reply : stats) { flows += reply.getFlowCount(); };
+
+		replies.incrementAndGet();
+
+		synchronized (gateway) {
+			gateway.flow_count = flows;
+		}
+
+		// flows of those bearers are in this count now, never below 0 if SGW-D has been reset meanwhile
+		int current;
+		do {
+			current = gateway.assigned.get();
+		} while (!gateway.assigned.compareAndSet(current, Math.max(0, current - placed)));
+	};
+
+	// ports facing eNodeBs and PGW-D carry the user plane, if none are known all ports count
+	private static boolean isDataPort(GatewayLoad gateway, int port) {
+		int pgw_port = Topology.portTo(gateway.id.getLong(), Constants.PGW_ID);
+		boolean known = pgw_port != Topology.NONE;
+		if(port == pgw_port) { return true; };
+
+		for (EnodebRegistry.Enodeb enodeb : EnodebRegistry.getAll()) {
+			int enodeb_port = Topology.portTo(gateway.id.getLong(), enodeb.dispatch_id.getLong());
+			if(enodeb_port == port) { return true; };
+			known |= enodeb_port != Topology.NONE;
+		};
+
+		return !known && port > 0;
+	};
+
+	// the first sample is taken as is
+	private static double ewma(boolean averaged, double average, double sample) {
+		if(!averaged) { return sample; };
+		return Constants.SGW_STATS_EWMA_ALPHA * sample + (1 - Constants.SGW_STATS_EWMA_ALPHA) * average;
+	};
+
+	public String getStats() {
+		StringBuilder sb = new StringBuilder("sgw_stats: polls=" + polls.get() + ", replies=" + replies.get() + ", failures=" + failures.get() + "\n");
+		for (GatewayLoad gateway : gateways.values()) { sb.append(gateway).append('\n'); };
+		return sb.toString();
+	};
+}
@@ -0,0 +1,109 @@
+/* #### Tunnel Endpoint ID Allocator ####
+ * This class hands out tunnel endpoint IDs of a gateway from its own
+ * range (see Constants), so SGW-C and PGW-C never hand out the same ID
+ * and an ID in use is never handed out again before it is released.
+ * IDs are kept in an AtomicBitmap, so they are allocated / released
+ * without locks in constant time, and a released ID is reused only after
+ * the rest of the range has been gone through (flows of its old owner
+ * have long been deleted by then).
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TeidAllocator {
+	// returned by allocate() when the range is exhausted (VLAN ID 0 means no tunnel)
+	public static final int NONE = 0;
+
+	private final String name;
+	private final int min_te_id;
+	private final AtomicBitmap ids;
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+	private final AtomicLong bad_releases = new AtomicLong();
+
+	public TeidAllocator(String name, int min_te_id, int max_te_id) {
+		if(min_te_id < Constants.MIN_TE_ID || max_te_id > Constants.MAX_TE_ID || min_te_id > max_te_id) {
+			throw new IllegalArgumentException("Bad Tunnel Endpoint ID range of " + name + ": '" + min_te_id + "' - '" + max_te_id + "'");
+		};
+
+		this.name = name;
+		this.min_te_id = min_te_id;
+		this.ids = new AtomicBitmap(max_te_id - min_te_id + 1);
+	};
+
+	/* Allocator of part (0 => first) of parts equal slices of the range, so nodes of the MME cluster never hand out the same ID */
+	public static TeidAllocator slice(String name, int min_te_id, int max_te_id, int part, int parts) {
+		long size = max_te_id - min_te_id + 1;
+		return new TeidAllocator(name, min_te_id + (int) (size * part / parts), min_te_id + (int) (size * (part + 1) / parts) - 1);
+	};
+
+	/* Slice (see slice()) of the range the ID belongs to */
+	public static int partOf(int te_id, int min_te_id, int max_te_id, int parts) {
+		long size = max_te_id - min_te_id + 1;
+		return (int) (((te_id - min_te_id + 1L) * parts - 1) / size);
+	};
+
+	/* Allocates a free tunnel endpoint ID, or returns NONE if all IDs of the range are in use */
+	public int allocate() {
+		int index = ids.allocate();
+
+		if(index < 0) {
+			exhausted.incrementAndGet();
+			return NONE;
+		};
+
+		allocated.incrementAndGet();
+		return min_te_id + index;
+	};
+
+	/* Allocates the given ID, e.g. one in use before a restart. Returns false if it is out of range or in use. */
+	public boolean allocate(int te_id) {
+		if(!ids.allocate(te_id - min_te_id)) { return false; };
+
+		allocated.incrementAndGet();
+		return true;
+	};
+
+	/* Releases an ID handed out by allocate(). Returns false (and changes nothing) if the ID
+	 * is out of range or is not in use, e.g. it has already been released.
+	 */
+	public boolean release(int te_id) {
+		if(!ids.release(te_id - min_te_id)) {
+			bad_releases.incrementAndGet();
+			return false;
+		};
+
+		released.incrementAndGet();
+		return true;
+	};
+
+	public boolean isAllocated(int te_id) {
+		return ids.isAllocated(te_id - min_te_id);
+	};
+
+	public int getInUse() {
+		return ids.getInUse();
+	};
+
+	public int getCapacity() {
+		return ids.size();
+	};
+
+	/* Fraction (0.0 - 1.0) of the range in use */
+	public double getOccupancy() {
+		return ids.getInUse() / (double) ids.size();
+	};
+
+	/* Number of allocations which failed since the range was exhausted */
+	public long getExhausted() {
+		return exhausted.get();
+	};
+
+	public String getStats() {
+		return name + "_te_ids: in_use=" + ids.getInUse() + "/" + ids.size() + String.format(" (%.1f%%)", getOccupancy() * 100) + ", peak=" + ids.getPeak() + ", allocated=" + allocated.get() +
+			", released=" + released.get() + ", exhausted=" + exhausted.get() + ", bad_releases=" + bad_releases.get();
+	};
+}
@@ -0,0 +1,278 @@
+/* #### Topology ####
+ * This class keeps the adjacency between eNodeB switches, SGW-Ds and PGW-D,
+ * i.e. which port of a switch reaches another one. Links come from the
+ * configuration (see Constants.TOPOLOGY_LINKS) and from Floodlight link
+ * discovery, and links over a port go down / up with it as the switch
+ * reports port changes.
+ *
+ * Lookups are on the bearer path, so they never lock or allocate: every
+ * change builds a new immutable snapshot, in which dispatch IDs are put
+ * in an open addressed table of longs and ports in a flat matrix indexed
+ * by (switch, switch). Changes are rare, rebuilding is cheap enough.
+ *
+ * Rules already installed for a bearer stay on the ports it was set up
+ * with, a new bearer (or one coming back from idle) uses the current ones.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+
+public class Topology {
+	// port of no link
+	public static final int NONE = -1;
+
+	/* One direction of a link, src_port on src reaches dst */
+	private static class Link {
+		final long src, dst;
+		final int src_port, dst_port;
+		final boolean discovered;
+		boolean up = true;
+
+		Link(long src, int src_port, long dst, int dst_port, boolean discovered) {
+			this.src = src;
+			this.src_port = src_port;
+			this.dst = dst;
+			this.dst_port = dst_port;
+			this.discovered = discovered;
+		};
+
+		boolean same(long src, int src_port, long dst, int dst_port) {
+			return this.src == src && this.src_port == src_port && this.dst == dst && this.dst_port == dst_port;
+		};
+
+		boolean uses(long dispatch_id, int port) {
+			return (src == dispatch_id && src_port == port) || (dst == dispatch_id && dst_port == port);
+		};
+	}
+
+	/* Adjacency built from the links, never changed once published */
+	private static class Snapshot {
+		final int count;
+		final long keys[];			// dispatch ID in the slot
+		final int slots[];			// index + 1 of the switch in the slot, 0 => free
+		final int ports[];			// [Index => from index * count + to index, Value => port on from, NONE if not linked]
+		final boolean sgw[];		// [Index => switch index]
+		final DatapathId sgws[];	// SGW-Ds in order of their first link
+		final int links;
+
+		Snapshot(long switches[], int links) {
+			this.count = switches.length;
+			this.links = links;
+
+			int capacity = 8;
+			while (capacity < 2 * count) { capacity <<= 1; };
+			keys = new long[capacity];
+			slots = new int[capacity];
+
+			for (int i = 0; i < count; i++) {
+				int slot = hash(switches[i]) & (capacity - 1);
+				while (slots[slot] != 0) { slot = (slot + 1) & (capacity - 1); };
+				keys[slot] = switches[i];
+				slots[slot] = i + 1;
+			};
+
+			ports = new int[count * count];
+			Arrays.fill(ports, NONE);
+			sgw = new boolean[count];
+			sgws = new DatapathId[0];
+		};
+
+		Snapshot(Snapshot built, DatapathId sgws[]) {
+			count = built.count;
+			keys = built.keys;
+			slots = built.slots;
+			ports = built.ports;
+			sgw = built.sgw;
+			links = built.links;
+			this.sgws = sgws;
+		};
+
+		int indexOf(long dispatch_id) {
+			int mask = slots.length - 1;
+			for (int slot = hash(dispatch_id) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+				if(keys[slot] == dispatch_id) { return slots[slot] - 1; };
+			};
+			return NONE;
+		};
+	}
+
+	// configured and discovered links, guarded by the class monitor
+	private static final List<Link> links = new ArrayList<Link>();
+
+	private static volatile Snapshot snapshot = new Snapshot(new long[0], 0);
+
+	private static final AtomicLong updates = new AtomicLong();
+
+	static {
+		configure(Constants.TOPOLOGY_LINKS);
+	};
+
+	/* Port of the switch from which reaches the switch to, NONE if they are not linked */
+	public static int portTo(long from, long to) {
+		Snapshot current = snapshot;
+		int from_index = current.indexOf(from);
+		int to_index = current.indexOf(to);
+
+		if(from_index == NONE || to_index == NONE) { return NONE; };
+		return current.ports[from_index * current.count + to_index];
+	};
+
+	/* true if the switch is linked to an eNodeB switch and PGW-D */
+	public static boolean isSgw(long dispatch_id) {
+		Snapshot current = snapshot;
+		int index = current.indexOf(dispatch_id);
+		return index != NONE && current.sgw[index];
+	};
+
+	/* All SGW-Ds, the array is shared and must not be changed */
+	public static DatapathId[] getSgws() {
+		return snapshot.sgws;
+	};
+
+	/* Link discovery has found that src_port of src reaches dst (one direction of the link) */
+	public static synchronized void linkUpdated(long src, int src_port, long dst, int dst_port) {
+		for (Link link : links) {
+			if(link.discovered && link.same(src, src_port, dst, dst_port)) {
+				if(link.up) { return; };
+				link.up = true;
+				publish();
+				return;
+			};
+		};
+
+		links.add(new Link(src, src_port, dst, dst_port, true));
+		publish();
+	};
+
+	/* Link discovery has lost the link, configured links stay */
+	public static synchronized void linkRemoved(long src, int src_port, long dst, int dst_port) {
+		boolean changed = false;
+		for (Iterator<Link> it = links.iterator(); it.hasNext();) {
+			Link link = it.next();
+			if(link.discovered && link.same(src, src_port, dst, dst_port)) {
+				it.remove();
+				changed = true;
+			};
+		};
+		if(changed) { publish(); };
+	};
+
+	/* Links over the port of the switch go down / up with it */
+	public static synchronized void portChanged(long dispatch_id, int port, boolean up) {
+		boolean changed = false;
+		for (Link link : links) {
+			if(link.up != up && link.uses(dispatch_id, port)) {
+				link.up = up;
+				changed = true;
+			};
+		};
+		if(changed) { publish(); };
+	};
+
+	/* Drops discovered links of the switch, e.g. it has disconnected */
+	public static synchronized void switchRemoved(long dispatch_id) {
+		boolean changed = false;
+		for (Iterator<Link> it = links.iterator(); it.hasNext();) {
+			Link link = it.next();
+			if(link.discovered && (link.src == dispatch_id || link.dst == dispatch_id)) {
+				it.remove();
+				changed = true;
+			};
+		};
+		if(changed) { publish(); };
+	};
+
+	/* Reads configured links "switch:port-switch:port,...", exits on a malformed one */
+	private static synchronized void configure(String config) {
+		for (String pair : config.split(",")) {
+			pair = pair.trim();
+			if(pair.isEmpty()) { continue; };
+
+			try {
+				String ends[] = pair.split("-");
+				String a[] = ends[0].split(":");
+				String b[] = ends[1].split(":");
+				if(ends.length != 2 || a.length != 2 || b.length != 2) { throw new IllegalArgumentException(); };
+
+				long a_id = Long.parseLong(a[0].trim()), b_id = Long.parseLong(b[0].trim());
+				int a_port = Integer.parseInt(a[1].trim()), b_port = Integer.parseInt(b[1].trim());
+
+				links.add(new Link(a_id, a_port, b_id, b_port, false));
+				links.add(new Link(b_id, b_port, a_id, a_port, false));
+
+			} catch (RuntimeException e) {
+				System.out.println("ERROR: Invalid topology link '" + pair + "', expected 'switch:port-switch:port'");
+				System.exit(1);
+			};
+		};
+
+		publish();
+	};
+
+	/* Builds a snapshot of the links and makes it the current one, called holding the class monitor */
+	private static void publish() {
+		LinkedHashSet<Long> switches = new LinkedHashSet<Long>();
+		for (EnodebRegistry.Enodeb enodeb : EnodebRegistry.getAll()) { switches.add(enodeb.dispatch_id.getLong()); };
+		switches.add((long) Constants.PGW_ID);
+		for (Link link : links) {
+			switches.add(link.src);
+			switches.add(link.dst);
+		};
+
+		long ids[] = new long[switches.size()];
+		int i = 0;
+		for (Long id : switches) { ids[i++] = id; };
+
+		Snapshot built = new Snapshot(ids, links.size());
+
+		// configured links first, so a discovered one between the same switches takes precedence
+		for (int pass = 0; pass < 2; pass++) {
+			for (Link link : links) {
+				if(!link.up || link.discovered != (pass == 1)) { continue; };
+				built.ports[built.indexOf(link.src) * built.count + built.indexOf(link.dst)] = link.src_port;
+			};
+		};
+
+		int pgw = built.indexOf(Constants.PGW_ID);
+		List<DatapathId> sgws = new ArrayList<DatapathId>();
+
+		for (i = 0; i < ids.length; i++) {
+			if(i == pgw || EnodebRegistry.isEnodeb(ids[i]) || built.ports[i * built.count + pgw] == NONE) { continue; };
+
+			for (EnodebRegistry.Enodeb enodeb : EnodebRegistry.getAll()) {
+				if(built.ports[i * built.count + built.indexOf(enodeb.dispatch_id.getLong())] != NONE) {
+					built.sgw[i] = true;
+					sgws.add(DatapathId.of(ids[i]));
+					break;
+				};
+			};
+		};
+
+		snapshot = new Snapshot(built, sgws.toArray(new DatapathId[sgws.size()]));
+		updates.incrementAndGet();
+
+		// parts of rules built for ports which may reach other switches now
+		FlowTemplates.clear();
+
+		if(Constants.DEBUG) {
+			System.out.println("Topology updated, SGW-Ds: " + sgws);
+		};
+	};
+
+	private static int hash(long dispatch_id) {
+		long h = dispatch_id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	};
+
+	public static String getStats() {
+		Snapshot current = snapshot;
+		return "topology: switches=" + current.count + ", links=" + current.links + ", sgws=" + current.sgws.length + ", updates=" + updates.get();
+	};
+}
@@ -0,0 +1,64 @@
+/* #### UE Context ####
+ * This class holds all the state MME keeps for a single UE,
+ * from authentication till detach. It replaces the parallel
+ * per-UE maps MME used to keep.
+ */
+package net.floodlightcontroller.splus;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+public class UeContext {
+	// UE Key (0 => not known yet, i.e. UE is still authenticating)
+	int ue_key;
+
+	// International Mobile Subscriber Identity (0 => not known)
+	long imsi;
+
+	/* #### Security Context #### */
+	long xres;					// Expected response from UE
+	boolean awaiting_res;		// true till UE answers authentication challenge
+	String k_asme;				// Access Security Management key
+	String nas_int_key;			// NAS integrity key
+	String nas_enc_key;			// NAS encryption key
+	SecretKeySpec nas_int_spec;	// cached key spec of NAS integrity key (see CryptoEngine)
+	SecretKeySpec nas_enc_spec;	// cached key spec of NAS encryption key
+
+	/* #### Bearer Context #### */
+	int ue_ip;					// IP address allocated by PGW-C (0 => none)
+	int ue_te_id;				// Tunnel endpoint ID chosen by UE / eNodeB
+	int sgw_te_id;				// Tunnel endpoint ID allocated by SGW-C (0 => none)
+	DatapathId sgw_dispatch_id;	// SGW-D serving this UE
+	int pgw_te_id;				// Tunnel endpoint ID allocated by PGW-C (0 => none)
+	DatapathId pgw_dispatch_id;	// PGW-D serving this UE
+	DatapathId enodeb_dispatch_id;	// eNodeB switch UE has attached (or last come back from idle) through, null => default one
+	int guti;					// Globally Unique Temporary ID
+	int bearer_generation;		// bumped on every release, tells idle timed rules of bearers apart (see MME.bearerCookie)
+
+	/* #### Connection State #### */
+	volatile boolean active;	// TRUE => Active, FALSE => Idle
+	boolean binary;				// UE uses binary control protocol
+	TransportPort udp_src_port;	// UDP port used by UE for control traffic
+
+	UeContext(int ue_key, long imsi) {
+		this.ue_key = ue_key;
+		this.imsi = imsi;
+	};
+
+	public IPv4Address getIP() {
+		return IPv4Address.of(ue_ip);
+	};
+
+	public boolean hasBearer() {
+		return sgw_dispatch_id != null && sgw_te_id != 0;
+	};
+
+	@Override
+	public String toString() {
+		return "UeContext[ue_key=" + ue_key + ", imsi=" + imsi + ", ue_ip=" + (ue_ip != 0 ? getIP() : "none") + ", enodeb=" + enodeb_dispatch_id + ", sgw=" + sgw_dispatch_id +
+			", sgw_te_id=" + sgw_te_id + ", ue_te_id=" + ue_te_id + ", active=" + active + "]";
+	};
+}
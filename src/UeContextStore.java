@@ -0,0 +1,142 @@
+/* #### UE Context Store ####
+ * This class keeps UE contexts in concurrent maps keyed by UE key,
+ * with secondary indexes by IMSI, SGW tunnel endpoint ID and UE IP.
+ * All index updates of a context are done while holding its monitor,
+ * so contexts can be looked up and modified from more than one thread.
+ */
+package net.floodlightcontroller.splus;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+
+public class UeContextStore {
+	private final ConcurrentHashMap<Integer, UeContext> by_ue_key;
+	private final ConcurrentHashMap<Long, UeContext> by_imsi;
+	private final ConcurrentHashMap<Integer, UeContext> by_sgw_te_id;
+	private final ConcurrentHashMap<Integer, UeContext> by_ue_ip;
+
+	public UeContextStore() {
+		/* [Key => UE-Key, Value => UE Context] */
+		by_ue_key = new ConcurrentHashMap<Integer, UeContext>();
+
+		/* [Key => IMSI, Value => UE Context] */
+		by_imsi = new ConcurrentHashMap<Long, UeContext>();
+
+		/* [Key => SGW-TE-ID, Value => UE Context] */
+		by_sgw_te_id = new ConcurrentHashMap<Integer, UeContext>();
+
+		/* [Key => UE-IP, Value => UE Context] */
+		by_ue_ip = new ConcurrentHashMap<Integer, UeContext>();
+	};
+
+	public UeContext get(int ue_key) {
+		return by_ue_key.get(ue_key);
+	};
+
+	public UeContext getByImsi(long imsi) {
+		return by_imsi.get(imsi);
+	};
+
+	public UeContext getBySgwTeId(int sgw_te_id) {
+		return by_sgw_te_id.get(sgw_te_id);
+	};
+
+	public UeContext getByUeIp(int ue_ip) {
+		return by_ue_ip.get(ue_ip);
+	};
+
+	/* All contexts, changes made meanwhile may or may not be seen */
+	public Collection<UeContext> values() {
+		return by_ue_key.values();
+	};
+
+	public int size() {
+		return by_ue_key.size();
+	};
+
+	/* Creates a fresh context for a UE starting authentication. A stale context
+	 * left behind by an earlier authentication of the same IMSI is released.
+	 */
+	public UeContext createForImsi(long imsi) {
+		UeContext ctx = new UeContext(0, imsi);
+		UeContext old = by_imsi.put(imsi, ctx);
+
+		if (old != null && old.ue_key == 0) {
+			remove(old);
+		};
+
+		return ctx;
+	};
+
+	/* Returns the context of given UE key, creating it if needed. If IMSI is known (imsi != 0)
+	 * the context created during authentication is bound to the UE key.
+	 */
+	public UeContext getOrCreate(int ue_key, long imsi) {
+		UeContext ctx = by_ue_key.get(ue_key);
+		if (ctx != null) { return ctx; };
+
+		if (imsi != 0) {
+			ctx = by_imsi.get(imsi);
+		};
+
+		if (ctx == null) {
+			ctx = new UeContext(ue_key, imsi);
+		};
+
+		synchronized (ctx) {
+			ctx.ue_key = ue_key;
+			UeContext existing = by_ue_key.putIfAbsent(ue_key, ctx);
+			return existing != null ? existing : ctx;
+		}
+	};
+
+	/* Records the IP address allocated to UE and indexes context by it */
+	public void setUeIp(UeContext ctx, int ue_ip) {
+		synchronized (ctx) {
+			if (ctx.ue_ip != 0) { by_ue_ip.remove(ctx.ue_ip, ctx); };
+			ctx.ue_ip = ue_ip;
+			if (ue_ip != 0) { by_ue_ip.put(ue_ip, ctx); };
+		}
+	};
+
+	/* Records SGW-D and tunnel endpoint ID serving the UE and indexes context by it */
+	public void setSgwTunnel(UeContext ctx, DatapathId sgw_dispatch_id, int sgw_te_id) {
+		synchronized (ctx) {
+			if (ctx.sgw_te_id != 0) { by_sgw_te_id.remove(ctx.sgw_te_id, ctx); };
+			ctx.sgw_dispatch_id = sgw_dispatch_id;
+			ctx.sgw_te_id = sgw_te_id;
+			if (sgw_te_id != 0) { by_sgw_te_id.put(sgw_te_id, ctx); };
+		}
+	};
+
+	/* Adds a context read back from the session journal, with all its index entries */
+	public void restore(UeContext ctx) {
+		synchronized (ctx) {
+			by_ue_key.put(ctx.ue_key, ctx);
+			if (ctx.imsi != 0) { by_imsi.put(ctx.imsi, ctx); };
+			if (ctx.sgw_te_id != 0) { by_sgw_te_id.put(ctx.sgw_te_id, ctx); };
+			if (ctx.ue_ip != 0) { by_ue_ip.put(ctx.ue_ip, ctx); };
+		}
+	};
+
+	/* Frees the context and all its index entries, e.g. on DETACH */
+	public void remove(UeContext ctx) {
+		if (ctx == null) { return; };
+
+		synchronized (ctx) {
+			if (ctx.ue_key != 0) { by_ue_key.remove(ctx.ue_key, ctx); };
+			if (ctx.imsi != 0) { by_imsi.remove(ctx.imsi, ctx); };
+			if (ctx.sgw_te_id != 0) { by_sgw_te_id.remove(ctx.sgw_te_id, ctx); };
+			if (ctx.ue_ip != 0) { by_ue_ip.remove(ctx.ue_ip, ctx); };
+		}
+	};
+
+	public void clear() {
+		by_ue_key.clear();
+		by_imsi.clear();
+		by_sgw_te_id.clear();
+		by_ue_ip.clear();
+	};
+}
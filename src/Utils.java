@@ -3,28 +3,16 @@
  */
 package net.floodlightcontroller.splus;
 
-import javax.crypto.Mac;
 import java.io.UnsupportedEncodingException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.BadPaddingException;
-import java.security.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Utils {
 	/* Generates a random integer between a specified range */
 	public static int randInt(int min, int max) {
-		// get random number generator
-		Random rand = new Random();
-
-		// generate random value between given limits
-		return rand.nextInt((max - min) + 1) + min;
+		// generate random value between given limits, using thread's own generator
+		return ThreadLocalRandom.current().nextInt(min, max + 1);
 	};
 
     /* Generates Hash Message Authentication Code Digest
@@ -35,35 +23,26 @@ public class Utils {
 			System.out.println("HMAC Digest: Msg => '" + msg + "',  IntegrityKey => '" + keyString + "'");
 		};
 
-		// HMAC SHA1 algorithm
-		String algorithm = "HmacSHA1"; 
-		String digest = null;
-
-		try {
-			SecretKeySpec key = new SecretKeySpec(keyString.getBytes("UTF-8"), algorithm);
-			Mac mac = Mac.getInstance(algorithm);
-			mac.init(key);
+		// HMAC SHA1 algorithm, on thread's own engine (see CryptoEngine)
+		CryptoEngine engine = CryptoEngine.get();
+		byte[] bytes = msg.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] mac = engine.macBuffer();
 
-			// ISO-8859-1
-			byte[] bytes = mac.doFinal(msg.getBytes("ISO-8859-1")); 
-			StringBuffer hash = new StringBuffer();
+		if (engine.mac(CryptoEngine.macKey(keyString), bytes, 0, bytes.length, mac, 0) < 0) {
+			return null;
+		};
 
-			for (int i = 0; i < bytes.length; i++) {
-				String hex = Integer.toHexString(0xFF & bytes[i]);
-				if (hex.length() == 1) { hash.append('0'); }
-				hash.append(hex);
-			};
+		return CryptoEngine.toHex(mac, 0, mac.length);
+	};
 
-			digest = hash.toString();
+	/* Generates raw HMAC SHA1 digest over msg[offset, offset + length), used by binary control codec */
+	public static byte[] hmacDigest(byte[] msg, int offset, int length, String keyString) {
+		byte[] digest = new byte[CryptoEngine.MAC_LENGTH];
 
-		} catch (UnsupportedEncodingException e) {
-			System.out.println(e.getMessage());
-		} catch (InvalidKeyException e) {
-			System.out.println(e.getMessage());
-		} catch (NoSuchAlgorithmException e) {
-			System.out.println(e.getMessage());
+		if (CryptoEngine.get().mac(CryptoEngine.macKey(keyString), msg, offset, length, digest, 0) < 0) {
+			return null;
 		};
-		
+
 		return digest;
 	};
 
@@ -83,33 +62,22 @@ public class Utils {
 			e.printStackTrace();
 		};
 
-		byte[] encBytes = null;
-   
-		try {
-			String ivString = "0123456789abcdef";
-			byte[] secret = secretKey.getBytes();
-			byte[] iv = ivString.getBytes();
-			Cipher c = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-			Key k = new SecretKeySpec(secret, "AES");
-
-			c.init(Cipher.ENCRYPT_MODE, k, new IvParameterSpec(iv));
-			encBytes = c.doFinal(ptextBytes);
-
-		} catch (IllegalBlockSizeException ex) {
-			System.out.println(ex.getMessage());
-		} catch (BadPaddingException ex) {
-			System.out.println(ex.getMessage());
-		} catch (InvalidKeyException ex) {
-			System.out.println(ex.getMessage());
-		} catch (NoSuchAlgorithmException ex) {
-			System.out.println(ex.getMessage());
-		} catch (NoSuchPaddingException ex) {
-			System.out.println(ex.getMessage());
-		} catch (InvalidAlgorithmParameterException ex) {
-			System.out.println(ex.getMessage());
+		return aesEncrypt(ptextBytes, secretKey);
+	};
+
+	/* 128 bit AES encryption algorithm for already encoded messages */
+	public static byte[] aesEncrypt(
+		byte[] ptextBytes,	// Plain Text to encrypt
+		String secretKey	// Encryption key
+	) {
+		byte[] encBytes = new byte[CryptoEngine.encryptedSize(ptextBytes.length)];
+		int length = CryptoEngine.get().encrypt(CryptoEngine.aesKey(secretKey), ptextBytes, 0, ptextBytes.length, encBytes, 0);
+
+		if (length < 0) {
+			return null;
 		};
-		
-		return encBytes;
+
+		return length == encBytes.length ? encBytes : Arrays.copyOf(encBytes, length);
 	};
 
 	/* 128 bit AES decryption algorithm */
@@ -118,40 +86,17 @@ public class Utils {
 		String secretKey	// Encryption key
 	) {
 		if (Constants.DEBUG) {
-            try {
-				System.out.println("aesDecrypt: cipherText => '" + new String(encBytes, "ISO-8859-1") + "', DecryptionKey => '" + secretKey + "'");
-			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
-			};
+			System.out.println("aesDecrypt: cipherText => '" + new String(encBytes, StandardCharsets.ISO_8859_1) + "', DecryptionKey => '" + secretKey + "'");
 		};
 
-		String pText = new String();
+		CryptoEngine engine = CryptoEngine.get();
+		byte[] decBytes = engine.buffer(encBytes.length);
+		int length = engine.decrypt(CryptoEngine.aesKey(secretKey), encBytes, 0, encBytes.length, decBytes, 0);
 
-		try {
-			String ivString = "0123456789abcdef";
-			byte[] secret = secretKey.getBytes();
-			byte[] iv = ivString.getBytes();
-			Cipher c = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-			Key k = new SecretKeySpec(secret, "AES");
-
-			c.init(Cipher.DECRYPT_MODE, k, new IvParameterSpec(iv));
-			byte[] decBytes = c.doFinal(encBytes);
-			pText = new String(decBytes);
-
-		} catch (IllegalBlockSizeException ex) {
-			System.out.println(ex.getMessage());
-		} catch (BadPaddingException ex) {
-			System.out.println(ex.getMessage());
-		} catch (InvalidKeyException ex) {
-			System.out.println(ex.getMessage());
-		} catch (NoSuchAlgorithmException ex) {
-			System.out.println(ex.getMessage());
-		} catch (NoSuchPaddingException ex) {
-			System.out.println(ex.getMessage());
-		} catch (InvalidAlgorithmParameterException ex) {
-			System.out.println(ex.getMessage());
+		if (length < 0) {
+			return new String();
 		};
-		
-		return pText;
+
+		return new String(decBytes, 0, length);
 	};
-}
\ No newline at end of file
+}
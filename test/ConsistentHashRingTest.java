@@ -0,0 +1,155 @@
+/* #### Consistent Hash Ring Tests ####
+ * Checks how ConsistentHashRing spreads keys over the nodes of the MME
+ * cluster and that only the keys of a joining / leaving node move.
+ */
+package net.floodlightcontroller.splus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+	private static final int KEYS = 200000;
+
+	// consecutive UE keys / IMSIs, as the MME hands them out
+	private static final long FIRST_IMSI = 208010000000000L;
+
+	private static ConsistentHashRing ring(Integer... nodes) {
+		return new ConsistentHashRing(Arrays.asList(nodes), Constants.CLUSTER_VIRTUAL_NODES);
+	};
+
+	private static Map<Integer, Integer> spread(ConsistentHashRing ring) {
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (long key = FIRST_IMSI; key < FIRST_IMSI + KEYS; key++) {
+			int owner = ring.owner(key);
+			Integer count = counts.get(owner);
+			counts.put(owner, count == null ? 1 : count + 1);
+		};
+		return counts;
+	};
+
+	@Test
+	public void testEmptyRing() {
+		ConsistentHashRing empty = new ConsistentHashRing(Collections.<Integer>emptyList(), Constants.CLUSTER_VIRTUAL_NODES);
+
+		assertEquals(ConsistentHashRing.NONE, empty.owner(1));
+		assertTrue(empty.getNodes().isEmpty());
+	};
+
+	@Test
+	public void testSingleNodeOwnsAll() {
+		ConsistentHashRing single = ring(7);
+
+		for (long key = 0; key < 1000; key++) { assertEquals(7, single.owner(key)); };
+		assertEquals(7, single.owner(Long.MIN_VALUE));
+		assertEquals(7, single.owner(Long.MAX_VALUE));
+	};
+
+	@Test
+	public void testSameMembersSameOwners() {
+		// order of the members and the ring instance don't matter, every MME node must agree on owners
+		ConsistentHashRing one = ring(1, 2, 3, 4), two = ring(4, 2, 3, 1, 2);
+
+		assertEquals(one.getNodes(), two.getNodes());
+		for (long key = FIRST_IMSI; key < FIRST_IMSI + 10000; key++) { assertEquals(one.owner(key), two.owner(key)); };
+	};
+
+	@Test
+	public void testDistribution() {
+		for (int nodes = 2; nodes <= 8; nodes++) {
+			Integer members[] = new Integer[nodes];
+			for (int i = 0; i < nodes; i++) { members[i] = i + 1; };
+
+			Map<Integer, Integer> counts = spread(ring(members));
+			assertEquals(nodes, counts.size());
+
+			// with 160 points per node every node gets its fair share within 25%
+			double fair = KEYS / (double) nodes;
+			for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+				assertTrue(nodes + " nodes, node " + entry.getKey() + " has " + entry.getValue() + " keys, fair share " + (long) fair,
+					Math.abs(entry.getValue() - fair) <= fair * 0.25);
+			};
+		};
+	};
+
+	@Test
+	public void testNodeJoins() {
+		ConsistentHashRing before = ring(1, 2, 3, 4), after = ring(1, 2, 3, 4, 5);
+
+		int moved = 0;
+		for (long key = FIRST_IMSI; key < FIRST_IMSI + KEYS; key++) {
+			int old_owner = before.owner(key), new_owner = after.owner(key);
+			if(old_owner == new_owner) { continue; };
+
+			// keys only move to the new node
+			assertEquals("key " + key + " moved from " + old_owner, 5, new_owner);
+			moved++;
+		};
+
+		// about 1/5 of the keys move, rehashing modulo N would move 4/5
+		assertMovedShare(moved, 1.0 / 5);
+	};
+
+	@Test
+	public void testNodeLeaves() {
+		ConsistentHashRing before = ring(1, 2, 3, 4, 5), after = ring(1, 2, 4, 5);
+
+		int moved = 0;
+		for (long key = FIRST_IMSI; key < FIRST_IMSI + KEYS; key++) {
+			int old_owner = before.owner(key), new_owner = after.owner(key);
+			if(old_owner == new_owner) { continue; };
+
+			// only keys of the leaving node move, and they go to the others
+			assertEquals("key " + key + " of node " + old_owner + " moved", 3, old_owner);
+			assertFalse(new_owner == 3);
+			moved++;
+		};
+
+		assertMovedShare(moved, 1.0 / 5);
+	};
+
+	@Test
+	public void testLeavingNodeKeysSpread() {
+		ConsistentHashRing before = ring(1, 2, 3, 4, 5), after = ring(1, 2, 4, 5);
+
+		// keys of a failed node are taken over by all remaining nodes, not just its neighbour on the ring
+		Map<Integer, Integer> takers = new HashMap<Integer, Integer>();
+		for (long key = FIRST_IMSI; key < FIRST_IMSI + KEYS; key++) {
+			if(before.owner(key) != 3) { continue; };
+
+			int owner = after.owner(key);
+			Integer count = takers.get(owner);
+			takers.put(owner, count == null ? 1 : count + 1);
+		};
+
+		assertEquals(4, takers.size());
+	};
+
+	@Test
+	public void testJoinThenLeaveRestoresOwners() {
+		List<Integer> members = new ArrayList<Integer>(Arrays.asList(1, 2, 3));
+		ConsistentHashRing original = new ConsistentHashRing(members, Constants.CLUSTER_VIRTUAL_NODES);
+
+		members.add(9);
+		new ConsistentHashRing(members, Constants.CLUSTER_VIRTUAL_NODES);
+		members.remove(Integer.valueOf(9));
+		ConsistentHashRing restored = new ConsistentHashRing(members, Constants.CLUSTER_VIRTUAL_NODES);
+
+		assertFalse(restored.contains(9));
+		for (long key = FIRST_IMSI; key < FIRST_IMSI + 10000; key++) { assertEquals(original.owner(key), restored.owner(key)); };
+	};
+
+	private static void assertMovedShare(int moved, double expected) {
+		double share = moved / (double) KEYS;
+		assertTrue("moved share " + share + ", expected ~" + expected, Math.abs(share - expected) <= expected * 0.25);
+	};
+}
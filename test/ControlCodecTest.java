@@ -0,0 +1,281 @@
+/* #### Control Plane Codec Tests ####
+ * Checks ControlCodec in both wire formats: round trips, the legacy
+ * layouts, NAS-MAC generation and rejection of truncated, malformed or
+ * unknown messages.
+ */
+package net.floodlightcontroller.splus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+public class ControlCodecTest {
+	private static final String MAC_KEY = "0123456789abcdef0123456789abcdef";
+	private static final String S = Constants.SEPARATOR;
+
+	@After
+	public void tearDown() {
+		Constants.ACCEPT_BINARY_PROTOCOL = true;
+	};
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	};
+
+	private static int ip(String address) {
+		return IPv4Address.of(address).getInt();
+	};
+
+	/* DETACH REQUEST has every kind of fixed width IE: IP, 4 byte IDs and a negative key */
+	private static ControlMessage detachRequest(boolean binary) {
+		ControlMessage msg = new ControlMessage(ControlCodec.DETACH_REQUEST, binary);
+		msg.set(ControlCodec.IE_UE_IP, ip("192.168.127.200"));
+		msg.set(ControlCodec.IE_UE_TE_ID, 4096);
+		msg.set(ControlCodec.IE_SGW_TE_ID, 123456);
+		msg.set(ControlCodec.IE_UE_KEY, -42);
+		return msg;
+	};
+
+	private static void assertSameIEs(ControlMessage expected, ControlMessage actual) {
+		assertEquals(expected.code, actual.code);
+		for (int ie = 1; ie < ControlCodec.IE_COUNT; ie++) {
+			if (ControlCodec.IE_WIDTH[ie] <= 0) { continue; };
+
+			assertEquals(ControlCodec.getIEName(ie), expected.has(ie), actual.has(ie));
+			if (expected.has(ie)) { assertEquals(ControlCodec.getIEName(ie), expected.getLong(ie), actual.getLong(ie)); };
+		};
+	};
+
+	@Test
+	public void testBinaryRoundTrip() {
+		ControlMessage msg = new ControlMessage(ControlCodec.AUTHENTICATION_STEP_ONE, true);
+		msg.set(ControlCodec.IE_IMSI, 208014567891234L);
+		msg.set(ControlCodec.IE_NW_CAPABILITY, Long.MAX_VALUE);
+		msg.set(ControlCodec.IE_KSI_ASME, 7);
+		msg.set(ControlCodec.IE_SQN, 0xFFFFFFFFL);
+		msg.set(ControlCodec.IE_TAI, -1);
+
+		byte[] data = ControlCodec.encode(msg);
+		assertEquals(Constants.BINARY_PROTOCOL_MAGIC, data[0]);
+		assertEquals(Constants.BINARY_PROTOCOL_VERSION, data[1]);
+
+		ControlMessage decoded = new ControlMessage();
+		assertTrue(ControlCodec.decode(data, decoded));
+		assertTrue(decoded.binary);
+
+		// 4 byte SQN reads back sign extended, like IPs and keys
+		msg.set(ControlCodec.IE_SQN, -1);
+		assertSameIEs(msg, decoded);
+
+		ControlMessage detach = detachRequest(true);
+		assertTrue(ControlCodec.decode(ControlCodec.encode(detach), decoded));
+		assertSameIEs(detach, decoded);
+		assertEquals(ip("192.168.127.200"), decoded.getIP(ControlCodec.IE_UE_IP).getInt());
+	};
+
+	@Test
+	public void testAuthenticationFailureCode() {
+		ControlMessage decoded = new ControlMessage();
+
+		assertTrue(ControlCodec.decode(ControlCodec.encode(new ControlMessage(ControlCodec.AUTHENTICATION_FAILURE, true)), decoded));
+		assertEquals(ControlCodec.AUTHENTICATION_FAILURE, decoded.code);
+	};
+
+	@Test
+	public void testLegacyRoundTrip() {
+		ControlMessage detach = detachRequest(false);
+		byte[] data = ControlCodec.encode(detach);
+		assertEquals("9" + S + "192.168.127.200" + S + "4096" + S + "123456" + S + "-42", new String(data, StandardCharsets.ISO_8859_1));
+
+		ControlMessage decoded = new ControlMessage();
+		assertTrue(ControlCodec.decode(data, decoded));
+		assertFalse(decoded.binary);
+		assertSameIEs(detach, decoded);
+	};
+
+	@Test
+	public void testLegacyLayouts() {
+		ControlMessage msg = new ControlMessage();
+
+		assertTrue(ControlCodec.decode(bytes("1" + S + "208014567891234" + S + "3" + S + "1" + S + "55" + S + "12"), msg));
+		assertEquals(ControlCodec.AUTHENTICATION_STEP_ONE, msg.code);
+		assertEquals(208014567891234L, msg.getLong(ControlCodec.IE_IMSI));
+		assertEquals(3, msg.getLong(ControlCodec.IE_NW_CAPABILITY));
+		assertEquals(1, msg.getLong(ControlCodec.IE_KSI_ASME));
+		assertEquals(55, msg.getLong(ControlCodec.IE_SQN));
+		assertEquals(12, msg.getLong(ControlCodec.IE_TAI));
+
+		assertTrue(ControlCodec.decode(bytes("5" + S + "2" + S + "77"), msg));
+		assertEquals(ControlCodec.SEND_APN, msg.code);
+		assertEquals(2, msg.getLong(ControlCodec.IE_APN));
+		assertEquals(77, msg.getLong(ControlCodec.IE_UE_KEY));
+
+		// empty fields of DETACH ACCEPT and no fields at all of REQUEST STARTING IP
+		assertTrue(ControlCodec.decode(bytes("10" + S), msg));
+		assertEquals(ControlCodec.DETACH_ACCEPT, msg.code);
+		assertTrue(ControlCodec.decode(bytes("12" + S), msg));
+		assertEquals(ControlCodec.REQUEST_STARTING_IP, msg.code);
+
+		// trailing fields (e.g. a NAS-MAC) are ignored
+		assertTrue(ControlCodec.decode(bytes("8" + S + "99" + S + "extra"), msg));
+		assertEquals(ControlCodec.ATTACH_ACCEPT, msg.code);
+		assertEquals(99, msg.getLong(ControlCodec.IE_GUTI));
+	};
+
+	@Test
+	public void testLegacyNasStepTwo() {
+		byte[] data = bytes("ciphertext" + S + "0a1b2c" + S + "208014567891234");
+		ControlMessage msg = new ControlMessage();
+
+		assertTrue(ControlCodec.decode(data, msg));
+		assertEquals(ControlCodec.NAS_STEP_TWO, msg.code);
+		assertEquals(208014567891234L, msg.getLong(ControlCodec.IE_IMSI));
+		assertEquals("ciphertext", new String(data, msg.nas_offset, msg.nas_length, StandardCharsets.ISO_8859_1));
+		assertEquals("0a1b2c", ControlCodec.macToString(msg));
+
+		assertFalse(ControlCodec.decode(bytes("ciphertext" + S + "0a1b2c" + S + "not-an-imsi"), msg));
+	};
+
+	@Test
+	public void testBinaryMac() {
+		ControlMessage detach = detachRequest(true);
+		byte[] plain = ControlCodec.encode(detach);
+		byte[] data = ControlCodec.encode(detach, MAC_KEY);
+		assertEquals(plain.length + ControlCodec.IE_HEADER_LENGTH + ControlCodec.MAC_LENGTH, data.length);
+
+		ControlMessage decoded = new ControlMessage();
+		assertTrue(ControlCodec.decode(data, decoded));
+		assertSameIEs(detach, decoded);
+		assertTrue(decoded.has(ControlCodec.IE_NAS_MAC));
+		assertEquals(ControlCodec.MAC_LENGTH, decoded.mac_length);
+
+		// MAC covers everything before its IE, i.e. the message without MAC
+		byte[] expected = Utils.hmacDigest(plain, 0, plain.length, MAC_KEY);
+		assertArrayEquals(expected, Arrays.copyOfRange(data, decoded.mac_offset, decoded.mac_offset + decoded.mac_length));
+
+		// a changed IE gives a different MAC
+		byte[] tampered = data.clone();
+		tampered[ControlCodec.HEADER_LENGTH + ControlCodec.IE_HEADER_LENGTH + 3] ^= 1;
+		assertFalse(Arrays.equals(expected, Utils.hmacDigest(tampered, 0, plain.length, MAC_KEY)));
+	};
+
+	@Test
+	public void testLegacyMac() {
+		ControlMessage detach = detachRequest(false);
+		String plain = new String(ControlCodec.encode(detach), StandardCharsets.ISO_8859_1);
+		String data = new String(ControlCodec.encode(detach, MAC_KEY), StandardCharsets.ISO_8859_1);
+
+		assertEquals(plain + S + Utils.hmacDigest(plain, MAC_KEY), data);
+		assertEquals(2 * ControlCodec.MAC_LENGTH, data.length() - plain.length() - S.length());
+
+		// message still decodes, MAC is a trailing field
+		ControlMessage decoded = new ControlMessage();
+		assertTrue(ControlCodec.decode(bytes(data), decoded));
+		assertSameIEs(detach, decoded);
+	};
+
+	@Test
+	public void testTruncatedBinary() {
+		byte[] data = ControlCodec.encode(detachRequest(true), MAC_KEY);
+		ControlMessage msg = new ControlMessage();
+
+		// a cut inside the header or any IE is rejected, a cut between IEs leaves a shorter message
+		int boundary = ControlCodec.HEADER_LENGTH;
+		for (int length = 0; length < data.length; length++) {
+			boolean decoded = ControlCodec.decode(Arrays.copyOf(data, length), msg);
+
+			if (length == boundary) {
+				assertTrue("cut between IEs at " + length, decoded);
+				boundary += ControlCodec.IE_HEADER_LENGTH + (((data[boundary + 1] & 0xFF) << 8) | (data[boundary + 2] & 0xFF));
+			} else {
+				assertFalse("cut inside IE at " + length, decoded);
+			};
+		};
+	};
+
+	@Test
+	public void testMalformedBinary() {
+		byte[] data = ControlCodec.encode(detachRequest(true));
+		ControlMessage msg = new ControlMessage();
+
+		// unsupported version
+		byte[] bad = data.clone();
+		bad[1] = (byte) (Constants.BINARY_PROTOCOL_VERSION + 1);
+		assertFalse(ControlCodec.decode(bad, msg));
+
+		// fixed width IE with a wrong length
+		bad = new byte[]{Constants.BINARY_PROTOCOL_MAGIC, 1, ControlCodec.PAGING_REQUEST, ControlCodec.IE_UE_TE_ID, 0, 3, 0, 0, 1};
+		assertFalse(ControlCodec.decode(bad, msg));
+
+		// length running past the end of the payload
+		bad = new byte[]{Constants.BINARY_PROTOCOL_MAGIC, 1, ControlCodec.PAGING_REQUEST, ControlCodec.IE_UE_TE_ID, 0, 4, 0, 0};
+		assertFalse(ControlCodec.decode(bad, msg));
+
+		// binary format turned off
+		Constants.ACCEPT_BINARY_PROTOCOL = false;
+		assertFalse(ControlCodec.decode(data, msg));
+	};
+
+	@Test
+	public void testUnknownIESkipped() {
+		byte[] data = {Constants.BINARY_PROTOCOL_MAGIC, 1, ControlCodec.PAGING_REQUEST,
+			(byte) 200, 0, 2, 9, 9,
+			ControlCodec.IE_UE_TE_ID, 0, 4, 0, 0, 1, 0};
+		ControlMessage msg = new ControlMessage();
+
+		assertTrue(ControlCodec.decode(data, msg));
+		assertEquals(ControlCodec.PAGING_REQUEST, msg.code);
+		assertEquals(256, msg.getLong(ControlCodec.IE_UE_TE_ID));
+	};
+
+	@Test
+	public void testUnknownCodesRejected() {
+		ControlMessage msg = new ControlMessage();
+
+		for (int code : new int[]{ControlCodec.UNKNOWN, ControlCodec.MAX_CODE + 1, 100, -2}) {
+			assertFalse("binary code " + code, ControlCodec.decode(new byte[]{Constants.BINARY_PROTOCOL_MAGIC, 1, (byte) code}, msg));
+			assertFalse("legacy code " + code, ControlCodec.decode(bytes(code + S + "1"), msg));
+		};
+
+		assertFalse(ControlCodec.decode(bytes("abc" + S + "1"), msg));
+	};
+
+	@Test
+	public void testMalformedLegacy() {
+		ControlMessage msg = new ControlMessage();
+
+		// not a control message at all
+		assertFalse(ControlCodec.decode(null, msg));
+		assertFalse(ControlCodec.decode(new byte[0], msg));
+		assertFalse(ControlCodec.decode(bytes("hello"), msg));
+
+		// missing fields
+		assertFalse(ControlCodec.decode(bytes("9" + S + "192.168.127.200" + S + "4096"), msg));
+
+		// bad numbers and addresses
+		assertFalse(ControlCodec.decode(bytes("5" + S + "2x" + S + "77"), msg));
+		assertFalse(ControlCodec.decode(bytes("5" + S + S + "77"), msg));
+		assertFalse(ControlCodec.decode(bytes("5" + S + "-" + S + "77"), msg));
+		assertFalse(ControlCodec.decode(bytes("13" + S + "192.168.127"), msg));
+		assertFalse(ControlCodec.decode(bytes("13" + S + "192.168.127.256"), msg));
+		assertFalse(ControlCodec.decode(bytes("13" + S + "192..127.1"), msg));
+		assertFalse(ControlCodec.decode(bytes("13" + S + "192.168.127.1.5"), msg));
+	};
+
+	@Test
+	public void testParseIPv4() {
+		byte[] data = bytes("255.0.127.1");
+		assertEquals(ip("255.0.127.1"), ControlCodec.parseIPv4(data, 0, data.length));
+
+		data = bytes("x10.0.0.1x");
+		assertEquals(ip("10.0.0.1"), ControlCodec.parseIPv4(data, 1, data.length - 1));
+	};
+}
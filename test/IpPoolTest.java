@@ -0,0 +1,187 @@
+/* #### UE IP Pool Tests ####
+ * Checks IpPool and the per-APN pools of PGWC: bounds of the CIDR block,
+ * separation of the pools of different APNs and reuse of released addresses.
+ */
+package net.floodlightcontroller.splus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+public class IpPoolTest {
+	private static final String APN_POOL_KEY = "2" + Constants.SEPARATOR + Constants.PGW_ID;
+
+	@After
+	public void tearDown() {
+		Constants.UE_IP_POOLS.remove(APN_POOL_KEY);
+	};
+
+	private static int ip(String address) {
+		return IPv4Address.of(address).getInt();
+	};
+
+	@Test
+	public void testBadPrefixRejected() {
+		for (String cidr : new String[]{"10.0.0.0/7", "10.0.0.0/31", "10.0.0.0/32", "10.0.0.0", "10.0.0.0/-1"}) {
+			try {
+				new IpPool(cidr);
+				fail("pool accepted: " + cidr);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		};
+
+		// both ends of the allowed range
+		assertEquals(2, new IpPool("10.0.0.0/30").getCapacity());
+		assertEquals((1 << 24) - 2, new IpPool("10.0.0.0/8").getCapacity());
+	};
+
+	@Test
+	public void testNetworkAndBroadcastNeverHandedOut() {
+		IpPool pool = new IpPool("10.1.2.0/29");
+		assertEquals(6, pool.getCapacity());
+
+		Set<Integer> seen = new HashSet<Integer>();
+		int address;
+		while ((address = pool.allocate()) != IpPool.NONE) {
+			assertTrue("address outside block: " + IPv4Address.of(address), pool.contains(address));
+			assertTrue("address handed out twice: " + IPv4Address.of(address), seen.add(address));
+		};
+
+		assertEquals(6, seen.size());
+		assertFalse(seen.contains(ip("10.1.2.0")));
+		assertFalse(seen.contains(ip("10.1.2.7")));
+		assertEquals(6, pool.getInUse());
+
+		// network and broadcast addresses can't be taken or released either
+		assertFalse(pool.allocate(ip("10.1.2.0")));
+		assertFalse(pool.release(ip("10.1.2.7")));
+	};
+
+	@Test
+	public void testContains() {
+		IpPool pool = new IpPool("172.16.0.0/12");
+
+		assertTrue(pool.contains(ip("172.16.0.0")));
+		assertTrue(pool.contains(ip("172.31.255.255")));
+		assertFalse(pool.contains(ip("172.15.255.255")));
+		assertFalse(pool.contains(ip("172.32.0.0")));
+
+		assertFalse(pool.allocate(ip("172.32.0.1")));
+		assertFalse(pool.release(ip("172.32.0.1")));
+		assertFalse(pool.reserve(ip("172.32.0.1")));
+	};
+
+	@Test
+	public void testHostAddressStartsAllocation() {
+		IpPool pool = new IpPool("192.168.127.7/24");
+
+		assertEquals(ip("192.168.127.7"), pool.getStartingAddress());
+		assertEquals(ip("192.168.127.8"), pool.allocate());
+
+		// the host address the block was written with is reserved
+		assertFalse(pool.allocate(ip("192.168.127.7")));
+		assertEquals(253, pool.getCapacity());
+	};
+
+	@Test
+	public void testReuseAfterRelease() {
+		IpPool pool = new IpPool("10.9.0.0/30");
+
+		int first = pool.allocate(), second = pool.allocate();
+		assertNotEquals(first, second);
+		assertEquals(IpPool.NONE, pool.allocate());
+
+		assertTrue(pool.release(first));
+		assertFalse(pool.isAllocated(first));
+		assertFalse("released twice", pool.release(first));
+
+		// the released address is the only one left
+		assertEquals(first, pool.allocate());
+		assertTrue(pool.isAllocated(first));
+		assertEquals(IpPool.NONE, pool.allocate());
+		assertEquals(2, pool.getInUse());
+	};
+
+	@Test
+	public void testRestrictSplitsBlock() {
+		IpPool one = new IpPool("10.5.0.0/28"), two = new IpPool("10.5.0.0/28");
+		one.restrict(0, 2);
+		two.restrict(1, 2);
+
+		Set<Integer> seen = new HashSet<Integer>();
+		for (IpPool pool : new IpPool[]{one, two}) {
+			int address;
+			while ((address = pool.allocate()) != IpPool.NONE) {
+				assertTrue("address handed out by both parts: " + IPv4Address.of(address), seen.add(address));
+			};
+		};
+		assertEquals(14, seen.size());
+	};
+
+	@Test
+	public void testOverlaps() {
+		assertTrue(new IpPool("10.0.0.0/8").overlaps(new IpPool("10.2.0.0/16")));
+		assertTrue(new IpPool("10.2.0.0/16").overlaps(new IpPool("10.0.0.0/8")));
+		assertFalse(new IpPool("10.2.0.0/16").overlaps(new IpPool("10.3.0.0/16")));
+	};
+
+	@Test
+	public void testPoolsPerApn() {
+		Constants.UE_IP_POOLS.put(APN_POOL_KEY, new String[]{"10.2.0.0/30", "10.3.0.0/30"});
+		PGWC pgw = new PGWC();
+		DatapathId pgw_dispatch_id = DatapathId.of(Constants.PGW_ID);
+
+		IpPool apn_pools[] = pgw.getIPPools(2, pgw_dispatch_id);
+		assertEquals(2, apn_pools.length);
+		assertEquals("10.2.0.0/30", apn_pools[0].getName());
+		assertEquals("10.3.0.0/30", apn_pools[1].getName());
+
+		// other APNs, and APN 2 on other PGW-Ds, share the default pools
+		assertSame(pgw.default_ip_pools, pgw.getIPPools(1, pgw_dispatch_id));
+		assertSame(pgw.default_ip_pools, pgw.getIPPools(2, DatapathId.of(Constants.PGW_ID + 1)));
+
+		for (IpPool pool : apn_pools) {
+			for (IpPool other : pgw.default_ip_pools) { assertFalse(pool.overlaps(other)); };
+		};
+
+		// addresses of APN 2 go back to the pool they came from
+		int address = apn_pools[1].allocate();
+		assertTrue(pgw.releaseIP(address));
+		assertFalse(apn_pools[1].isAllocated(address));
+		assertFalse(pgw.releaseIP(address));
+	};
+
+	@Test
+	public void testOverlappingApnPoolsRejected() {
+		Constants.UE_IP_POOLS.put(APN_POOL_KEY, new String[]{"192.168.0.0/24"});
+
+		try {
+			new PGWC();
+			fail("pool overlapping the default pool accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	};
+
+	@Test
+	public void testNetworkComponentsReserved() {
+		PGWC pgw = new PGWC();
+		IpPool pool = pgw.getIPPools(1, DatapathId.of(Constants.PGW_ID))[0];
+
+		for (String component : new String[]{Constants.SGWD_IP_UPLINK, Constants.SGWD_IP_DOWNLINK, Constants.PGWD_IP_UPLINK, Constants.PGWD_IP_DOWNLINK, Constants.PDN_IP}) {
+			if(pool.contains(ip(component))) { assertFalse(component, pool.allocate(ip(component))); };
+		};
+	};
+}
@@ -0,0 +1,162 @@
+/* #### Latency Histogram Tests ####
+ * Checks the log-linear buckets of LatencyHistogram and the percentiles
+ * of its snapshots against distributions with known percentiles.
+ */
+package net.floodlightcontroller.splus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	// a bucket is at most 1 / SUB_BUCKETS of the values in it wide
+	private static final double MAX_ERROR = 1.0 / LatencyHistogram.SUB_BUCKETS;
+
+	private static void assertWithinBucket(String what, long expected, long actual) {
+		assertTrue(what + ": expected ~" + expected + " but was " + actual, actual >= expected && actual <= expected + expected * MAX_ERROR);
+	};
+
+	@Test
+	public void testSmallValuesExact() {
+		for (long value = 0; value < LatencyHistogram.SUB_BUCKETS; value++) {
+			assertEquals(value, LatencyHistogram.indexOf(value));
+			assertEquals(value, LatencyHistogram.upperBoundOf((int) value));
+		};
+	};
+
+	@Test
+	public void testBucketBounds() {
+		// consecutive buckets, each value lands in the one whose bounds hold it
+		long previous_bound = -1;
+		for (int index = 0; index < LatencyHistogram.BUCKETS; index++) {
+			long bound = LatencyHistogram.upperBoundOf(index);
+			assertTrue("bucket " + index, bound > previous_bound);
+
+			assertEquals(index, LatencyHistogram.indexOf(previous_bound + 1));
+			assertEquals(index, LatencyHistogram.indexOf(bound));
+			previous_bound = bound;
+		};
+
+		assertEquals(Long.MAX_VALUE, previous_bound);
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+	};
+
+	@Test
+	public void testBucketWidth() {
+		Random random = new Random(7);
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextLong() >>> (1 + random.nextInt(63));
+			long bound = LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(value));
+			assertTrue("value " + value + " above bound " + bound, bound >= value);
+			assertTrue("bucket of " + value + " too wide: " + bound, bound - value <= value * MAX_ERROR);
+		};
+	};
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0, snapshot.getMean());
+		assertEquals(0, snapshot.getPercentile(50));
+		assertEquals(0, snapshot.getPercentile(99.9));
+	};
+
+	@Test
+	public void testConstant() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 1000; i++) { histogram.record(12345); };
+
+		// percentiles never go above max, so a single value comes back exactly
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(12345, snapshot.getMean());
+		assertEquals(12345, snapshot.getMax());
+		for (double percent : new double[]{0, 1, 50, 99, 99.9, 100}) {
+			assertEquals("p" + percent, 12345, snapshot.getPercentile(percent));
+		};
+	};
+
+	@Test
+	public void testUniform() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100000; value++) { histogram.record(value); };
+
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(100000, snapshot.getCount());
+		assertEquals(50000, snapshot.getMean());
+		assertEquals(100000, snapshot.getMax());
+
+		// exact percentile of 1..N is N * percent / 100
+		for (double percent : new double[]{1, 10, 25, 50, 75, 90, 99, 99.9}) {
+			assertWithinBucket("p" + percent, (long) Math.ceil(percent * 1000), snapshot.getPercentile(percent));
+		};
+		assertEquals(100000, snapshot.getPercentile(100));
+		assertEquals(1, snapshot.getPercentile(0));
+	};
+
+	@Test
+	public void testExponential() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Random random = new Random(42);
+		double mean = 200000;
+		int count = 1000000;
+		for (int i = 0; i < count; i++) { histogram.record((long) (-mean * Math.log(1 - random.nextDouble()))); };
+
+		// p = -mean * ln(1 - percent / 100), give the sampling some room on top of the bucket error
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		for (double percent : new double[]{50, 90, 99}) {
+			double expected = -mean * Math.log(1 - percent / 100);
+			double actual = snapshot.getPercentile(percent);
+			assertTrue("p" + percent + ": expected ~" + (long) expected + " but was " + (long) actual, Math.abs(actual - expected) <= expected * (MAX_ERROR + 0.02));
+		};
+		assertTrue(Math.abs(snapshot.getMean() - mean) <= mean * 0.01);
+	};
+
+	@Test
+	public void testOutlier() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 999; i++) { histogram.record(1000); };
+		histogram.record(5000000);
+
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertWithinBucket("p50", 1000, snapshot.getPercentile(50));
+		assertWithinBucket("p99.9", 1000, snapshot.getPercentile(99.9));
+		assertEquals(5000000, snapshot.getPercentile(99.95));
+		assertEquals(5000000, snapshot.getMax());
+	};
+
+	@Test
+	public void testNegativeRecordedAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1, snapshot.getCount());
+		assertEquals(0, snapshot.getPercentile(100));
+	};
+
+	@Test
+	public void testInterval() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 100; i++) { histogram.record(1000000); };
+
+		LatencyHistogram.Snapshot earlier = histogram.snapshot();
+		assertEquals(1000000, histogram.takeIntervalMax());
+		assertEquals(0, histogram.takeIntervalMax());
+
+		for (int i = 0; i < 100; i++) { histogram.record(100); };
+
+		// only values since the earlier snapshot count
+		LatencyHistogram.Snapshot interval = histogram.snapshot().since(earlier, histogram.takeIntervalMax());
+		assertEquals(100, interval.getCount());
+		assertEquals(100, interval.getMean());
+		assertEquals(100, interval.getMax());
+		assertEquals(100, interval.getPercentile(99));
+
+		// the earlier snapshot isn't changed by later recording
+		assertEquals(100, earlier.getCount());
+	};
+}
@@ -0,0 +1,282 @@
+/* #### Session Journal Tests ####
+ * Checks SessionJournal: sessions written to the memory mapped journal
+ * come back after a restart, rotation to the next journal, compaction
+ * into a snapshot and a record torn by a crash while it was written.
+ */
+package net.floodlightcontroller.splus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+public class SessionJournalTest {
+	// room for 4 records per journal
+	private static final int JOURNAL_SIZE = 64 + 4 * SessionJournal.RECORD_SIZE;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("splus-journal", "");
+		assertTrue(dir.delete() && dir.mkdir());
+	};
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles()) { file.delete(); };
+		dir.delete();
+	};
+
+	private static UeContext session(int ue_key) {
+		UeContext ue = new UeContext(ue_key, 208010000000000L + ue_key);
+		ue.active = true;
+		ue.binary = (ue_key % 2) == 0;
+		ue.udp_src_port = TransportPort.of(2152 + ue_key);
+		ue.ue_ip = 0xC0A87F00 + ue_key;
+		ue.ue_te_id = 1000 + ue_key;
+		ue.sgw_te_id = 2000 + ue_key;
+		ue.pgw_te_id = 3000 + ue_key;
+		ue.sgw_dispatch_id = DatapathId.of(2);
+		ue.pgw_dispatch_id = DatapathId.of(4);
+		ue.enodeb_dispatch_id = DatapathId.of(1);
+		ue.guti = 5000 + ue_key;
+		ue.bearer_generation = 3;
+		return ue;
+	};
+
+	private static void assertSameSession(UeContext expected, UeContext actual) {
+		assertNotNull("session of UE " + expected.ue_key, actual);
+		assertEquals(expected.ue_key, actual.ue_key);
+		assertEquals(expected.imsi, actual.imsi);
+		assertEquals(expected.active, actual.active);
+		assertEquals(expected.binary, actual.binary);
+		assertEquals(expected.udp_src_port.getPort(), actual.udp_src_port.getPort());
+		assertEquals(expected.ue_ip, actual.ue_ip);
+		assertEquals(expected.ue_te_id, actual.ue_te_id);
+		assertEquals(expected.sgw_te_id, actual.sgw_te_id);
+		assertEquals(expected.pgw_te_id, actual.pgw_te_id);
+		assertEquals(expected.sgw_dispatch_id.getLong(), actual.sgw_dispatch_id.getLong());
+		assertEquals(expected.pgw_dispatch_id.getLong(), actual.pgw_dispatch_id.getLong());
+		assertEquals(expected.enodeb_dispatch_id.getLong(), actual.enodeb_dispatch_id.getLong());
+		assertEquals(expected.guti, actual.guti);
+		assertEquals(expected.bearer_generation, actual.bearer_generation);
+	};
+
+	/* A new journal on the same directory, as after a restart of the controller */
+	private SessionJournal restart() throws IOException {
+		return new SessionJournal(dir.getPath(), JOURNAL_SIZE);
+	};
+
+	private List<File> journals() {
+		List<File> files = new ArrayList<File>();
+		for (File file : dir.listFiles()) {
+			if(file.getName().endsWith(".journal")) { files.add(file); };
+		};
+		return files;
+	};
+
+	@Test
+	public void testEmptyDirectory() throws IOException {
+		SessionJournal journal = restart();
+
+		assertTrue(journal.recover().isEmpty());
+		assertFalse(journal.hasAppended());
+		assertEquals(1, journals().size());
+	};
+
+	@Test
+	public void testRestoreAfterRestart() throws IOException {
+		SessionJournal journal = restart();
+		journal.recover();
+
+		UeContext one = session(1), two = session(2), three = session(3);
+		journal.update(one, true);
+		journal.update(two, true);
+		journal.update(three, true);
+		assertTrue(journal.hasAppended());
+
+		// later records of a session win, deleted sessions stay deleted
+		two.ue_te_id = 9999;
+		two.active = false;
+		journal.update(two, false);
+		journal.delete(3);
+		journal.sync();
+
+		Map<Integer, UeContext> sessions = restart().recover();
+		assertEquals(2, sessions.size());
+		assertSameSession(one, sessions.get(1));
+		assertSameSession(two, sessions.get(2));
+		assertNull(sessions.get(3));
+	};
+
+	@Test
+	public void testRotation() throws IOException {
+		SessionJournal journal = restart();
+		journal.recover();
+
+		// 10 records over 3 journals of 4 records
+		for (int ue_key = 1; ue_key <= 10; ue_key++) { journal.update(session(ue_key), true); };
+		assertEquals(3, journals().size());
+		assertTrue(journal.getStats().contains("rotations=2"));
+
+		Map<Integer, UeContext> sessions = restart().recover();
+		assertEquals(10, sessions.size());
+		for (int ue_key = 1; ue_key <= 10; ue_key++) { assertSameSession(session(ue_key), sessions.get(ue_key)); };
+	};
+
+	@Test
+	public void testCompaction() throws IOException {
+		SessionJournal journal = restart();
+		journal.recover();
+
+		final List<UeContext> live = new ArrayList<UeContext>();
+		for (int ue_key = 1; ue_key <= 6; ue_key++) {
+			UeContext ue = session(ue_key);
+			journal.update(ue, true);
+			live.add(ue);
+		};
+
+		// sessions without a bearer aren't worth a snapshot record
+		UeContext idle = new UeContext(7, 208010000000007L);
+		live.add(idle);
+
+		journal.compact(new SessionJournal.Source() {
+			@Override
+			public Iterable<UeContext> getSessions() {
+				return live;
+			};
+		});
+
+		// journals covered by the snapshot are gone, appends carry on in a new one
+		assertEquals(1, journals().size());
+		assertTrue(new File(dir, "sessions.snapshot").isFile());
+		assertFalse(new File(dir, "sessions.snapshot.tmp").exists());
+
+		// changes after the snapshot are replayed on top of it
+		journal.delete(1);
+		UeContext changed = session(2);
+		changed.ue_ip = 0x0A000001;
+		journal.update(changed, false);
+		journal.update(session(8), true);
+
+		Map<Integer, UeContext> sessions = restart().recover();
+		assertEquals(6, sessions.size());
+		assertNull(sessions.get(1));
+		assertSameSession(changed, sessions.get(2));
+		for (int ue_key = 3; ue_key <= 6; ue_key++) { assertSameSession(session(ue_key), sessions.get(ue_key)); };
+		assertNull(sessions.get(7));
+		assertSameSession(session(8), sessions.get(8));
+	};
+
+	@Test
+	public void testRecoveryAfterRecovery() throws IOException {
+		SessionJournal journal = restart();
+		journal.recover();
+		journal.update(session(1), true);
+
+		// second run appends to a journal of its own, the first one is still replayed
+		SessionJournal second = restart();
+		assertEquals(1, second.recover().size());
+		second.update(session(2), true);
+
+		Map<Integer, UeContext> sessions = restart().recover();
+		assertEquals(2, sessions.size());
+		assertSameSession(session(1), sessions.get(1));
+		assertSameSession(session(2), sessions.get(2));
+	};
+
+	@Test
+	public void testTornFinalRecord() throws IOException {
+		SessionJournal journal = restart();
+		journal.recover();
+		journal.update(session(1), true);
+		journal.update(session(2), true);
+		journal.update(session(3), true);
+		journal.sync();
+
+		// crash while the last record was written: its CRC doesn't match
+		File file = journals().get(0);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long last = 64 + 2 * SessionJournal.RECORD_SIZE;
+			raf.seek(last + 8);
+			raf.writeLong(0);
+		} finally {
+			raf.close();
+		}
+
+		SessionJournal restarted = restart();
+		Map<Integer, UeContext> sessions = restarted.recover();
+		assertEquals(2, sessions.size());
+		assertSameSession(session(1), sessions.get(1));
+		assertSameSession(session(2), sessions.get(2));
+		assertTrue(restarted.getStats(), restarted.getStats().contains("torn=1"));
+	};
+
+	@Test
+	public void testTruncatedJournalFile() throws IOException {
+		SessionJournal journal = restart();
+		journal.recover();
+		journal.update(session(1), true);
+		journal.update(session(2), true);
+		journal.sync();
+
+		// file cut off in the middle of the second record
+		File file = journals().get(0);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(64 + SessionJournal.RECORD_SIZE + SessionJournal.RECORD_SIZE / 2);
+		} finally {
+			raf.close();
+		}
+
+		Map<Integer, UeContext> sessions = restart().recover();
+		assertEquals(1, sessions.size());
+		assertSameSession(session(1), sessions.get(1));
+	};
+
+	@Test
+	public void testForeignFileRejected() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, "sessions-1.journal"), "rw");
+		try {
+			raf.setLength(JOURNAL_SIZE);
+			raf.writeLong(0x1234567890L);
+		} finally {
+			raf.close();
+		}
+
+		try {
+			restart().recover();
+			assertTrue("foreign journal replayed", false);
+		} catch (IOException e) {
+			// expected
+		}
+	};
+
+	@Test
+	public void testSessionRecord() {
+		UeContext ue = session(5);
+		byte[] record = SessionJournal.encodeSession(ue);
+		assertEquals(SessionJournal.RECORD_SIZE, record.length);
+		assertSameSession(ue, SessionJournal.decodeSession(record));
+
+		record[20] ^= 1;
+		assertNull(SessionJournal.decodeSession(record));
+		assertNull(SessionJournal.decodeSession(new byte[SessionJournal.RECORD_SIZE - 1]));
+	};
+}
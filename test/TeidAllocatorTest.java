@@ -0,0 +1,210 @@
+/* #### Tunnel Endpoint ID Allocator Tests ####
+ * Checks TeidAllocator and the AtomicBitmap under it: exhaustion,
+ * bad releases, slicing of the range between MME cluster nodes and
+ * concurrent allocation / release.
+ */
+package net.floodlightcontroller.splus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class TeidAllocatorTest {
+
+	@Test
+	public void testExhaustionReturnsNone() {
+		TeidAllocator te_ids = new TeidAllocator("test", 100, 199);
+
+		boolean seen[] = new boolean[100];
+		for (int i = 0; i < 100; i++) {
+			int te_id = te_ids.allocate();
+			assertTrue("ID out of range: " + te_id, te_id >= 100 && te_id <= 199);
+			assertFalse("ID handed out twice: " + te_id, seen[te_id - 100]);
+			seen[te_id - 100] = true;
+		};
+
+		assertEquals(TeidAllocator.NONE, te_ids.allocate());
+		assertEquals(TeidAllocator.NONE, te_ids.allocate());
+		assertEquals(2, te_ids.getExhausted());
+		assertEquals(100, te_ids.getInUse());
+
+		// a released ID is the only one left
+		assertTrue(te_ids.release(150));
+		assertEquals(150, te_ids.allocate());
+		assertEquals(TeidAllocator.NONE, te_ids.allocate());
+	};
+
+	@Test
+	public void testDoubleReleaseReturnsFalse() {
+		TeidAllocator te_ids = new TeidAllocator("test", 1, 64);
+
+		int te_id = te_ids.allocate();
+		assertTrue(te_ids.isAllocated(te_id));
+		assertTrue(te_ids.release(te_id));
+		assertFalse(te_ids.isAllocated(te_id));
+
+		assertFalse(te_ids.release(te_id));
+		assertEquals(0, te_ids.getInUse());
+
+		// out of range and never allocated
+		assertFalse(te_ids.release(0));
+		assertFalse(te_ids.release(65));
+		assertFalse(te_ids.release(te_id + 1));
+		assertEquals(0, te_ids.getInUse());
+	};
+
+	@Test
+	public void testReleasedIdReusedLast() {
+		TeidAllocator te_ids = new TeidAllocator("test", 1, 10);
+
+		int first = te_ids.allocate();
+		assertTrue(te_ids.release(first));
+
+		// the rest of the range is handed out before the released ID comes round again
+		for (int i = 0; i < 9; i++) {
+			assertTrue(te_ids.allocate() != first);
+		};
+		assertEquals(first, te_ids.allocate());
+	};
+
+	@Test
+	public void testAllocateGivenId() {
+		TeidAllocator te_ids = new TeidAllocator("test", 10, 20);
+
+		assertTrue(te_ids.allocate(15));
+		assertFalse(te_ids.allocate(15));
+		assertFalse(te_ids.allocate(9));
+		assertFalse(te_ids.allocate(21));
+		assertEquals(1, te_ids.getInUse());
+	};
+
+	@Test
+	public void testBitmapTailOfPartialWord() {
+		// 70 indexes => second word has 6 usable bits, the rest must never be handed out
+		AtomicBitmap bitmap = new AtomicBitmap(70);
+
+		for (int i = 0; i < 70; i++) {
+			int index = bitmap.allocate();
+			assertTrue("index out of range: " + index, index >= 0 && index < 70);
+		};
+
+		assertEquals(-1, bitmap.allocate());
+		assertFalse(bitmap.allocate(70));
+		assertFalse(bitmap.release(70));
+		assertEquals(70, bitmap.getPeak());
+	};
+
+	@Test
+	public void testSliceAndPartOfRoundTrip() {
+		int min_te_id = Constants.SGW_MIN_TE_ID, max_te_id = Constants.SGW_MAX_TE_ID;
+
+		for (int parts = 1; parts <= 7; parts++) {
+			int covered = 0;
+
+			for (int part = 0; part < parts; part++) {
+				TeidAllocator slice = TeidAllocator.slice("test", min_te_id, max_te_id, part, parts);
+				covered += slice.getCapacity();
+
+				// every ID a slice hands out maps back to it
+				int te_id;
+				while ((te_id = slice.allocate()) != TeidAllocator.NONE) {
+					assertTrue("ID out of range: " + te_id, te_id >= min_te_id && te_id <= max_te_id);
+					assertEquals("part of ID " + te_id + " of " + parts + " parts", part, TeidAllocator.partOf(te_id, min_te_id, max_te_id, parts));
+				};
+			};
+
+			// slices cover the whole range without overlap
+			assertEquals(max_te_id - min_te_id + 1, covered);
+		};
+	};
+
+	@Test
+	public void testSlicesAreDisjoint() {
+		int parts = 3;
+		boolean seen[] = new boolean[Constants.MAX_TE_ID + 1];
+
+		for (int part = 0; part < parts; part++) {
+			TeidAllocator slice = TeidAllocator.slice("test", Constants.SGW_MIN_TE_ID, Constants.SGW_MAX_TE_ID, part, parts);
+
+			int te_id;
+			while ((te_id = slice.allocate()) != TeidAllocator.NONE) {
+				if(seen[te_id]) { fail("ID " + te_id + " handed out by two slices"); };
+				seen[te_id] = true;
+			};
+		};
+	};
+
+	@Test
+	public void testConcurrentAllocateRelease() throws InterruptedException {
+		final int threads = 8, rounds = 20000, held = 50;
+		final TeidAllocator te_ids = new TeidAllocator("test", Constants.MIN_TE_ID, Constants.MAX_TE_ID);
+
+		// [Index => ID, Value => number of threads holding it], never above 1
+		final AtomicIntegerArray owners = new AtomicIntegerArray(Constants.MAX_TE_ID + 1);
+		final AtomicInteger duplicates = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int mine[] = new int[held];
+					int count = 0;
+
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					for (int i = 0; i < rounds; i++) {
+						// hold a few IDs at a time, releasing the oldest
+						if(count == held) {
+							int te_id = mine[i % held];
+							owners.decrementAndGet(te_id);
+							if(!te_ids.release(te_id)) { failures.incrementAndGet(); };
+							count--;
+						};
+
+						int te_id = te_ids.allocate();
+						if(te_id == TeidAllocator.NONE) {
+							failures.incrementAndGet();
+							continue;
+						};
+
+						if(owners.incrementAndGet(te_id) != 1) { duplicates.incrementAndGet(); };
+						mine[i % held] = te_id;
+						count++;
+					};
+
+					for (int i = 0; i < count; i++) {
+						int te_id = mine[(rounds - count + i) % held];
+						owners.decrementAndGet(te_id);
+						if(!te_ids.release(te_id)) { failures.incrementAndGet(); };
+					};
+				};
+			});
+			workers.add(worker);
+			worker.start();
+		};
+
+		start.countDown();
+		for (Thread worker : workers) { worker.join(); };
+
+		assertEquals("IDs held by two threads at once", 0, duplicates.get());
+		assertEquals("failed allocations / releases", 0, failures.get());
+		assertEquals(0, te_ids.getInUse());
+		assertTrue(te_ids.allocate() != TeidAllocator.NONE);
+	};
+}